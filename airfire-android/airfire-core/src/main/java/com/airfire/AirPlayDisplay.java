@@ -0,0 +1,47 @@
+package com.airfire;
+
+/**
+ * The display mirrored video is shown on, as advertised to senders in /info
+ * Senders encode at its size and cap their frame rate at its max FPS, so the decoder is set up from it too
+ */
+final class AirPlayDisplay {
+    // iOS never mirrors faster than this, whatever the panel can show
+    static final int MAX_MIRRORING_FPS = 60;
+
+    // What senders are told when the display couldn't be queried
+    static final AirPlayDisplay DEFAULT = new AirPlayDisplay(1920, 1080, 60);
+
+    private final int width;
+    private final int height;
+    private final int refreshRate;
+    private final int maxFps;
+
+    // The refresh rate is rounded, since 59.94 Hz panels are advertised as 60
+    AirPlayDisplay(int width, int height, float refreshRate) {
+        this.width = width;
+        this.height = height;
+        this.refreshRate = Math.round(refreshRate);
+        this.maxFps = Math.min(this.refreshRate, MAX_MIRRORING_FPS);
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getRefreshRate() {
+        return refreshRate;
+    }
+
+    int getMaxFps() {
+        return maxFps;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + " at " + refreshRate + " Hz";
+    }
+}
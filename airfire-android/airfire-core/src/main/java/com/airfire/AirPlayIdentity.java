@@ -0,0 +1,155 @@
+package com.airfire;
+
+import org.bouncycastle.math.ec.rfc7748.X25519;
+import org.bouncycastle.math.ec.rfc8032.Ed25519;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * The receiver's long-term identity: device ID, pairing ID and Ed25519 key
+ * Generated once and kept in the receiver's FileStore, so senders recognize the receiver across restarts and DHCP leases
+ */
+class AirPlayIdentity {
+    private static final String TAG = "AirPlayIdentity";
+    private static final String IDENTITY_FILE_NAME = "airplay_identity";
+
+    private static final int DEVICE_ID_SIZE_IN_BYTES = 6;
+
+    private final String deviceId;
+    private final String pairingId;
+    private final byte[] secretKey;
+    private final byte[] publicKey = new byte[Ed25519.PUBLIC_KEY_SIZE];
+
+    private AirPlayIdentity(String deviceId, String pairingId, byte[] secretKey) {
+        this.deviceId = deviceId;
+        this.pairingId = pairingId;
+        this.secretKey = secretKey;
+        Ed25519.generatePublicKey(secretKey, 0, publicKey, 0);
+
+        // Builds the signing and key agreement tables now rather than during a sender's
+        // first pair-verify
+        Ed25519.precompute();
+        X25519.precompute();
+    }
+
+    static AirPlayIdentity load(FileStore files) {
+        AirPlayIdentity identity = loadIdentity(files);
+        if (identity == null) {
+            identity = generateNewIdentity(files);
+        }
+
+        CoreLog.i(TAG, "Device ID is " + identity.deviceId);
+        return identity;
+    }
+
+    // Looks like a MAC address, since that's what senders expect, but it's random
+    String getDeviceId() {
+        return deviceId;
+    }
+
+    String getPairingId() {
+        return pairingId;
+    }
+
+    // The array is shared and must not be modified
+    byte[] getPublicKey() {
+        return publicKey;
+    }
+
+    String getPublicKeyHex() {
+        return toHex(publicKey);
+    }
+
+    void sign(byte[] message, int offset, int length, byte[] signature, int signatureOffset) {
+        Ed25519.sign(secretKey, 0, publicKey, 0, message, offset, length, signature, signatureOffset);
+    }
+
+    private static AirPlayIdentity loadIdentity(FileStore files) {
+        CoreLog.i(TAG, "Reading identity from disk");
+        try (final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(files.openInput(IDENTITY_FILE_NAME), StandardCharsets.US_ASCII))) {
+            String deviceId = reader.readLine();
+            String pairingId = reader.readLine();
+            byte[] secretKey = fromHex(reader.readLine());
+            if (deviceId == null || pairingId == null || secretKey == null ||
+                    secretKey.length != Ed25519.SECRET_KEY_SIZE) {
+                CoreLog.e(TAG, "Identity file data is truncated");
+                return null;
+            }
+            return new AirPlayIdentity(deviceId, pairingId, secretKey);
+        } catch (FileNotFoundException e) {
+            CoreLog.i(TAG, "No identity file found");
+            return null;
+        } catch (IOException e) {
+            CoreLog.e(TAG, "Error while reading identity file", e);
+            return null;
+        }
+    }
+
+    private static AirPlayIdentity generateNewIdentity(FileStore files) {
+        CoreLog.i(TAG, "Generating new identity");
+        SecureRandom random = new SecureRandom();
+
+        byte[] address = new byte[DEVICE_ID_SIZE_IN_BYTES];
+        random.nextBytes(address);
+        // Locally administered and unicast, so it can't clash with a real network card
+        address[0] = (byte) ((address[0] & 0xFC) | 0x02);
+        StringBuilder deviceId = new StringBuilder(DEVICE_ID_SIZE_IN_BYTES * 3);
+        for (byte b : address) {
+            if (deviceId.length() > 0) {
+                deviceId.append(':');
+            }
+            deviceId.append(String.format((Locale) null, "%02X", b & 0xFF));
+        }
+
+        byte[] secretKey = new byte[Ed25519.SECRET_KEY_SIZE];
+        Ed25519.generatePrivateKey(random, secretKey);
+
+        AirPlayIdentity identity = new AirPlayIdentity(deviceId.toString(), UUID.randomUUID().toString(), secretKey);
+
+        try (final OutputStreamWriter writer = new OutputStreamWriter(
+                files.openOutput(IDENTITY_FILE_NAME), StandardCharsets.US_ASCII)) {
+            writer.write(identity.deviceId + "\n" + identity.pairingId + "\n" + toHex(secretKey) + "\n");
+            CoreLog.i(TAG, "Identity written to disk");
+        } catch (IOException e) {
+            CoreLog.e(TAG, "Error while writing identity file", e);
+        }
+
+        // We can use the identity even if I/O fails, it just won't survive a restart
+        return identity;
+    }
+
+    static String toHex(byte[] data) {
+        StringBuilder hex = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    // Null if the string isn't an even number of hex digits
+    static byte[] fromHex(String hex) {
+        if (hex == null || (hex.length() & 1) != 0) {
+            return null;
+        }
+
+        byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            data[i] = (byte) ((high << 4) | low);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,243 @@
+package com.airfire;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Zero-copy view of one HTTP or RTSP request
+ * Every field is an offset into the connection's read buffer, so a request is only valid until the next one is parsed
+ */
+class AirPlayRequest {
+    static final int METHOD_UNKNOWN = 0;
+    static final int METHOD_GET = 1;
+    static final int METHOD_POST = 2;
+    static final int METHOD_PUT = 3;
+    static final int METHOD_OPTIONS = 4;
+    static final int METHOD_ANNOUNCE = 5;
+    static final int METHOD_SETUP = 6;
+    static final int METHOD_RECORD = 7;
+    static final int METHOD_GET_PARAMETER = 8;
+    static final int METHOD_SET_PARAMETER = 9;
+    static final int METHOD_FLUSH = 10;
+    static final int METHOD_TEARDOWN = 11;
+
+    // Indexed by the METHOD_* constants above
+    private static final byte[][] METHOD_NAMES = {
+            null,
+            ascii("GET"),
+            ascii("POST"),
+            ascii("PUT"),
+            ascii("OPTIONS"),
+            ascii("ANNOUNCE"),
+            ascii("SETUP"),
+            ascii("RECORD"),
+            ascii("GET_PARAMETER"),
+            ascii("SET_PARAMETER"),
+            ascii("FLUSH"),
+            ascii("TEARDOWN"),
+    };
+
+    // Header names must be given in lower case
+    static final byte[] HEADER_ACCEPT = ascii("accept");
+    static final byte[] HEADER_ACTIVE_REMOTE = ascii("active-remote");
+    static final byte[] HEADER_CONNECTION = ascii("connection");
+    static final byte[] HEADER_CONTENT_LENGTH = ascii("content-length");
+    static final byte[] HEADER_CONTENT_TYPE = ascii("content-type");
+    static final byte[] HEADER_CSEQ = ascii("cseq");
+    static final byte[] HEADER_DACP_ID = ascii("dacp-id");
+    static final byte[] HEADER_TRANSPORT = ascii("transport");
+    static final byte[] HEADER_USER_AGENT = ascii("user-agent");
+    static final byte[] HEADER_X_APPLE_DEVICE_ID = ascii("x-apple-device-id");
+    static final byte[] HEADER_X_APPLE_SESSION_ID = ascii("x-apple-session-id");
+
+    private static final byte[] VALUE_CLOSE = ascii("close");
+    private static final byte[] VALUE_KEEP_ALIVE = ascii("keep-alive");
+    private static final byte[] PROTOCOL_RTSP = ascii("RTSP/");
+    private static final byte[] PROTOCOL_HTTP_1_0 = ascii("HTTP/1.0");
+
+    static final int MAX_HEADERS = 64;
+
+    byte[] data;
+    int start;
+
+    int method;
+    int methodStart, methodLength;
+    int pathStart, pathLength;
+    int protocolStart, protocolLength;
+
+    final int[] headerNameStart = new int[MAX_HEADERS];
+    final int[] headerNameLength = new int[MAX_HEADERS];
+    final int[] headerValueStart = new int[MAX_HEADERS];
+    final int[] headerValueLength = new int[MAX_HEADERS];
+    int headerCount;
+
+    int bodyStart;
+    int contentLength;
+
+    void reset(byte[] data, int start) {
+        this.data = data;
+        this.start = start;
+        this.method = METHOD_UNKNOWN;
+        this.headerCount = 0;
+        this.bodyStart = start;
+        this.contentLength = 0;
+    }
+
+    // Total bytes occupied by the request line, headers and body
+    int getLength() {
+        return bodyStart - start + contentLength;
+    }
+
+    int getMethod() {
+        return method;
+    }
+
+    boolean isRtsp() {
+        return regionStartsWith(protocolStart, protocolLength, PROTOCOL_RTSP);
+    }
+
+    boolean isKeepAlive() {
+        int index = findHeader(HEADER_CONNECTION);
+        if (index >= 0) {
+            if (headerValueEqualsIgnoreCase(index, VALUE_CLOSE)) {
+                return false;
+            }
+            if (headerValueEqualsIgnoreCase(index, VALUE_KEEP_ALIVE)) {
+                return true;
+            }
+        }
+
+        // HTTP/1.1 and RTSP connections are persistent unless told otherwise
+        return protocolLength != PROTOCOL_HTTP_1_0.length ||
+                !regionStartsWith(protocolStart, protocolLength, PROTOCOL_HTTP_1_0);
+    }
+
+    // Compares the path without any query string
+    boolean pathEquals(byte[] path) {
+        int length = pathLength;
+        for (int i = 0; i < pathLength; i++) {
+            if (data[pathStart + i] == '?') {
+                length = i;
+                break;
+            }
+        }
+        return length == path.length && regionStartsWith(pathStart, length, path);
+    }
+
+    // Returns the index of the named header or -1. The name must be lower case.
+    int findHeader(byte[] lowerCaseName) {
+        for (int i = 0; i < headerCount; i++) {
+            if (headerNameLength[i] == lowerCaseName.length &&
+                    regionEqualsIgnoreCase(headerNameStart[i], lowerCaseName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    boolean headerValueEqualsIgnoreCase(int index, byte[] lowerCaseValue) {
+        return headerValueLength[index] == lowerCaseValue.length &&
+                regionEqualsIgnoreCase(headerValueStart[index], lowerCaseValue);
+    }
+
+    // For list-valued headers such as Accept, where the token can appear anywhere in the value
+    boolean headerValueContainsIgnoreCase(int index, byte[] lowerCaseValue) {
+        int last = headerValueStart[index] + headerValueLength[index] - lowerCaseValue.length;
+        for (int offset = headerValueStart[index]; offset <= last; offset++) {
+            if (regionEqualsIgnoreCase(offset, lowerCaseValue)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean headerValueEquals(int index, String value) {
+        if (headerValueLength[index] != value.length()) {
+            return false;
+        }
+        int offset = headerValueStart[index];
+        for (int i = 0; i < value.length(); i++) {
+            if ((data[offset + i] & 0xFF) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Allocates, so this is meant for values we keep rather than per-request checks
+    String getHeaderValue(int index) {
+        return new String(data, headerValueStart[index], headerValueLength[index], StandardCharsets.ISO_8859_1);
+    }
+
+    // Appends the raw header value to a response being built, without an intermediate String
+    void appendHeaderValue(int index, StringBuilder builder) {
+        int offset = headerValueStart[index];
+        for (int i = 0; i < headerValueLength[index]; i++) {
+            builder.append((char) (data[offset + i] & 0xFF));
+        }
+    }
+
+    // The body is a window onto the read buffer, not a copy
+    ByteBuffer getBody() {
+        return ByteBuffer.wrap(data, bodyStart, contentLength).slice();
+    }
+
+    int getContentLength() {
+        return contentLength;
+    }
+
+    String getMethodString() {
+        return new String(data, methodStart, methodLength, StandardCharsets.ISO_8859_1);
+    }
+
+    String getPathString() {
+        return new String(data, pathStart, pathLength, StandardCharsets.ISO_8859_1);
+    }
+
+    static String getMethodName(int method) {
+        if (method <= METHOD_UNKNOWN || method >= METHOD_NAMES.length) {
+            return "UNKNOWN";
+        }
+        return new String(METHOD_NAMES[method], StandardCharsets.US_ASCII);
+    }
+
+    static int matchMethod(byte[] data, int offset, int length) {
+        for (int i = 1; i < METHOD_NAMES.length; i++) {
+            byte[] name = METHOD_NAMES[i];
+            if (name.length == length && regionMatches(data, offset, name)) {
+                return i;
+            }
+        }
+        return METHOD_UNKNOWN;
+    }
+
+    static byte[] ascii(String str) {
+        return str.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private boolean regionStartsWith(int offset, int length, byte[] prefix) {
+        return length >= prefix.length && regionMatches(data, offset, prefix);
+    }
+
+    private static boolean regionMatches(byte[] data, int offset, byte[] expected) {
+        for (int i = 0; i < expected.length; i++) {
+            if (data[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionEqualsIgnoreCase(int offset, byte[] lowerCase) {
+        for (int i = 0; i < lowerCase.length; i++) {
+            byte b = data[offset + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCase[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,159 @@
+package com.airfire;
+
+/**
+ * Incremental HTTP/RTSP request head parser
+ * Works directly on the bytes in a read buffer and records offsets into an AirPlayRequest without allocating
+ */
+class AirPlayRequestParser {
+    static final int RESULT_INCOMPLETE = 0;
+    static final int RESULT_COMPLETE = 1;
+    static final int RESULT_BAD_REQUEST = -1;
+    static final int RESULT_TOO_MANY_HEADERS = -2;
+
+    // Where to resume searching for the end of the head, so a request arriving in
+    // several reads isn't rescanned from the start each time
+    private int resumeOffset = -1;
+
+    void reset() {
+        resumeOffset = -1;
+    }
+
+    // Parses the request head in data[start, end). On RESULT_COMPLETE the request describes
+    // the head and the expected body length; the body itself may not have arrived yet.
+    int parse(byte[] data, int start, int end, AirPlayRequest request) {
+        int headEnd = findHeadEnd(data, resumeOffset >= 0 ? resumeOffset : start, end);
+        if (headEnd < 0) {
+            resumeOffset = Math.max(start, end - 3);
+            return RESULT_INCOMPLETE;
+        }
+        resumeOffset = -1;
+
+        request.reset(data, start);
+
+        // The request line is terminated by the first CRLF
+        int lineEnd = indexOfCrlf(data, start, headEnd + 2);
+        if (!parseRequestLine(data, start, lineEnd, request)) {
+            return RESULT_BAD_REQUEST;
+        }
+
+        int lineStart = lineEnd + 2;
+        while (lineStart < headEnd + 2) {
+            lineEnd = indexOfCrlf(data, lineStart, headEnd + 2);
+            int result = parseHeaderLine(data, lineStart, lineEnd, request);
+            if (result != RESULT_COMPLETE) {
+                return result;
+            }
+            lineStart = lineEnd + 2;
+        }
+
+        request.bodyStart = headEnd + 4;
+
+        int index = request.findHeader(AirPlayRequest.HEADER_CONTENT_LENGTH);
+        if (index >= 0) {
+            request.contentLength = parseNonNegativeInt(data, request.headerValueStart[index],
+                    request.headerValueLength[index]);
+            if (request.contentLength < 0) {
+                return RESULT_BAD_REQUEST;
+            }
+        }
+
+        return RESULT_COMPLETE;
+    }
+
+    private static boolean parseRequestLine(byte[] data, int start, int end, AirPlayRequest request) {
+        int firstSpace = indexOf(data, start, end, (byte) ' ');
+        if (firstSpace <= start) {
+            return false;
+        }
+        int secondSpace = indexOf(data, firstSpace + 1, end, (byte) ' ');
+        if (secondSpace <= firstSpace + 1 || secondSpace + 1 >= end) {
+            return false;
+        }
+
+        request.methodStart = start;
+        request.methodLength = firstSpace - start;
+        request.method = AirPlayRequest.matchMethod(data, start, request.methodLength);
+        request.pathStart = firstSpace + 1;
+        request.pathLength = secondSpace - firstSpace - 1;
+        request.protocolStart = secondSpace + 1;
+        request.protocolLength = end - secondSpace - 1;
+        return true;
+    }
+
+    private static int parseHeaderLine(byte[] data, int start, int end, AirPlayRequest request) {
+        int colon = indexOf(data, start, end, (byte) ':');
+        if (colon <= start) {
+            // Not a header we can make sense of, so skip it like we always have
+            return RESULT_COMPLETE;
+        }
+
+        if (request.headerCount == AirPlayRequest.MAX_HEADERS) {
+            return RESULT_TOO_MANY_HEADERS;
+        }
+
+        int nameEnd = colon;
+        while (nameEnd > start && data[nameEnd - 1] == ' ') {
+            nameEnd--;
+        }
+        int valueStart = colon + 1;
+        while (valueStart < end && (data[valueStart] == ' ' || data[valueStart] == '\t')) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && (data[valueEnd - 1] == ' ' || data[valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
+
+        int i = request.headerCount++;
+        request.headerNameStart[i] = start;
+        request.headerNameLength[i] = nameEnd - start;
+        request.headerValueStart[i] = valueStart;
+        request.headerValueLength[i] = valueEnd - valueStart;
+        return RESULT_COMPLETE;
+    }
+
+    // Returns the offset of the CRLFCRLF terminating the head, or -1
+    private static int findHeadEnd(byte[] data, int from, int end) {
+        for (int i = from; i + 3 < end; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOfCrlf(byte[] data, int from, int end) {
+        for (int i = from; i + 1 < end; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int indexOf(byte[] data, int from, int end, byte value) {
+        for (int i = from; i < end; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Returns -1 if the value is not a valid non-negative integer
+    private static int parseNonNegativeInt(byte[] data, int offset, int length) {
+        if (length == 0 || length > 9) {
+            return -1;
+        }
+
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = data[offset + i];
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+}
@@ -0,0 +1,269 @@
+package com.airfire;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The receiver's capability document for /server-info and /info
+ * Encoded once as XML and binary plist when the receiver starts, so each request just writes the bytes
+ */
+class AirPlayServerInfo {
+    static final String CONTENT_TYPE_XML_PLIST = "text/x-apple-plist+xml";
+    static final String CONTENT_TYPE_BINARY_PLIST = "application/x-apple-binary-plist";
+
+    static final String MODEL = "AirFire1,1";
+    static final String SOURCE_VERSION = "366.0";
+    static final String PROTOCOL_VERSION = "1.0";
+    static final int VERSION = 2;
+
+    // The 64-bit AirPlay feature flags. TXT records carry them as "low,high" 32-bit halves.
+    static final long FEATURES = 0x1C340445F8A00L;
+    static final String STATUS_FLAGS = "0x4";
+
+    // RAOP audio format support: PCM, ALAC, AAC and AAC-ELD. Only unencrypted streams, since
+    // we hold neither the RSA nor the FairPlay keys.
+    private static final String RAOP_CODECS = "0,1,2,3";
+    private static final String RAOP_ENCRYPTION_TYPES = "0";
+    private static final String RAOP_METADATA_TYPES = "0,1,2";
+
+    private static final char[] BASE64_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private final AirPlayIdentity identity;
+    private final String deviceId;
+    private final String name;
+    private final String pairingId;
+    private final String publicKeyHex;
+    private final AirPlayDisplay display;
+    private final PlistValue properties;
+    private final byte[] xmlBody;
+    private final byte[] binaryBody;
+
+    // Senders recognize the receiver by its device ID and public key, so both have to stay
+    // the same from one run to the next for them to skip pair-setup
+    AirPlayServerInfo(AirPlayIdentity identity, String name, AirPlayDisplay display) {
+        this.identity = identity;
+        this.deviceId = identity.getDeviceId();
+        this.name = name;
+        this.pairingId = identity.getPairingId();
+        this.publicKeyHex = identity.getPublicKeyHex();
+        this.display = display;
+
+        PlistValue properties = new PlistValue().clear(PlistValue.TYPE_DICT);
+        this.properties = properties;
+        properties.put("deviceid").setString(deviceId);
+        putDisplay(properties.put("displays").clear(PlistValue.TYPE_ARRAY).add().clear(PlistValue.TYPE_DICT));
+        properties.put("features").setInteger(FEATURES);
+        properties.put("model").setString(MODEL);
+        properties.put("name").setString(name);
+        properties.put("pi").setString(pairingId);
+        byte[] publicKey = identity.getPublicKey();
+        properties.put("pk").setData(publicKey, 0, publicKey.length);
+        properties.put("protovers").setString(PROTOCOL_VERSION);
+        properties.put("srcvers").setString(SOURCE_VERSION);
+        properties.put("vv").setInteger(VERSION);
+
+        this.xmlBody = encodeXml(properties);
+
+        BinaryPlistWriter writer = new BinaryPlistWriter();
+        this.binaryBody = new byte[writer.measure(properties)];
+        writer.write(properties, ByteBuffer.wrap(binaryBody));
+    }
+
+    // Senders mirror at the advertised size and frame rate, so there's nothing for the TV to
+    // scale. The UUID only has to stay the same between runs, so it's derived from the device ID.
+    private void putDisplay(PlistValue entry) {
+        entry.put("uuid").setString(UUID.nameUUIDFromBytes(deviceId.getBytes(StandardCharsets.UTF_8)).toString());
+        entry.put("width").setInteger(display.getWidth());
+        entry.put("height").setInteger(display.getHeight());
+        entry.put("widthPixels").setInteger(display.getWidth());
+        entry.put("heightPixels").setInteger(display.getHeight());
+        // The physical size is unknown for a TV, and senders accept zero
+        entry.put("widthPhysical").setInteger(0);
+        entry.put("heightPhysical").setInteger(0);
+        entry.put("refreshRate").setInteger(display.getRefreshRate());
+        entry.put("maxFPS").setInteger(display.getMaxFps());
+        entry.put("rotation").setBoolean(false);
+        entry.put("overscanned").setBoolean(false);
+    }
+
+    AirPlayIdentity getIdentity() {
+        return identity;
+    }
+
+    String getDeviceId() {
+        return deviceId;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    AirPlayDisplay getDisplay() {
+        return display;
+    }
+
+    String getFeaturesTxtValue() {
+        return String.format("0x%X,0x%X", FEATURES & 0xFFFFFFFFL, FEATURES >>> 32);
+    }
+
+    // TXT record for _airplay._tcp
+    Map<String, String> getAirPlayTxtRecord() {
+        Map<String, String> txt = new LinkedHashMap<>();
+        txt.put("deviceid", deviceId);
+        txt.put("features", getFeaturesTxtValue());
+        txt.put("flags", STATUS_FLAGS);
+        txt.put("model", MODEL);
+        txt.put("pi", pairingId);
+        txt.put("pk", publicKeyHex);
+        txt.put("protovers", PROTOCOL_VERSION);
+        txt.put("srcvers", SOURCE_VERSION);
+        txt.put("vv", String.valueOf(VERSION));
+        return txt;
+    }
+
+    // RAOP services are named after the device ID, which is how senders pair them with the
+    // matching _airplay._tcp service and show the two as one receiver.
+    String getRaopServiceName() {
+        return deviceId.replace(":", "") + "@" + name;
+    }
+
+    // TXT record for _raop._tcp
+    Map<String, String> getRaopTxtRecord() {
+        Map<String, String> txt = new LinkedHashMap<>();
+        txt.put("txtvers", "1");
+        txt.put("ch", "2");
+        txt.put("cn", RAOP_CODECS);
+        txt.put("da", "true");
+        txt.put("et", RAOP_ENCRYPTION_TYPES);
+        txt.put("ft", getFeaturesTxtValue());
+        txt.put("md", RAOP_METADATA_TYPES);
+        txt.put("am", MODEL);
+        txt.put("sf", STATUS_FLAGS);
+        txt.put("tp", "UDP");
+        txt.put("vn", "65537");
+        txt.put("vs", SOURCE_VERSION);
+        txt.put("vv", String.valueOf(VERSION));
+        txt.put("sr", "44100");
+        txt.put("ss", "16");
+        txt.put("pw", "false");
+        txt.put("pk", publicKeyHex);
+        return txt;
+    }
+
+    // Both bodies are shared by every connection and must not be modified
+    byte[] getXmlBody() {
+        return xmlBody;
+    }
+
+    byte[] getBinaryBody() {
+        return binaryBody;
+    }
+
+    // The document the bodies were encoded from, for re-encoding benchmarks. Must not be modified.
+    PlistValue getProperties() {
+        return properties;
+    }
+
+    // Only the dictionaries, arrays, scalars and data that the capability document needs
+    static byte[] encodeXml(PlistValue properties) {
+        StringBuilder xml = new StringBuilder(1024);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        xml.append("<!DOCTYPE plist PUBLIC \"-//Apple//DTD PLIST 1.0//EN\" \"http://www.apple.com/DTDs/PropertyList-1.0.dtd\">\n");
+        xml.append("<plist version=\"1.0\">\n");
+        appendXmlValue(xml, properties, 0);
+        xml.append("</plist>\n");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void appendXmlValue(StringBuilder xml, PlistValue value, int depth) {
+        appendIndent(xml, depth);
+        switch (value.getType()) {
+            case PlistValue.TYPE_DICT:
+                xml.append("<dict>\n");
+                for (int i = 0; i < value.size(); i++) {
+                    appendIndent(xml, depth + 1);
+                    xml.append("<key>");
+                    appendEscaped(xml, value.getKey(i).getString());
+                    xml.append("</key>\n");
+                    appendXmlValue(xml, value.get(i), depth + 1);
+                }
+                appendIndent(xml, depth);
+                xml.append("</dict>\n");
+                break;
+            case PlistValue.TYPE_ARRAY:
+                xml.append("<array>\n");
+                for (int i = 0; i < value.size(); i++) {
+                    appendXmlValue(xml, value.get(i), depth + 1);
+                }
+                appendIndent(xml, depth);
+                xml.append("</array>\n");
+                break;
+            case PlistValue.TYPE_STRING:
+                xml.append("<string>");
+                appendEscaped(xml, value.getString());
+                xml.append("</string>\n");
+                break;
+            case PlistValue.TYPE_BOOLEAN:
+                xml.append(value.getBoolean() ? "<true/>\n" : "<false/>\n");
+                break;
+            case PlistValue.TYPE_DATA:
+                xml.append("<data>");
+                appendBase64(xml, value.getSource(), value.getSourceOffset(), value.getSourceLength());
+                xml.append("</data>\n");
+                break;
+            default:
+                // Plist integers are always decimal
+                xml.append("<integer>").append(value.getInteger()).append("</integer>\n");
+                break;
+        }
+    }
+
+    private static void appendIndent(StringBuilder xml, int depth) {
+        for (int i = 0; i < depth; i++) {
+            xml.append("    ");
+        }
+    }
+
+    // Padded and on one line, as plist <data> is usually written
+    private static void appendBase64(StringBuilder xml, byte[] data, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i += 3) {
+            int remaining = end - i;
+            int bits = (data[i] & 0xFF) << 16;
+            if (remaining > 1) {
+                bits |= (data[i + 1] & 0xFF) << 8;
+            }
+            if (remaining > 2) {
+                bits |= data[i + 2] & 0xFF;
+            }
+            xml.append(BASE64_ALPHABET[bits >>> 18]);
+            xml.append(BASE64_ALPHABET[(bits >>> 12) & 0x3F]);
+            xml.append(remaining > 1 ? BASE64_ALPHABET[(bits >>> 6) & 0x3F] : '=');
+            xml.append(remaining > 2 ? BASE64_ALPHABET[bits & 0x3F] : '=');
+        }
+    }
+
+    private static void appendEscaped(StringBuilder xml, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    xml.append("&lt;");
+                    break;
+                case '>':
+                    xml.append("&gt;");
+                    break;
+                case '&':
+                    xml.append("&amp;");
+                    break;
+                default:
+                    xml.append(c);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.airfire;
+
+/**
+ * State kept for one AirPlay sender across all requests on a persistent connection
+ * Tracks how far the sender has progressed through the discovery/pairing/streaming handshake
+ */
+class AirPlaySession {
+    static final int STATE_CONNECTED = 0;
+    static final int STATE_INFO_EXCHANGED = 1;
+    static final int STATE_PAIRING = 2;
+    static final int STATE_SETUP = 3;
+    static final int STATE_RECORDING = 4;
+    static final int STATE_TORN_DOWN = 5;
+
+    private final String remoteAddress;
+    private int state = STATE_CONNECTED;
+    private int requestCount;
+
+    // Sender identification, as reported in the request headers
+    private String userAgent;
+    private String deviceId;
+    private String sessionId;
+    private String dacpId;
+    private String activeRemote;
+
+    // Set by ANNOUNCE or SETUP once the sender has described its audio
+    private AudioStreamFormat audioFormat;
+
+    AirPlaySession(String remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    void onRequest(AirPlayRequest request) {
+        requestCount++;
+
+        // Senders don't repeat these on every request, so only overwrite what we're given
+        userAgent = valueOrCurrent(request, AirPlayRequest.HEADER_USER_AGENT, userAgent);
+        deviceId = valueOrCurrent(request, AirPlayRequest.HEADER_X_APPLE_DEVICE_ID, deviceId);
+        sessionId = valueOrCurrent(request, AirPlayRequest.HEADER_X_APPLE_SESSION_ID, sessionId);
+        dacpId = valueOrCurrent(request, AirPlayRequest.HEADER_DACP_ID, dacpId);
+        activeRemote = valueOrCurrent(request, AirPlayRequest.HEADER_ACTIVE_REMOTE, activeRemote);
+    }
+
+    void advanceTo(int newState) {
+        // The handshake only moves forward, except for a teardown which ends it
+        if (newState > state || newState == STATE_TORN_DOWN) {
+            state = newState;
+        }
+    }
+
+    int getState() {
+        return state;
+    }
+
+    boolean isStreaming() {
+        return state == STATE_SETUP || state == STATE_RECORDING;
+    }
+
+    int getRequestCount() {
+        return requestCount;
+    }
+
+    String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    String getUserAgent() {
+        return userAgent;
+    }
+
+    String getDeviceId() {
+        return deviceId;
+    }
+
+    String getSessionId() {
+        return sessionId;
+    }
+
+    String getDacpId() {
+        return dacpId;
+    }
+
+    String getActiveRemote() {
+        return activeRemote;
+    }
+
+    AudioStreamFormat getAudioFormat() {
+        return audioFormat;
+    }
+
+    void setAudioFormat(AudioStreamFormat audioFormat) {
+        this.audioFormat = audioFormat;
+    }
+
+    private static String valueOrCurrent(AirPlayRequest request, byte[] headerName, String current) {
+        int index = request.findHeader(headerName);
+        if (index < 0) {
+            return current;
+        }
+
+        // These rarely change within a session, so avoid allocating a new String when they don't
+        if (current != null && request.headerValueEquals(index, current)) {
+            return current;
+        }
+        return request.getHeaderValue(index);
+    }
+}
@@ -0,0 +1,364 @@
+package com.airfire;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * NTP-style timing exchange with the sender on the AirPlay timing port
+ * Answers the sender's timing requests and sends our own, filtering the replies into a clock offset and drift that map sender time onto System.nanoTime
+ */
+class AirPlayTimingService {
+    private static final String TAG = "AirPlayTiming";
+
+    // RTP-style header then origin, receive and transmit timestamps in NTP format
+    private static final int PACKET_SIZE = 32;
+    private static final int PAYLOAD_TYPE_REQUEST = 0x52;
+    private static final int PAYLOAD_TYPE_RESPONSE = 0x53;
+    private static final int OFFSET_ORIGIN = 8;
+    private static final int OFFSET_RECEIVE = 16;
+    private static final int OFFSET_TRANSMIT = 24;
+
+    // A quick burst first so there's an estimate before the first frame is shown, then
+    // every few seconds to follow drift
+    private static final int INITIAL_REQUESTS = 8;
+    private static final int INITIAL_INTERVAL_MS = 100;
+    private static final int REQUEST_INTERVAL_MS = 3000;
+
+    // How long the thread waits for a packet before checking for a new sender
+    private static final int IDLE_WAIT_MS = 250;
+
+    // NTP's clock filter: of the last few exchanges, the one with the shortest round trip
+    // spent the least time queued, so its offset is the most trustworthy
+    private static final int FILTER_SIZE = 8;
+
+    // New offsets are blended in gradually so one noisy exchange can't jerk the clock
+    private static final int OFFSET_SMOOTHING_SHIFT = 2;
+    private static final int DRIFT_SMOOTHING_SHIFT = 3;
+
+    // Drift is only measured across this much local time, since offsets are only good to a
+    // fraction of a millisecond. Anything beyond a few hundred ppm is a broken clock.
+    private static final long MIN_DRIFT_INTERVAL_NS = 2000000000L;
+    private static final double MAX_DRIFT = 500e-6;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /**
+     * One filtered clock estimate. Replaced as a whole, so readers never see half an update.
+     */
+    static final class Estimate {
+        // Sender time minus local time at referenceNs, and how fast that difference grows
+        final long offsetNs;
+        final double drift;
+        final long referenceNs;
+        final long roundTripNs;
+
+        Estimate(long offsetNs, double drift, long referenceNs, long roundTripNs) {
+            this.offsetNs = offsetNs;
+            this.drift = drift;
+            this.referenceNs = referenceNs;
+            this.roundTripNs = roundTripNs;
+        }
+
+        long getOffsetNs(long localNs) {
+            return offsetNs + (long) (drift * (localNs - referenceNs));
+        }
+    }
+
+    private final ThreadFactory threadFactory;
+
+    private final byte[] receiveData = new byte[PACKET_SIZE];
+    private final byte[] sendData = new byte[PACKET_SIZE];
+    private final DatagramPacket receivePacket = new DatagramPacket(receiveData, PACKET_SIZE);
+    private final DatagramPacket sendPacket = new DatagramPacket(sendData, PACKET_SIZE);
+
+    // Clock filter samples, only touched by the timing thread
+    private final long[] sampleOffsets = new long[FILTER_SIZE];
+    private final long[] sampleRoundTrips = new long[FILTER_SIZE];
+    private final long[] sampleTimes = new long[FILTER_SIZE];
+    private int sampleCount;
+    private long lastAcceptedTimeNs;
+    private long lastDriftTimeNs;
+    private long lastDriftOffsetNs;
+
+    // Our outstanding request, to match the reply against
+    private long requestNtp;
+    private long requestSentNs;
+    private int requestsSent;
+
+    private DatagramSocket socket;
+    private Thread timingThread;
+    private volatile boolean isRunning = false;
+
+    private AirPlaySession owner;
+    private volatile InetSocketAddress remote;
+    // Bumped with each new sender, so the timing thread knows to start its filter over
+    private volatile int remoteGeneration;
+    private volatile Estimate estimate;
+    private volatile long exchanges;
+
+    // A desktop JVM can use plain threads
+    AirPlayTimingService() {
+        this(Thread::new);
+    }
+
+    // The app's factory raises the thread to audio priority, since queueing delay on
+    // our side shows up as clock error
+    AirPlayTimingService(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    synchronized void start() throws IOException {
+        if (isRunning) {
+            return;
+        }
+
+        socket = new DatagramSocket(null);
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(0));
+
+        isRunning = true;
+        timingThread = threadFactory.newThread(this::runTimingLoop);
+        timingThread.setName("AirPlay - Timing");
+        timingThread.start();
+        CoreLog.i(TAG, "Timing responder on port " + socket.getLocalPort());
+    }
+
+    synchronized void stop() {
+        if (!isRunning) {
+            return;
+        }
+        isRunning = false;
+
+        // Closing the socket unblocks the timing thread
+        socket.close();
+        try {
+            timingThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+
+            // InterruptedException clears the thread's interrupt status. Since we can't
+            // handle that here, we will re-interrupt the thread to set the interrupt
+            // status back to true.
+            Thread.currentThread().interrupt();
+        }
+        timingThread = null;
+        socket = null;
+        owner = null;
+        remote = null;
+        estimate = null;
+    }
+
+    synchronized int getPort() {
+        return socket != null ? socket.getLocalPort() : 0;
+    }
+
+    // Starts timing requests to the session's sender, replacing any other sender. The
+    // estimate starts over, since it belongs to one sender's clock.
+    synchronized void setRemote(AirPlaySession session, InetAddress address, int port) {
+        if (!isRunning || address == null || port <= 0 || port > 0xFFFF) {
+            return;
+        }
+        owner = session;
+        estimate = null;
+        remote = new InetSocketAddress(address, port);
+        remoteGeneration++;
+    }
+
+    synchronized void clearRemote(AirPlaySession session) {
+        if (owner == session) {
+            owner = null;
+            remote = null;
+        }
+    }
+
+    // The current estimate, or null until the sender has answered
+    Estimate getEstimate() {
+        return estimate;
+    }
+
+    long getExchanges() {
+        return exchanges;
+    }
+
+    // Sender time in nanoseconds for a local System.nanoTime, or the reverse. Both assume
+    // there is an estimate.
+    static long localToRemoteNanos(Estimate estimate, long localNs) {
+        return localNs + estimate.getOffsetNs(localNs);
+    }
+
+    static long remoteToLocalNanos(Estimate estimate, long remoteNs) {
+        // The offset barely changes over one offset's worth of time, so one step is exact enough
+        return remoteNs - estimate.getOffsetNs(remoteNs - estimate.offsetNs);
+    }
+
+    // 32.32 fixed point seconds to nanoseconds. NTP seconds since 1900 fit until 2192.
+    static long ntpToNanos(long ntp) {
+        return (ntp >>> 32) * NANOS_PER_SECOND + (((ntp & 0xFFFFFFFFL) * NANOS_PER_SECOND) >>> 32);
+    }
+
+    static long nanosToNtp(long nanos) {
+        return ((nanos / NANOS_PER_SECOND) << 32) | (((nanos % NANOS_PER_SECOND) << 32) / NANOS_PER_SECOND);
+    }
+
+    private void runTimingLoop() {
+        int generation = remoteGeneration - 1;
+        long nextRequestNs = 0;
+        while (isRunning) {
+            try {
+                if (generation != remoteGeneration) {
+                    generation = remoteGeneration;
+                    requestsSent = 0;
+                    requestNtp = 0;
+                    sampleCount = 0;
+                    nextRequestNs = System.nanoTime();
+                }
+
+                InetSocketAddress target = remote;
+                long nowNs = System.nanoTime();
+                if (target != null && nowNs - nextRequestNs >= 0) {
+                    sendRequest(target, nowNs);
+                    int intervalMs = requestsSent < INITIAL_REQUESTS ? INITIAL_INTERVAL_MS : REQUEST_INTERVAL_MS;
+                    nextRequestNs = nowNs + intervalMs * 1000000L;
+                }
+
+                long waitMs = IDLE_WAIT_MS;
+                if (target != null) {
+                    waitMs = Math.max(1, Math.min(waitMs, (nextRequestNs - System.nanoTime()) / 1000000));
+                }
+                socket.setSoTimeout((int) waitMs);
+                receivePacket.setLength(PACKET_SIZE);
+                try {
+                    socket.receive(receivePacket);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                handlePacket(System.nanoTime());
+            } catch (SocketException e) {
+                // Closed by stop()
+            } catch (IOException e) {
+                if (isRunning) {
+                    CoreLog.w(TAG, "Timing exchange failed", e);
+                }
+            }
+        }
+    }
+
+    private void handlePacket(long receivedNs) throws IOException {
+        if (receivePacket.getLength() < PACKET_SIZE) {
+            return;
+        }
+
+        int payloadType = receiveData[1] & 0x7F;
+        if (payloadType == PAYLOAD_TYPE_REQUEST) {
+            // The sender measuring us: echo its transmit time as the origin
+            sendData[0] = (byte) 0x80;
+            sendData[1] = (byte) (0x80 | PAYLOAD_TYPE_RESPONSE);
+            sendData[2] = receiveData[2];
+            sendData[3] = receiveData[3];
+            writeLong(sendData, 4, 0);
+            System.arraycopy(receiveData, OFFSET_TRANSMIT, sendData, OFFSET_ORIGIN, 8);
+            writeLong(sendData, OFFSET_RECEIVE, nanosToNtp(receivedNs));
+            writeLong(sendData, OFFSET_TRANSMIT, nanosToNtp(System.nanoTime()));
+            sendPacket.setSocketAddress(receivePacket.getSocketAddress());
+            socket.send(sendPacket);
+        }
+        else if (payloadType == PAYLOAD_TYPE_RESPONSE) {
+            // Only the reply to our latest request counts. Older ones have sat in a queue.
+            if (readLong(receiveData, OFFSET_ORIGIN) != requestNtp || requestNtp == 0) {
+                return;
+            }
+            requestNtp = 0;
+
+            long remoteReceivedNs = ntpToNanos(readLong(receiveData, OFFSET_RECEIVE));
+            long remoteSentNs = ntpToNanos(readLong(receiveData, OFFSET_TRANSMIT));
+            long roundTripNs = (receivedNs - requestSentNs) - (remoteSentNs - remoteReceivedNs);
+            long offsetNs = ((remoteReceivedNs - requestSentNs) + (remoteSentNs - receivedNs)) / 2;
+            if (roundTripNs >= 0) {
+                addSample(offsetNs, roundTripNs, receivedNs);
+            }
+        }
+    }
+
+    private void sendRequest(InetSocketAddress target, long nowNs) throws IOException {
+        sendData[0] = (byte) 0x80;
+        sendData[1] = (byte) (0x80 | PAYLOAD_TYPE_REQUEST);
+        sendData[2] = 0;
+        sendData[3] = 7;
+        writeLong(sendData, 4, 0);
+        writeLong(sendData, OFFSET_ORIGIN, 0);
+        writeLong(sendData, OFFSET_RECEIVE, 0);
+
+        requestSentNs = nowNs;
+        requestNtp = nanosToNtp(nowNs);
+        writeLong(sendData, OFFSET_TRANSMIT, requestNtp);
+        sendPacket.setSocketAddress(target);
+        socket.send(sendPacket);
+        requestsSent++;
+    }
+
+    private void addSample(long offsetNs, long roundTripNs, long timeNs) {
+        int index = sampleCount++ % FILTER_SIZE;
+        sampleOffsets[index] = offsetNs;
+        sampleRoundTrips[index] = roundTripNs;
+        sampleTimes[index] = timeNs;
+        exchanges++;
+
+        int best = 0;
+        int count = Math.min(sampleCount, FILTER_SIZE);
+        for (int i = 1; i < count; i++) {
+            if (sampleRoundTrips[i] < sampleRoundTrips[best]) {
+                best = i;
+            }
+        }
+
+        // The same best sample may win several times in a row, but it only counts once
+        long bestTimeNs = sampleTimes[best];
+        Estimate current = estimate;
+        if (current != null && bestTimeNs == lastAcceptedTimeNs) {
+            return;
+        }
+
+        long bestOffsetNs = sampleOffsets[best];
+        if (current == null) {
+            lastDriftTimeNs = bestTimeNs;
+            lastDriftOffsetNs = bestOffsetNs;
+            estimate = new Estimate(bestOffsetNs, 0, bestTimeNs, sampleRoundTrips[best]);
+        }
+        else {
+            double drift = current.drift;
+            if (bestTimeNs - lastDriftTimeNs >= MIN_DRIFT_INTERVAL_NS) {
+                double measured = (double) (bestOffsetNs - lastDriftOffsetNs) / (bestTimeNs - lastDriftTimeNs);
+                drift += (measured - drift) / (1 << DRIFT_SMOOTHING_SHIFT);
+                drift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, drift));
+                lastDriftTimeNs = bestTimeNs;
+                lastDriftOffsetNs = bestOffsetNs;
+            }
+
+            long predictedNs = current.getOffsetNs(bestTimeNs);
+            long smoothedNs = predictedNs + ((bestOffsetNs - predictedNs) >> OFFSET_SMOOTHING_SHIFT);
+            estimate = new Estimate(smoothedNs, drift, bestTimeNs, sampleRoundTrips[best]);
+        }
+        lastAcceptedTimeNs = bestTimeNs;
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void writeLong(byte[] data, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            data[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package com.airfire;
+
+/**
+ * Apple Lossless decoder for the packets AirPlay senders stream
+ * Follows Apple's reference decoder for 16-bit mono and stereo frames, which is all RAOP uses, with every buffer allocated once up front
+ */
+class AlacDecoder implements AudioPayloadDecoder {
+    private static final int ELEMENT_MONO = 0;
+    private static final int ELEMENT_STEREO = 1;
+
+    private static final int MAX_COEFFICIENTS = 32;
+
+    // Adaptive Golomb coding constants from the reference decoder
+    private static final int QB_SHIFT = 9;
+    private static final int QB = 1 << QB_SHIFT;
+    private static final int MMUL_SHIFT = 2;
+    private static final int MDEN_SHIFT = QB_SHIFT - MMUL_SHIFT - 1;
+    private static final int MOFF = 1 << (MDEN_SHIFT - 2);
+    private static final int BIT_OFF = 24;
+    private static final int MAX_PREFIX = 9;
+    private static final int MAX_RUN_BITS = 16;
+    private static final int MEAN_CLAMP = 0xFFFF;
+
+    private final int channelCount;
+    private final int bitDepth;
+    private final int historyMult;
+    private final int initialHistory;
+    private final int kModifier;
+    private final int framesPerPacket;
+    private final int maxFrames;
+
+    private final int[] mixBufferU;
+    private final int[] mixBufferV;
+    private final int[] predictor;
+    private final short[] coefficientsU = new short[MAX_COEFFICIENTS];
+    private final short[] coefficientsV = new short[MAX_COEFFICIENTS];
+
+    // Bit reader over the current packet. Reads past the end return zeros, and the frame
+    // is rejected afterwards rather than checked on every read.
+    private byte[] input;
+    private int inputEnd;
+    private int bitPosition;
+    private int bitLimit;
+
+    AlacDecoder(AudioStreamFormat format, int maxFrames) {
+        this.channelCount = format.channelCount;
+        this.bitDepth = format.alacBitDepth;
+        this.historyMult = format.alacHistoryMult;
+        this.initialHistory = format.alacInitialHistory;
+        this.kModifier = format.alacKModifier;
+        this.framesPerPacket = format.framesPerPacket;
+        this.maxFrames = maxFrames;
+        this.mixBufferU = new int[maxFrames];
+        this.mixBufferV = new int[maxFrames];
+        this.predictor = new int[maxFrames];
+    }
+
+    @Override
+    public int decode(byte[] payload, int offset, int length, byte[] pcm) {
+        input = payload;
+        bitPosition = offset * 8;
+        bitLimit = (offset + length) * 8;
+        inputEnd = offset + length;
+
+        try {
+            int element = readBits(3);
+            if (element != ELEMENT_MONO && element != ELEMENT_STEREO) {
+                return 0;
+            }
+            int channels = element == ELEMENT_STEREO ? 2 : 1;
+
+            // Element instance tag and 12 unused bits
+            readBits(4 + 12);
+            boolean partialFrame = readBits(1) != 0;
+            int bytesShifted = readBits(2);
+            boolean escape = readBits(1) != 0;
+
+            // Only a short final packet says how many frames it has
+            int frames = partialFrame ? readBits(32) : framesPerPacket;
+            if (frames <= 0 || frames > maxFrames || frames * channelCount * 2 > pcm.length ||
+                    bytesShifted != 0 || channels > channelCount) {
+                // Shifted samples only occur above 16 bits
+                return 0;
+            }
+
+            int mixBits = 0;
+            int mixRes = 0;
+            if (!escape) {
+                int chanBits = bitDepth + channels - 1;
+                if (channels == 2) {
+                    mixBits = readBits(8);
+                    mixRes = (byte) readBits(8);
+                }
+                else {
+                    readBits(16);
+                }
+
+                int modeU = readBits(4);
+                int denShiftU = readBits(4);
+                int pbFactorU = readBits(3);
+                int numU = readBits(5);
+                for (int i = 0; i < numU; i++) {
+                    coefficientsU[i] = (short) readBits(16);
+                }
+
+                int modeV = 0, denShiftV = 0, pbFactorV = 0, numV = 0;
+                if (channels == 2) {
+                    modeV = readBits(4);
+                    denShiftV = readBits(4);
+                    pbFactorV = readBits(3);
+                    numV = readBits(5);
+                    for (int i = 0; i < numV; i++) {
+                        coefficientsV[i] = (short) readBits(16);
+                    }
+                }
+
+                if (!decodeResiduals(predictor, frames, chanBits, pbFactorU)) {
+                    return 0;
+                }
+                unpredict(modeU, mixBufferU, frames, coefficientsU, numU, chanBits, denShiftU);
+
+                if (channels == 2) {
+                    if (!decodeResiduals(predictor, frames, chanBits, pbFactorV)) {
+                        return 0;
+                    }
+                    unpredict(modeV, mixBufferV, frames, coefficientsV, numV, chanBits, denShiftV);
+                }
+            }
+            else {
+                // Uncompressed frame, interleaved raw samples
+                int shift = 32 - bitDepth;
+                for (int i = 0; i < frames; i++) {
+                    mixBufferU[i] = (readBits(bitDepth) << shift) >> shift;
+                    if (channels == 2) {
+                        mixBufferV[i] = (readBits(bitDepth) << shift) >> shift;
+                    }
+                }
+            }
+
+            if (bitPosition > bitLimit) {
+                // Truncated packet
+                return 0;
+            }
+
+            return writeOutput(pcm, frames, channels, mixBits, mixRes);
+        } finally {
+            input = null;
+        }
+    }
+
+    @Override
+    public void release() {
+    }
+
+    private void unpredict(int mode, int[] output, int frames, short[] coefficients, int count,
+                           int chanBits, int denShift) {
+        if (mode != 0) {
+            // Mode 15 first undoes a plain first-order difference, which can be done in place
+            unpredictBlock(predictor, predictor, frames, null, 31, chanBits, 0);
+        }
+        unpredictBlock(predictor, output, frames, coefficients, count, chanBits, denShift);
+    }
+
+    // Adaptive Golomb decoding of the prediction residuals (the reference decoder's dyn_decomp)
+    private boolean decodeResiduals(int[] output, int frames, int chanBits, int pbFactor) {
+        int mb = initialHistory;
+        int pb = (pbFactor * historyMult) >> 2;
+        int wb = (1 << kModifier) - 1;
+        int zmode = 0;
+
+        int count = 0;
+        while (count < frames) {
+            int k = 31 - Integer.numberOfLeadingZeros((mb >>> QB_SHIFT) + 3);
+            if (k > kModifier) {
+                k = kModifier;
+            }
+            int n = readGolomb(k, (1 << k) - 1, chanBits);
+
+            // The least significant bit is the sign
+            int value = n + zmode;
+            output[count++] = ((value + 1) >>> 1) * (-(value & 1) | 1);
+
+            mb = pb * (n + zmode) + mb - ((pb * mb) >> QB_SHIFT);
+            if (n > MEAN_CLAMP) {
+                mb = MEAN_CLAMP;
+            }
+            zmode = 0;
+
+            // A low running mean means a run of zeros follows
+            if ((mb << MMUL_SHIFT) < QB && count < frames) {
+                zmode = 1;
+                k = Integer.numberOfLeadingZeros(mb) - BIT_OFF + ((mb + MOFF) >> MDEN_SHIFT);
+                int run = readGolomb(k, ((1 << k) - 1) & wb, MAX_RUN_BITS);
+                if (count + run > frames) {
+                    return false;
+                }
+                for (int i = 0; i < run; i++) {
+                    output[count++] = 0;
+                }
+                if (run >= 65535) {
+                    zmode = 0;
+                }
+                mb = 0;
+            }
+
+            if (bitPosition > bitLimit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // A unary prefix of up to 8 ones, then k bits. Nine ones escape to a raw value.
+    private int readGolomb(int k, int m, int maxBits) {
+        int prefix = 0;
+        while (prefix < MAX_PREFIX && readBit() != 0) {
+            prefix++;
+        }
+        if (prefix >= MAX_PREFIX) {
+            return readBits(maxBits);
+        }
+        if (k == 1) {
+            return prefix;
+        }
+
+        int value = prefix * m;
+        int extra = readBits(k);
+        if (extra >= 2) {
+            value += extra - 1;
+        }
+        else {
+            // Only k - 1 bits were part of the code
+            bitPosition--;
+        }
+        return value;
+    }
+
+    // Adaptive FIR prediction (the reference decoder's unpc_block). output may be residuals.
+    private static void unpredictBlock(int[] residuals, int[] output, int frames, short[] coefficients,
+                                       int count, int chanBits, int denShift) {
+        int chanShift = 32 - chanBits;
+        int denHalf = denShift > 0 ? 1 << (denShift - 1) : 0;
+
+        output[0] = residuals[0];
+        if (count == 0) {
+            if (residuals != output) {
+                System.arraycopy(residuals, 1, output, 1, frames - 1);
+            }
+            return;
+        }
+        if (count == 31) {
+            int previous = output[0];
+            for (int j = 1; j < frames; j++) {
+                int delta = residuals[j] + previous;
+                previous = (delta << chanShift) >> chanShift;
+                output[j] = previous;
+            }
+            return;
+        }
+
+        // Warm up with first-order prediction
+        for (int j = 1; j <= count && j < frames; j++) {
+            int delta = residuals[j] + output[j - 1];
+            output[j] = (delta << chanShift) >> chanShift;
+        }
+
+        int lim = count + 1;
+        for (int j = lim; j < frames; j++) {
+            int top = output[j - lim];
+            int last = j - 1;
+
+            int sum = 0;
+            for (int k = 0; k < count; k++) {
+                sum += coefficients[k] * (output[last - k] - top);
+            }
+
+            int delta = residuals[j];
+            int delta0 = delta;
+            delta += top + ((sum + denHalf) >> denShift);
+            output[j] = (delta << chanShift) >> chanShift;
+
+            // Nudge the coefficients toward whatever would have predicted this sample
+            if (delta0 > 0) {
+                for (int k = count - 1; k >= 0; k--) {
+                    int difference = top - output[last - k];
+                    int sign = Integer.signum(difference);
+                    coefficients[k] -= sign;
+                    delta0 -= (count - k) * ((sign * difference) >> denShift);
+                    if (delta0 <= 0) {
+                        break;
+                    }
+                }
+            }
+            else if (delta0 < 0) {
+                for (int k = count - 1; k >= 0; k--) {
+                    int difference = top - output[last - k];
+                    int sign = Integer.signum(difference);
+                    coefficients[k] += sign;
+                    delta0 -= (count - k) * ((-sign * difference) >> denShift);
+                    if (delta0 >= 0) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private int writeOutput(byte[] pcm, int frames, int channels, int mixBits, int mixRes) {
+        int position = 0;
+        for (int i = 0; i < frames; i++) {
+            int left = mixBufferU[i];
+            int right = left;
+            if (channels == 2) {
+                int v = mixBufferV[i];
+                if (mixRes != 0) {
+                    // Undo the mid/side matrixing
+                    left = mixBufferU[i] + v - ((mixRes * v) >> mixBits);
+                    right = left - v;
+                }
+                else {
+                    right = v;
+                }
+            }
+
+            pcm[position++] = (byte) left;
+            pcm[position++] = (byte) (left >> 8);
+            if (channelCount == 2) {
+                pcm[position++] = (byte) right;
+                pcm[position++] = (byte) (right >> 8);
+            }
+        }
+        return position;
+    }
+
+    private int readBit() {
+        int index = bitPosition >> 3;
+        int bit = index < inputEnd ? (input[index] >> (7 - (bitPosition & 7))) & 1 : 0;
+        bitPosition++;
+        return bit;
+    }
+
+    // Up to 32 bits, most significant first
+    private int readBits(int count) {
+        if (count == 0) {
+            return 0;
+        }
+
+        int index = bitPosition >> 3;
+        long window = 0;
+        for (int i = 0; i < 5; i++) {
+            window <<= 8;
+            if (index + i < inputEnd) {
+                window |= input[index + i] & 0xFF;
+            }
+        }
+        int shift = 40 - (bitPosition & 7) - count;
+        bitPosition += count;
+        return (int) ((window >>> shift) & ((1L << count) - 1));
+    }
+}
@@ -0,0 +1,329 @@
+package com.airfire;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a raw Annex B byte stream into access units
+ * Finds NALU start codes across read boundaries and submits each complete frame with its parameter sets split out
+ */
+class AnnexBSplitter {
+    private static final int H264_NAL_SLICE = 1;
+    private static final int H264_NAL_IDR = 5;
+    private static final int H264_NAL_SEI = 6;
+    private static final int H264_NAL_SPS = 7;
+    private static final int H264_NAL_PPS = 8;
+    private static final int H264_NAL_AUD = 9;
+
+    private static final int HEVC_NAL_IRAP_FIRST = 16;
+    private static final int HEVC_NAL_IRAP_LAST = 21;
+    private static final int HEVC_NAL_VCL_LAST = 31;
+    private static final int HEVC_NAL_VPS = 32;
+    private static final int HEVC_NAL_SPS = 33;
+    private static final int HEVC_NAL_PPS = 34;
+    private static final int HEVC_NAL_AUD = 35;
+    private static final int HEVC_NAL_PREFIX_SEI = 39;
+
+    private static final int INITIAL_BUFFER_SIZE = 512 * 1024;
+    private static final int MAX_BUFFER_SIZE = 16 * 1024 * 1024;
+    private static final int INITIAL_MAX_NALS = 64;
+
+    private final DecodeUnitSink sink;
+    private final boolean isHevc;
+
+    // Unconsumed stream data. The current access unit starts at auStart, and everything
+    // before scanOffset has already been searched for start codes.
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int bufferLength;
+    private int auStart;
+    private int scanOffset;
+
+    // NALUs of the current access unit, as offsets of their start codes
+    private int[] nalStarts = new int[INITIAL_MAX_NALS];
+    private int[] nalTypes = new int[INITIAL_MAX_NALS];
+    private int nalCount;
+    private boolean auHasVcl;
+
+    // Reused for submission, since decode units must start at offset 0
+    private byte[] frameBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private byte[] parameterSetBuffer = new byte[1024];
+
+    private long firstReceiveTimeMs;
+    private boolean waitingForIdr = true;
+    private int frameNumber;
+
+    private long framesSubmitted;
+    private long framesDropped;
+
+    AnnexBSplitter(DecodeUnitSink sink, int videoFormat) {
+        this.sink = sink;
+        this.isHevc = (videoFormat & DecodeUnitSink.VIDEO_FORMAT_H265) != 0;
+    }
+
+    // Adds data read from the stream and submits every access unit it completes.
+    // The data is copied, so the caller may reuse its buffer straight away.
+    void feed(byte[] data, int offset, int length, long receiveTimeMs) {
+        if (bufferLength == auStart) {
+            firstReceiveTimeMs = receiveTimeMs;
+        }
+
+        ensureCapacity(length);
+        System.arraycopy(data, offset, buffer, bufferLength, length);
+        bufferLength += length;
+
+        scan(receiveTimeMs);
+        compact();
+    }
+
+    // Same as above, consuming the remaining bytes of the buffer
+    void feed(ByteBuffer data, long receiveTimeMs) {
+        if (bufferLength == auStart) {
+            firstReceiveTimeMs = receiveTimeMs;
+        }
+
+        int length = data.remaining();
+        ensureCapacity(length);
+        data.get(buffer, bufferLength, length);
+        bufferLength += length;
+
+        scan(receiveTimeMs);
+        compact();
+    }
+
+    // Submits the buffered access unit without waiting for the next one to start. Used at
+    // the end of the stream, and after each frame when the transport delimits frames for us.
+    void flush(long nowMs) {
+        scanOffset = bufferLength;
+        if (nalCount > 0) {
+            submitAccessUnit(bufferLength, nowMs);
+        }
+        bufferLength = auStart = scanOffset = 0;
+        nalCount = 0;
+        auHasVcl = false;
+    }
+
+    long getFramesSubmitted() {
+        return framesSubmitted;
+    }
+
+    long getFramesDropped() {
+        return framesDropped;
+    }
+
+    private void ensureCapacity(int length) {
+        if (bufferLength + length > buffer.length) {
+            int required = bufferLength + length;
+            if (required > MAX_BUFFER_SIZE) {
+                // No start code in sight, so this isn't a stream we can make sense of
+                throw new IllegalStateException("Access unit exceeds " + MAX_BUFFER_SIZE + " bytes");
+            }
+            byte[] newBuffer = new byte[Math.min(MAX_BUFFER_SIZE, Math.max(required, buffer.length * 2))];
+            System.arraycopy(buffer, 0, newBuffer, 0, bufferLength);
+            buffer = newBuffer;
+        }
+    }
+
+    private void scan(long receiveTimeMs) {
+        byte[] data = buffer;
+
+        // A start code is 00 00 01, and we need the bytes after it to classify the NALU
+        int headerBytes = isHevc ? 3 : 2;
+        int i = Math.max(scanOffset, auStart);
+        while (i + 2 + headerBytes < bufferLength) {
+            if ((data[i + 2] & 0xFF) > 1) {
+                // Fast skip: no start code can end here or at the next two positions
+                i += 3;
+                continue;
+            }
+            if (data[i] != 0 || data[i + 1] != 0 || data[i + 2] != 1) {
+                i++;
+                continue;
+            }
+
+            // Include the leading zero of a 4-byte start code
+            int start = (i > auStart && data[i - 1] == 0) ? i - 1 : i;
+            int header = i + 3;
+
+            int nalType;
+            boolean firstSliceOfPicture;
+            if (isHevc) {
+                nalType = (data[header] >> 1) & 0x3F;
+                firstSliceOfPicture = (data[header + 2] & 0x80) != 0;
+            }
+            else {
+                nalType = data[header] & 0x1F;
+                firstSliceOfPicture = (data[header + 1] & 0x80) != 0;
+            }
+
+            if (auHasVcl && startsAccessUnit(nalType, firstSliceOfPicture)) {
+                submitAccessUnit(start, receiveTimeMs);
+                auStart = start;
+                firstReceiveTimeMs = receiveTimeMs;
+            }
+
+            addNal(start, nalType);
+            i = header + 1;
+        }
+
+        scanOffset = i;
+    }
+
+    private boolean startsAccessUnit(int nalType, boolean firstSliceOfPicture) {
+        if (isHevc) {
+            if (nalType <= HEVC_NAL_VCL_LAST) {
+                return firstSliceOfPicture;
+            }
+            return (nalType >= HEVC_NAL_VPS && nalType <= HEVC_NAL_AUD) || nalType == HEVC_NAL_PREFIX_SEI;
+        }
+        else {
+            if (nalType == H264_NAL_SLICE || nalType == H264_NAL_IDR) {
+                // first_mb_in_slice is ue(v) coded, so zero starts with a 1 bit
+                return firstSliceOfPicture;
+            }
+            return nalType == H264_NAL_SEI || nalType == H264_NAL_SPS ||
+                    nalType == H264_NAL_PPS || nalType == H264_NAL_AUD;
+        }
+    }
+
+    private void addNal(int start, int nalType) {
+        if (nalCount == nalStarts.length) {
+            int[] newStarts = new int[nalCount * 2];
+            int[] newTypes = new int[nalCount * 2];
+            System.arraycopy(nalStarts, 0, newStarts, 0, nalCount);
+            System.arraycopy(nalTypes, 0, newTypes, 0, nalCount);
+            nalStarts = newStarts;
+            nalTypes = newTypes;
+        }
+
+        nalStarts[nalCount] = start;
+        nalTypes[nalCount] = nalType;
+        nalCount++;
+
+        if (isVcl(nalType)) {
+            auHasVcl = true;
+        }
+    }
+
+    // Submits the access unit made up of the current NALUs, ending at auEnd
+    private void submitAccessUnit(int auEnd, long enqueueTimeMs) {
+        boolean isIdr = false;
+        for (int i = 0; i < nalCount; i++) {
+            if (isIdrNal(nalTypes[i])) {
+                isIdr = true;
+                break;
+            }
+        }
+
+        frameNumber++;
+        int frameType = isIdr ? DecodeUnitSink.FRAME_TYPE_IDR : DecodeUnitSink.FRAME_TYPE_PFRAME;
+        int result = DecodeUnitSink.DR_OK;
+
+        if (!isIdr && waitingForIdr) {
+            // P-frames are useless until the decoder has a reference frame
+            framesDropped++;
+            resetAccessUnit();
+            return;
+        }
+
+        // Gather the picture data into one contiguous unit. For IDR frames the parameter sets
+        // are submitted on their own first, which is what lets the decoder batch them as CSD.
+        int frameLength = 0;
+        for (int i = 0; i < nalCount && result == DecodeUnitSink.DR_OK; i++) {
+            int nalStart = nalStarts[i];
+            int nalEnd = i + 1 < nalCount ? nalStarts[i + 1] : auEnd;
+            int nalLength = nalEnd - nalStart;
+
+            int bufferType = isIdr ? getParameterSetType(nalTypes[i]) : DecodeUnitSink.BUFFER_TYPE_PICDATA;
+            if (bufferType != DecodeUnitSink.BUFFER_TYPE_PICDATA) {
+                if (parameterSetBuffer.length < nalLength) {
+                    parameterSetBuffer = new byte[nalLength];
+                }
+                System.arraycopy(buffer, nalStart, parameterSetBuffer, 0, nalLength);
+                result = sink.submitDecodeUnit(parameterSetBuffer, nalLength, bufferType,
+                        frameNumber, frameType, firstReceiveTimeMs, enqueueTimeMs);
+            }
+            else {
+                if (frameBuffer.length < frameLength + nalLength) {
+                    byte[] newBuffer = new byte[Math.max(frameLength + nalLength, frameBuffer.length * 2)];
+                    System.arraycopy(frameBuffer, 0, newBuffer, 0, frameLength);
+                    frameBuffer = newBuffer;
+                }
+                System.arraycopy(buffer, nalStart, frameBuffer, frameLength, nalLength);
+                frameLength += nalLength;
+            }
+        }
+
+        if (result == DecodeUnitSink.DR_OK && frameLength > 0) {
+            result = sink.submitDecodeUnit(frameBuffer, frameLength, DecodeUnitSink.BUFFER_TYPE_PICDATA,
+                    frameNumber, frameType, firstReceiveTimeMs, enqueueTimeMs);
+        }
+
+        if (result == DecodeUnitSink.DR_OK) {
+            framesSubmitted++;
+            waitingForIdr = false;
+        }
+        else {
+            // A raw stream has no way to ask the sender for a key frame, so wait for the next one
+            framesDropped++;
+            waitingForIdr = true;
+        }
+
+        resetAccessUnit();
+    }
+
+    private void resetAccessUnit() {
+        nalCount = 0;
+        auHasVcl = false;
+    }
+
+    // Moves the partial access unit to the front of the buffer
+    private void compact() {
+        if (auStart == 0) {
+            return;
+        }
+
+        int remaining = bufferLength - auStart;
+        System.arraycopy(buffer, auStart, buffer, 0, remaining);
+        for (int i = 0; i < nalCount; i++) {
+            nalStarts[i] -= auStart;
+        }
+        scanOffset -= auStart;
+        bufferLength = remaining;
+        auStart = 0;
+    }
+
+    private int getParameterSetType(int nalType) {
+        if (isHevc) {
+            switch (nalType) {
+                case HEVC_NAL_VPS:
+                    return DecodeUnitSink.BUFFER_TYPE_VPS;
+                case HEVC_NAL_SPS:
+                    return DecodeUnitSink.BUFFER_TYPE_SPS;
+                case HEVC_NAL_PPS:
+                    return DecodeUnitSink.BUFFER_TYPE_PPS;
+            }
+        }
+        else {
+            switch (nalType) {
+                case H264_NAL_SPS:
+                    return DecodeUnitSink.BUFFER_TYPE_SPS;
+                case H264_NAL_PPS:
+                    return DecodeUnitSink.BUFFER_TYPE_PPS;
+            }
+        }
+        return DecodeUnitSink.BUFFER_TYPE_PICDATA;
+    }
+
+    private boolean isVcl(int nalType) {
+        if (isHevc) {
+            return nalType <= HEVC_NAL_VCL_LAST;
+        }
+        return nalType == H264_NAL_SLICE || nalType == H264_NAL_IDR;
+    }
+
+    private boolean isIdrNal(int nalType) {
+        if (isHevc) {
+            return nalType >= HEVC_NAL_IRAP_FIRST && nalType <= HEVC_NAL_IRAP_LAST;
+        }
+        return nalType == H264_NAL_IDR;
+    }
+}
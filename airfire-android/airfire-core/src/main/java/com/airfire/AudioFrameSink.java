@@ -0,0 +1,18 @@
+package com.airfire;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Destination for decoded audio received from a sender
+ * Audio is 16-bit little endian interleaved PCM
+ */
+public interface AudioFrameSink {
+    // Called on the receive thread before the first audio of a stream
+    void onAudioStarted(int sampleRate, int channelCount);
+
+    // Consumes the remaining bytes of the buffer, which is only valid for the duration of the call.
+    // AirPlay audio is timed on the sender's clock once the sender has sent its first sync packet.
+    void submitAudio(ByteBuffer pcmData, long presentationTimeUs);
+
+    void onAudioStopped();
+}
@@ -0,0 +1,301 @@
+package com.airfire;
+
+/**
+ * Reorders RTP audio packets by sequence number and holds just enough of them to ride out network jitter
+ * The target depth follows the measured interarrival jitter, and packets live in preallocated slots indexed by sequence number
+ */
+class AudioJitterBuffer {
+    // poll() results other than a slot index
+    static final int WAIT = -1;
+    static final int CONCEAL = -2;
+
+    // Must be a power of two. About a second and a half of 352-frame packets.
+    private static final int SLOT_COUNT = 128;
+    private static final int SLOT_MASK = SLOT_COUNT - 1;
+
+    private static final int MIN_DEPTH_PACKETS = 2;
+    private static final int MAX_DEPTH_PACKETS = SLOT_COUNT / 2;
+
+    // Three times the mean jitter covers nearly all of it, and the decaying peak covers Wi-Fi
+    // bursts, which the mean smooths away.
+    private static final int JITTER_MULTIPLIER = 3;
+    private static final int PEAK_DECAY_SHIFT = 9;
+
+    // Assumed until PCM packets show how long they are, since their size isn't negotiated
+    private static final int DEFAULT_FRAMES_PER_PACKET = 352;
+
+    // Anything longer is a pause rather than jitter
+    private static final long MAX_INTERARRIVAL_US = 1000000;
+
+    // Beyond this many packets a loss is too long to hide by repeating audio
+    private static final int MAX_CONCEALED_PACKETS = 3;
+
+    // Depth this far over the target for this many packets in a row is latency we don't need
+    private static final int TRIM_SLACK_PACKETS = 2;
+    private static final int TRIM_AFTER_PACKETS = 64;
+
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final long[] timestamps;
+    private final boolean[] present;
+    private final int sampleRate;
+    private final boolean measureFramesPerPacket;
+    private int framesPerPacket;
+    private long packetDurationUs;
+
+    private boolean started;
+    private boolean primed;
+    private int nextSequence;
+    private int newestSequence;
+    private int lossRun;
+    private int excessPackets;
+    private int targetDepth = MIN_DEPTH_PACKETS;
+
+    // Interarrival jitter as in RFC 3550, kept scaled by 16 so the running average stays in integers
+    private boolean haveArrival;
+    private long lastReceiveTimeNs;
+    private long lastTimestamp;
+    private int lastSequence;
+    private long scaledJitterUs;
+    private long peakJitterUs;
+
+    private long underruns;
+    private long latePackets;
+    private long concealedPackets;
+    private long skippedPackets;
+
+    // framesPerPacket is 0 if the stream doesn't say, in which case it's measured from the packets
+    AudioJitterBuffer(int slotSize, int sampleRate, int framesPerPacket) {
+        this.slots = new byte[SLOT_COUNT][slotSize];
+        this.lengths = new int[SLOT_COUNT];
+        this.timestamps = new long[SLOT_COUNT];
+        this.present = new boolean[SLOT_COUNT];
+        this.sampleRate = sampleRate;
+        this.measureFramesPerPacket = framesPerPacket <= 0;
+        setFramesPerPacket(measureFramesPerPacket ? DEFAULT_FRAMES_PER_PACKET : framesPerPacket);
+    }
+
+    // Forgets every packet, after a flush. The jitter estimate and counters carry over.
+    void reset() {
+        clearSlots();
+        started = false;
+        primed = false;
+        haveArrival = false;
+        lossRun = 0;
+        excessPackets = 0;
+    }
+
+    // Copies a packet's payload into its slot. Returns false if it arrived too late to play or is a duplicate.
+    boolean insert(byte[] packet, int offset, int length, int sequence, long timestamp, long receiveTimeNs) {
+        updateJitter(sequence, timestamp, receiveTimeNs);
+
+        if (!started) {
+            started = true;
+            nextSequence = sequence;
+            newestSequence = sequence;
+        }
+
+        // Sequence numbers are 16 bits and wrap
+        int ahead = (short) (sequence - nextSequence);
+        if (ahead < -SLOT_COUNT || ahead >= SLOT_COUNT) {
+            // Too far off to be reordering, so the sender has jumped. Start again from here.
+            clearSlots();
+            primed = false;
+            nextSequence = sequence;
+            newestSequence = sequence;
+            ahead = 0;
+        }
+        else if (ahead < 0) {
+            // Already played or concealed
+            latePackets++;
+            return false;
+        }
+
+        // Slots only ever hold the SLOT_COUNT sequence numbers from nextSequence on, so an
+        // occupied slot can only be holding this very packet
+        int slot = sequence & SLOT_MASK;
+        if (present[slot]) {
+            return false;
+        }
+        System.arraycopy(packet, offset, slots[slot], 0, length);
+        lengths[slot] = length;
+        timestamps[slot] = timestamp;
+        present[slot] = true;
+
+        if ((short) (sequence - newestSequence) > 0) {
+            newestSequence = sequence;
+        }
+        return true;
+    }
+
+    // Decides what to play next: the slot of the next packet, CONCEAL if it's missing and
+    // something has to be played in its place now, or WAIT. outputStarving says the output
+    // has nothing queued, so any further wait would be heard.
+    int poll(boolean outputStarving, long nowNs) {
+        if (!started) {
+            return WAIT;
+        }
+
+        int depth = getDepth();
+        if (!primed) {
+            // If packets stop arriving while priming, what we have is all that's coming for
+            // now, so play it rather than hold the end of the stream back
+            if (depth < targetDepth && nowNs - lastReceiveTimeNs < targetDepth * packetDurationUs * 1000) {
+                return WAIT;
+            }
+            if (depth == 0) {
+                return WAIT;
+            }
+            primed = true;
+        }
+
+        int slot = nextSequence & SLOT_MASK;
+        if (present[slot]) {
+            // Shed excess latency one packet at a time, which is far less noticeable than a jump
+            if (depth > targetDepth + TRIM_SLACK_PACKETS && ++excessPackets >= TRIM_AFTER_PACKETS) {
+                excessPackets = 0;
+                skippedPackets++;
+                advance();
+                slot = nextSequence & SLOT_MASK;
+                if (!present[slot]) {
+                    return WAIT;
+                }
+            }
+            else if (depth <= targetDepth + TRIM_SLACK_PACKETS) {
+                excessPackets = 0;
+            }
+            lossRun = 0;
+            return slot;
+        }
+
+        if (depth == 0) {
+            if (outputStarving) {
+                // Nothing left at all. Build the depth back up before playing again.
+                underruns++;
+                primed = false;
+            }
+            return WAIT;
+        }
+        if (!outputStarving) {
+            // Later packets are here but this one isn't. It may just be reordered.
+            return WAIT;
+        }
+
+        if (lossRun < MAX_CONCEALED_PACKETS) {
+            lossRun++;
+            concealedPackets++;
+            nextSequence++;
+            return CONCEAL;
+        }
+
+        // Too long a gap to hide, so carry on from the next packet we have. depth > 0
+        // means the newest packet is still waiting, so this stops there at the latest.
+        lossRun = 0;
+        while (!present[nextSequence & SLOT_MASK]) {
+            skippedPackets++;
+            nextSequence++;
+        }
+        return nextSequence & SLOT_MASK;
+    }
+
+    // Releases the slot poll() returned once its packet has been played
+    void advance() {
+        present[nextSequence & SLOT_MASK] = false;
+        nextSequence++;
+    }
+
+    byte[] getData(int slot) {
+        return slots[slot];
+    }
+
+    int getLength(int slot) {
+        return lengths[slot];
+    }
+
+    long getTimestamp(int slot) {
+        return timestamps[slot];
+    }
+
+    int getFramesPerPacket() {
+        return framesPerPacket;
+    }
+
+    long getPacketDurationUs() {
+        return packetDurationUs;
+    }
+
+    // Packets from the next one to play through the newest received, including any gaps
+    int getDepth() {
+        return started ? Math.max(0, (short) (newestSequence - nextSequence) + 1) : 0;
+    }
+
+    int getDepthMs() {
+        return (int) (getDepth() * packetDurationUs / 1000);
+    }
+
+    int getTargetDepthMs() {
+        return (int) (targetDepth * packetDurationUs / 1000);
+    }
+
+    int getJitterMs() {
+        return (int) ((scaledJitterUs >> 4) / 1000);
+    }
+
+    long getUnderruns() {
+        return underruns;
+    }
+
+    long getLatePackets() {
+        return latePackets;
+    }
+
+    long getConcealedPackets() {
+        return concealedPackets;
+    }
+
+    long getSkippedPackets() {
+        return skippedPackets;
+    }
+
+    // Compares the gap between arrivals with the gap between the packets' timestamps, in
+    // arrival order, and resizes the target depth to match
+    private void updateJitter(int sequence, long timestamp, long receiveTimeNs) {
+        if (haveArrival) {
+            if (measureFramesPerPacket && ((sequence - lastSequence) & 0xFFFF) == 1) {
+                int frames = (int) (timestamp - lastTimestamp);
+                if (frames > 0 && frames <= AudioStreamFormat.MAX_FRAMES_PER_PACKET && frames != framesPerPacket) {
+                    setFramesPerPacket(frames);
+                }
+            }
+
+            long arrivalUs = (receiveTimeNs - lastReceiveTimeNs) / 1000;
+            // RTP timestamps are 32 bits and wrap
+            long sentUs = (int) (timestamp - lastTimestamp) * 1000000L / sampleRate;
+            long difference = Math.abs(arrivalUs - sentUs);
+
+            if (difference < MAX_INTERARRIVAL_US) {
+                scaledJitterUs += difference - ((scaledJitterUs + 8) >> 4);
+                peakJitterUs = Math.max(difference, peakJitterUs - (peakJitterUs >> PEAK_DECAY_SHIFT));
+
+                long coverUs = Math.max(JITTER_MULTIPLIER * (scaledJitterUs >> 4), peakJitterUs);
+                int depth = (int) ((coverUs + packetDurationUs - 1) / packetDurationUs) + 1;
+                targetDepth = Math.max(MIN_DEPTH_PACKETS, Math.min(MAX_DEPTH_PACKETS, depth));
+            }
+        }
+        haveArrival = true;
+        lastReceiveTimeNs = receiveTimeNs;
+        lastTimestamp = timestamp;
+        lastSequence = sequence;
+    }
+
+    private void setFramesPerPacket(int frames) {
+        framesPerPacket = frames;
+        packetDurationUs = Math.max(1, frames * 1000000L / sampleRate);
+    }
+
+    private void clearSlots() {
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            present[i] = false;
+        }
+    }
+}
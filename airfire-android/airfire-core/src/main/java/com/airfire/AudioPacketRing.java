@@ -0,0 +1,126 @@
+package com.airfire;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-producer, single-consumer ring of preallocated packet slots
+ * Slots are filled and read in place, so handing a packet to the next thread copies and allocates nothing
+ */
+class AudioPacketRing {
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final int[] sequences;
+    private final long[] timestamps;
+    private final long[] receiveTimes;
+    private final int mask;
+
+    // Positions only ever grow. The producer owns tail and the consumer owns head, and
+    // writing them publishes the slot contents along with them.
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // Set while the consumer is parked, so the producer only pays for an unpark when needed
+    private volatile Thread waitingConsumer;
+
+    // slotCount must be a power of two
+    AudioPacketRing(int slotCount, int slotSize) {
+        this.slots = new byte[slotCount][slotSize];
+        this.lengths = new int[slotCount];
+        this.sequences = new int[slotCount];
+        this.timestamps = new long[slotCount];
+        this.receiveTimes = new long[slotCount];
+        this.mask = slotCount - 1;
+    }
+
+    // Producer: returns the index of the next free slot to fill, or -1 if the ring is full
+    int claim() {
+        long position = tail.get();
+        if (position - head.get() > mask) {
+            return -1;
+        }
+        return (int) position & mask;
+    }
+
+    // Producer: makes the claimed slot visible to the consumer
+    void publish(int length, int sequence, long timestamp) {
+        publish(length, sequence, timestamp, 0);
+    }
+
+    void publish(int length, int sequence, long timestamp, long receiveTimeNs) {
+        long position = tail.get();
+        int index = (int) position & mask;
+        lengths[index] = length;
+        sequences[index] = sequence;
+        timestamps[index] = timestamp;
+        receiveTimes[index] = receiveTimeNs;
+
+        // A full volatile write, so it can't pass the read of waitingConsumer below and
+        // leave a consumer parked with a packet waiting
+        tail.set(position + 1);
+
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    // Consumer: the slot index of the oldest packet, or -1 if there is none
+    int peek() {
+        long position = head.get();
+        return position < tail.get() ? (int) position & mask : -1;
+    }
+
+    byte[] getData(int index) {
+        return slots[index];
+    }
+
+    int getLength(int index) {
+        return lengths[index];
+    }
+
+    int getSequence(int index) {
+        return sequences[index];
+    }
+
+    long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    long getReceiveTime(int index) {
+        return receiveTimes[index];
+    }
+
+    // Consumer: hands the oldest slot back to the producer
+    void release() {
+        head.lazySet(head.get() + 1);
+    }
+
+    // Consumer: drops everything published so far
+    void clear() {
+        head.lazySet(tail.get());
+    }
+
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    // Consumer: parks until a packet is published or the timeout passes. Returns whether one is waiting.
+    boolean await(long timeoutMs) {
+        if (peek() >= 0) {
+            return true;
+        }
+
+        waitingConsumer = Thread.currentThread();
+        try {
+            // Check again now the producer can see us, so a publish in between isn't missed
+            if (peek() < 0) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+            }
+        } finally {
+            waitingConsumer = null;
+        }
+        return peek() >= 0;
+    }
+}
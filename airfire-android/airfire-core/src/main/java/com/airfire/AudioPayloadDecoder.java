@@ -0,0 +1,30 @@
+package com.airfire;
+
+/**
+ * Decodes the payload of one RTP audio packet into PCM
+ * Implementations keep their working buffers between packets, so decoding allocates nothing
+ */
+interface AudioPayloadDecoder {
+    // Decodes into pcm as 16-bit little endian interleaved samples. Returns the number of bytes
+    // written, which is 0 when the packet is unusable or the decoder is still filling up.
+    int decode(byte[] payload, int offset, int length, byte[] pcm);
+
+    void release();
+
+    // RTP L16 is big endian, so this just swaps each sample
+    class L16Decoder implements AudioPayloadDecoder {
+        @Override
+        public int decode(byte[] payload, int offset, int length, byte[] pcm) {
+            length = Math.min(length & ~1, pcm.length);
+            for (int i = 0; i < length; i += 2) {
+                pcm[i] = payload[offset + i + 1];
+                pcm[i + 1] = payload[offset + i];
+            }
+            return length;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
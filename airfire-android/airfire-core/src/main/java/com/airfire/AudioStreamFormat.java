@@ -0,0 +1,227 @@
+package com.airfire;
+
+/**
+ * Audio format of one RAOP/AirPlay RTP stream
+ * Parsed once per session, from the ANNOUNCE SDP of legacy senders or the SETUP stream description of newer ones
+ */
+class AudioStreamFormat {
+    private static final String TAG = "AirPlayAudio";
+
+    static final int CODEC_PCM = 0;
+    static final int CODEC_ALAC = 1;
+    static final int CODEC_AAC = 2;
+    static final int CODEC_AAC_ELD = 3;
+
+    // Indexed by the CODEC_* constants above
+    private static final String[] CODEC_NAMES = {"PCM", "ALAC", "AAC", "AAC-ELD"};
+
+    // The "ct" values in a SETUP stream description
+    private static final int COMPRESSION_TYPE_PCM = 1;
+    private static final int COMPRESSION_TYPE_ALAC = 2;
+    private static final int COMPRESSION_TYPE_AAC = 4;
+    private static final int COMPRESSION_TYPE_AAC_ELD = 8;
+
+    // What iTunes and iOS send, and what the SETUP path assumes since it carries no fmtp line
+    static final int DEFAULT_SAMPLE_RATE = 44100;
+    static final int DEFAULT_CHANNEL_COUNT = 2;
+    private static final int DEFAULT_ALAC_FRAMES_PER_PACKET = 352;
+    private static final int DEFAULT_AAC_FRAMES_PER_PACKET = 1024;
+    private static final int DEFAULT_AAC_ELD_FRAMES_PER_PACKET = 480;
+
+    // Enough for 2048-sample AAC frames with SBR, the largest any sender uses
+    static final int MAX_FRAMES_PER_PACKET = 4096;
+
+    private static final int[] AAC_SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    final int codec;
+    final int sampleRate;
+    final int channelCount;
+    final int framesPerPacket;
+
+    // ALAC decoder parameters from the fmtp line, with the values every sender uses as defaults
+    int alacBitDepth = 16;
+    int alacHistoryMult = 40;
+    int alacInitialHistory = 10;
+    int alacKModifier = 14;
+
+    // MPEG-4 AudioSpecificConfig for the AAC decoder
+    byte[] aacConfig;
+
+    private AudioStreamFormat(int codec, int sampleRate, int channelCount, int framesPerPacket) {
+        this.codec = codec;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.framesPerPacket = framesPerPacket;
+        if (codec == CODEC_AAC || codec == CODEC_AAC_ELD) {
+            this.aacConfig = buildAacConfig(codec, sampleRate, channelCount, framesPerPacket);
+        }
+    }
+
+    String getCodecName() {
+        return CODEC_NAMES[codec];
+    }
+
+    // Parses the SDP of an ANNOUNCE. Returns null for encrypted streams and anything we can't decode.
+    static AudioStreamFormat fromSdp(String sdp) {
+        String rtpmap = null;
+        String fmtp = null;
+        for (String line : sdp.split("\r?\n")) {
+            if (line.startsWith("a=rtpmap:")) {
+                rtpmap = line.substring(line.indexOf(' ') + 1).trim();
+            }
+            else if (line.startsWith("a=fmtp:")) {
+                fmtp = line.substring(line.indexOf(' ') + 1).trim();
+            }
+            else if (line.startsWith("a=rsaaeskey:") || line.startsWith("a=fpaeskey:")) {
+                // We don't hold the keys to decrypt these
+                CoreLog.w(TAG, "Encrypted audio streams are not supported");
+                return null;
+            }
+        }
+        if (rtpmap == null) {
+            return null;
+        }
+
+        try {
+            if (rtpmap.startsWith("AppleLossless")) {
+                // frameLength compatibleVersion bitDepth pb mb kb numChannels maxRun maxFrameBytes avgBitRate sampleRate
+                if (fmtp == null) {
+                    return new AudioStreamFormat(CODEC_ALAC, DEFAULT_SAMPLE_RATE, DEFAULT_CHANNEL_COUNT,
+                            DEFAULT_ALAC_FRAMES_PER_PACKET);
+                }
+                String[] fields = fmtp.split(" ");
+                AudioStreamFormat format = new AudioStreamFormat(CODEC_ALAC, Integer.parseInt(fields[10]),
+                        Integer.parseInt(fields[6]), Integer.parseInt(fields[0]));
+                format.alacBitDepth = Integer.parseInt(fields[2]);
+                format.alacHistoryMult = Integer.parseInt(fields[3]);
+                format.alacInitialHistory = Integer.parseInt(fields[4]);
+                format.alacKModifier = Integer.parseInt(fields[5]);
+                return format.validate();
+            }
+
+            // The rest are "encoding/rate/channels"
+            String[] fields = rtpmap.split("/");
+            int sampleRate = fields.length > 1 ? Integer.parseInt(fields[1]) : DEFAULT_SAMPLE_RATE;
+            int channelCount = fields.length > 2 ? Integer.parseInt(fields[2]) : DEFAULT_CHANNEL_COUNT;
+            if (fields[0].equalsIgnoreCase("L16")) {
+                // Packets are whatever fits in a datagram, so there's no fixed frame count
+                return new AudioStreamFormat(CODEC_PCM, sampleRate, channelCount, 0).validate();
+            }
+            else if (fields[0].equalsIgnoreCase("mpeg4-generic")) {
+                boolean eld = fmtp != null && fmtp.toLowerCase().contains("mode=aac-eld");
+                int framesPerPacket = eld ? DEFAULT_AAC_ELD_FRAMES_PER_PACKET : DEFAULT_AAC_FRAMES_PER_PACKET;
+                if (fmtp != null) {
+                    String constantDuration = getFmtpParameter(fmtp, "constantDuration");
+                    if (constantDuration != null) {
+                        framesPerPacket = Integer.parseInt(constantDuration);
+                    }
+                }
+                AudioStreamFormat format = new AudioStreamFormat(eld ? CODEC_AAC_ELD : CODEC_AAC,
+                        sampleRate, channelCount, framesPerPacket);
+                String config = fmtp != null ? getFmtpParameter(fmtp, "config") : null;
+                if (config != null) {
+                    format.aacConfig = parseHex(config);
+                }
+                return format.validate();
+            }
+        } catch (RuntimeException e) {
+            CoreLog.w(TAG, "Malformed audio SDP: " + rtpmap + " " + fmtp, e);
+        }
+        return null;
+    }
+
+    // Builds the format for an audio stream in a SETUP plist, which gives the codec as a
+    // "ct" bit and the packet size as "spf". Returns null for codecs we don't know.
+    static AudioStreamFormat fromCompressionType(int compressionType, int sampleRate, int framesPerPacket) {
+        int codec;
+        switch (compressionType) {
+            case COMPRESSION_TYPE_PCM:
+                codec = CODEC_PCM;
+                break;
+            case COMPRESSION_TYPE_ALAC:
+                codec = CODEC_ALAC;
+                break;
+            case COMPRESSION_TYPE_AAC:
+                codec = CODEC_AAC;
+                break;
+            case COMPRESSION_TYPE_AAC_ELD:
+                codec = CODEC_AAC_ELD;
+                break;
+            default:
+                return null;
+        }
+
+        if (sampleRate <= 0) {
+            sampleRate = DEFAULT_SAMPLE_RATE;
+        }
+        if (framesPerPacket <= 0 && codec != CODEC_PCM) {
+            framesPerPacket = codec == CODEC_ALAC ? DEFAULT_ALAC_FRAMES_PER_PACKET :
+                    codec == CODEC_AAC ? DEFAULT_AAC_FRAMES_PER_PACKET : DEFAULT_AAC_ELD_FRAMES_PER_PACKET;
+        }
+        return new AudioStreamFormat(codec, sampleRate, DEFAULT_CHANNEL_COUNT, framesPerPacket).validate();
+    }
+
+    private AudioStreamFormat validate() {
+        if (channelCount < 1 || channelCount > 2 || sampleRate < 8000 || sampleRate > 96000 ||
+                framesPerPacket < 0 || framesPerPacket > MAX_FRAMES_PER_PACKET) {
+            CoreLog.w(TAG, "Unsupported audio format: " + getCodecName() + " " + sampleRate + " Hz, " +
+                    channelCount + " channels, " + framesPerPacket + " frames per packet");
+            return null;
+        }
+        if (codec == CODEC_ALAC && alacBitDepth != 16) {
+            CoreLog.w(TAG, "Unsupported ALAC bit depth: " + alacBitDepth);
+            return null;
+        }
+        return this;
+    }
+
+    private static String getFmtpParameter(String fmtp, String name) {
+        for (String parameter : fmtp.split(";")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0 && parameter.substring(0, equals).trim().equalsIgnoreCase(name)) {
+                return parameter.substring(equals + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    private static byte[] parseHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    // AudioSpecificConfig (ISO 14496-3 1.6.2.1) for senders that don't send one. AAC-ELD has
+    // an object type above 31, so it takes the escaped form followed by an ELDSpecificConfig.
+    private static byte[] buildAacConfig(int codec, int sampleRate, int channelCount, int framesPerPacket) {
+        int frequencyIndex = 0;
+        while (frequencyIndex < AAC_SAMPLE_RATES.length - 1 && AAC_SAMPLE_RATES[frequencyIndex] > sampleRate) {
+            frequencyIndex++;
+        }
+
+        long bits;
+        int bitCount;
+        if (codec == CODEC_AAC_ELD) {
+            // Object type 39 escaped as 31 + 7, then frameLengthFlag (480 samples), three
+            // resilience flags and ldSbrPresentFlag all clear, then ELDEXT_TERM
+            bits = (31L << 27) | (7L << 21) | ((long) frequencyIndex << 17) | ((long) channelCount << 13) |
+                    ((framesPerPacket == 480 ? 1L : 0L) << 12);
+            bitCount = 32;
+        }
+        else {
+            // AAC LC, 1024 sample frames
+            bits = (2L << 11) | ((long) frequencyIndex << 7) | ((long) channelCount << 3);
+            bitCount = 16;
+        }
+
+        byte[] config = new byte[bitCount / 8];
+        for (int i = 0; i < config.length; i++) {
+            config[i] = (byte) (bits >>> (bitCount - 8 * (i + 1)));
+        }
+        return config;
+    }
+}
@@ -0,0 +1,159 @@
+package com.airfire;
+
+/**
+ * Lip-sync between mirrored video and the audio actually coming out of the speaker
+ * The audio sink anchors the sender's media clock to the playback head, and the video renderer asks when each frame should be shown against it
+ */
+public class AvSyncClock {
+    // getRenderTimeNs() results other than a render time
+    public static final long RENDER_UNSYNCHRONIZED = Long.MIN_VALUE;
+    public static final long DROP = Long.MIN_VALUE + 1;
+
+    // Must be a power of two. Far more frames than the decoder ever holds.
+    private static final int FRAME_SLOTS = 64;
+    private static final int FRAME_MASK = FRAME_SLOTS - 1;
+
+    // Video more than this far behind its audio is dropped to catch up. Viewers start to
+    // notice at around 45 ms of late video, so this keeps well inside that.
+    private static final long LATE_TOLERANCE_NS = 20000000L;
+
+    // Early frames are scheduled ahead so the previous one stays up, but never so far that
+    // the decoder would run out of output buffers waiting
+    private static final long MAX_HOLD_NS = 100000000L;
+    private static final long HOLD_THRESHOLD_NS = 8000000L;
+
+    // Dropping every frame would freeze the picture, so some are always shown
+    private static final int MAX_CONSECUTIVE_DROPS = 3;
+
+    // An audio anchor this old means audio has stopped, and an error this big means the
+    // audio and video aren't from the same clock, so there's nothing to sync to
+    private static final long MAX_ANCHOR_AGE_NS = 500000000L;
+    private static final long MAX_SYNC_ERROR_NS = 1000000000L;
+
+    private static final int ERROR_SMOOTHING_SHIFT = 4;
+
+    // Local time minus media time for the audio being heard, and when that was measured
+    private volatile long audioOffsetNs;
+    private volatile long audioAnchorTimeNs;
+    private volatile boolean audioAnchored;
+
+    // Media times of recent frames by frame number, written by the receive thread and
+    // read by the renderer
+    private final int[] frameNumbers = new int[FRAME_SLOTS];
+    private final long[] frameMediaTimes = new long[FRAME_SLOTS];
+
+    private volatile AirPlayTimingService timingService;
+
+    // Only touched by the renderer
+    private int consecutiveDrops;
+    private long smoothedErrorNs;
+    private volatile long framesSynchronized;
+    private volatile long framesDropped;
+    private volatile long framesHeld;
+
+    public AvSyncClock() {
+        for (int i = 0; i < FRAME_SLOTS; i++) {
+            frameNumbers[i] = -1;
+        }
+    }
+
+    void setTimingService(AirPlayTimingService timingService) {
+        this.timingService = timingService;
+    }
+
+    // Called by the audio sink: the sample at mediaTimeNs on the sender's clock is heard at
+    // localTimeNs on System.nanoTime
+    public void updateAudioClock(long mediaTimeNs, long localTimeNs) {
+        audioOffsetNs = localTimeNs - mediaTimeNs;
+        audioAnchorTimeNs = localTimeNs;
+        audioAnchored = true;
+    }
+
+    public void clearAudioClock() {
+        audioAnchored = false;
+    }
+
+    // Called by the video receive thread as each frame is submitted
+    void recordVideoFrame(int frameNumber, long mediaTimeNs) {
+        int index = frameNumber & FRAME_MASK;
+        // Once per frame and held for two stores, so this lock is as good as uncontended
+        synchronized (frameNumbers) {
+            frameNumbers[index] = frameNumber;
+            frameMediaTimes[index] = mediaTimeNs;
+        }
+    }
+
+    // Decides when a decoded frame should be shown: a System.nanoTime render time for
+    // MediaCodec.releaseOutputBuffer, DROP if it has missed its audio, or
+    // RENDER_UNSYNCHRONIZED if there's no audio to sync to and it should go out as usual.
+    public long getRenderTimeNs(int frameNumber, long nowNs) {
+        if (!audioAnchored || nowNs - audioAnchorTimeNs > MAX_ANCHOR_AGE_NS) {
+            return RENDER_UNSYNCHRONIZED;
+        }
+
+        int index = frameNumber & FRAME_MASK;
+        long mediaTimeNs;
+        synchronized (frameNumbers) {
+            if (frameNumbers[index] != frameNumber) {
+                return RENDER_UNSYNCHRONIZED;
+            }
+            mediaTimeNs = frameMediaTimes[index];
+        }
+
+        long renderTimeNs = mediaTimeNs + audioOffsetNs;
+        long errorNs = renderTimeNs - nowNs;
+        if (errorNs > MAX_SYNC_ERROR_NS || errorNs < -MAX_SYNC_ERROR_NS) {
+            return RENDER_UNSYNCHRONIZED;
+        }
+        framesSynchronized++;
+        smoothedErrorNs += (errorNs - smoothedErrorNs) >> ERROR_SMOOTHING_SHIFT;
+
+        if (errorNs < -LATE_TOLERANCE_NS && consecutiveDrops < MAX_CONSECUTIVE_DROPS) {
+            consecutiveDrops++;
+            framesDropped++;
+            return DROP;
+        }
+        consecutiveDrops = 0;
+
+        if (errorNs <= 0) {
+            return nowNs;
+        }
+        if (errorNs > HOLD_THRESHOLD_NS) {
+            // The frame on screen now is shown for longer, in effect repeating it
+            framesHeld++;
+        }
+        return nowNs + Math.min(errorNs, MAX_HOLD_NS);
+    }
+
+    // The sender's clock mapped onto System.nanoTime by the timing exchange, or
+    // RENDER_UNSYNCHRONIZED until the sender has answered
+    public long senderToLocalNanos(long senderNs) {
+        AirPlayTimingService service = timingService;
+        AirPlayTimingService.Estimate estimate = service != null ? service.getEstimate() : null;
+        if (estimate == null) {
+            return RENDER_UNSYNCHRONIZED;
+        }
+        return AirPlayTimingService.remoteToLocalNanos(estimate, senderNs);
+    }
+
+    public boolean isAudioAnchored() {
+        return audioAnchored;
+    }
+
+    // How far ahead of its audio video is arriving, on average. Negative means video is late.
+    public int getVideoLeadMs() {
+        return (int) (smoothedErrorNs / 1000000);
+    }
+
+    public long getFramesSynchronized() {
+        return framesSynchronized;
+    }
+
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+
+    public long getFramesHeld() {
+        return framesHeld;
+    }
+}
@@ -0,0 +1,224 @@
+package com.airfire;
+
+/**
+ * Decoder for Apple binary property lists (bplist00)
+ * Decodes into a caller-supplied PlistValue tree, leaving strings and data as windows onto the input
+ */
+class BinaryPlistReader {
+    private static final int HEADER_SIZE = 8;
+    private static final int TRAILER_SIZE = 32;
+
+    // Objects can be shared or even reference themselves, so cap how much a hostile plist
+    // can make us decode.
+    private static final int MAX_DEPTH = 32;
+    private static final int MAX_DECODED_OBJECTS = 4096;
+
+    private byte[] data;
+    private int start;
+    private int end;
+    private int offsetSize;
+    private int refSize;
+    private long objectCount;
+    private int offsetTableStart;
+    private int decodedObjects;
+
+    // Set by readCount() to where the object's contents start
+    private int countEnd;
+
+    // Decodes the plist in data[offset, offset + length) into root. The tree is reused, and
+    // its strings and data point into data, so both are only valid until the next read.
+    void read(byte[] data, int offset, int length, PlistValue root) {
+        if (length < HEADER_SIZE + TRAILER_SIZE ||
+                data[offset] != 'b' || data[offset + 1] != 'p' || data[offset + 2] != 'l' ||
+                data[offset + 3] != 'i' || data[offset + 4] != 's' || data[offset + 5] != 't' ||
+                data[offset + 6] != '0') {
+            throw new IllegalArgumentException("Not a binary plist");
+        }
+
+        this.data = data;
+        this.start = offset;
+        this.end = offset + length;
+        this.decodedObjects = 0;
+
+        try {
+            int trailer = end - TRAILER_SIZE;
+            offsetSize = data[trailer + 6] & 0xFF;
+            refSize = data[trailer + 7] & 0xFF;
+            objectCount = readSized(trailer + 8, 8);
+            long topObject = readSized(trailer + 16, 8);
+            long offsetTable = readSized(trailer + 24, 8);
+
+            if (offsetSize < 1 || offsetSize > 8 || refSize < 1 || refSize > 8 ||
+                    objectCount < 1 || objectCount > length || topObject >= objectCount ||
+                    offsetTable < HEADER_SIZE || offsetTable + objectCount * offsetSize > length - TRAILER_SIZE) {
+                throw new IllegalArgumentException("Invalid binary plist trailer");
+            }
+            offsetTableStart = start + (int) offsetTable;
+
+            readObject(topObject, root, 0);
+        } finally {
+            this.data = null;
+        }
+    }
+
+    private void readObject(long ref, PlistValue value, int depth) {
+        if (ref < 0 || ref >= objectCount) {
+            throw new IllegalArgumentException("Invalid object reference: " + ref);
+        }
+        if (depth > MAX_DEPTH || ++decodedObjects > MAX_DECODED_OBJECTS) {
+            throw new IllegalArgumentException("Binary plist too deeply nested");
+        }
+
+        long objectOffset = readSized(offsetTableStart + (int) ref * offsetSize, offsetSize);
+        if (objectOffset < HEADER_SIZE || objectOffset >= offsetTableStart - start) {
+            throw new IllegalArgumentException("Invalid object offset: " + objectOffset);
+        }
+        int position = start + (int) objectOffset;
+
+        int marker = data[position] & 0xFF;
+        int info = marker & 0x0F;
+        position++;
+
+        switch (marker >> 4) {
+            case 0x0:
+                if (info == 0x08 || info == 0x09) {
+                    value.setBoolean(info == 0x09);
+                }
+                else {
+                    value.clear(PlistValue.TYPE_NULL);
+                }
+                break;
+
+            case 0x1: {
+                // Only 8-byte integers are signed. 16-byte ones exist, but only their low
+                // 8 bytes are ever used.
+                if (info > 4) {
+                    throw new IllegalArgumentException("Invalid integer size: " + info);
+                }
+                int size = 1 << info;
+                checkRange(position, size);
+                value.setInteger(size > 8 ? readSized(position + size - 8, 8) : readSized(position, size));
+                break;
+            }
+
+            case 0x2:
+                value.setReal(readReal(position, 1 << info));
+                break;
+
+            case 0x3:
+                value.setDate(readReal(position, 8));
+                break;
+
+            case 0x4: {
+                int length = readCount(info, position);
+                position = countEnd;
+                checkRange(position, length);
+                value.setData(data, position, length);
+                break;
+            }
+
+            case 0x5: {
+                int length = readCount(info, position);
+                position = countEnd;
+                checkRange(position, length);
+                value.setStringView(data, position, length, false);
+                break;
+            }
+
+            case 0x6: {
+                long length = readCount(info, position) * 2L;
+                position = countEnd;
+                checkRange(position, length);
+                value.setStringView(data, position, (int) length, true);
+                break;
+            }
+
+            case 0x8: {
+                int size = info + 1;
+                if (size > 8) {
+                    throw new IllegalArgumentException("Invalid UID size: " + size);
+                }
+                checkRange(position, size);
+                value.setUid(readSized(position, size));
+                break;
+            }
+
+            case 0xA:
+            case 0xC: {
+                // Sets are rare enough that they're read as arrays
+                int count = readCount(info, position);
+                position = countEnd;
+                checkRange(position, (long) count * refSize);
+                value.clear(PlistValue.TYPE_ARRAY);
+                for (int i = 0; i < count; i++) {
+                    readObject(readSized(position + i * refSize, refSize), value.add(), depth + 1);
+                }
+                break;
+            }
+
+            case 0xD: {
+                int count = readCount(info, position);
+                position = countEnd;
+                checkRange(position, (long) count * 2 * refSize);
+                value.clear(PlistValue.TYPE_DICT);
+                for (int i = 0; i < count; i++) {
+                    PlistValue entry = value.putEntry();
+                    readObject(readSized(position + i * refSize, refSize), value.getKey(i), depth + 1);
+                    readObject(readSized(position + (count + i) * refSize, refSize), entry, depth + 1);
+                }
+                break;
+            }
+
+            default:
+                throw new IllegalArgumentException("Unsupported plist object: 0x" + Integer.toHexString(marker));
+        }
+    }
+
+    // Counts of 15 or more are stored as an integer object after the marker
+    private int readCount(int info, int position) {
+        if (info != 0x0F) {
+            countEnd = position;
+            return info;
+        }
+
+        checkRange(position, 1);
+        int marker = data[position] & 0xFF;
+        if ((marker >> 4) != 0x1 || (marker & 0x0F) > 2) {
+            throw new IllegalArgumentException("Invalid object count");
+        }
+        int size = 1 << (marker & 0x0F);
+        checkRange(position + 1, size);
+        long count = readSized(position + 1, size);
+        if (count > end - position) {
+            throw new IllegalArgumentException("Invalid object count: " + count);
+        }
+        countEnd = position + 1 + size;
+        return (int) count;
+    }
+
+    private double readReal(int position, int size) {
+        checkRange(position, size);
+        if (size == 4) {
+            return Float.intBitsToFloat((int) readSized(position, 4));
+        }
+        else if (size == 8) {
+            return Double.longBitsToDouble(readSized(position, 8));
+        }
+        throw new IllegalArgumentException("Invalid real size: " + size);
+    }
+
+    private long readSized(int position, int size) {
+        checkRange(position, size);
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value = (value << 8) | (data[position + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private void checkRange(int position, long length) {
+        if (length < 0 || position < start || position > end - length) {
+            throw new IllegalArgumentException("Truncated binary plist");
+        }
+    }
+}
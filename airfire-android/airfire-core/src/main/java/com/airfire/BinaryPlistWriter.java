@@ -0,0 +1,267 @@
+package com.airfire;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder for Apple binary property lists (bplist00)
+ * Writes a PlistValue tree straight into a ByteBuffer, with no intermediate Strings or byte arrays
+ */
+public class BinaryPlistWriter {
+    private static final byte[] MAGIC = AirPlayRequest.ascii("bplist00");
+
+    private static final int MARKER_NULL = 0x00;
+    private static final int MARKER_FALSE = 0x08;
+    private static final int MARKER_TRUE = 0x09;
+    private static final int MARKER_INT = 0x10;
+    private static final int MARKER_REAL = 0x23;
+    private static final int MARKER_DATE = 0x33;
+    private static final int MARKER_DATA = 0x40;
+    private static final int MARKER_ASCII_STRING = 0x50;
+    private static final int MARKER_UNICODE_STRING = 0x60;
+    private static final int MARKER_UID = 0x80;
+    private static final int MARKER_ARRAY = 0xA0;
+    private static final int MARKER_DICT = 0xD0;
+
+    private static final int TRAILER_SIZE = 32;
+
+    // Reused between calls: every node in write order, and where each one was written
+    private PlistValue[] objects = new PlistValue[64];
+    private int[] offsets = new int[64];
+    private int objectCount;
+
+    // Writes the plist at the buffer's position. Throws BufferOverflowException if it
+    // doesn't fit, in which case the buffer contents are undefined.
+    public void write(PlistValue root, ByteBuffer out) {
+        objectCount = 0;
+        number(root);
+
+        int refSize = bytesNeeded(objectCount - 1);
+        int start = out.position();
+        out.put(MAGIC);
+
+        for (int i = 0; i < objectCount; i++) {
+            offsets[i] = out.position() - start;
+            writeObject(objects[i], refSize, out);
+            objects[i] = null;
+        }
+
+        int offsetTableOffset = out.position() - start;
+        int offsetSize = bytesNeeded(offsetTableOffset);
+        for (int i = 0; i < objectCount; i++) {
+            putSized(out, offsets[i], offsetSize);
+        }
+
+        // Trailer: 6 unused bytes, the two sizes, then the object count, top object and table offset
+        for (int i = 0; i < 6; i++) {
+            out.put((byte) 0);
+        }
+        out.put((byte) offsetSize);
+        out.put((byte) refSize);
+        out.putLong(objectCount);
+        out.putLong(0);
+        out.putLong(offsetTableOffset);
+    }
+
+    // Size of the encoding, for sizing a buffer before writing
+    public int measure(PlistValue root) {
+        objectCount = 0;
+        number(root);
+
+        int refSize = bytesNeeded(objectCount - 1);
+        int length = MAGIC.length;
+        for (int i = 0; i < objectCount; i++) {
+            length += measureObject(objects[i], refSize);
+            objects[i] = null;
+        }
+        return length + objectCount * bytesNeeded(length) + TRAILER_SIZE;
+    }
+
+    // Assigns object numbers depth first, which is also the order they're written in.
+    // Shared nodes are written once per reference, which is fine for the small trees we send.
+    private void number(PlistValue value) {
+        if (objectCount == objects.length) {
+            PlistValue[] newObjects = new PlistValue[objectCount * 2];
+            System.arraycopy(objects, 0, newObjects, 0, objectCount);
+            objects = newObjects;
+            offsets = new int[objectCount * 2];
+        }
+
+        value.ref = objectCount;
+        objects[objectCount++] = value;
+
+        int type = value.getType();
+        if (type == PlistValue.TYPE_DICT) {
+            for (int i = 0; i < value.size(); i++) {
+                number(value.getKey(i));
+            }
+        }
+        if (type == PlistValue.TYPE_DICT || type == PlistValue.TYPE_ARRAY) {
+            for (int i = 0; i < value.size(); i++) {
+                number(value.get(i));
+            }
+        }
+    }
+
+    private void writeObject(PlistValue value, int refSize, ByteBuffer out) {
+        switch (value.getType()) {
+            case PlistValue.TYPE_BOOLEAN:
+                out.put((byte) (value.getBoolean() ? MARKER_TRUE : MARKER_FALSE));
+                break;
+
+            case PlistValue.TYPE_INTEGER:
+                putInteger(out, value.getInteger());
+                break;
+
+            case PlistValue.TYPE_REAL:
+                out.put((byte) MARKER_REAL);
+                out.putDouble(value.getReal());
+                break;
+
+            case PlistValue.TYPE_DATE:
+                out.put((byte) MARKER_DATE);
+                out.putDouble(value.getReal());
+                break;
+
+            case PlistValue.TYPE_DATA:
+                putMarker(out, MARKER_DATA, value.getDataLength());
+                out.put(value.getSource(), value.getSourceOffset(), value.getSourceLength());
+                break;
+
+            case PlistValue.TYPE_STRING:
+                putString(out, value);
+                break;
+
+            case PlistValue.TYPE_UID: {
+                int size = bytesNeeded(value.getInteger());
+                out.put((byte) (MARKER_UID | (size - 1)));
+                putSized(out, value.getInteger(), size);
+                break;
+            }
+
+            case PlistValue.TYPE_ARRAY:
+                putMarker(out, MARKER_ARRAY, value.size());
+                for (int i = 0; i < value.size(); i++) {
+                    putSized(out, value.get(i).ref, refSize);
+                }
+                break;
+
+            case PlistValue.TYPE_DICT:
+                // All the key references come first, then all the values
+                putMarker(out, MARKER_DICT, value.size());
+                for (int i = 0; i < value.size(); i++) {
+                    putSized(out, value.getKey(i).ref, refSize);
+                }
+                for (int i = 0; i < value.size(); i++) {
+                    putSized(out, value.get(i).ref, refSize);
+                }
+                break;
+
+            default:
+                out.put((byte) MARKER_NULL);
+                break;
+        }
+    }
+
+    private int measureObject(PlistValue value, int refSize) {
+        switch (value.getType()) {
+            case PlistValue.TYPE_INTEGER:
+                return 1 + integerSize(value.getInteger());
+            case PlistValue.TYPE_REAL:
+            case PlistValue.TYPE_DATE:
+                return 9;
+            case PlistValue.TYPE_DATA:
+                return markerSize(value.getDataLength()) + value.getDataLength();
+            case PlistValue.TYPE_STRING: {
+                int length = value.getStringLength();
+                return markerSize(length) + (isAscii(value) ? length : length * 2);
+            }
+            case PlistValue.TYPE_UID:
+                return 1 + bytesNeeded(value.getInteger());
+            case PlistValue.TYPE_ARRAY:
+                return markerSize(value.size()) + value.size() * refSize;
+            case PlistValue.TYPE_DICT:
+                return markerSize(value.size()) + value.size() * 2 * refSize;
+            default:
+                return 1;
+        }
+    }
+
+    private static void putString(ByteBuffer out, PlistValue value) {
+        int length = value.getStringLength();
+        if (isAscii(value)) {
+            putMarker(out, MARKER_ASCII_STRING, length);
+            if (value.getSource() != null && !value.isUtf16()) {
+                out.put(value.getSource(), value.getSourceOffset(), length);
+            }
+            else {
+                for (int i = 0; i < length; i++) {
+                    out.put((byte) value.charAt(i));
+                }
+            }
+        }
+        else {
+            // Lengths are in UTF-16 code units
+            putMarker(out, MARKER_UNICODE_STRING, length);
+            for (int i = 0; i < length; i++) {
+                out.putChar(value.charAt(i));
+            }
+        }
+    }
+
+    private static boolean isAscii(PlistValue value) {
+        int length = value.getStringLength();
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) > 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void putInteger(ByteBuffer out, long value) {
+        int size = integerSize(value);
+        out.put((byte) (MARKER_INT | Integer.numberOfTrailingZeros(size)));
+        putSized(out, value, size);
+    }
+
+    // Only 8-byte integers are signed, so anything negative needs the full width
+    private static int integerSize(long value) {
+        if (value < 0) {
+            return 8;
+        }
+        int size = bytesNeeded(value);
+        if (size == 3) {
+            return 4;
+        }
+        return size > 4 ? 8 : size;
+    }
+
+    // Counts of 15 or more don't fit in the marker and follow it as an integer object
+    private static void putMarker(ByteBuffer out, int marker, int count) {
+        if (count < 15) {
+            out.put((byte) (marker | count));
+        }
+        else {
+            out.put((byte) (marker | 0x0F));
+            putInteger(out, count);
+        }
+    }
+
+    private static int markerSize(int count) {
+        return count < 15 ? 1 : 2 + integerSize(count);
+    }
+
+    private static void putSized(ByteBuffer out, long value, int size) {
+        for (int shift = (size - 1) * 8; shift >= 0; shift -= 8) {
+            out.put((byte) (value >>> shift));
+        }
+    }
+
+    private static int bytesNeeded(long value) {
+        int size = 1;
+        while (size < 8 && (value >>> (size * 8)) != 0) {
+            size++;
+        }
+        return size;
+    }
+}
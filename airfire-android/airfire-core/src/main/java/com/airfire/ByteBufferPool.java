@@ -0,0 +1,41 @@
+package com.airfire;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Fixed-size pool of reusable heap buffers
+ * Keeps steady-state networking from allocating a fresh buffer for every connection or packet
+ */
+class ByteBufferPool {
+    private final int bufferSize;
+    private final int maxPooledBuffers;
+    private final ArrayDeque<ByteBuffer> freeBuffers;
+
+    ByteBufferPool(int bufferSize, int maxPooledBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+        this.freeBuffers = new ArrayDeque<>(maxPooledBuffers);
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    // Returned buffers are always array-backed and cleared
+    synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = freeBuffers.pollFirst();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    synchronized void release(ByteBuffer buffer) {
+        // Only keep buffers that came from us, and never more than the pool limit
+        if (buffer != null && buffer.capacity() == bufferSize && freeBuffers.size() < maxPooledBuffers) {
+            freeBuffers.addFirst(buffer);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.airfire;
+
+/**
+ * Logging for the platform-independent receiver code
+ * Writes to stderr until the app installs a sink, so the same classes log sensibly on a desktop JVM
+ */
+public final class CoreLog {
+    // The same values as android.util.Log, so an Android sink can pass them straight through
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    public interface Sink {
+        boolean isLoggable(String tag, int level);
+
+        // error may be null
+        void log(int level, String tag, String message, Throwable error);
+    }
+
+    private static final Sink STDERR_SINK = new Sink() {
+        @Override
+        public boolean isLoggable(String tag, int level) {
+            return level >= INFO;
+        }
+
+        @Override
+        public void log(int level, String tag, String message, Throwable error) {
+            System.err.println("DIWE".charAt(level - DEBUG) + "/" + tag + ": " + message);
+            if (error != null) {
+                error.printStackTrace();
+            }
+        }
+    };
+
+    private static volatile Sink sink = STDERR_SINK;
+
+    private CoreLog() {
+    }
+
+    public static void setSink(Sink newSink) {
+        sink = newSink != null ? newSink : STDERR_SINK;
+    }
+
+    static boolean isLoggable(String tag, int level) {
+        return sink.isLoggable(tag, level);
+    }
+
+    static void d(String tag, String message) {
+        log(DEBUG, tag, message, null);
+    }
+
+    static void i(String tag, String message) {
+        log(INFO, tag, message, null);
+    }
+
+    static void w(String tag, String message) {
+        log(WARN, tag, message, null);
+    }
+
+    static void w(String tag, String message, Throwable error) {
+        log(WARN, tag, message, error);
+    }
+
+    static void e(String tag, String message) {
+        log(ERROR, tag, message, null);
+    }
+
+    static void e(String tag, String message, Throwable error) {
+        log(ERROR, tag, message, error);
+    }
+
+    private static void log(int level, String tag, String message, Throwable error) {
+        Sink current = sink;
+        if (current.isLoggable(tag, level)) {
+            current.log(level, tag, message, error);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.airfire;
+
+/**
+ * Destination for decode units produced by the AirPlay video pipeline
+ * Mirrors the VideoDecoderRenderer.submitDecodeUnit contract so MediaCodecDecoderRenderer can be plugged in directly
+ */
+public interface DecodeUnitSink {
+    // Same values as the MoonBridge constants the decoder expects
+    int BUFFER_TYPE_PICDATA = 0;
+    int BUFFER_TYPE_SPS = 1;
+    int BUFFER_TYPE_PPS = 2;
+    int BUFFER_TYPE_VPS = 3;
+
+    int FRAME_TYPE_PFRAME = 0;
+    int FRAME_TYPE_IDR = 1;
+
+    int DR_OK = 0;
+    int DR_NEED_IDR = -1;
+
+    int VIDEO_FORMAT_H264 = 0x0001;
+    int VIDEO_FORMAT_H265 = 0x0100;
+
+    // Called on the receive thread before the first decode unit of a stream
+    void onStreamStarted(int videoFormat);
+
+    // Data is in Annex B format starting at offset 0 and is only valid for the duration of the call
+    int submitDecodeUnit(byte[] decodeUnitData, int decodeUnitLength, int decodeUnitType,
+                         int frameNumber, int frameType, long receiveTimeMs, long enqueueTimeMs);
+
+    void onStreamStopped();
+}
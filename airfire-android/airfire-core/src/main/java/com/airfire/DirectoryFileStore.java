@@ -0,0 +1,34 @@
+package com.airfire;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A FileStore backed by a plain directory
+ * For running the receiver code on a desktop JVM, where there's no Context
+ */
+public class DirectoryFileStore implements FileStore {
+    private final File directory;
+
+    public DirectoryFileStore(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public InputStream openInput(String name) throws FileNotFoundException {
+        return new FileInputStream(new File(directory, name));
+    }
+
+    @Override
+    public OutputStream openOutput(String name) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        return new FileOutputStream(new File(directory, name));
+    }
+}
@@ -0,0 +1,18 @@
+package com.airfire;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Small private files the receiver keeps between runs, such as its identity
+ * The app keeps them in its files directory; DirectoryFileStore does the same on a desktop JVM
+ */
+public interface FileStore {
+    // Throws FileNotFoundException if the file hasn't been written yet
+    InputStream openInput(String name) throws FileNotFoundException;
+
+    // Replaces the file's contents
+    OutputStream openOutput(String name) throws IOException;
+}
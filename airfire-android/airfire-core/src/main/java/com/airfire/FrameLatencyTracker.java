@@ -0,0 +1,175 @@
+package com.airfire;
+
+/**
+ * Per-frame latency through each stage of the mirroring pipeline, from the sender's capture to the frame reaching the screen
+ * Each frame is timed at receive, decryption, queueInputBuffer, decoder output and render, and every stage keeps a histogram
+ */
+public final class FrameLatencyTracker {
+    // Sender capture to the packet arriving. Only known once the timing exchange has
+    // mapped the sender's clock onto ours.
+    public static final int STAGE_NETWORK = 0;
+    // Packet arriving to its payload being read and decrypted
+    public static final int STAGE_DECRYPT = 1;
+    // Decrypted to queued on the decoder, including any wait for an input buffer
+    public static final int STAGE_QUEUE = 2;
+    // Queued to coming out of the decoder
+    public static final int STAGE_DECODE = 3;
+    // Decoded to shown, which is where frame pacing and A/V sync hold frames back
+    public static final int STAGE_RENDER = 4;
+    // Packet arriving to shown, everything the receiver itself adds
+    public static final int STAGE_TOTAL = 5;
+    // Sender capture to shown
+    public static final int STAGE_GLASS_TO_GLASS = 6;
+    public static final int STAGE_COUNT = 7;
+
+    private static final String[] STAGE_NAMES = {
+            "network", "decrypt", "queue", "decode", "render", "total", "glassToGlass"
+    };
+
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    // Must be a power of two. Far more frames than the decoder ever holds, as in AvSyncClock.
+    private static final int FRAME_SLOTS = 64;
+    private static final int FRAME_MASK = FRAME_SLOTS - 1;
+
+    private final AvSyncClock syncClock;
+
+    // Stage times of recent frames on System.nanoTime, by frame number. Everything below is
+    // guarded by frameNumbers, which is held for a few stores at a time.
+    private final int[] frameNumbers = new int[FRAME_SLOTS];
+    private final long[] captureTimes = new long[FRAME_SLOTS];
+    private final long[] receiveTimes = new long[FRAME_SLOTS];
+    private final long[] decryptTimes = new long[FRAME_SLOTS];
+    private final long[] queueTimes = new long[FRAME_SLOTS];
+    private final long[] decodeTimes = new long[FRAME_SLOTS];
+    private final LatencyHistogram[] histograms = new LatencyHistogram[STAGE_COUNT];
+
+    // syncClock maps the sender's capture times onto ours. Without one, the network and
+    // glass-to-glass stages are never recorded.
+    public FrameLatencyTracker(AvSyncClock syncClock) {
+        this.syncClock = syncClock;
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        clearFrames();
+    }
+
+    // Called as each mirroring stream starts, so the numbers are for the stream on screen
+    public void reset() {
+        synchronized (frameNumbers) {
+            for (LatencyHistogram histogram : histograms) {
+                histogram.clear();
+            }
+            clearFrames();
+        }
+    }
+
+    // Called by the receive thread as each frame is submitted, with the sender's capture time
+    void onFrameReceived(int frameNumber, long senderTimeNs, long receiveTimeNs, long decryptTimeNs) {
+        long captureTimeNs = NO_TIME;
+        if (syncClock != null) {
+            long localNs = syncClock.senderToLocalNanos(senderTimeNs);
+            if (localNs != AvSyncClock.RENDER_UNSYNCHRONIZED) {
+                captureTimeNs = localNs;
+            }
+        }
+
+        int index = frameNumber & FRAME_MASK;
+        synchronized (frameNumbers) {
+            frameNumbers[index] = frameNumber;
+            captureTimes[index] = captureTimeNs;
+            receiveTimes[index] = receiveTimeNs;
+            decryptTimes[index] = decryptTimeNs;
+            queueTimes[index] = NO_TIME;
+            decodeTimes[index] = NO_TIME;
+
+            if (captureTimeNs != NO_TIME) {
+                recordLocked(STAGE_NETWORK, captureTimeNs, receiveTimeNs);
+            }
+            recordLocked(STAGE_DECRYPT, receiveTimeNs, decryptTimeNs);
+        }
+    }
+
+    // The rest are called by the decoder, and ignore frames that have already left the window
+    public void onFrameQueued(int frameNumber, long timeNs) {
+        int index = frameNumber & FRAME_MASK;
+        synchronized (frameNumbers) {
+            // An IDR frame's parameter sets may be queued ahead of it under the same number
+            if (frameNumbers[index] == frameNumber && queueTimes[index] == NO_TIME) {
+                queueTimes[index] = timeNs;
+                recordLocked(STAGE_QUEUE, decryptTimes[index], timeNs);
+            }
+        }
+    }
+
+    public void onFrameDecoded(int frameNumber, long timeNs) {
+        int index = frameNumber & FRAME_MASK;
+        synchronized (frameNumbers) {
+            if (frameNumbers[index] == frameNumber && queueTimes[index] != NO_TIME) {
+                decodeTimes[index] = timeNs;
+                recordLocked(STAGE_DECODE, queueTimes[index], timeNs);
+            }
+        }
+    }
+
+    // renderTimeNs is when the frame actually reached the display, from onFrameRendered
+    public void onFrameRendered(int frameNumber, long renderTimeNs) {
+        int index = frameNumber & FRAME_MASK;
+        synchronized (frameNumbers) {
+            if (frameNumbers[index] != frameNumber || decodeTimes[index] == NO_TIME) {
+                return;
+            }
+            recordLocked(STAGE_RENDER, decodeTimes[index], renderTimeNs);
+            recordLocked(STAGE_TOTAL, receiveTimes[index], renderTimeNs);
+            if (captureTimes[index] != NO_TIME) {
+                recordLocked(STAGE_GLASS_TO_GLASS, captureTimes[index], renderTimeNs);
+            }
+
+            // Each frame is only shown once
+            decodeTimes[index] = NO_TIME;
+        }
+    }
+
+    // Copies one stage's histogram out, so it can be read without holding up the pipeline
+    public void getHistogram(int stage, LatencyHistogram out) {
+        synchronized (frameNumbers) {
+            out.copy(histograms[stage]);
+        }
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    // Every stage as JSON, in microseconds, for tools polling the receiver
+    public String toJson() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        StringBuilder json = new StringBuilder(512);
+        json.append("{\"unit\":\"us\",\"stages\":{");
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            getHistogram(stage, histogram);
+            if (stage > 0) {
+                json.append(',');
+            }
+            json.append('"').append(STAGE_NAMES[stage]).append("\":{")
+                    .append("\"count\":").append(histogram.getCount())
+                    .append(",\"p50\":").append(histogram.getPercentile(50))
+                    .append(",\"p95\":").append(histogram.getPercentile(95))
+                    .append(",\"p99\":").append(histogram.getPercentile(99))
+                    .append(",\"max\":").append(histogram.getMax())
+                    .append('}');
+        }
+        json.append("}}");
+        return json.toString();
+    }
+
+    private void recordLocked(int stage, long startNs, long endNs) {
+        histograms[stage].record((endNs - startNs) / 1000);
+    }
+
+    private void clearFrames() {
+        for (int i = 0; i < FRAME_SLOTS; i++) {
+            frameNumbers[i] = -1;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.airfire;
+
+/**
+ * A fixed-size histogram of latencies in microseconds, with log-linear buckets
+ * Every value costs one array increment, and percentiles come back within about 6% however long it has run
+ */
+public final class LatencyHistogram {
+    // Each power of two is split into 2^SUB_BUCKET_BITS buckets, which sets the error
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Values up to 2^(MAX_VALUE_BITS + 1) microseconds, a little over two minutes. Anything
+    // slower is counted in the last bucket.
+    private static final int MAX_VALUE_BITS = 26;
+    static final int BUCKETS = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final int[] counts = new int[BUCKETS];
+    private long count;
+    private long max;
+
+    // Not thread-safe. Threads that record into a shared window use a LatencyRecorder.
+    public void record(long valueUs) {
+        if (valueUs < 0) {
+            // Clocks that haven't settled yet, not a latency
+            return;
+        }
+        counts[bucketIndex(valueUs)]++;
+        count++;
+        if (valueUs > max) {
+            max = valueUs;
+        }
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        if (other.max > max) {
+            max = other.max;
+        }
+    }
+
+    // What a LatencyRecorder drained from one bucket
+    void addBucket(int index, int bucketCount) {
+        counts[index] += bucketCount;
+        count += bucketCount;
+    }
+
+    void addMax(long valueUs) {
+        if (valueUs > max) {
+            max = valueUs;
+        }
+    }
+
+    public void copy(LatencyHistogram other) {
+        System.arraycopy(other.counts, 0, counts, 0, BUCKETS);
+        count = other.count;
+        max = other.max;
+    }
+
+    public void clear() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = 0;
+        }
+        count = 0;
+        max = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    // The upper edge of the bucket holding that percentile, so it never understates the
+    // latency. Zero if nothing has been recorded.
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    // Values below SUB_BUCKETS get a bucket each. Above that, the top SUB_BUCKET_BITS + 1
+    // bits pick the bucket, so each one is 1/SUB_BUCKETS of its power of two wide.
+    static int bucketIndex(long valueUs) {
+        if (valueUs < SUB_BUCKETS) {
+            return (int) valueUs;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(valueUs);
+        if (msb > MAX_VALUE_BITS) {
+            return BUCKETS - 1;
+        }
+        int shift = msb - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((valueUs >>> shift) - SUB_BUCKETS);
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        if (index == BUCKETS - 1) {
+            // Everything slower lands here too, so percentiles in it fall back to the max
+            return Long.MAX_VALUE;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowerBound = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,49 @@
+package com.airfire;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects latencies from any thread without a lock, in the same buckets as LatencyHistogram
+ * A record is one atomic increment; whoever reads the numbers drains them into a LatencyHistogram first
+ */
+public final class LatencyRecorder {
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(LatencyHistogram.BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long valueUs) {
+        if (valueUs < 0) {
+            // Clocks that haven't settled yet, not a latency
+            return;
+        }
+        counts.getAndIncrement(LatencyHistogram.bucketIndex(valueUs));
+
+        // A new max is rare once a window has a few frames in it, so this is nearly always
+        // just the read
+        long currentMax = max.get();
+        while (valueUs > currentMax && !max.compareAndSet(currentMax, valueUs)) {
+            currentMax = max.get();
+        }
+    }
+
+    // Moves everything recorded so far into the histogram and starts over. Each value lands
+    // in exactly one drain, but one recorded while this runs can leave its max behind in
+    // the previous drain, so the max never goes below the highest bucket that got a value.
+    // Callers draining into the same histogram from several threads share a lock.
+    public void drainTo(LatencyHistogram histogram) {
+        int highestIndex = -1;
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            int bucketCount = counts.getAndSet(i, 0);
+            if (bucketCount != 0) {
+                histogram.addBucket(i, bucketCount);
+                highestIndex = i;
+            }
+        }
+
+        long drainedMax = max.getAndSet(0);
+        if (highestIndex > 0) {
+            drainedMax = Math.max(drainedMax, LatencyHistogram.bucketUpperBound(highestIndex - 1) + 1);
+        }
+        histogram.addMax(drainedMax);
+    }
+}
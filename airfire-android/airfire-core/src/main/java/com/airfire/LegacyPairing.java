@@ -0,0 +1,134 @@
+package com.airfire;
+
+import org.bouncycastle.math.ec.rfc7748.X25519;
+import org.bouncycastle.math.ec.rfc8032.Ed25519;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * One connection's side of legacy AirPlay pairing: pair-setup swaps Ed25519 keys, pair-verify proves them
+ * Pair-verify is an X25519 exchange with each side's signature over both ephemeral keys, encrypted under a key derived from the shared secret
+ */
+class LegacyPairing {
+    static final int SETUP_REQUEST_SIZE = Ed25519.PUBLIC_KEY_SIZE;
+
+    // A 4-byte header, then the sender's X25519 key and Ed25519 key, or its encrypted signature
+    static final int VERIFY_REQUEST_SIZE = 4 + 64;
+    static final int VERIFY_RESPONSE_SIZE = X25519.POINT_SIZE + Ed25519.SIGNATURE_SIZE;
+
+    private static final int AES_KEY_SIZE = 16;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final AirPlayIdentity identity;
+    private final PairedSenderStore pairedSenders;
+
+    private final byte[] ephemeralSecretKey = new byte[X25519.SCALAR_SIZE];
+    private final byte[] ephemeralPublicKey = new byte[X25519.POINT_SIZE];
+    private final byte[] senderEphemeralKey = new byte[X25519.POINT_SIZE];
+    private final byte[] senderPublicKey = new byte[Ed25519.PUBLIC_KEY_SIZE];
+    private final byte[] signedKeys = new byte[X25519.POINT_SIZE * 2];
+    private final byte[] signature = new byte[Ed25519.SIGNATURE_SIZE];
+
+    private Cipher cipher;
+    private byte[] sharedSecret;
+    private boolean verifyStarted;
+    private boolean verified;
+    private boolean resumed;
+
+    LegacyPairing(AirPlayIdentity identity, PairedSenderStore pairedSenders) {
+        this.identity = identity;
+        this.pairedSenders = pairedSenders;
+    }
+
+    // pair-setup: holds on to the sender's key and returns ours. Nothing is recorded until
+    // the sender proves it has the matching private key in pair-verify.
+    byte[] setup(byte[] body, int offset) {
+        System.arraycopy(body, offset, senderPublicKey, 0, Ed25519.PUBLIC_KEY_SIZE);
+        return identity.getPublicKey();
+    }
+
+    // First pair-verify request: the sender's ephemeral and long-term keys. Returns our
+    // ephemeral key and encrypted signature, or null if the sender's key is unusable.
+    byte[] startVerify(byte[] body, int offset) throws GeneralSecurityException {
+        verified = false;
+        System.arraycopy(body, offset + 4, senderEphemeralKey, 0, X25519.POINT_SIZE);
+        System.arraycopy(body, offset + 4 + X25519.POINT_SIZE, senderPublicKey, 0, Ed25519.PUBLIC_KEY_SIZE);
+
+        X25519.generatePrivateKey(random, ephemeralSecretKey);
+        X25519.generatePublicKey(ephemeralSecretKey, 0, ephemeralPublicKey, 0);
+        byte[] secret = new byte[X25519.POINT_SIZE];
+        if (!X25519.calculateAgreement(ephemeralSecretKey, 0, senderEphemeralKey, 0, secret, 0)) {
+            // A low-order point, which would make the secret predictable
+            return null;
+        }
+        sharedSecret = secret;
+
+        // Both signatures are encrypted with one keystream: ours first, then the sender's
+        MessageDigest sha512 = MessageDigest.getInstance("SHA-512");
+        byte[] key = deriveKey(sha512, "Pair-Verify-AES-Key");
+        byte[] iv = deriveKey(sha512, "Pair-Verify-AES-IV");
+        if (cipher == null) {
+            cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        }
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 0, AES_KEY_SIZE, "AES"),
+                new IvParameterSpec(iv, 0, AES_KEY_SIZE));
+
+        // We sign our ephemeral key followed by the sender's
+        System.arraycopy(ephemeralPublicKey, 0, signedKeys, 0, X25519.POINT_SIZE);
+        System.arraycopy(senderEphemeralKey, 0, signedKeys, X25519.POINT_SIZE, X25519.POINT_SIZE);
+        identity.sign(signedKeys, 0, signedKeys.length, signature, 0);
+
+        byte[] response = new byte[VERIFY_RESPONSE_SIZE];
+        System.arraycopy(ephemeralPublicKey, 0, response, 0, X25519.POINT_SIZE);
+        cipher.update(signature, 0, Ed25519.SIGNATURE_SIZE, response, X25519.POINT_SIZE);
+        verifyStarted = true;
+        return response;
+    }
+
+    // Second pair-verify request: the sender's signature over the two ephemeral keys, in
+    // its order. Returns whether it proves the sender holds the key it gave us.
+    boolean finishVerify(byte[] body, int offset) throws GeneralSecurityException {
+        if (!verifyStarted) {
+            return false;
+        }
+        verifyStarted = false;
+
+        cipher.update(body, offset + 4, Ed25519.SIGNATURE_SIZE, signature, 0);
+        System.arraycopy(senderEphemeralKey, 0, signedKeys, 0, X25519.POINT_SIZE);
+        System.arraycopy(ephemeralPublicKey, 0, signedKeys, X25519.POINT_SIZE, X25519.POINT_SIZE);
+        if (!Ed25519.verify(signature, 0, senderPublicKey, 0, signedKeys, 0, signedKeys.length)) {
+            return false;
+        }
+
+        // Legacy pairing has no PIN, so any sender that proves its key is let in. A key
+        // that was recorded before this handshake means the sender has verified here before.
+        resumed = pairedSenders.isPaired(senderPublicKey);
+        pairedSenders.addPairing(senderPublicKey);
+        verified = true;
+        return true;
+    }
+
+    boolean isVerified() {
+        return verified;
+    }
+
+    // Whether the verified sender was already paired, rather than pairing just now
+    boolean isResumed() {
+        return resumed;
+    }
+
+    private byte[] deriveKey(MessageDigest sha512, String salt) {
+        sha512.reset();
+        sha512.update(salt.getBytes(StandardCharsets.US_ASCII));
+        sha512.update(sharedSecret);
+        return sha512.digest();
+    }
+}
@@ -0,0 +1,309 @@
+package com.airfire;
+
+/**
+ * Turns AirPlay screen-mirroring packets into decode units
+ * Parses the 128-byte packet headers, caches the avcC parameter sets and rewrites picture data to Annex B in place
+ */
+class MirroringDepacketizer {
+    static final int HEADER_SIZE = 128;
+
+    static final int PAYLOAD_TYPE_VIDEO = 0;
+    static final int PAYLOAD_TYPE_CODEC = 1;
+    static final int PAYLOAD_TYPE_HEARTBEAT = 2;
+
+    private static final int NAL_TYPE_IDR = 5;
+    private static final int NAL_TYPE_SPS = 7;
+    private static final int NAL_TYPE_PPS = 8;
+
+    // The length prefix is rewritten into a start code of the same size, which is
+    // what lets us convert the picture data without copying it anywhere.
+    private static final int NAL_LENGTH_SIZE = 4;
+    private static final int INITIAL_PARAMETER_SET_SIZE = 512;
+
+    private final DecodeUnitSink sink;
+    private final AvSyncClock syncClock;
+    private final FrameLatencyTracker latencyTracker;
+
+    // Cached parameter sets, stored with a leading start code ready for submission
+    private byte[] spsData = new byte[INITIAL_PARAMETER_SET_SIZE];
+    private int spsLength;
+    private byte[] ppsData = new byte[INITIAL_PARAMETER_SET_SIZE];
+    private int ppsLength;
+
+    // Length of the picture data after the last call to convertToAnnexB
+    private int convertedLength;
+
+    private boolean streamStarted;
+    private boolean waitingForIdr = true;
+    private int frameNumber;
+
+    private long framesSubmitted;
+    private long idrFramesSubmitted;
+    private long framesDropped;
+
+    // syncClock is null when nothing syncs video to audio, and latencyTracker when frames aren't timed
+    MirroringDepacketizer(DecodeUnitSink sink, AvSyncClock syncClock, FrameLatencyTracker latencyTracker) {
+        this.sink = sink;
+        this.syncClock = syncClock;
+        this.latencyTracker = latencyTracker;
+    }
+
+    // Header fields are little endian
+    static int getPayloadSize(byte[] header) {
+        return readIntLE(header, 0);
+    }
+
+    static int getPayloadType(byte[] header) {
+        return header[4] & 0xFF;
+    }
+
+    static long getNtpTimestamp(byte[] header) {
+        return (readIntLE(header, 8) & 0xFFFFFFFFL) | ((long) readIntLE(header, 12) << 32);
+    }
+
+    // The payload array is modified in place and must not be reused until this returns. The
+    // nanosecond times are on System.nanoTime, for the latency tracker.
+    void processPacket(int payloadType, byte[] payload, int payloadLength, long ntpTimestamp,
+                       long receiveTimeMs, long enqueueTimeMs, long receiveTimeNs, long decryptTimeNs) {
+        switch (payloadType) {
+            case PAYLOAD_TYPE_CODEC:
+                parseCodecData(payload, payloadLength);
+                break;
+            case PAYLOAD_TYPE_VIDEO:
+                processVideo(payload, payloadLength, ntpTimestamp, receiveTimeMs, enqueueTimeMs,
+                        receiveTimeNs, decryptTimeNs);
+                break;
+            default:
+                // Heartbeats and anything newer we don't understand carry no video
+                break;
+        }
+    }
+
+    void stop() {
+        if (streamStarted) {
+            streamStarted = false;
+            sink.onStreamStopped();
+        }
+    }
+
+    long getFramesSubmitted() {
+        return framesSubmitted;
+    }
+
+    long getIdrFramesSubmitted() {
+        return idrFramesSubmitted;
+    }
+
+    long getFramesDropped() {
+        return framesDropped;
+    }
+
+    // Parses an AVCDecoderConfigurationRecord (avcC)
+    private void parseCodecData(byte[] data, int length) {
+        if (length < 7 || data[0] != 1) {
+            throw new IllegalArgumentException("Invalid avcC record");
+        }
+
+        int lengthSize = (data[4] & 0x03) + 1;
+        if (lengthSize != NAL_LENGTH_SIZE) {
+            throw new IllegalArgumentException("Unsupported NALU length size: " + lengthSize);
+        }
+
+        int offset = 5;
+        int spsCount = data[offset++] & 0x1F;
+        for (int i = 0; i < spsCount; i++) {
+            offset = readParameterSet(data, offset, length);
+        }
+
+        if (offset >= length) {
+            throw new IllegalArgumentException("Truncated avcC record");
+        }
+        int ppsCount = data[offset++] & 0xFF;
+        for (int i = 0; i < ppsCount; i++) {
+            offset = readParameterSet(data, offset, length);
+        }
+
+        if (!streamStarted) {
+            streamStarted = true;
+            sink.onStreamStarted(DecodeUnitSink.VIDEO_FORMAT_H264);
+        }
+
+        // New parameters only take effect on the next IDR frame
+        waitingForIdr = true;
+    }
+
+    // Returns the offset following the parameter set
+    private int readParameterSet(byte[] data, int offset, int length) {
+        if (offset + 2 > length) {
+            throw new IllegalArgumentException("Truncated avcC record");
+        }
+        int nalLength = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+        offset += 2;
+        if (nalLength == 0 || offset + nalLength > length) {
+            throw new IllegalArgumentException("Truncated avcC record");
+        }
+
+        storeParameterSet(data, offset, nalLength);
+        return offset + nalLength;
+    }
+
+    private void storeParameterSet(byte[] data, int offset, int nalLength) {
+        int nalType = data[offset] & 0x1F;
+        if (nalType == NAL_TYPE_SPS) {
+            spsData = ensureCapacity(spsData, NAL_LENGTH_SIZE + nalLength);
+            spsLength = writeStartCodeNalu(spsData, data, offset, nalLength);
+        }
+        else if (nalType == NAL_TYPE_PPS) {
+            ppsData = ensureCapacity(ppsData, NAL_LENGTH_SIZE + nalLength);
+            ppsLength = writeStartCodeNalu(ppsData, data, offset, nalLength);
+        }
+    }
+
+    private void processVideo(byte[] data, int length, long ntpTimestamp, long receiveTimeMs, long enqueueTimeMs,
+                              long receiveTimeNs, long decryptTimeNs) {
+        int frameType = convertToAnnexB(data, length);
+        int frameLength = convertedLength;
+        if (frameType >= 0 && frameLength == 0) {
+            // Nothing but parameter sets
+            return;
+        }
+
+        // Every picture gets a frame number, even one we drop. Dropped frames show up to
+        // the decoder as gaps, which is exactly what they are.
+        frameNumber++;
+
+        if (frameType < 0) {
+            framesDropped++;
+            waitingForIdr = true;
+            return;
+        }
+
+        // The timestamp is the sender's capture time, on the same clock as its audio
+        long senderTimeNs = AirPlayTimingService.ntpToNanos(ntpTimestamp);
+        if (syncClock != null) {
+            syncClock.recordVideoFrame(frameNumber, senderTimeNs);
+        }
+        if (latencyTracker != null) {
+            latencyTracker.onFrameReceived(frameNumber, senderTimeNs, receiveTimeNs, decryptTimeNs);
+        }
+
+        if (frameType == DecodeUnitSink.FRAME_TYPE_IDR) {
+            if (spsLength == 0 || ppsLength == 0) {
+                // Can't start decoding without the codec configuration
+                framesDropped++;
+                return;
+            }
+
+            if (!streamStarted) {
+                streamStarted = true;
+                sink.onStreamStarted(DecodeUnitSink.VIDEO_FORMAT_H264);
+            }
+
+            // The decoder expects the parameter sets with every IDR frame, under the IDR's frame number
+            int result = sink.submitDecodeUnit(spsData, spsLength, DecodeUnitSink.BUFFER_TYPE_SPS,
+                    frameNumber, DecodeUnitSink.FRAME_TYPE_IDR, receiveTimeMs, enqueueTimeMs);
+            if (result == DecodeUnitSink.DR_OK) {
+                result = sink.submitDecodeUnit(ppsData, ppsLength, DecodeUnitSink.BUFFER_TYPE_PPS,
+                        frameNumber, DecodeUnitSink.FRAME_TYPE_IDR, receiveTimeMs, enqueueTimeMs);
+            }
+            if (result == DecodeUnitSink.DR_OK) {
+                result = sink.submitDecodeUnit(data, frameLength, DecodeUnitSink.BUFFER_TYPE_PICDATA,
+                        frameNumber, DecodeUnitSink.FRAME_TYPE_IDR, receiveTimeMs, enqueueTimeMs);
+            }
+
+            onSubmitResult(result);
+            if (result == DecodeUnitSink.DR_OK) {
+                idrFramesSubmitted++;
+            }
+        }
+        else if (waitingForIdr) {
+            // P-frames are useless until the decoder has a reference frame
+            framesDropped++;
+        }
+        else {
+            onSubmitResult(sink.submitDecodeUnit(data, frameLength, DecodeUnitSink.BUFFER_TYPE_PICDATA,
+                    frameNumber, DecodeUnitSink.FRAME_TYPE_PFRAME, receiveTimeMs, enqueueTimeMs));
+        }
+    }
+
+    private void onSubmitResult(int result) {
+        if (result == DecodeUnitSink.DR_OK) {
+            framesSubmitted++;
+            waitingForIdr = false;
+        }
+        else {
+            // AirPlay has no way to ask the sender for a key frame, so wait for the next one
+            framesDropped++;
+            waitingForIdr = true;
+        }
+    }
+
+    // Rewrites length-prefixed NALUs to start codes in place, pulling out any in-band
+    // parameter sets. Returns the frame type, or -1 if the payload is malformed.
+    private int convertToAnnexB(byte[] data, int length) {
+        int frameType = DecodeUnitSink.FRAME_TYPE_PFRAME;
+        int readOffset = 0;
+        int writeOffset = 0;
+
+        while (readOffset + NAL_LENGTH_SIZE <= length) {
+            int nalLength = readIntBE(data, readOffset);
+            int nalStart = readOffset + NAL_LENGTH_SIZE;
+            if (nalLength < 0 || nalLength > length - nalStart) {
+                convertedLength = 0;
+                return -1;
+            }
+            readOffset = nalStart + nalLength;
+            if (nalLength == 0) {
+                continue;
+            }
+
+            int nalType = data[nalStart] & 0x1F;
+            if (nalType == NAL_TYPE_SPS || nalType == NAL_TYPE_PPS) {
+                // These are submitted separately ahead of each IDR frame
+                storeParameterSet(data, nalStart, nalLength);
+                continue;
+            }
+            if (nalType == NAL_TYPE_IDR) {
+                frameType = DecodeUnitSink.FRAME_TYPE_IDR;
+            }
+
+            // The write position never passes the read position, since each NALU
+            // is replaced by one of the same size or closed up behind a removed one.
+            if (writeOffset != nalStart - NAL_LENGTH_SIZE) {
+                System.arraycopy(data, nalStart, data, writeOffset + NAL_LENGTH_SIZE, nalLength);
+            }
+            writeStartCode(data, writeOffset);
+            writeOffset += NAL_LENGTH_SIZE + nalLength;
+        }
+
+        convertedLength = writeOffset;
+        return frameType;
+    }
+
+    private static int writeStartCodeNalu(byte[] dest, byte[] src, int offset, int nalLength) {
+        writeStartCode(dest, 0);
+        System.arraycopy(src, offset, dest, NAL_LENGTH_SIZE, nalLength);
+        return NAL_LENGTH_SIZE + nalLength;
+    }
+
+    private static void writeStartCode(byte[] data, int offset) {
+        data[offset] = 0;
+        data[offset + 1] = 0;
+        data[offset + 2] = 0;
+        data[offset + 3] = 1;
+    }
+
+    private static byte[] ensureCapacity(byte[] buffer, int capacity) {
+        return buffer.length >= capacity ? buffer : new byte[capacity];
+    }
+
+    private static int readIntBE(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) |
+                ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    private static int readIntLE(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) |
+                ((data[offset + 2] & 0xFF) << 16) | ((data[offset + 3] & 0xFF) << 24);
+    }
+}
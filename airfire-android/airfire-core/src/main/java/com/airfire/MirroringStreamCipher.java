@@ -0,0 +1,79 @@
+package com.airfire;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-CTR decryption of the screen-mirroring video payloads
+ * The counter runs on across every packet of a stream, so one Cipher is kept per session and each payload is decrypted in place
+ */
+class MirroringStreamCipher {
+    private static final String TRANSFORMATION = "AES/CTR/NoPadding";
+    private static final int KEY_SIZE = 16;
+
+    // Keystream is made this much at a time. Large enough that the per-call cost of the
+    // provider disappears, small enough to stay in cache while it's used.
+    private static final int KEYSTREAM_CHUNK_SIZE = 16 * 1024;
+
+    private static final String KEY_SALT = "AirPlayStreamKey";
+    private static final String IV_SALT = "AirPlayStreamIV";
+
+    private Cipher cipher;
+    private MessageDigest sha512;
+
+    // Encrypting zeros gives the keystream itself
+    private final byte[] zeros = new byte[KEYSTREAM_CHUNK_SIZE];
+    private final byte[] keystream = new byte[KEYSTREAM_CHUNK_SIZE];
+
+    // The per-stream key and IV are the first 16 bytes of SHA-512 over a salt with the
+    // stream's connection ID, followed by the session key from pairing and FairPlay.
+    // Re-keys the same Cipher, so a new stream costs no more than the two hashes.
+    void init(byte[] sessionKey, long streamConnectionId) throws GeneralSecurityException {
+        if (cipher == null) {
+            cipher = Cipher.getInstance(TRANSFORMATION);
+            sha512 = MessageDigest.getInstance("SHA-512");
+        }
+
+        // The connection ID is an unsigned 64-bit number in the salt
+        String connectionId = Long.toUnsignedString(streamConnectionId);
+        byte[] key = deriveKey(KEY_SALT + connectionId, sessionKey);
+        byte[] iv = deriveKey(IV_SALT + connectionId, sessionKey);
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, 0, KEY_SIZE, "AES"), new IvParameterSpec(iv, 0, KEY_SIZE));
+    }
+
+    // Decrypts the next length bytes of the stream over themselves. Packets must be passed
+    // in the order they arrived, since the counter carries on from one to the next.
+    void decrypt(byte[] data, int offset, int length) {
+        // Passing the payload as both input and output makes some providers copy it first,
+        // so the keystream is generated separately and XORed in instead. CTR is a stream
+        // mode, so exactly as much keystream comes back as was asked for.
+        int end = offset + length;
+        while (offset < end) {
+            int chunk = Math.min(end - offset, KEYSTREAM_CHUNK_SIZE);
+            try {
+                cipher.update(zeros, 0, chunk, keystream, 0);
+            } catch (ShortBufferException e) {
+                // The keystream buffer is the same size as the zeros, so there's always room
+                throw new IllegalStateException(e);
+            }
+
+            for (int i = 0; i < chunk; i++) {
+                data[offset + i] ^= keystream[i];
+            }
+            offset += chunk;
+        }
+    }
+
+    private byte[] deriveKey(String salt, byte[] sessionKey) {
+        sha512.reset();
+        sha512.update(salt.getBytes(StandardCharsets.US_ASCII));
+        sha512.update(sessionKey, 0, KEY_SIZE);
+        return sha512.digest();
+    }
+}
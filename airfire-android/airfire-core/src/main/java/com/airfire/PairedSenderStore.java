@@ -0,0 +1,108 @@
+package com.airfire;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The Ed25519 keys of senders that have passed pair-verify with this receiver, kept in the receiver's FileStore
+ * It only tells a returning sender from a new one for the logs; legacy pair-verify checks every sender's key in full either way
+ */
+class PairedSenderStore {
+    private static final String TAG = "AirPlayPairing";
+    private static final String PAIRED_SENDERS_FILE_NAME = "airplay_paired_senders";
+
+    // Enough for every device in a household, and the least recently seen go first
+    private static final int MAX_PAIRED_SENDERS = 64;
+
+    private final FileStore files;
+
+    // Writes happen here rather than on the server's selector thread, one at a time and in
+    // the order they were asked for, so the last one to land is the newest list
+    private final ExecutorService saveExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "AirPlay - Paired senders");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Hex public keys, in least recently verified order
+    private final LinkedHashMap<String, Boolean> senders = new LinkedHashMap<>(16, 0.75f, true);
+
+    private PairedSenderStore(FileStore files) {
+        this.files = files;
+    }
+
+    // files is null for a store that only lasts as long as the receiver
+    static PairedSenderStore load(FileStore files) {
+        PairedSenderStore store = new PairedSenderStore(files);
+        if (files == null) {
+            return store;
+        }
+
+        try (final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(files.openInput(PAIRED_SENDERS_FILE_NAME), StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    store.senders.put(line, Boolean.TRUE);
+                }
+            }
+            CoreLog.i(TAG, store.senders.size() + " paired senders");
+        } catch (FileNotFoundException e) {
+            // Nothing has paired yet
+        } catch (IOException e) {
+            CoreLog.e(TAG, "Error while reading paired senders", e);
+        }
+        return store;
+    }
+
+    // Called from the server's selector thread, but also safe from anywhere else
+    synchronized boolean isPaired(byte[] publicKey) {
+        return senders.containsKey(AirPlayIdentity.toHex(publicKey));
+    }
+
+    // Records the key of a sender that has just passed pair-verify. Keys from pair-setup
+    // alone never get here, since anyone can send those. Returns false if it was already
+    // known, in which case it only moves to the back of the eviction order.
+    synchronized boolean addPairing(byte[] publicKey) {
+        String key = AirPlayIdentity.toHex(publicKey);
+        boolean added = senders.put(key, Boolean.TRUE) == null;
+        if (added) {
+            Iterator<String> oldest = senders.keySet().iterator();
+            while (senders.size() > MAX_PAIRED_SENDERS) {
+                oldest.next();
+                oldest.remove();
+            }
+            if (files != null) {
+                List<String> snapshot = new ArrayList<>(senders.keySet());
+                saveExecutor.execute(() -> save(snapshot));
+            }
+        }
+        return added;
+    }
+
+    synchronized int size() {
+        return senders.size();
+    }
+
+    private void save(List<String> snapshot) {
+        try (final OutputStreamWriter writer = new OutputStreamWriter(
+                files.openOutput(PAIRED_SENDERS_FILE_NAME), StandardCharsets.US_ASCII)) {
+            for (String sender : snapshot) {
+                writer.write(sender);
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            CoreLog.e(TAG, "Error while writing paired senders", e);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.airfire;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One node of a property list
+ * Nodes are mutable and keep their children when cleared, so a tree decoded or built per request reuses the same objects
+ */
+public class PlistValue {
+    public static final int TYPE_NULL = 0;
+    public static final int TYPE_BOOLEAN = 1;
+    public static final int TYPE_INTEGER = 2;
+    public static final int TYPE_REAL = 3;
+    public static final int TYPE_DATE = 4;
+    public static final int TYPE_DATA = 5;
+    public static final int TYPE_STRING = 6;
+    public static final int TYPE_ARRAY = 7;
+    public static final int TYPE_DICT = 8;
+    public static final int TYPE_UID = 9;
+
+    private static final int INITIAL_CHILDREN = 8;
+
+    private int type;
+    private boolean booleanValue;
+    private long integerValue;
+    private double realValue;
+
+    // Strings and data are either a String we were given, or a window onto the bytes they
+    // were decoded from. Windows are only valid while that buffer is.
+    private String string;
+    private byte[] source;
+    private int sourceOffset;
+    private int sourceLength;
+    private boolean utf16;
+
+    // Arrays use children[0..count). Dictionaries pair keys[i] with children[i].
+    private PlistValue[] keys;
+    private PlistValue[] children;
+    private int count;
+
+    // Object number while BinaryPlistWriter is encoding this node
+    int ref;
+
+    int getType() {
+        return type;
+    }
+
+    boolean isNull() {
+        return type == TYPE_NULL;
+    }
+
+    // Sets the type and forgets the value, keeping any child nodes for reuse
+    public PlistValue clear(int type) {
+        this.type = type;
+        booleanValue = false;
+        integerValue = 0;
+        realValue = 0;
+        string = null;
+        source = null;
+        count = 0;
+        return this;
+    }
+
+    public PlistValue setBoolean(boolean value) {
+        clear(TYPE_BOOLEAN);
+        booleanValue = value;
+        return this;
+    }
+
+    public PlistValue setInteger(long value) {
+        clear(TYPE_INTEGER);
+        integerValue = value;
+        return this;
+    }
+
+    public PlistValue setReal(double value) {
+        clear(TYPE_REAL);
+        realValue = value;
+        return this;
+    }
+
+    // Seconds since 2001-01-01 UTC, which is how plists store dates
+    public PlistValue setDate(double secondsSinceReference) {
+        clear(TYPE_DATE);
+        realValue = secondsSinceReference;
+        return this;
+    }
+
+    public PlistValue setUid(long value) {
+        clear(TYPE_UID);
+        integerValue = value;
+        return this;
+    }
+
+    public PlistValue setString(String value) {
+        clear(TYPE_STRING);
+        string = value;
+        return this;
+    }
+
+    public PlistValue setData(byte[] data, int offset, int length) {
+        clear(TYPE_DATA);
+        setSource(data, offset, length, false);
+        return this;
+    }
+
+    // Used by the reader for strings, without decoding them
+    PlistValue setStringView(byte[] data, int offset, int length, boolean utf16) {
+        clear(TYPE_STRING);
+        setSource(data, offset, length, utf16);
+        return this;
+    }
+
+    private void setSource(byte[] data, int offset, int length, boolean utf16) {
+        this.source = data;
+        this.sourceOffset = offset;
+        this.sourceLength = length;
+        this.utf16 = utf16;
+    }
+
+    boolean getBoolean() {
+        return type == TYPE_BOOLEAN && booleanValue;
+    }
+
+    long getInteger() {
+        return type == TYPE_INTEGER || type == TYPE_UID ? integerValue : (long) realValue;
+    }
+
+    double getReal() {
+        return type == TYPE_INTEGER ? integerValue : realValue;
+    }
+
+    // Allocates for decoded strings, so prefer stringEquals() for comparisons
+    String getString() {
+        if (type != TYPE_STRING) {
+            return null;
+        }
+        if (string == null && source != null) {
+            string = new String(source, sourceOffset, sourceLength,
+                    utf16 ? StandardCharsets.UTF_16BE : StandardCharsets.US_ASCII);
+        }
+        return string;
+    }
+
+    boolean stringEquals(String value) {
+        if (type != TYPE_STRING) {
+            return false;
+        }
+        if (string != null) {
+            return string.equals(value);
+        }
+        if (getStringLength() != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (charAt(i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int getStringLength() {
+        if (string != null) {
+            return string.length();
+        }
+        return utf16 ? sourceLength / 2 : sourceLength;
+    }
+
+    char charAt(int index) {
+        if (string != null) {
+            return string.charAt(index);
+        }
+        if (utf16) {
+            int offset = sourceOffset + index * 2;
+            return (char) (((source[offset] & 0xFF) << 8) | (source[offset + 1] & 0xFF));
+        }
+        return (char) (source[sourceOffset + index] & 0xFF);
+    }
+
+    // The data bytes as a window, not a copy
+    ByteBuffer getData() {
+        if (type != TYPE_DATA) {
+            return null;
+        }
+        return ByteBuffer.wrap(source, sourceOffset, sourceLength).slice();
+    }
+
+    int getDataLength() {
+        return type == TYPE_DATA ? sourceLength : 0;
+    }
+
+    // Number of array elements or dictionary entries
+    int size() {
+        return count;
+    }
+
+    PlistValue get(int index) {
+        return children[index];
+    }
+
+    PlistValue getKey(int index) {
+        return keys[index];
+    }
+
+    // Dictionary lookup without allocating. Returns null if the key is missing.
+    PlistValue get(String key) {
+        if (type != TYPE_DICT) {
+            return null;
+        }
+        for (int i = 0; i < count; i++) {
+            if (keys[i].stringEquals(key)) {
+                return children[i];
+            }
+        }
+        return null;
+    }
+
+    // Appends an element to an array and returns it for the caller to set
+    public PlistValue add() {
+        ensureChildCapacity();
+        return children[count++];
+    }
+
+    // Adds an entry to a dictionary and returns the value for the caller to set.
+    // Keys aren't checked for duplicates.
+    public PlistValue put(String key) {
+        ensureChildCapacity();
+        keys[count].setString(key);
+        return children[count++];
+    }
+
+    // Same as above with the key left for the caller to set, which is how the reader adds entries
+    PlistValue putEntry() {
+        ensureChildCapacity();
+        count++;
+        return children[count - 1];
+    }
+
+    private void ensureChildCapacity() {
+        if (children == null) {
+            children = new PlistValue[INITIAL_CHILDREN];
+            keys = new PlistValue[INITIAL_CHILDREN];
+        }
+        else if (count == children.length) {
+            PlistValue[] newChildren = new PlistValue[count * 2];
+            PlistValue[] newKeys = new PlistValue[count * 2];
+            System.arraycopy(children, 0, newChildren, 0, count);
+            System.arraycopy(keys, 0, newKeys, 0, count);
+            children = newChildren;
+            keys = newKeys;
+        }
+
+        if (children[count] == null) {
+            children[count] = new PlistValue();
+        }
+        if (type == TYPE_DICT && keys[count] == null) {
+            keys[count] = new PlistValue();
+        }
+    }
+
+    // Visible to the codec, which reads strings and data without going through a String
+    byte[] getSource() {
+        return source;
+    }
+
+    int getSourceOffset() {
+        return sourceOffset;
+    }
+
+    int getSourceLength() {
+        return sourceLength;
+    }
+
+    boolean isUtf16() {
+        return utf16;
+    }
+}
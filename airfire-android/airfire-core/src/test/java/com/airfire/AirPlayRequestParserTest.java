@@ -0,0 +1,184 @@
+package com.airfire;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Request heads arriving whole, split across reads, and larger than the parser will take
+ */
+public class AirPlayRequestParserTest {
+    private AirPlayRequestParser parser;
+    private AirPlayRequest request;
+
+    @Before
+    public void setUp() {
+        parser = new AirPlayRequestParser();
+        request = new AirPlayRequest();
+    }
+
+    @Test
+    public void parsesCompleteRequest() {
+        byte[] data = bytes("POST /pair-setup?x=1 RTSP/1.0\r\nCSeq:  3 \r\nContent-Length: 4\r\n\r\nbody");
+
+        assertEquals(AirPlayRequestParser.RESULT_COMPLETE, parser.parse(data, 0, data.length, request));
+        assertEquals(AirPlayRequest.METHOD_POST, request.getMethod());
+        assertTrue(request.pathEquals(AirPlayRequest.ascii("/pair-setup")));
+        assertTrue(request.isRtsp());
+        assertTrue(request.isKeepAlive());
+
+        int cseq = request.findHeader(AirPlayRequest.HEADER_CSEQ);
+        assertTrue(cseq >= 0);
+        assertTrue(request.headerValueEquals(cseq, "3"));
+
+        assertEquals(4, request.getContentLength());
+        assertEquals(data.length - 4, request.bodyStart);
+        assertEquals(data.length, request.getLength());
+    }
+
+    @Test
+    public void parsesRequestAtOffset() {
+        byte[] data = bytes("junkGET /server-info HTTP/1.0\r\n\r\n");
+
+        assertEquals(AirPlayRequestParser.RESULT_COMPLETE, parser.parse(data, 4, data.length, request));
+        assertEquals(AirPlayRequest.METHOD_GET, request.getMethod());
+        assertEquals("/server-info", request.getPathString());
+        assertFalse(request.isKeepAlive());
+        assertEquals(data.length - 4, request.getLength());
+    }
+
+    @Test
+    public void resumesRequestSplitAcrossReads() {
+        byte[] data = bytes("GET /info HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+        // Every split point, including inside the terminating CRLFCRLF
+        for (int split = 1; split < data.length; split++) {
+            parser.reset();
+            assertEquals("split at " + split, AirPlayRequestParser.RESULT_INCOMPLETE,
+                    parser.parse(data, 0, split, request));
+            assertEquals("split at " + split, AirPlayRequestParser.RESULT_COMPLETE,
+                    parser.parse(data, 0, data.length, request));
+            assertEquals(AirPlayRequest.METHOD_GET, request.getMethod());
+            assertFalse(request.isKeepAlive());
+        }
+    }
+
+    @Test
+    public void resumesRequestArrivingByteByByte() {
+        byte[] data = bytes("SETUP rtsp://10.0.0.2/1 RTSP/1.0\r\nCSeq: 7\r\n\r\n");
+
+        for (int end = 1; end < data.length; end++) {
+            assertEquals(AirPlayRequestParser.RESULT_INCOMPLETE, parser.parse(data, 0, end, request));
+        }
+        assertEquals(AirPlayRequestParser.RESULT_COMPLETE, parser.parse(data, 0, data.length, request));
+        assertEquals(AirPlayRequest.METHOD_SETUP, request.getMethod());
+    }
+
+    @Test
+    public void reportsHeadBeforeBodyArrives() {
+        byte[] data = bytes("POST /fp-setup RTSP/1.0\r\nContent-Length: 16\r\n\r\nabc");
+
+        assertEquals(AirPlayRequestParser.RESULT_COMPLETE, parser.parse(data, 0, data.length, request));
+        assertEquals(16, request.getContentLength());
+        assertTrue(request.getLength() > data.length);
+    }
+
+    @Test
+    public void skipsHeaderLinesWithoutName() {
+        byte[] data = bytes("GET / HTTP/1.1\r\nnot a header\r\n: no name\r\nAccept: */*\r\n\r\n");
+
+        assertEquals(AirPlayRequestParser.RESULT_COMPLETE, parser.parse(data, 0, data.length, request));
+        assertEquals(1, request.headerCount);
+        assertEquals(0, request.findHeader(AirPlayRequest.HEADER_ACCEPT));
+    }
+
+    @Test
+    public void rejectsMalformedRequestLine() {
+        assertEquals(AirPlayRequestParser.RESULT_BAD_REQUEST, parseWhole("GET\r\n\r\n"));
+        assertEquals(AirPlayRequestParser.RESULT_BAD_REQUEST, parseWhole(" / HTTP/1.1\r\n\r\n"));
+        assertEquals(AirPlayRequestParser.RESULT_BAD_REQUEST, parseWhole("GET  HTTP/1.1\r\n\r\n"));
+        assertEquals(AirPlayRequestParser.RESULT_BAD_REQUEST, parseWhole("GET / \r\n\r\n"));
+    }
+
+    @Test
+    public void rejectsInvalidContentLength() {
+        assertEquals(AirPlayRequestParser.RESULT_BAD_REQUEST,
+                parseWhole("POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n"));
+        assertEquals(AirPlayRequestParser.RESULT_BAD_REQUEST,
+                parseWhole("POST / HTTP/1.1\r\nContent-Length: 12a\r\n\r\n"));
+        assertEquals(AirPlayRequestParser.RESULT_BAD_REQUEST,
+                parseWhole("POST / HTTP/1.1\r\nContent-Length:\r\n\r\n"));
+    }
+
+    @Test
+    public void rejectsContentLengthThatCouldOverflow() {
+        assertEquals(AirPlayRequestParser.RESULT_COMPLETE,
+                parseWhole("POST / HTTP/1.1\r\nContent-Length: 999999999\r\n\r\n"));
+        assertEquals(AirPlayRequestParser.RESULT_BAD_REQUEST,
+                parseWhole("POST / HTTP/1.1\r\nContent-Length: 4294967296\r\n\r\n"));
+    }
+
+    @Test
+    public void acceptsMaximumHeaderCount() {
+        assertEquals(AirPlayRequestParser.RESULT_COMPLETE, parseWhole(requestWithHeaders(AirPlayRequest.MAX_HEADERS)));
+        assertEquals(AirPlayRequest.MAX_HEADERS, request.headerCount);
+    }
+
+    @Test
+    public void rejectsTooManyHeaders() {
+        assertEquals(AirPlayRequestParser.RESULT_TOO_MANY_HEADERS,
+                parseWhole(requestWithHeaders(AirPlayRequest.MAX_HEADERS + 1)));
+    }
+
+    @Test
+    public void parsesOversizedHeaderValue() {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 64 * 1024; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        byte[] data = bytes("GET / HTTP/1.1\r\nUser-Agent: " + value + "\r\n\r\n");
+
+        assertEquals(AirPlayRequestParser.RESULT_COMPLETE, parser.parse(data, 0, data.length, request));
+        int index = request.findHeader(AirPlayRequest.HEADER_USER_AGENT);
+        assertEquals(value.toString(), request.getHeaderValue(index));
+    }
+
+    @Test
+    public void unterminatedHeadStaysIncomplete() {
+        // The connection turns this into a 431 once its read buffer is full, so the parser
+        // must keep asking for more without ever reporting a request
+        byte[] data = new byte[256 * 1024];
+        byte[] line = bytes("GET / HTTP/1.1\r\nX-Filler: ");
+        System.arraycopy(line, 0, data, 0, line.length);
+        for (int i = line.length; i < data.length; i++) {
+            data[i] = 'x';
+        }
+
+        for (int end = line.length; end <= data.length; end += 4096) {
+            assertEquals(AirPlayRequestParser.RESULT_INCOMPLETE, parser.parse(data, 0, end, request));
+        }
+    }
+
+    private int parseWhole(String head) {
+        byte[] data = bytes(head);
+        parser.reset();
+        return parser.parse(data, 0, data.length, request);
+    }
+
+    private static String requestWithHeaders(int count) {
+        StringBuilder head = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i < count; i++) {
+            head.append("X-Header-").append(i).append(": ").append(i).append("\r\n");
+        }
+        return head.append("\r\n").toString();
+    }
+
+    private static byte[] bytes(String str) {
+        return str.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
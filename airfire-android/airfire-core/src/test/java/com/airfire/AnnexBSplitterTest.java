@@ -0,0 +1,256 @@
+package com.airfire;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Access unit splitting of raw Annex B streams, with start codes of both lengths landing anywhere across reads
+ */
+public class AnnexBSplitterTest {
+    // H.264 NALUs. The second byte of a slice starts with first_mb_in_slice, so 0x80 is a new picture.
+    private static final byte[] SPS = nal(4, 0x67, 0x42, 0xC0, 0x1F, 0xDA);
+    private static final byte[] PPS = nal(4, 0x68, 0xCE, 0x3C, 0x80);
+    private static final byte[] IDR = nal(4, 0x65, 0x88, 0x84, 0x00, 0x33);
+    private static final byte[] P1 = nal(3, 0x41, 0x9A, 0x02, 0x11);
+    private static final byte[] P2 = nal(3, 0x41, 0x9A, 0x04, 0x22);
+    private static final byte[] P2_SECOND_SLICE = nal(3, 0x41, 0x12, 0x04, 0x23);
+
+    private RecordingDecodeUnitSink sink;
+    private AnnexBSplitter splitter;
+
+    @Before
+    public void setUp() {
+        sink = new RecordingDecodeUnitSink();
+        splitter = new AnnexBSplitter(sink, DecodeUnitSink.VIDEO_FORMAT_H264);
+    }
+
+    @Test
+    public void splitsParameterSetsAndFrames() {
+        byte[] stream = concat(SPS, PPS, IDR, P1, P2);
+        splitter.feed(stream, 0, stream.length, 100);
+        splitter.flush(200);
+
+        List<RecordingDecodeUnitSink.DecodeUnit> units = sink.units;
+        assertEquals(5, units.size());
+        assertUnit(units.get(0), DecodeUnitSink.BUFFER_TYPE_SPS, 1, DecodeUnitSink.FRAME_TYPE_IDR, SPS);
+        assertUnit(units.get(1), DecodeUnitSink.BUFFER_TYPE_PPS, 1, DecodeUnitSink.FRAME_TYPE_IDR, PPS);
+        assertUnit(units.get(2), DecodeUnitSink.BUFFER_TYPE_PICDATA, 1, DecodeUnitSink.FRAME_TYPE_IDR, IDR);
+        assertUnit(units.get(3), DecodeUnitSink.BUFFER_TYPE_PICDATA, 2, DecodeUnitSink.FRAME_TYPE_PFRAME, P1);
+        assertUnit(units.get(4), DecodeUnitSink.BUFFER_TYPE_PICDATA, 3, DecodeUnitSink.FRAME_TYPE_PFRAME, P2);
+        assertEquals(3, splitter.getFramesSubmitted());
+        assertEquals(0, splitter.getFramesDropped());
+    }
+
+    @Test
+    public void holdsLastFrameUntilNextStartsOrFlush() {
+        byte[] stream = concat(SPS, PPS, IDR, P1);
+        splitter.feed(stream, 0, stream.length, 100);
+
+        // Nothing says P1 is over until the next access unit starts
+        assertEquals(1, sink.pictures().size());
+
+        splitter.flush(200);
+        assertEquals(2, sink.pictures().size());
+        assertArrayEquals(P1, sink.pictures().get(1).data);
+    }
+
+    @Test
+    public void findsStartCodesSplitAcrossReads() {
+        byte[] stream = concat(SPS, PPS, IDR, P1, P2);
+
+        // Every two-read split, which puts the boundary inside each start code and NALU header
+        for (int split = 1; split < stream.length; split++) {
+            setUp();
+            splitter.feed(stream, 0, split, 100);
+            splitter.feed(stream, split, stream.length - split, 100);
+            splitter.flush(200);
+
+            List<RecordingDecodeUnitSink.DecodeUnit> pictures = sink.pictures();
+            assertEquals("split at " + split, 3, pictures.size());
+            assertArrayEquals("split at " + split, IDR, pictures.get(0).data);
+            assertArrayEquals("split at " + split, P1, pictures.get(1).data);
+            assertArrayEquals("split at " + split, P2, pictures.get(2).data);
+        }
+    }
+
+    @Test
+    public void findsStartCodesFedByteByByte() {
+        byte[] stream = concat(SPS, PPS, IDR, P1, P2);
+        for (int i = 0; i < stream.length; i++) {
+            splitter.feed(ByteBuffer.wrap(stream, i, 1), 100);
+        }
+        splitter.flush(200);
+
+        assertEquals(5, sink.units.size());
+        assertArrayEquals(SPS, sink.units.get(0).data);
+        assertArrayEquals(PPS, sink.units.get(1).data);
+        assertArrayEquals(P2, sink.units.get(4).data);
+    }
+
+    @Test
+    public void keepsEmulationPreventionBytesInsideNalu() {
+        // 00 00 03 and a 00 00 00 run that isn't followed by 01 are not start codes
+        byte[] p = nal(3, 0x41, 0x9A, 0x00, 0x00, 0x03, 0x01, 0x00, 0x00, 0x00, 0x02, 0x7F);
+        byte[] stream = concat(SPS, PPS, IDR, p, P2);
+        splitter.feed(stream, 0, stream.length, 100);
+        splitter.flush(200);
+
+        List<RecordingDecodeUnitSink.DecodeUnit> pictures = sink.pictures();
+        assertEquals(3, pictures.size());
+        assertArrayEquals(p, pictures.get(1).data);
+    }
+
+    @Test
+    public void keepsSlicesOfOnePictureTogether() {
+        byte[] stream = concat(SPS, PPS, IDR, P2, P2_SECOND_SLICE, P1);
+        splitter.feed(stream, 0, stream.length, 100);
+        splitter.flush(200);
+
+        List<RecordingDecodeUnitSink.DecodeUnit> pictures = sink.pictures();
+        assertEquals(3, pictures.size());
+        assertArrayEquals(concat(P2, P2_SECOND_SLICE), pictures.get(1).data);
+        assertArrayEquals(P1, pictures.get(2).data);
+    }
+
+    @Test
+    public void delimiterStartsNewAccessUnit() {
+        byte[] aud = nal(4, 0x09, 0xF0);
+        byte[] stream = concat(SPS, PPS, IDR, aud, P1);
+        splitter.feed(stream, 0, stream.length, 100);
+        splitter.flush(200);
+
+        List<RecordingDecodeUnitSink.DecodeUnit> pictures = sink.pictures();
+        assertEquals(2, pictures.size());
+        assertArrayEquals(IDR, pictures.get(0).data);
+        assertArrayEquals(concat(aud, P1), pictures.get(1).data);
+    }
+
+    @Test
+    public void dropsFramesBeforeFirstIdr() {
+        byte[] stream = concat(P1, P2, SPS, PPS, IDR, P1);
+        splitter.feed(stream, 0, stream.length, 100);
+        splitter.flush(200);
+
+        List<RecordingDecodeUnitSink.DecodeUnit> pictures = sink.pictures();
+        assertEquals(2, pictures.size());
+        assertEquals(DecodeUnitSink.FRAME_TYPE_IDR, pictures.get(0).frameType);
+        // Dropped frames still use up frame numbers
+        assertEquals(3, pictures.get(0).frameNumber);
+        assertEquals(2, splitter.getFramesDropped());
+    }
+
+    @Test
+    public void waitsForIdrAfterRejectedFrame() {
+        // Each frame is submitted once the next one starts
+        byte[] stream = concat(SPS, PPS, IDR, P1);
+        splitter.feed(stream, 0, stream.length, 100);
+        sink.result = DecodeUnitSink.DR_NEED_IDR;
+        splitter.feed(P2, 0, P2.length, 100);
+        sink.result = DecodeUnitSink.DR_OK;
+        stream = concat(P1, SPS, PPS, IDR);
+        splitter.feed(stream, 0, stream.length, 100);
+        splitter.flush(200);
+
+        List<RecordingDecodeUnitSink.DecodeUnit> pictures = sink.pictures();
+        // The IDR and the rejected P-frame reached the sink, then nothing until the next IDR
+        assertEquals(3, pictures.size());
+        assertEquals(DecodeUnitSink.FRAME_TYPE_IDR, pictures.get(2).frameType);
+        assertEquals(2, splitter.getFramesSubmitted());
+        assertEquals(3, splitter.getFramesDropped());
+    }
+
+    @Test
+    public void reportsFirstReceiveTimeOfEachFrame() {
+        byte[] stream = concat(SPS, PPS, IDR);
+        splitter.feed(stream, 0, stream.length, 100);
+        splitter.feed(P1, 0, P1.length, 150);
+        splitter.feed(P2, 0, P2.length, 200);
+        splitter.flush(250);
+
+        List<RecordingDecodeUnitSink.DecodeUnit> pictures = sink.pictures();
+        assertEquals(100, pictures.get(0).receiveTimeMs);
+        assertEquals(150, pictures.get(0).enqueueTimeMs);
+        assertEquals(150, pictures.get(1).receiveTimeMs);
+        assertEquals(200, pictures.get(1).enqueueTimeMs);
+        assertEquals(200, pictures.get(2).receiveTimeMs);
+        assertEquals(250, pictures.get(2).enqueueTimeMs);
+    }
+
+    @Test
+    public void splitsHevcStream() {
+        splitter = new AnnexBSplitter(sink, DecodeUnitSink.VIDEO_FORMAT_H265);
+
+        // Two-byte headers. The slice's first_slice_segment_in_pic_flag is the top bit after them.
+        byte[] vps = nal(4, 0x40, 0x01, 0x0C, 0x01);
+        byte[] sps = nal(4, 0x42, 0x01, 0x01, 0x60);
+        byte[] pps = nal(4, 0x44, 0x01, 0xC1, 0x72);
+        byte[] idr = nal(4, 0x26, 0x01, 0xAF, 0x09, 0x40);
+        byte[] trail = nal(3, 0x02, 0x01, 0xD0, 0x11, 0x22);
+        byte[] stream = concat(vps, sps, pps, idr, trail);
+        splitter.feed(stream, 0, stream.length, 100);
+        splitter.flush(200);
+
+        List<RecordingDecodeUnitSink.DecodeUnit> units = sink.units;
+        assertEquals(5, units.size());
+        assertUnit(units.get(0), DecodeUnitSink.BUFFER_TYPE_VPS, 1, DecodeUnitSink.FRAME_TYPE_IDR, vps);
+        assertUnit(units.get(1), DecodeUnitSink.BUFFER_TYPE_SPS, 1, DecodeUnitSink.FRAME_TYPE_IDR, sps);
+        assertUnit(units.get(2), DecodeUnitSink.BUFFER_TYPE_PPS, 1, DecodeUnitSink.FRAME_TYPE_IDR, pps);
+        assertUnit(units.get(3), DecodeUnitSink.BUFFER_TYPE_PICDATA, 1, DecodeUnitSink.FRAME_TYPE_IDR, idr);
+        assertUnit(units.get(4), DecodeUnitSink.BUFFER_TYPE_PICDATA, 2, DecodeUnitSink.FRAME_TYPE_PFRAME, trail);
+    }
+
+    @Test
+    public void handlesFramesLargerThanInitialBuffer() {
+        byte[] big = new byte[1024 * 1024];
+        big[0] = 0;
+        big[1] = 0;
+        big[2] = 1;
+        big[3] = 0x41;
+        big[4] = (byte) 0x9A;
+        for (int i = 5; i < big.length; i++) {
+            big[i] = (byte) 0xAA;
+        }
+        byte[] stream = concat(SPS, PPS, IDR, big, P1);
+        for (int offset = 0; offset < stream.length; offset += 65536) {
+            splitter.feed(stream, offset, Math.min(65536, stream.length - offset), 100);
+        }
+        splitter.flush(200);
+
+        List<RecordingDecodeUnitSink.DecodeUnit> pictures = sink.pictures();
+        assertEquals(3, pictures.size());
+        assertArrayEquals(big, pictures.get(1).data);
+    }
+
+    private static void assertUnit(RecordingDecodeUnitSink.DecodeUnit unit, int type, int frameNumber,
+                                   int frameType, byte[] data) {
+        assertEquals(type, unit.type);
+        assertEquals(frameNumber, unit.frameNumber);
+        assertEquals(frameType, unit.frameType);
+        assertArrayEquals(data, unit.data);
+    }
+
+    // A NALU with a start code of the given length
+    private static byte[] nal(int startCodeLength, int... bytes) {
+        byte[] nal = new byte[startCodeLength + bytes.length];
+        nal[startCodeLength - 1] = 1;
+        for (int i = 0; i < bytes.length; i++) {
+            nal[startCodeLength + i] = (byte) bytes[i];
+        }
+        return nal;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,253 @@
+package com.airfire;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Reordering, late and lost packets, and the ways the jitter buffer skips ahead
+ */
+public class AudioJitterBufferTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int FRAMES_PER_PACKET = 352;
+    private static final long PACKET_DURATION_NS = FRAMES_PER_PACKET * 1000000L / SAMPLE_RATE * 1000;
+
+    private AudioJitterBuffer buffer;
+    private long lastReceiveTimeNs;
+
+    @Before
+    public void setUp() {
+        buffer = new AudioJitterBuffer(16, SAMPLE_RATE, FRAMES_PER_PACKET);
+    }
+
+    @Test
+    public void playsPacketsInOrder() {
+        insert(100, 0);
+        insert(101, 1);
+
+        assertPlays(100);
+        assertPlays(101);
+        assertEquals(AudioJitterBuffer.WAIT, buffer.poll(false, afterLastPacket()));
+    }
+
+    @Test
+    public void reordersPackets() {
+        insert(100, 0);
+        insert(103, 1);
+        insert(101, 2);
+        insert(102, 3);
+
+        assertPlays(100);
+        assertPlays(101);
+        assertPlays(102);
+        assertPlays(103);
+    }
+
+    @Test
+    public void handlesSequenceWrap() {
+        insert(65534, 0);
+        insert(0, 1);
+        insert(65535, 2);
+        insert(1, 3);
+
+        assertPlays(65534);
+        assertPlays(65535);
+        assertPlays(0);
+        assertPlays(1);
+    }
+
+    @Test
+    public void rejectsLateAndDuplicatePackets() {
+        insert(100, 0);
+        insert(101, 1);
+        assertPlays(100);
+
+        assertFalse(insert(100, 2));
+        assertEquals(1, buffer.getLatePackets());
+        assertFalse(insert(101, 3));
+        assertEquals(1, buffer.getLatePackets());
+
+        assertPlays(101);
+    }
+
+    @Test
+    public void waitsForReorderedPacketUntilOutputStarves() {
+        insert(100, 0);
+        insert(102, 1);
+        assertPlays(100);
+
+        // 101 may still turn up, so there's no reason to conceal it yet
+        assertEquals(AudioJitterBuffer.WAIT, buffer.poll(false, afterLastPacket()));
+        insert(101, 2);
+        assertPlays(101);
+        assertPlays(102);
+        assertEquals(0, buffer.getConcealedPackets());
+    }
+
+    @Test
+    public void concealsUpToThreeLostPackets() {
+        insert(100, 0);
+        insert(104, 1);
+        assertPlays(100);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(AudioJitterBuffer.CONCEAL, buffer.poll(true, afterLastPacket()));
+        }
+        assertPlays(104);
+        assertEquals(3, buffer.getConcealedPackets());
+        assertEquals(0, buffer.getSkippedPackets());
+
+        // A packet that was concealed is late if it shows up after all
+        assertFalse(insert(102, 2));
+    }
+
+    @Test
+    public void skipsAheadAfterLongLoss() {
+        insert(100, 0);
+        insert(110, 1);
+        insert(111, 2);
+        assertPlays(100);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(AudioJitterBuffer.CONCEAL, buffer.poll(true, afterLastPacket()));
+        }
+        int slot = buffer.poll(true, afterLastPacket());
+        assertEquals(110, buffer.getTimestamp(slot) / FRAMES_PER_PACKET);
+        buffer.advance();
+        assertEquals(3, buffer.getConcealedPackets());
+        assertEquals(6, buffer.getSkippedPackets());
+
+        // The loss run is over, so the next gap gets concealed again
+        assertPlays(111);
+        insert(113, 3);
+        assertEquals(AudioJitterBuffer.CONCEAL, buffer.poll(true, afterLastPacket()));
+        assertPlays(113);
+    }
+
+    @Test
+    public void restartsAfterSequenceJump() {
+        insert(100, 0);
+        insert(101, 1);
+        assertPlays(100);
+
+        // Too far ahead to be reordering, so the buffer starts over from the new packet
+        assertTrue(insert(5000, 2));
+        assertEquals(1, buffer.getDepth());
+        assertEquals(0, buffer.getLatePackets());
+
+        // It primes again, so give it time to give up waiting for a second packet
+        int slot = buffer.poll(false, lastReceiveTimeNs + 10 * PACKET_DURATION_NS);
+        assertTrue(slot >= 0);
+        assertEquals(5000, buffer.getTimestamp(slot) / FRAMES_PER_PACKET);
+    }
+
+    @Test
+    public void shedsExcessDepthGradually() {
+        for (int i = 0; i < 100; i++) {
+            insert(1000 + i, i);
+        }
+
+        int played = 0;
+        while (buffer.poll(false, afterLastPacket()) >= 0) {
+            buffer.advance();
+            played++;
+        }
+
+        // One packet skipped for every run of polls spent well over the target depth
+        assertEquals(1, buffer.getSkippedPackets());
+        assertEquals(99, played);
+    }
+
+    @Test
+    public void primesBeforePlaying() {
+        long startNs = 1000000000L;
+        buffer.insert(new byte[4], 0, 4, 100, 100 * FRAMES_PER_PACKET, startNs);
+
+        // Under the target depth with packets still arriving
+        assertEquals(AudioJitterBuffer.WAIT, buffer.poll(false, startNs));
+
+        // Nothing more has come for a while, so play what there is
+        int slot = buffer.poll(false, startNs + 10 * PACKET_DURATION_NS);
+        assertTrue(slot >= 0);
+    }
+
+    @Test
+    public void reprimesAfterUnderrun() {
+        insert(100, 0);
+        insert(101, 1);
+        assertPlays(100);
+        assertPlays(101);
+
+        assertEquals(AudioJitterBuffer.WAIT, buffer.poll(true, afterLastPacket()));
+        assertEquals(1, buffer.getUnderruns());
+
+        insert(102, 2);
+        assertEquals(AudioJitterBuffer.WAIT, buffer.poll(false, lastReceiveTimeNs));
+        insert(103, 3);
+        assertPlays(102);
+    }
+
+    @Test
+    public void resetForgetsPackets() {
+        insert(100, 0);
+        insert(101, 1);
+        buffer.reset();
+
+        assertEquals(0, buffer.getDepth());
+        assertEquals(AudioJitterBuffer.WAIT, buffer.poll(true, afterLastPacket()));
+
+        // Any sequence number is acceptable after a flush
+        assertTrue(insert(50, 2));
+        insert(51, 3);
+        assertPlays(50);
+    }
+
+    @Test
+    public void measuresFramesPerPacket() {
+        buffer = new AudioJitterBuffer(16, SAMPLE_RATE, 0);
+        assertEquals(352, buffer.getFramesPerPacket());
+
+        for (int i = 0; i < 3; i++) {
+            buffer.insert(new byte[4], 0, 4, 10 + i, i * 1024L, i * 23219000L);
+        }
+        assertEquals(1024, buffer.getFramesPerPacket());
+        assertEquals(23219, buffer.getPacketDurationUs());
+    }
+
+    @Test
+    public void copiesPayloadIntoSlot() {
+        byte[] packet = {9, 9, 1, 2, 3, 9};
+        buffer.insert(packet, 2, 3, 7, 0, 0);
+        buffer.insert(new byte[1], 0, 1, 8, FRAMES_PER_PACKET, PACKET_DURATION_NS);
+        packet[2] = 0;
+
+        int slot = buffer.poll(false, afterLastPacket());
+        assertEquals(3, buffer.getLength(slot));
+        assertEquals(1, buffer.getData(slot)[0]);
+        assertEquals(3, buffer.getData(slot)[2]);
+    }
+
+    // Arrivals are one packet duration apart, so packets sent in order add no jitter to grow
+    // the target depth. The payload records the sequence number.
+    private boolean insert(int sequence, int arrival) {
+        lastReceiveTimeNs = arrival * PACKET_DURATION_NS;
+        byte[] packet = {(byte) (sequence >> 8), (byte) sequence};
+        return buffer.insert(packet, 0, packet.length, sequence,
+                (long) sequence * FRAMES_PER_PACKET, lastReceiveTimeNs);
+    }
+
+    private void assertPlays(int sequence) {
+        int slot = buffer.poll(false, afterLastPacket());
+        assertTrue("expected packet " + sequence + ", got " + slot, slot >= 0);
+        byte[] data = buffer.getData(slot);
+        assertEquals(sequence & 0xFFFF, ((data[0] & 0xFF) << 8) | (data[1] & 0xFF));
+        buffer.advance();
+    }
+
+    private long afterLastPacket() {
+        return lastReceiveTimeNs + PACKET_DURATION_NS;
+    }
+}
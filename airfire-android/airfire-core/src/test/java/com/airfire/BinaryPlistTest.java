@@ -0,0 +1,260 @@
+package com.airfire;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Round trips through BinaryPlistWriter and BinaryPlistReader, and the XML encoding served to senders that don't take binary
+ */
+public class BinaryPlistTest {
+    private final BinaryPlistWriter writer = new BinaryPlistWriter();
+    private final BinaryPlistReader reader = new BinaryPlistReader();
+
+    @Test
+    public void roundTripsScalars() {
+        PlistValue root = new PlistValue().clear(PlistValue.TYPE_ARRAY);
+        root.add().setBoolean(true);
+        root.add().setBoolean(false);
+        root.add().setInteger(0);
+        root.add().setInteger(255);
+        root.add().setInteger(65536);
+        root.add().setInteger(0x1C340445F8A00L);
+        root.add().setInteger(-1);
+        root.add().setReal(1.5);
+        root.add().setDate(600000000.25);
+        root.add().setUid(42);
+        root.add().clear(PlistValue.TYPE_NULL);
+
+        PlistValue decoded = roundTrip(root);
+
+        assertEquals(PlistValue.TYPE_ARRAY, decoded.getType());
+        assertEquals(11, decoded.size());
+        assertTrue(decoded.get(0).getBoolean());
+        assertEquals(PlistValue.TYPE_BOOLEAN, decoded.get(1).getType());
+        assertFalse(decoded.get(1).getBoolean());
+        assertEquals(0, decoded.get(2).getInteger());
+        assertEquals(255, decoded.get(3).getInteger());
+        assertEquals(65536, decoded.get(4).getInteger());
+        assertEquals(0x1C340445F8A00L, decoded.get(5).getInteger());
+        assertEquals(-1, decoded.get(6).getInteger());
+        assertEquals(1.5, decoded.get(7).getReal(), 0);
+        assertEquals(PlistValue.TYPE_DATE, decoded.get(8).getType());
+        assertEquals(600000000.25, decoded.get(8).getReal(), 0);
+        assertEquals(PlistValue.TYPE_UID, decoded.get(9).getType());
+        assertEquals(42, decoded.get(9).getInteger());
+        assertTrue(decoded.get(10).isNull());
+    }
+
+    @Test
+    public void roundTripsStringsAndData() {
+        byte[] data = new byte[300];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        PlistValue root = new PlistValue().clear(PlistValue.TYPE_DICT);
+        root.put("ascii").setString("AirFire");
+        root.put("unicode").setString("Wohnzimmer ü ☃");
+        root.put("long").setString("a string longer than fifteen characters");
+        root.put("empty").setString("");
+        root.put("data").setData(data, 0, data.length);
+
+        PlistValue decoded = roundTrip(root);
+
+        assertEquals(5, decoded.size());
+        assertTrue(decoded.get("ascii").stringEquals("AirFire"));
+        assertFalse(decoded.get("ascii").isUtf16());
+        assertEquals("Wohnzimmer ü ☃", decoded.get("unicode").getString());
+        assertTrue(decoded.get("unicode").isUtf16());
+        assertEquals("a string longer than fifteen characters", decoded.get("long").getString());
+        assertEquals("", decoded.get("empty").getString());
+        assertNull(decoded.get("missing"));
+
+        ByteBuffer decodedData = decoded.get("data").getData();
+        byte[] decodedBytes = new byte[decodedData.remaining()];
+        decodedData.get(decodedBytes);
+        assertArrayEquals(data, decodedBytes);
+    }
+
+    @Test
+    public void roundTripsNestedContainers() {
+        PlistValue root = new PlistValue().clear(PlistValue.TYPE_DICT);
+        PlistValue streams = root.put("streams").clear(PlistValue.TYPE_ARRAY);
+        for (int i = 0; i < 20; i++) {
+            PlistValue stream = streams.add().clear(PlistValue.TYPE_DICT);
+            stream.put("type").setInteger(110);
+            stream.put("index").setInteger(i);
+        }
+
+        PlistValue decoded = roundTrip(root);
+
+        PlistValue decodedStreams = decoded.get("streams");
+        assertEquals(20, decodedStreams.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(110, decodedStreams.get(i).get("type").getInteger());
+            assertEquals(i, decodedStreams.get(i).get("index").getInteger());
+        }
+    }
+
+    @Test
+    public void roundTripsWithTwoByteReferences() {
+        // More than 255 objects needs wider object references and offsets
+        PlistValue root = new PlistValue().clear(PlistValue.TYPE_ARRAY);
+        for (int i = 0; i < 1000; i++) {
+            root.add().setInteger(i * 1000L);
+        }
+
+        PlistValue decoded = roundTrip(root);
+
+        assertEquals(1000, decoded.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i * 1000L, decoded.get(i).getInteger());
+        }
+    }
+
+    @Test
+    public void writesAtBufferPosition() {
+        PlistValue root = new PlistValue().clear(PlistValue.TYPE_DICT);
+        root.put("name").setString("AirFire");
+
+        int length = writer.measure(root);
+        ByteBuffer out = ByteBuffer.allocate(length + 10);
+        out.position(10);
+        writer.write(root, out);
+        assertEquals(length + 10, out.position());
+
+        PlistValue decoded = new PlistValue();
+        reader.read(out.array(), 10, length, decoded);
+        assertTrue(decoded.get("name").stringEquals("AirFire"));
+    }
+
+    @Test
+    public void reusesDecodedTree() {
+        PlistValue first = new PlistValue().clear(PlistValue.TYPE_DICT);
+        first.put("a").setInteger(1);
+        first.put("b").setInteger(2);
+        PlistValue second = new PlistValue().clear(PlistValue.TYPE_DICT);
+        second.put("c").setString("three");
+
+        PlistValue decoded = new PlistValue();
+        byte[] firstBytes = encode(first);
+        reader.read(firstBytes, 0, firstBytes.length, decoded);
+        byte[] secondBytes = encode(second);
+        reader.read(secondBytes, 0, secondBytes.length, decoded);
+
+        assertEquals(1, decoded.size());
+        assertNull(decoded.get("a"));
+        assertTrue(decoded.get("c").stringEquals("three"));
+    }
+
+    @Test
+    public void rejectsXmlPlist() {
+        PlistValue root = new PlistValue().clear(PlistValue.TYPE_DICT);
+        root.put("name").setString("AirFire");
+        byte[] xml = AirPlayServerInfo.encodeXml(root);
+
+        try {
+            reader.read(xml, 0, xml.length, new PlistValue());
+            fail("XML plist decoded as binary");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedPlist() {
+        PlistValue root = new PlistValue().clear(PlistValue.TYPE_DICT);
+        root.put("name").setString("AirFire");
+        byte[] encoded = encode(root);
+
+        for (int length = 0; length < encoded.length; length++) {
+            try {
+                reader.read(encoded, 0, length, new PlistValue());
+                fail("Decoded a plist truncated to " + length + " bytes");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void rejectsSelfReferencingArray() {
+        // An array whose only element is itself
+        byte[] plist = new byte[8 + 2 + 1 + 32];
+        ByteBuffer out = ByteBuffer.wrap(plist);
+        out.put(AirPlayRequest.ascii("bplist00"));
+        out.put((byte) 0xA1).put((byte) 0);
+        out.put((byte) 8);
+        out.position(out.position() + 6);
+        out.put((byte) 1).put((byte) 1);
+        out.putLong(1).putLong(0).putLong(10);
+
+        try {
+            reader.read(plist, 0, plist.length, new PlistValue());
+            fail("Decoded a self-referencing plist");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void encodesXmlFallback() {
+        byte[] data = {(byte) 0xFB, (byte) 0xFF, 0x00, 0x01};
+
+        PlistValue root = new PlistValue().clear(PlistValue.TYPE_DICT);
+        root.put("name").setString("Tom & Jerry's <TV>");
+        root.put("features").setInteger(0x1C340445F8A00L);
+        root.put("rotation").setBoolean(false);
+        root.put("pk").setData(data, 0, data.length);
+        PlistValue displays = root.put("displays").clear(PlistValue.TYPE_ARRAY);
+        displays.add().clear(PlistValue.TYPE_DICT).put("width").setInteger(1920);
+
+        String xml = new String(AirPlayServerInfo.encodeXml(root), StandardCharsets.UTF_8);
+
+        assertTrue(xml.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"));
+        assertTrue(xml.contains("<plist version=\"1.0\">\n<dict>\n"));
+        assertTrue(xml.contains("    <key>name</key>\n    <string>Tom &amp; Jerry's &lt;TV&gt;</string>\n"));
+        assertTrue(xml.contains("    <integer>" + 0x1C340445F8A00L + "</integer>\n"));
+        assertTrue(xml.contains("    <false/>\n"));
+        assertTrue(xml.contains("    <data>+/8AAQ==</data>\n"));
+        assertTrue(xml.contains("    <array>\n        <dict>\n            <key>width</key>\n" +
+                "            <integer>1920</integer>\n        </dict>\n    </array>\n"));
+        assertTrue(xml.endsWith("</dict>\n</plist>\n"));
+    }
+
+    @Test
+    public void encodesBase64Padding() {
+        assertTrue(xmlForData("M").contains("<data>TQ==</data>"));
+        assertTrue(xmlForData("Ma").contains("<data>TWE=</data>"));
+        assertTrue(xmlForData("Man").contains("<data>TWFu</data>"));
+        assertTrue(xmlForData("").contains("<data></data>"));
+    }
+
+    private String xmlForData(String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.US_ASCII);
+        PlistValue root = new PlistValue().clear(PlistValue.TYPE_DICT);
+        root.put("d").setData(bytes, 0, bytes.length);
+        return new String(AirPlayServerInfo.encodeXml(root), StandardCharsets.UTF_8);
+    }
+
+    private PlistValue roundTrip(PlistValue root) {
+        byte[] encoded = encode(root);
+        PlistValue decoded = new PlistValue();
+        reader.read(encoded, 0, encoded.length, decoded);
+        return decoded;
+    }
+
+    private byte[] encode(PlistValue root) {
+        byte[] encoded = new byte[writer.measure(root)];
+        ByteBuffer out = ByteBuffer.wrap(encoded);
+        writer.write(root, out);
+        assertFalse(out.hasRemaining());
+        return encoded;
+    }
+}
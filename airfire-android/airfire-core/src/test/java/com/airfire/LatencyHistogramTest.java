@@ -0,0 +1,221 @@
+package com.airfire;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Bucket boundaries, percentile accuracy and merging of latency histograms, and draining recorders into them
+ */
+public class LatencyHistogramTest {
+    private static final int LAST_BUCKET = 383;
+    private static final long MAX_BUCKETED_VALUE = (1L << 27) - 1;
+
+    @Test
+    public void smallValuesGetExactBuckets() {
+        for (int value = 0; value < 16; value++) {
+            assertEquals(value, LatencyHistogram.bucketIndex(value));
+            assertEquals(value, LatencyHistogram.bucketUpperBound(value));
+        }
+        assertEquals(16, LatencyHistogram.bucketIndex(16));
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        // Each bucket starts right after the previous one ends, and every value between
+        // lands in it
+        long lowerBound = 0;
+        for (int index = 0; index < LAST_BUCKET; index++) {
+            long upperBound = LatencyHistogram.bucketUpperBound(index);
+            assertTrue(upperBound >= lowerBound);
+            assertEquals(index, LatencyHistogram.bucketIndex(lowerBound));
+            assertEquals(index, LatencyHistogram.bucketIndex(upperBound));
+            assertEquals(index + 1, LatencyHistogram.bucketIndex(upperBound + 1));
+            lowerBound = upperBound + 1;
+        }
+    }
+
+    @Test
+    public void bucketsStayWithinSixPercent() {
+        for (int index = 16; index < LAST_BUCKET; index++) {
+            long upperBound = LatencyHistogram.bucketUpperBound(index);
+            long lowerBound = LatencyHistogram.bucketUpperBound(index - 1) + 1;
+            assertTrue("bucket " + index, (upperBound - lowerBound + 1) * 16 <= lowerBound);
+        }
+    }
+
+    @Test
+    public void lastBucketTakesEverythingSlower() {
+        assertEquals(LAST_BUCKET - 1, LatencyHistogram.bucketIndex(MAX_BUCKETED_VALUE - (1L << 22)));
+        assertEquals(LAST_BUCKET, LatencyHistogram.bucketIndex(MAX_BUCKETED_VALUE));
+        assertEquals(LAST_BUCKET, LatencyHistogram.bucketIndex(MAX_BUCKETED_VALUE + 1));
+        assertEquals(LAST_BUCKET, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.bucketUpperBound(LAST_BUCKET));
+    }
+
+    @Test
+    public void percentileNeverUnderstatesOverflow() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        histogram.record(10L * 60 * 1000 * 1000);
+
+        assertEquals(10L * 60 * 1000 * 1000, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void ignoresNegativeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-1);
+        assertEquals(0, histogram.getCount());
+    }
+
+    @Test
+    public void percentilesAreUpperBucketEdges() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 1; value <= 1000; value++) {
+            histogram.record(value * 100L);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(100000, histogram.getMax());
+        assertPercentile(histogram, 50, 50000);
+        assertPercentile(histogram, 95, 95000);
+        assertPercentile(histogram, 99, 99000);
+        assertEquals(103, histogram.getPercentile(0));
+        assertEquals(100000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void percentileIsCappedAtMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+
+        // 1000 shares a bucket with values up to 1023
+        assertEquals(1023, LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(1000)));
+        assertEquals(1000, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void addMergesCounts() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            first.record(1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            second.record(50000);
+        }
+
+        LatencyHistogram merged = new LatencyHistogram();
+        merged.add(first);
+        merged.add(second);
+
+        assertEquals(100, merged.getCount());
+        assertEquals(50000, merged.getMax());
+        assertEquals(1023, merged.getPercentile(90));
+        assertEquals(50000, merged.getPercentile(91));
+
+        // The sources are left alone
+        assertEquals(90, first.getCount());
+        assertEquals(1000, first.getMax());
+    }
+
+    @Test
+    public void copyReplacesContents() {
+        LatencyHistogram source = new LatencyHistogram();
+        source.record(2000);
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.record(90000);
+        copy.record(90000);
+
+        copy.copy(source);
+        assertEquals(1, copy.getCount());
+        assertEquals(2000, copy.getMax());
+        assertEquals(2000, copy.getPercentile(99));
+
+        source.clear();
+        assertEquals(1, copy.getCount());
+    }
+
+    @Test
+    public void clearResetsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(5000);
+        histogram.clear();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(99));
+
+        histogram.record(300);
+        assertEquals(300, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void recorderDrainsIntoHistogram() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        for (int value = 1; value <= 1000; value++) {
+            recorder.record(value * 100L);
+        }
+        recorder.record(-1);
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(200000);
+        recorder.drainTo(histogram);
+        assertEquals(1001, histogram.getCount());
+        assertEquals(200000, histogram.getMax());
+        assertPercentile(histogram, 50, 50000);
+
+        // Draining starts the recorder over
+        LatencyHistogram next = new LatencyHistogram();
+        recorder.drainTo(next);
+        assertEquals(0, next.getCount());
+        assertEquals(0, next.getMax());
+    }
+
+    @Test
+    public void recorderCountsEveryValueFromSeveralThreads() throws InterruptedException {
+        LatencyRecorder recorder = new LatencyRecorder();
+        LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            long valueUs = 1000L * (t + 1);
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    recorder.record(valueUs);
+                }
+            });
+            threads[t].start();
+        }
+
+        // Drains while the threads are recording must neither lose nor repeat a value
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                recorder.drainTo(histogram);
+            }
+            thread.join();
+        }
+        recorder.drainTo(histogram);
+
+        assertEquals(400000, histogram.getCount());
+        assertEquals(4000, histogram.getMax());
+        assertEquals(1023, histogram.getPercentile(25));
+        assertEquals(4000, histogram.getPercentile(100));
+    }
+
+    private static void assertPercentile(LatencyHistogram histogram, double percentile, long expected) {
+        long actual = histogram.getPercentile(percentile);
+        assertTrue(percentile + "th percentile " + actual + " is under " + expected, actual >= expected);
+        assertTrue(percentile + "th percentile " + actual + " is too far over " + expected,
+                actual <= expected + expected / 16);
+    }
+}
@@ -0,0 +1,266 @@
+package com.airfire;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Mirroring packets to decode units: avcC parsing, in-place Annex B conversion and waiting for IDR frames
+ */
+public class MirroringDepacketizerTest {
+    private static final byte[] SPS = {0x67, 0x64, 0x00, 0x28, (byte) 0xAC};
+    private static final byte[] PPS = {0x68, (byte) 0xEE, 0x3C, (byte) 0xB0};
+    private static final byte[] IDR = {0x65, (byte) 0x88, (byte) 0x84, 0x00, 0x33};
+    private static final byte[] P = {0x41, (byte) 0x9A, 0x02, 0x11};
+    private static final byte[] SEI = {0x06, 0x05, 0x01, (byte) 0x80};
+
+    private RecordingDecodeUnitSink sink;
+    private MirroringDepacketizer depacketizer;
+
+    @Before
+    public void setUp() {
+        sink = new RecordingDecodeUnitSink();
+        depacketizer = new MirroringDepacketizer(sink, null, null);
+    }
+
+    @Test
+    public void readsLittleEndianHeader() {
+        byte[] header = new byte[MirroringDepacketizer.HEADER_SIZE];
+        header[0] = 0x34;
+        header[1] = 0x12;
+        header[4] = MirroringDepacketizer.PAYLOAD_TYPE_CODEC;
+        for (int i = 0; i < 8; i++) {
+            header[8 + i] = (byte) (0x88 - i);
+        }
+
+        assertEquals(0x1234, MirroringDepacketizer.getPayloadSize(header));
+        assertEquals(MirroringDepacketizer.PAYLOAD_TYPE_CODEC, MirroringDepacketizer.getPayloadType(header));
+        assertEquals(0x8182838485868788L, MirroringDepacketizer.getNtpTimestamp(header));
+    }
+
+    @Test
+    public void submitsParameterSetsWithIdr() {
+        sendCodec(avcC(SPS, PPS));
+        assertEquals(DecodeUnitSink.VIDEO_FORMAT_H264, sink.startedFormat);
+
+        sendVideo(lengthPrefixed(IDR), 100);
+        sendVideo(lengthPrefixed(P), 116);
+
+        List<RecordingDecodeUnitSink.DecodeUnit> units = sink.units;
+        assertEquals(4, units.size());
+        assertUnit(units.get(0), DecodeUnitSink.BUFFER_TYPE_SPS, 1, DecodeUnitSink.FRAME_TYPE_IDR, startCode(SPS));
+        assertUnit(units.get(1), DecodeUnitSink.BUFFER_TYPE_PPS, 1, DecodeUnitSink.FRAME_TYPE_IDR, startCode(PPS));
+        assertUnit(units.get(2), DecodeUnitSink.BUFFER_TYPE_PICDATA, 1, DecodeUnitSink.FRAME_TYPE_IDR, startCode(IDR));
+        assertUnit(units.get(3), DecodeUnitSink.BUFFER_TYPE_PICDATA, 2, DecodeUnitSink.FRAME_TYPE_PFRAME, startCode(P));
+        assertEquals(100, units.get(2).receiveTimeMs);
+        assertEquals(2, depacketizer.getFramesSubmitted());
+        assertEquals(1, depacketizer.getIdrFramesSubmitted());
+    }
+
+    @Test
+    public void convertsEveryNaluInPacket() {
+        sendCodec(avcC(SPS, PPS));
+        sendVideo(concat(lengthPrefixed(SEI), lengthPrefixed(IDR), lengthPrefixed(P)), 100);
+
+        List<RecordingDecodeUnitSink.DecodeUnit> pictures = sink.pictures();
+        assertEquals(1, pictures.size());
+        assertArrayEquals(concat(startCode(SEI), startCode(IDR), startCode(P)), pictures.get(0).data);
+    }
+
+    @Test
+    public void stripsInBandParameterSets() {
+        byte[] newSps = {0x67, 0x64, 0x00, 0x33, 0x01, 0x02};
+        sendCodec(avcC(SPS, PPS));
+        sendVideo(concat(lengthPrefixed(newSps), lengthPrefixed(PPS), lengthPrefixed(IDR)), 100);
+
+        List<RecordingDecodeUnitSink.DecodeUnit> units = sink.units;
+        assertEquals(3, units.size());
+        assertArrayEquals(startCode(newSps), units.get(0).data);
+        assertArrayEquals(startCode(PPS), units.get(1).data);
+        // The picture data is closed up behind the removed parameter sets
+        assertArrayEquals(startCode(IDR), units.get(2).data);
+    }
+
+    @Test
+    public void ignoresPacketOfOnlyParameterSets() {
+        sendCodec(avcC(SPS, PPS));
+        sendVideo(concat(lengthPrefixed(SPS), lengthPrefixed(PPS)), 100);
+        sendVideo(lengthPrefixed(IDR), 116);
+
+        // No frame number is used up by the parameter sets
+        assertEquals(1, sink.pictures().get(0).frameNumber);
+    }
+
+    @Test
+    public void dropsFramesUntilIdr() {
+        sendCodec(avcC(SPS, PPS));
+        sendVideo(lengthPrefixed(P), 100);
+        sendVideo(lengthPrefixed(P), 116);
+        sendVideo(lengthPrefixed(IDR), 133);
+
+        List<RecordingDecodeUnitSink.DecodeUnit> pictures = sink.pictures();
+        assertEquals(1, pictures.size());
+        assertEquals(3, pictures.get(0).frameNumber);
+        assertEquals(2, depacketizer.getFramesDropped());
+    }
+
+    @Test
+    public void dropsIdrWithoutCodecData() {
+        sendVideo(lengthPrefixed(IDR), 100);
+
+        assertEquals(0, sink.units.size());
+        assertEquals(1, depacketizer.getFramesDropped());
+    }
+
+    @Test
+    public void waitsForIdrAfterMalformedPacket() {
+        sendCodec(avcC(SPS, PPS));
+        sendVideo(lengthPrefixed(IDR), 100);
+
+        // A NALU length running past the end of the payload
+        byte[] malformed = lengthPrefixed(P);
+        malformed[3] = 100;
+        sendVideo(malformed, 116);
+        sendVideo(lengthPrefixed(P), 133);
+        sendVideo(lengthPrefixed(IDR), 150);
+
+        List<RecordingDecodeUnitSink.DecodeUnit> pictures = sink.pictures();
+        assertEquals(2, pictures.size());
+        assertEquals(DecodeUnitSink.FRAME_TYPE_IDR, pictures.get(1).frameType);
+        assertEquals(4, pictures.get(1).frameNumber);
+        assertEquals(2, depacketizer.getFramesDropped());
+    }
+
+    @Test
+    public void waitsForIdrAfterRejectedFrame() {
+        sendCodec(avcC(SPS, PPS));
+        sendVideo(lengthPrefixed(IDR), 100);
+        sink.result = DecodeUnitSink.DR_NEED_IDR;
+        sendVideo(lengthPrefixed(P), 116);
+        sink.result = DecodeUnitSink.DR_OK;
+        sendVideo(lengthPrefixed(P), 133);
+
+        assertEquals(2, sink.pictures().size());
+        assertEquals(2, depacketizer.getFramesDropped());
+    }
+
+    @Test
+    public void newCodecDataWaitsForIdr() {
+        sendCodec(avcC(SPS, PPS));
+        sendVideo(lengthPrefixed(IDR), 100);
+        sendCodec(avcC(SPS, PPS));
+        sendVideo(lengthPrefixed(P), 116);
+
+        assertEquals(1, sink.pictures().size());
+        assertEquals(1, depacketizer.getFramesDropped());
+    }
+
+    @Test
+    public void ignoresHeartbeats() {
+        sendCodec(avcC(SPS, PPS));
+        byte[] heartbeat = new byte[4];
+        depacketizer.processPacket(MirroringDepacketizer.PAYLOAD_TYPE_HEARTBEAT, heartbeat, heartbeat.length,
+                0, 0, 0, 0, 0);
+
+        assertEquals(0, sink.units.size());
+    }
+
+    @Test
+    public void rejectsInvalidCodecData() {
+        assertInvalidCodecData(new byte[] {1, 0x64, 0x00, 0x28});
+        assertInvalidCodecData(new byte[] {0, 0x64, 0x00, 0x28, (byte) 0xFF, (byte) 0xE1, 0});
+
+        // Two-byte NALU lengths can't be rewritten as start codes in place
+        byte[] shortLengths = avcC(SPS, PPS);
+        shortLengths[4] = (byte) 0xFD;
+        assertInvalidCodecData(shortLengths);
+
+        byte[] truncated = avcC(SPS, PPS);
+        assertInvalidCodecData(Arrays.copyOf(truncated, truncated.length - 1));
+    }
+
+    @Test
+    public void stopsStreamOnce() {
+        sendCodec(avcC(SPS, PPS));
+        depacketizer.stop();
+        depacketizer.stop();
+
+        assertEquals(1, sink.streamsStopped);
+    }
+
+    private void assertInvalidCodecData(byte[] data) {
+        try {
+            sendCodec(data);
+            fail("Accepted invalid avcC record");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private void sendCodec(byte[] data) {
+        depacketizer.processPacket(MirroringDepacketizer.PAYLOAD_TYPE_CODEC, data, data.length, 0, 0, 0, 0, 0);
+    }
+
+    // The payload is rewritten in place, so it's sent from a copy
+    private void sendVideo(byte[] data, long receiveTimeMs) {
+        byte[] payload = data.clone();
+        depacketizer.processPacket(MirroringDepacketizer.PAYLOAD_TYPE_VIDEO, payload, payload.length,
+                0, receiveTimeMs, receiveTimeMs, 0, 0);
+    }
+
+    private static void assertUnit(RecordingDecodeUnitSink.DecodeUnit unit, int type, int frameNumber,
+                                   int frameType, byte[] data) {
+        assertEquals(type, unit.type);
+        assertEquals(frameNumber, unit.frameNumber);
+        assertEquals(frameType, unit.frameType);
+        assertArrayEquals(data, unit.data);
+    }
+
+    // An AVCDecoderConfigurationRecord with 4-byte NALU lengths
+    private static byte[] avcC(byte[] sps, byte[] pps) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(1);
+        out.write(sps[1]);
+        out.write(sps[2]);
+        out.write(sps[3]);
+        out.write(0xFF);
+        out.write(0xE1);
+        out.write(sps.length >> 8);
+        out.write(sps.length);
+        out.write(sps, 0, sps.length);
+        out.write(1);
+        out.write(pps.length >> 8);
+        out.write(pps.length);
+        out.write(pps, 0, pps.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] lengthPrefixed(byte[] nal) {
+        byte[] prefixed = new byte[4 + nal.length];
+        prefixed[2] = (byte) (nal.length >> 8);
+        prefixed[3] = (byte) nal.length;
+        System.arraycopy(nal, 0, prefixed, 4, nal.length);
+        return prefixed;
+    }
+
+    private static byte[] startCode(byte[] nal) {
+        byte[] annexB = new byte[4 + nal.length];
+        annexB[3] = 1;
+        System.arraycopy(nal, 0, annexB, 4, nal.length);
+        return annexB;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
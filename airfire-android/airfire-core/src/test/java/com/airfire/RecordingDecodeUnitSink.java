@@ -0,0 +1,63 @@
+package com.airfire;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A DecodeUnitSink that keeps a copy of everything submitted to it
+ * Can be told to refuse decode units, to exercise the waiting-for-IDR paths
+ */
+class RecordingDecodeUnitSink implements DecodeUnitSink {
+    static class DecodeUnit {
+        final byte[] data;
+        final int type;
+        final int frameNumber;
+        final int frameType;
+        final long receiveTimeMs;
+        final long enqueueTimeMs;
+
+        DecodeUnit(byte[] data, int type, int frameNumber, int frameType, long receiveTimeMs, long enqueueTimeMs) {
+            this.data = data;
+            this.type = type;
+            this.frameNumber = frameNumber;
+            this.frameType = frameType;
+            this.receiveTimeMs = receiveTimeMs;
+            this.enqueueTimeMs = enqueueTimeMs;
+        }
+    }
+
+    final List<DecodeUnit> units = new ArrayList<>();
+    int startedFormat = -1;
+    int streamsStopped;
+    int result = DR_OK;
+
+    @Override
+    public void onStreamStarted(int videoFormat) {
+        startedFormat = videoFormat;
+    }
+
+    @Override
+    public int submitDecodeUnit(byte[] decodeUnitData, int decodeUnitLength, int decodeUnitType,
+                                int frameNumber, int frameType, long receiveTimeMs, long enqueueTimeMs) {
+        units.add(new DecodeUnit(Arrays.copyOf(decodeUnitData, decodeUnitLength), decodeUnitType,
+                frameNumber, frameType, receiveTimeMs, enqueueTimeMs));
+        return result;
+    }
+
+    @Override
+    public void onStreamStopped() {
+        streamsStopped++;
+    }
+
+    // Picture data units only, which is one per frame
+    List<DecodeUnit> pictures() {
+        List<DecodeUnit> pictures = new ArrayList<>();
+        for (DecodeUnit unit : units) {
+            if (unit.type == BUFFER_TYPE_PICDATA) {
+                pictures.add(unit);
+            }
+        }
+        return pictures;
+    }
+}
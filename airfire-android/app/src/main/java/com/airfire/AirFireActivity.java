@@ -7,8 +7,9 @@ import android.view.SurfaceView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.io.IOException;
 
 import com.limelight.binding.video.MediaCodecDecoderRenderer;
@@ -20,16 +21,31 @@ import com.limelight.preferences.PreferenceConfiguration;
  * AirFire - Simplified Moonlight for iPhone screen mirroring
  * Removes game-specific features, keeps video decoding excellence
  */
-public class AirFireActivity extends Activity implements SurfaceHolder.Callback, CrashListener, PerfOverlayListener {
+public class AirFireActivity extends Activity implements SurfaceHolder.Callback, CrashListener, PerfOverlayListener,
+        AirPlayReceiver.StatusCallback {
     
     private static final int AIRFIRE_PORT = 5000;
     
+    // Decodes with MediaCodec's async callbacks instead of polling, to compare the two engines:
+    // adb shell am start -n com.airfire.debug/com.airfire.AirFireActivity --ez asyncDecoder true
+    private static final String EXTRA_ASYNC_DECODER = "asyncDecoder";
+    
+    // Frame pacing mode, named as in Moonlight's setting (latency, balanced, cap-fps, smoothness
+    // or adaptive), and the latency budget in ms for adaptive pacing:
+    // adb shell am start -n com.airfire.debug/com.airfire.AirFireActivity --es framePacing adaptive --ei pacingBudgetMs 80
+    private static final String EXTRA_FRAME_PACING = "framePacing";
+    private static final String EXTRA_PACING_BUDGET_MS = "pacingBudgetMs";
+    
     private SurfaceView surfaceView;
     private SurfaceHolder surfaceHolder;
     private TextView statusText;
-    private MediaCodecDecoderRenderer decoder;
-    private ServerSocket serverSocket;
-    private boolean isStreaming = false;
+    // Both only touched on the UI thread. The perf text sits under the status while streaming.
+    private String statusMessage = "";
+    private String perfText;
+    private volatile MediaCodecDecoderRenderer decoder;
+    private ServerSocketChannel serverChannel;
+    private AirPlayReceiver airPlayReceiver;
+    private AirPlayDisplay display = AirPlayDisplay.DEFAULT;
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -40,6 +56,24 @@ public class AirFireActivity extends Activity implements SurfaceHolder.Callback,
         
         // Start listening for iPhone connections
         startServer();
+        startAirPlayReceiver();
+    }
+    
+    private void startAirPlayReceiver() {
+        airPlayReceiver = new AirPlayReceiver(this, this);
+        airPlayReceiver.setDecodeUnitSink(new DecoderSink());
+        
+        // Senders encode at the panel's native size and refresh rate, and the decoder is set up
+        // for the same, so nothing gets scaled on the way to the screen
+        display = DisplayModeSelector.prepareDisplay(this);
+        airPlayReceiver.setDisplay(display);
+        
+        // The audio sink anchors the sync clock to what's being heard, and the decoder
+        // schedules mirrored frames against it
+        PcmAudioTrackSink audioSink = new PcmAudioTrackSink(true);
+        audioSink.setAvSyncClock(airPlayReceiver.getAvSyncClock());
+        airPlayReceiver.setAudioFrameSink(audioSink);
+        airPlayReceiver.start();
     }
     
     private void setupUI() {
@@ -57,17 +91,18 @@ public class AirFireActivity extends Activity implements SurfaceHolder.Callback,
     private void startServer() {
         new Thread(() -> {
             try {
-                serverSocket = new ServerSocket(AIRFIRE_PORT);
-                updateStatus("AirFire ready on port " + AIRFIRE_PORT);
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.socket().bind(new InetSocketAddress(AIRFIRE_PORT));
+                runOnUiThread(() -> updateStatus("AirFire ready on port " + AIRFIRE_PORT));
                 
                 while (!isFinishing()) {
                     try {
                         // Wait for iPhone connection
-                        Socket clientSocket = serverSocket.accept();
+                        SocketChannel clientChannel = serverChannel.accept();
                         
                         runOnUiThread(() -> {
                             updateStatus("iPhone connected! Starting stream...");
-                            startVideoDecoding(clientSocket);
+                            handleIncomingStream(clientChannel);
                         });
                         
                     } catch (IOException e) {
@@ -82,20 +117,31 @@ public class AirFireActivity extends Activity implements SurfaceHolder.Callback,
         }).start();
     }
     
-    private void startVideoDecoding(Socket clientSocket) {
+    private synchronized boolean prepareDecoder(int videoFormat) {
         if (decoder != null) {
             decoder.cleanup();
+            decoder = null;
         }
         
-        // Create simplified preferences for video decoding
+        // Create simplified preferences for video decoding, matching what senders were told to send
         PreferenceConfiguration prefs = new PreferenceConfiguration();
-        prefs.width = 1920;  // Default to 1080p
-        prefs.height = 1080;
-        prefs.fps = 60;
+        prefs.width = display.getWidth();
+        prefs.height = display.getHeight();
+        prefs.fps = display.getMaxFps();
         prefs.bitrate = 10000; // 10 Mbps
+        prefs.asyncDecoder = getIntent().getBooleanExtra(EXTRA_ASYNC_DECODER, false);
+        String framePacing = getIntent().getStringExtra(EXTRA_FRAME_PACING);
+        if (framePacing != null) {
+            prefs.framePacing = PreferenceConfiguration.getFramePacingValue(framePacing);
+        }
+        prefs.pacingBudgetMs = Math.max(PreferenceConfiguration.MIN_PACING_BUDGET_MS,
+                Math.min(PreferenceConfiguration.MAX_PACING_BUDGET_MS,
+                        getIntent().getIntExtra(EXTRA_PACING_BUDGET_MS, PreferenceConfiguration.DEFAULT_PACING_BUDGET_MS)));
+        // Decoder latency percentiles and frame pacing, refreshed every second under the status
+        prefs.enablePerfOverlay = true;
         
         // Initialize the same professional decoder Moonlight uses
-        decoder = new MediaCodecDecoderRenderer(
+        MediaCodecDecoderRenderer newDecoder = new MediaCodecDecoderRenderer(
             this,           // activity
             prefs,          // preferences  
             this,           // crash listener
@@ -106,60 +152,102 @@ public class AirFireActivity extends Activity implements SurfaceHolder.Callback,
             this            // perf overlay listener
         );
         
-        decoder.setRenderTarget(surfaceHolder);
+        newDecoder.setRenderTarget(surfaceHolder);
+        newDecoder.setHostRttAvailable(false);
+        if (airPlayReceiver != null) {
+            newDecoder.setAvSyncClock(airPlayReceiver.getAvSyncClock());
+            newDecoder.setLatencyTracker(airPlayReceiver.getLatencyTracker());
+        }
         
         // Setup decoder
-        int result = decoder.setup(
-            0x01,           // H.264 format
+        int result = newDecoder.setup(
+            videoFormat,
             prefs.width,
             prefs.height, 
             prefs.fps
         );
         
         if (result != 0) {
-            updateStatus("Decoder setup failed: " + result);
-            return;
+            runOnUiThread(() -> updateStatus("Decoder setup failed: " + result));
+            return false;
         }
         
-        decoder.start();
-        isStreaming = true;
-        updateStatus("Streaming from iPhone...");
+        newDecoder.start();
+        decoder = newDecoder;
+        return true;
+    }
+    
+    private synchronized void stopDecoder() {
+        if (decoder != null) {
+            decoder.prepareForStop();
+            decoder.stop();
+            decoder.cleanup();
+            decoder = null;
+        }
+    }
+    
+    /**
+     * Feeds AirPlay mirroring decode units into the decoder
+     * Called on the mirroring receive thread
+     */
+    private class DecoderSink implements DecodeUnitSink {
+        @Override
+        public void onStreamStarted(int videoFormat) {
+            if (prepareDecoder(videoFormat)) {
+                runOnUiThread(() -> updateStatus("Streaming from iPhone..."));
+            }
+        }
         
-        // Start receiving data from iPhone
-        handleIncomingStream(clientSocket);
+        @Override
+        public int submitDecodeUnit(byte[] decodeUnitData, int decodeUnitLength, int decodeUnitType,
+                                    int frameNumber, int frameType, long receiveTimeMs, long enqueueTimeMs) {
+            MediaCodecDecoderRenderer currentDecoder = decoder;
+            if (currentDecoder == null) {
+                return DR_NEED_IDR;
+            }
+            
+            return currentDecoder.submitDecodeUnit(decodeUnitData, decodeUnitLength, decodeUnitType,
+                frameNumber, frameType, (char) 0, receiveTimeMs, enqueueTimeMs);
+        }
+        
+        @Override
+        public void onStreamStopped() {
+            stopDecoder();
+            runOnUiThread(() -> {
+                perfText = null;
+                updateStatus("Waiting for iPhone connection...");
+            });
+        }
     }
     
-    private void handleIncomingStream(Socket clientSocket) {
-        // This will use Moonlight's existing network protocol
-        // to receive H.264 frames from iPhone and feed to decoder
+    private void handleIncomingStream(SocketChannel clientChannel) {
+        // The decoder is set up by DecoderSink once the receiver knows the video format
         new Thread(() -> {
+            FramedStreamReceiver receiver = new FramedStreamReceiver(new DecoderSink(), new PcmAudioTrackSink());
             try {
-                byte[] buffer = new byte[100000];
-                while (isStreaming && !clientSocket.isClosed()) {
-                    int bytesRead = clientSocket.getInputStream().read(buffer);
-                    if (bytesRead > 0) {
-                        // Feed H.264 data to decoder
-                        decoder.submitDecodeUnit(
-                            buffer,           // decode unit data
-                            bytesRead,        // length
-                            0,                // decode unit type
-                            0,                // frame number
-                            0,                // frame type
-                            (char)0,          // host processing latency
-                            System.currentTimeMillis(), // receive time
-                            System.currentTimeMillis()  // enqueue time
-                        );
-                    }
-                }
+                receiver.receive(clientChannel);
+                runOnUiThread(() -> updateStatus("Stream ended (" + receiver.getVideoFramesReceived() + " frames, " +
+                    receiver.getVideoFramesDropped() + " dropped)"));
             } catch (Exception e) {
                 runOnUiThread(() -> updateStatus("Stream error: " + e.getMessage()));
+            } finally {
+                try {
+                    clientChannel.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
             }
-        }).start();
+        }, "AirFire - TCP Stream").start();
     }
     
     private void updateStatus(String message) {
+        statusMessage = message;
+        showStatus();
+    }
+    
+    private void showStatus() {
         if (statusText != null) {
-            statusText.setText(message);
+            statusText.setText(perfText != null ? statusMessage + "\n\n" + perfText : statusMessage);
         }
     }
     
@@ -190,27 +278,56 @@ public class AirFireActivity extends Activity implements SurfaceHolder.Callback,
         });
     }
     
+    // AirPlayReceiver.StatusCallback implementation
+    @Override
+    public void onStatusUpdate(StatusSnapshot status) {
+        // Already on the UI thread
+        String message = status.getStatusLine();
+        if (message != null) {
+            // While audio plays, its jitter buffer stats stay under the latest event, and
+            // likewise frame latency while mirroring
+            String audioLine = status.getAudioBufferLine();
+            if (audioLine != null) {
+                message += "\n" + audioLine;
+            }
+            String latencyLine = status.getLatencyLine();
+            if (latencyLine != null) {
+                message += "\n" + latencyLine;
+            }
+            updateStatus(message);
+        }
+    }
+    
+    @Override
+    public void onVideoData(byte[] data) {
+        // Mirrored video arrives through DecoderSink instead
+    }
+    
     // PerfOverlayListener implementation
     @Override
     public void onPerfUpdate(String text) {
-        // Could show performance stats if needed
-        // For now, just ignore
+        // Called on the decoder's input thread about once a second
+        runOnUiThread(() -> {
+            if (decoder != null) {
+                perfText = text;
+                showStatus();
+            }
+        });
     }
     
     @Override
     protected void onDestroy() {
         super.onDestroy();
         
-        isStreaming = false;
-        
-        if (decoder != null) {
-            decoder.stop();
-            decoder.cleanup();
+        if (airPlayReceiver != null) {
+            airPlayReceiver.stop();
         }
         
-        if (serverSocket != null) {
+        stopDecoder();
+        
+        if (serverChannel != null) {
             try {
-                serverSocket.close();
+                serverChannel.close();
             } catch (IOException e) {
                 // Ignore
             }
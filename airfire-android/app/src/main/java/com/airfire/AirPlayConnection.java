@@ -0,0 +1,323 @@
+package com.airfire;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Per-connection state machine for the AirPlay control server
+ * Buffers partial requests and pending responses for a single non-blocking socket
+ */
+class AirPlayConnection {
+    private static final String TAG = "AirPlayConnection";
+
+    static final int STATE_READING = 0;
+    static final int STATE_WRITING = 1;
+    static final int STATE_CLOSED = 2;
+
+    // Connections start with a pooled buffer of the default size and borrow a large one
+    // only while a big request is in flight. Anything larger than the read limit is
+    // rejected rather than buffered without bound.
+    static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    static final int MAX_READ_BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_WRITE_BUFFER_SIZE = 256 * 1024;
+
+    private static final int IDLE_TIMEOUT_MS = 30 * 1000;
+    private static final int STREAMING_IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final String remoteAddress;
+    private final AirPlayHTTPHandler handler;
+    private final ByteBufferPool defaultBufferPool;
+    private final ByteBufferPool largeBufferPool;
+
+    private final AirPlayRequestParser parser = new AirPlayRequestParser();
+    private final AirPlayRequest request = new AirPlayRequest();
+
+    // Both buffers are kept in fill mode between events. Unparsed request data
+    // lives in readBuffer between readStart and the buffer position.
+    private ByteBuffer readBuffer;
+    private ByteBuffer writeBuffer;
+    private int readStart;
+
+    private int state = STATE_READING;
+    private boolean closeAfterWrite;
+    private boolean closed;
+    private long lastActivityMs = SystemClock.uptimeMillis();
+
+    AirPlayConnection(SocketChannel channel, SelectionKey key, AirPlayReceiver.StatusCallback callback,
+                      StatusEventBus statusEvents, AirPlayServerInfo serverInfo, RaopAudioReceiver audioReceiver,
+                      AirPlayTimingService timingService, MirroringStreamReceiver mirroringReceiver,
+                      PairedSenderStore pairedSenders, ByteBufferPool defaultBufferPool,
+                      ByteBufferPool largeBufferPool) {
+        this.channel = channel;
+        this.key = key;
+        this.remoteAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+        this.handler = new AirPlayHTTPHandler(this, callback, statusEvents, serverInfo, audioReceiver, timingService,
+                mirroringReceiver, pairedSenders);
+        this.defaultBufferPool = defaultBufferPool;
+        this.largeBufferPool = largeBufferPool;
+        this.readBuffer = defaultBufferPool.acquire();
+        this.writeBuffer = defaultBufferPool.acquire();
+    }
+
+    String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    InetAddress getRemoteInetAddress() {
+        return channel.socket().getInetAddress();
+    }
+
+    // Returns false if the connection should be closed
+    boolean onReadable() throws IOException {
+        if (state != STATE_READING) {
+            // We don't accept more data until the pending responses are written
+            key.interestOps(SelectionKey.OP_WRITE);
+            return true;
+        }
+
+        int bytesRead = channel.read(readBuffer);
+        if (bytesRead < 0) {
+            return false;
+        }
+        lastActivityMs = SystemClock.uptimeMillis();
+
+        processRequests();
+
+        if (state == STATE_WRITING) {
+            // Most responses fit in the socket buffer, so try to write them right away
+            // instead of waiting for another trip through the selector.
+            return onWritable();
+        }
+
+        return state != STATE_CLOSED;
+    }
+
+    // Returns false if the connection should be closed
+    boolean onWritable() throws IOException {
+        writeBuffer.flip();
+        if (channel.write(writeBuffer) > 0) {
+            lastActivityMs = SystemClock.uptimeMillis();
+        }
+        writeBuffer.compact();
+
+        if (writeBuffer.position() > 0) {
+            // Still more to write
+            key.interestOps(SelectionKey.OP_WRITE);
+            return true;
+        }
+
+        if (writeBuffer.capacity() != defaultBufferPool.getBufferSize()) {
+            // Don't hold on to an oversized buffer once a large response has gone out
+            writeBuffer = defaultBufferPool.acquire();
+        }
+
+        if (closeAfterWrite) {
+            return false;
+        }
+
+        // Back to waiting for the next request on this persistent connection
+        state = STATE_READING;
+        key.interestOps(SelectionKey.OP_READ);
+        return true;
+    }
+
+    void send(byte[] data) throws IOException {
+        send(data, 0, data.length);
+    }
+
+    void send(byte[] data, int offset, int length) throws IOException {
+        ensureWriteCapacity(length);
+        writeBuffer.put(data, offset, length);
+        state = STATE_WRITING;
+    }
+
+    // Sends the remaining bytes of the buffer
+    void send(ByteBuffer data) throws IOException {
+        ensureWriteCapacity(data.remaining());
+        writeBuffer.put(data);
+        state = STATE_WRITING;
+    }
+
+    // Scratch space for encoding a response body, which must be given back with releaseBuffer()
+    ByteBuffer acquireBuffer() {
+        return defaultBufferPool.acquire();
+    }
+
+    void releaseBuffer(ByteBuffer buffer) {
+        defaultBufferPool.release(buffer);
+    }
+
+    // Writes ASCII text straight into the write buffer without building a String first
+    void sendAscii(CharSequence text) throws IOException {
+        int length = text.length();
+        ensureWriteCapacity(length);
+        for (int i = 0; i < length; i++) {
+            writeBuffer.put((byte) text.charAt(i));
+        }
+        state = STATE_WRITING;
+    }
+
+    private void ensureWriteCapacity(int length) throws IOException {
+        if (writeBuffer.remaining() >= length) {
+            return;
+        }
+
+        int required = writeBuffer.position() + length;
+        if (required > MAX_WRITE_BUFFER_SIZE) {
+            throw new IOException("Response too large: " + required + " bytes");
+        }
+
+        ByteBuffer newBuffer = ByteBuffer.allocate(Math.min(MAX_WRITE_BUFFER_SIZE,
+                Math.max(required, writeBuffer.capacity() * 2)));
+        writeBuffer.flip();
+        newBuffer.put(writeBuffer);
+        defaultBufferPool.release(writeBuffer);
+        writeBuffer = newBuffer;
+    }
+
+    // Returns false if the connection was already closed
+    boolean close() {
+        if (closed) {
+            return false;
+        }
+
+        closed = true;
+        state = STATE_CLOSED;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing AirPlay client socket", e);
+        }
+
+        releaseReadBuffer();
+        defaultBufferPool.release(writeBuffer);
+        readBuffer = null;
+        writeBuffer = null;
+
+        handler.onConnectionClosed();
+        return true;
+    }
+
+    void closeAfterWrite() {
+        closeAfterWrite = true;
+    }
+
+    boolean isClosingAfterWrite() {
+        return closeAfterWrite;
+    }
+
+    boolean isIdle(long nowMs) {
+        // Streaming senders go quiet on the control channel for long stretches, so give
+        // them more slack than a sender that never got past discovery.
+        long timeoutMs = handler.getSession().isStreaming() ? STREAMING_IDLE_TIMEOUT_MS : IDLE_TIMEOUT_MS;
+        return nowMs - lastActivityMs > timeoutMs;
+    }
+
+    // Handles every complete request in the read buffer. Senders pipeline several requests
+    // without waiting for responses, so there may be more than one.
+    private void processRequests() throws IOException {
+        while (!closeAfterWrite) {
+            int end = readBuffer.position();
+            if (readStart == end) {
+                // Everything has been consumed, so start over at the front of a default buffer
+                readStart = 0;
+                parser.reset();
+                if (readBuffer.capacity() != defaultBufferPool.getBufferSize()) {
+                    releaseReadBuffer();
+                    readBuffer = defaultBufferPool.acquire();
+                }
+                else {
+                    readBuffer.clear();
+                }
+                return;
+            }
+
+            int result = parser.parse(readBuffer.array(), readStart, end, request);
+            if (result == AirPlayRequestParser.RESULT_INCOMPLETE) {
+                if (!readBuffer.hasRemaining() && !makeRoom(end - readStart + 1)) {
+                    rejectRequest("HTTP/1.1 431 Request Header Fields Too Large\r\n\r\n");
+                }
+                return;
+            }
+            else if (result == AirPlayRequestParser.RESULT_TOO_MANY_HEADERS) {
+                rejectRequest("HTTP/1.1 431 Request Header Fields Too Large\r\n\r\n");
+                return;
+            }
+            else if (result != AirPlayRequestParser.RESULT_COMPLETE) {
+                rejectRequest("HTTP/1.1 400 Bad Request\r\n\r\n");
+                return;
+            }
+
+            int requestLength = request.getLength();
+            if (readStart + requestLength > readBuffer.capacity()) {
+                if (!makeRoom(requestLength)) {
+                    rejectRequest("HTTP/1.1 413 Request Entity Too Large\r\n\r\n");
+                    return;
+                }
+
+                // The data moved, so the parsed offsets are stale. Reparse next time around.
+                continue;
+            }
+
+            if (end < readStart + requestLength) {
+                // Wait for the rest of the body
+                return;
+            }
+
+            // The request points into readBuffer, so it is handled in place. Any pipelined
+            // requests behind it stay where they are until we get to them.
+            handler.handleRequest(request);
+            readStart += requestLength;
+        }
+    }
+
+    private void rejectRequest(String response) throws IOException {
+        // We can't find the start of the next request after this, so give up on the connection
+        Log.w(TAG, "Rejecting request from " + remoteAddress + ": " + response.trim());
+        closeAfterWrite = true;
+        sendAscii(response);
+    }
+
+    // Moves the unparsed data to the front of a buffer able to hold requiredCapacity bytes
+    private boolean makeRoom(int requiredCapacity) {
+        if (requiredCapacity > MAX_READ_BUFFER_SIZE) {
+            return false;
+        }
+
+        byte[] data = readBuffer.array();
+        int unparsed = readBuffer.position() - readStart;
+
+        if (requiredCapacity <= readBuffer.capacity()) {
+            System.arraycopy(data, readStart, data, 0, unparsed);
+            readBuffer.position(unparsed);
+        }
+        else {
+            ByteBuffer newBuffer = largeBufferPool.acquire();
+            newBuffer.put(data, readStart, unparsed);
+            releaseReadBuffer();
+            readBuffer = newBuffer;
+        }
+
+        readStart = 0;
+        parser.reset();
+        return true;
+    }
+
+    private void releaseReadBuffer() {
+        if (readBuffer.capacity() == largeBufferPool.getBufferSize()) {
+            largeBufferPool.release(readBuffer);
+        }
+        else {
+            defaultBufferPool.release(readBuffer);
+        }
+    }
+}
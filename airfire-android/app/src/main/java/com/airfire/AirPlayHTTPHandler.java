@@ -2,13 +2,11 @@ package com.airfire;
 
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 
 /**
  * Handles AirPlay HTTP protocol requests
@@ -17,159 +15,579 @@ import java.util.Map;
 public class AirPlayHTTPHandler {
     private static final String TAG = "AirPlayHTTP";
     
-    private Socket clientSocket;
+    private static final String SERVER_VERSION = "AirTunes/" + AirPlayServerInfo.SOURCE_VERSION;
+    private static final String RTSP_PUBLIC_METHODS =
+        "ANNOUNCE, SETUP, RECORD, PAUSE, FLUSH, TEARDOWN, OPTIONS, GET_PARAMETER, SET_PARAMETER, POST, GET";
+    
+    private static final byte[] ACCEPT_BINARY_PLIST = AirPlayRequest.ascii("application/x-apple-binary-plist");
+    private static final byte[] CONTENT_TYPE_BINARY_PLIST = ACCEPT_BINARY_PLIST;
+    private static final String CONTENT_TYPE_OCTET_STREAM = "application/octet-stream";
+    private static final String CONTENT_TYPE_JSON = "application/json";
+    
+    // Stream types in a SETUP request
+    private static final int STREAM_TYPE_AUDIO = 96;
+    private static final int STREAM_TYPE_MIRRORING = 110;
+    
+    // Endpoints we recognise, so a request can be reported by number instead of by path
+    static final int ENDPOINT_NONE = 0;
+    static final int ENDPOINT_SERVER_INFO = 1;
+    static final int ENDPOINT_INFO = 2;
+    static final int ENDPOINT_PLAY = 3;
+    static final int ENDPOINT_SCRUB = 4;
+    static final int ENDPOINT_STOP = 5;
+    static final int ENDPOINT_PHOTO = 6;
+    static final int ENDPOINT_FEEDBACK = 7;
+    static final int ENDPOINT_PAIR_SETUP = 8;
+    static final int ENDPOINT_PAIR_VERIFY = 9;
+    static final int ENDPOINT_FP_SETUP = 10;
+    static final int ENDPOINT_LATENCY = 11;
+    
+    // Indexed by the ENDPOINT_* constants above
+    private static final String[] ENDPOINT_PATHS = {
+        null,
+        "/server-info",
+        "/info",
+        "/play",
+        "/scrub",
+        "/stop",
+        "/photo",
+        "/feedback",
+        "/pair-setup",
+        "/pair-verify",
+        "/fp-setup",
+        "/latency",
+    };
+    private static final byte[][] ENDPOINT_PATH_BYTES = new byte[ENDPOINT_PATHS.length][];
+    
+    static {
+        for (int i = 1; i < ENDPOINT_PATHS.length; i++) {
+            ENDPOINT_PATH_BYTES[i] = AirPlayRequest.ascii(ENDPOINT_PATHS[i]);
+        }
+    }
+    
+    private AirPlayConnection connection;
     private AirPlayReceiver.StatusCallback statusCallback;
-    private BufferedReader reader;
-    private OutputStream outputStream;
+    private StatusEventBus statusEvents;
+    private AirPlayServerInfo serverInfo;
+    private RaopAudioReceiver audioReceiver;
+    private AirPlayTimingService timingService;
+    private MirroringStreamReceiver mirroringReceiver;
+    private AirPlaySession session;
+    private LegacyPairing pairing;
+    private long verifyStartNs;
     
-    public AirPlayHTTPHandler(Socket clientSocket, AirPlayReceiver.StatusCallback callback) {
-        this.clientSocket = clientSocket;
+    // Reused for every response head on this connection
+    private final StringBuilder responseHead = new StringBuilder(256);
+    
+    // Plist bodies are decoded into and built from the same trees on every request
+    private final BinaryPlistReader plistReader = new BinaryPlistReader();
+    private final BinaryPlistWriter plistWriter = new BinaryPlistWriter();
+    private final PlistValue requestPlist = new PlistValue();
+    private final PlistValue responsePlist = new PlistValue();
+    
+    // Per-request state needed to build the response
+    private AirPlayRequest request;
+    private boolean isRtsp;
+    private int cseqIndex;
+    
+    // audioReceiver and mirroringReceiver are null when the receiver has nowhere to play
+    // audio or video, timingService when the timing port couldn't be opened, and
+    // pairedSenders when pairing isn't offered
+    AirPlayHTTPHandler(AirPlayConnection connection, AirPlayReceiver.StatusCallback callback,
+                       StatusEventBus statusEvents, AirPlayServerInfo serverInfo,
+                       RaopAudioReceiver audioReceiver, AirPlayTimingService timingService,
+                       MirroringStreamReceiver mirroringReceiver, PairedSenderStore pairedSenders) {
+        this.connection = connection;
         this.statusCallback = callback;
+        this.statusEvents = statusEvents;
+        this.serverInfo = serverInfo;
+        this.audioReceiver = audioReceiver;
+        this.timingService = timingService;
+        this.mirroringReceiver = mirroringReceiver;
+        this.session = new AirPlaySession(connection.getRemoteAddress());
+        if (pairedSenders != null) {
+            this.pairing = new LegacyPairing(serverInfo.getIdentity(), pairedSenders);
+        }
     }
     
-    public void handleConnection() throws IOException {
-        reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-        outputStream = clientSocket.getOutputStream();
-        
-        String requestLine;
-        while ((requestLine = reader.readLine()) != null && !requestLine.isEmpty()) {
-            Log.d(TAG, "AirPlay request: " + requestLine);
-            
-            if (requestLine.startsWith("GET") || requestLine.startsWith("POST")) {
-                handleHTTPRequest(requestLine);
-                break; // Handle one request per connection for simplicity
+    AirPlaySession getSession() {
+        return session;
+    }
+    
+    // Called once the connection is closed. A sender that disconnects without a TEARDOWN
+    // mustn't leave its audio stream running.
+    void onConnectionClosed() {
+        if (audioReceiver != null) {
+            audioReceiver.stop(session);
+        }
+        if (timingService != null) {
+            timingService.clearRemote(session);
+        }
+    }
+    
+    // Path of an ENDPOINT_* constant, or null for ENDPOINT_NONE
+    static String getEndpointPath(int endpoint) {
+        return endpoint > ENDPOINT_NONE && endpoint < ENDPOINT_PATHS.length ? ENDPOINT_PATHS[endpoint] : null;
+    }
+    
+    private static int matchEndpoint(AirPlayRequest request) {
+        for (int i = 1; i < ENDPOINT_PATH_BYTES.length; i++) {
+            if (request.pathEquals(ENDPOINT_PATH_BYTES[i])) {
+                return i;
             }
         }
+        return ENDPOINT_NONE;
     }
     
-    private void handleHTTPRequest(String requestLine) throws IOException {
-        String[] parts = requestLine.split(" ");
-        if (parts.length < 2) return;
+    // Called by the connection for each complete request, in the order they arrived.
+    // The request points into the connection's read buffer and is only valid during this call.
+    void handleRequest(AirPlayRequest request) throws IOException {
+        this.request = request;
+        isRtsp = request.isRtsp();
+        cseqIndex = request.findHeader(AirPlayRequest.HEADER_CSEQ);
         
-        String method = parts[0];
-        String path = parts[1];
+        if (!request.isKeepAlive()) {
+            connection.closeAfterWrite();
+        }
         
-        Log.d(TAG, "Handling " + method + " " + path);
-        statusCallback.onStatusUpdate("🍎 AirPlay: " + method + " " + path);
+        session.onRequest(request);
         
-        // Read headers
-        Map<String, String> headers = new HashMap<>();
-        String headerLine;
-        while ((headerLine = reader.readLine()) != null && !headerLine.isEmpty()) {
-            String[] headerParts = headerLine.split(": ", 2);
-            if (headerParts.length == 2) {
-                headers.put(headerParts[0], headerParts[1]);
-            }
+        try {
+            dispatchRequest(request);
+        } finally {
+            this.request = null;
+        }
+    }
+    
+    private void dispatchRequest(AirPlayRequest request) throws IOException {
+        int method = request.getMethod();
+        int endpoint = matchEndpoint(request);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Handling " + request.getMethodString() + " " + request.getPathString());
+        }
+        statusEvents.publish(StatusEventBus.EVENT_REQUEST, method, endpoint, 0, null);
+        
+        // RTSP verbs used by the streaming handshake
+        switch (method) {
+            case AirPlayRequest.METHOD_OPTIONS:
+                handleOptions();
+                return;
+            case AirPlayRequest.METHOD_ANNOUNCE:
+                handleAnnounce();
+                return;
+            case AirPlayRequest.METHOD_SETUP:
+                handleSetup();
+                return;
+            case AirPlayRequest.METHOD_RECORD:
+                handleRecord();
+                return;
+            case AirPlayRequest.METHOD_GET_PARAMETER:
+            case AirPlayRequest.METHOD_SET_PARAMETER:
+                sendResponse(200, "OK");
+                return;
+            case AirPlayRequest.METHOD_FLUSH:
+                handleFlush();
+                return;
+            case AirPlayRequest.METHOD_TEARDOWN:
+                handleTeardown();
+                return;
         }
         
         // Handle different AirPlay endpoints
-        switch (path) {
-            case "/server-info":
+        switch (endpoint) {
+            case ENDPOINT_SERVER_INFO:
+            case ENDPOINT_INFO:
                 handleServerInfo();
                 break;
-            case "/play":
-                handlePlay(headers);
+            case ENDPOINT_PLAY:
+                handlePlay(request.getBody());
+                break;
+            case ENDPOINT_SCRUB:
+            case ENDPOINT_STOP:
+            case ENDPOINT_PHOTO:
+            case ENDPOINT_FEEDBACK:
+                // Scrub, stop and photo are acknowledged but not acted on yet. Feedback is
+                // the periodic keep-alive from the sender while streaming.
+                sendResponse(200, "OK");
                 break;
-            case "/scrub":
-                handleScrub();
+            case ENDPOINT_PAIR_SETUP:
+                handlePairSetup();
                 break;
-            case "/stop":
-                handleStop();
+            case ENDPOINT_PAIR_VERIFY:
+                handlePairVerify();
                 break;
-            case "/photo":
-                handlePhoto(headers);
+            case ENDPOINT_FP_SETUP:
+                handleUnsupported();
+                break;
+            case ENDPOINT_LATENCY:
+                handleLatency();
                 break;
             default:
-                handleNotFound();
+                sendResponse(404, "Not Found");
                 break;
         }
     }
     
-    private void handleServerInfo() throws IOException {
-        statusCallback.onStatusUpdate("🍎 Providing server info to iOS device");
-        
-        String response = 
-            "HTTP/1.1 200 OK\r\n" +
-            "Date: " + new java.util.Date() + "\r\n" +
-            "Content-Type: text/x-apple-plist+xml\r\n" +
-            "Content-Length: 500\r\n" +
-            "\r\n" +
-            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
-            "<!DOCTYPE plist PUBLIC \"-//Apple//DTD PLIST 1.0//EN\" \"http://www.apple.com/DTDs/PropertyList-1.0.dtd\">\n" +
-            "<plist version=\"1.0\">\n" +
-            "<dict>\n" +
-            "    <key>deviceid</key>\n" +
-            "    <string>AA:BB:CC:DD:EE:FF</string>\n" +
-            "    <key>features</key>\n" +
-            "    <integer>0x445F8A00</integer>\n" +
-            "    <key>model</key>\n" +
-            "    <string>AirFire1,1</string>\n" +
-            "    <key>protovers</key>\n" +
-            "    <string>1.0</string>\n" +
-            "    <key>srcvers</key>\n" +
-            "    <string>366.0</string>\n" +
-            "</dict>\n" +
-            "</plist>";
-        
-        outputStream.write(response.getBytes());
-        outputStream.flush();
-    }
-    
-    private void handlePlay(Map<String, String> headers) throws IOException {
-        statusCallback.onStatusUpdate("🍎 Starting AirPlay video stream");
-        
-        String contentLength = headers.get("Content-Length");
-        if (contentLength != null) {
-            int length = Integer.parseInt(contentLength);
-            byte[] content = new byte[length];
-            
-            // Read the video stream content
-            int bytesRead = 0;
-            while (bytesRead < length) {
-                int read = clientSocket.getInputStream().read(content, bytesRead, length - bytesRead);
-                if (read == -1) break;
-                bytesRead += read;
+    private void sendResponse(int statusCode, String reason) throws IOException {
+        sendResponse(statusCode, reason, null, null, null);
+    }
+    
+    private void sendResponse(int statusCode, String reason, String extraHeaders,
+                              String contentType, byte[] body) throws IOException {
+        sendResponseHead(statusCode, reason, extraHeaders, contentType, body != null ? body.length : 0);
+        if (body != null) {
+            connection.send(body);
+        }
+    }
+    
+    // Encodes the plist into a pooled buffer and sends it, without an intermediate byte array
+    private void sendPlistResponse(PlistValue body) throws IOException {
+        ByteBuffer buffer = connection.acquireBuffer();
+        try {
+            plistWriter.write(body, buffer);
+            buffer.flip();
+            sendResponseHead(200, "OK", null, AirPlayServerInfo.CONTENT_TYPE_BINARY_PLIST, buffer.remaining());
+            connection.send(buffer);
+        } catch (BufferOverflowException e) {
+            throw new IOException("Plist response too large", e);
+        } finally {
+            connection.releaseBuffer(buffer);
+        }
+    }
+    
+    private void sendResponseHead(int statusCode, String reason, String extraHeaders,
+                                  String contentType, int contentLength) throws IOException {
+        StringBuilder response = responseHead;
+        response.setLength(0);
+        response.append(isRtsp ? "RTSP/1.0 " : "HTTP/1.1 ").append(statusCode).append(' ').append(reason).append("\r\n");
+        response.append("Server: ").append(SERVER_VERSION).append("\r\n");
+        if (cseqIndex >= 0) {
+            // RTSP requires the sequence number to be echoed back
+            response.append("CSeq: ");
+            request.appendHeaderValue(cseqIndex, response);
+            response.append("\r\n");
+        }
+        if (extraHeaders != null) {
+            response.append(extraHeaders);
+        }
+        if (contentType != null) {
+            response.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        // An exact length is mandatory, since the sender reuses this connection for the next request
+        response.append("Content-Length: ").append(contentLength).append("\r\n");
+        if (connection.isClosingAfterWrite()) {
+            response.append("Connection: close\r\n");
+        }
+        response.append("\r\n");
+        
+        connection.sendAscii(response);
+    }
+    
+    // Decodes a binary plist request body into requestPlist. Returns false if there isn't one.
+    private boolean readPlistBody() {
+        int contentTypeIndex = request.findHeader(AirPlayRequest.HEADER_CONTENT_TYPE);
+        if (contentTypeIndex < 0 || request.getContentLength() == 0 ||
+                !request.headerValueEqualsIgnoreCase(contentTypeIndex, CONTENT_TYPE_BINARY_PLIST)) {
+            return false;
+        }
+        
+        ByteBuffer body = request.getBody();
+        plistReader.read(body.array(), body.arrayOffset() + body.position(), body.remaining(), requestPlist);
+        return true;
+    }
+    
+    private void handleOptions() throws IOException {
+        sendResponse(200, "OK", "Public: " + RTSP_PUBLIC_METHODS + "\r\n", null, null);
+    }
+    
+    // Legacy RAOP senders describe their audio stream in SDP before setting it up
+    private void handleAnnounce() throws IOException {
+        if (audioReceiver == null) {
+            sendResponse(501, "Not Implemented");
+            return;
+        }
+        
+        // Once per session, so decoding it to a String is fine
+        ByteBuffer body = request.getBody();
+        AudioStreamFormat format = AudioStreamFormat.fromSdp(new String(body.array(),
+                body.arrayOffset() + body.position(), body.remaining(), StandardCharsets.UTF_8));
+        if (format == null) {
+            sendResponse(415, "Unsupported Media Type");
+            return;
+        }
+        
+        session.setAudioFormat(format);
+        sendResponse(200, "OK");
+    }
+    
+    private void handleSetup() throws IOException {
+        statusEvents.publish(StatusEventBus.EVENT_LIFECYCLE, StatusEventBus.LIFECYCLE_SESSION_SETUP);
+        session.advanceTo(AirPlaySession.STATE_SETUP);
+        
+        // Legacy senders describe the stream in headers, newer ones in a binary plist
+        try {
+            if (!readPlistBody()) {
+                if (session.getAudioFormat() != null && request.findHeader(AirPlayRequest.HEADER_TRANSPORT) >= 0) {
+                    handleAudioTransportSetup();
+                }
+                else {
+                    sendResponse(200, "OK");
+                }
+                return;
             }
-            
-            statusCallback.onStatusUpdate("🍎 Received " + bytesRead + " bytes of video data");
-            statusCallback.onVideoData(content);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Malformed SETUP body", e);
+            sendResponse(400, "Bad Request");
+            return;
         }
         
-        // Send OK response
-        String response = "HTTP/1.1 200 OK\r\n\r\n";
-        outputStream.write(response.getBytes());
-        outputStream.flush();
+        // Answer each stream we can receive with the port it should be sent to. The
+        // session-level SETUP without streams gets an empty dictionary.
+        PlistValue response = responsePlist.clear(PlistValue.TYPE_DICT);
+        PlistValue timingPort = requestPlist.get("timingPort");
+        if (timingPort != null && timingService != null) {
+            timingService.setRemote(session, connection.getRemoteInetAddress(), (int) timingPort.getInteger());
+            response.put("timingPort").setInteger(timingService.getPort());
+        }
+        
+        PlistValue streams = requestPlist.get("streams");
+        if (streams != null && streams.getType() == PlistValue.TYPE_ARRAY) {
+            PlistValue acceptedStreams = response.put("streams").clear(PlistValue.TYPE_ARRAY);
+            for (int i = 0; i < streams.size(); i++) {
+                PlistValue streamRequest = streams.get(i);
+                PlistValue type = streamRequest.get("type");
+                if (type == null) {
+                    continue;
+                }
+                
+                if (type.getInteger() == STREAM_TYPE_MIRRORING) {
+                    PlistValue stream = acceptedStreams.add().clear(PlistValue.TYPE_DICT);
+                    stream.put("type").setInteger(STREAM_TYPE_MIRRORING);
+                    stream.put("dataPort").setInteger(MirroringStreamReceiver.MIRRORING_PORT);
+                    setupMirroringStream();
+                }
+                else if (type.getInteger() == STREAM_TYPE_AUDIO && setupAudioStream(streamRequest)) {
+                    PlistValue stream = acceptedStreams.add().clear(PlistValue.TYPE_DICT);
+                    stream.put("type").setInteger(STREAM_TYPE_AUDIO);
+                    stream.put("dataPort").setInteger(audioReceiver.getDataPort());
+                    stream.put("controlPort").setInteger(audioReceiver.getControlPort());
+                }
+            }
+        }
+        sendPlistResponse(response);
+    }
+    
+    // The sender connects to the mirroring port after this, so the key is in place before its first packet.
+    // The stream key comes from the SETUP ekey, which only FairPlay can unwrap, so streams are taken as sent.
+    private void setupMirroringStream() {
+        if (mirroringReceiver == null) {
+            return;
+        }
+        mirroringReceiver.setStreamKey(null, 0);
+    }
+    
+    // The Transport header asks for our audio ports, and the response gives them back in the same form
+    private void handleAudioTransportSetup() throws IOException {
+        if (!startAudio(session.getAudioFormat())) {
+            sendResponse(500, "Internal Server Error");
+            return;
+        }
+        
+        // Without a timing responder, timing requests go to the control port and are ignored
+        int controlPort = audioReceiver.getControlPort();
+        int timingPort = controlPort;
+        if (timingService != null) {
+            // Once per session, so reading the header into a String is fine
+            String transport = request.getHeaderValue(request.findHeader(AirPlayRequest.HEADER_TRANSPORT));
+            timingService.setRemote(session, connection.getRemoteInetAddress(), getTransportPort(transport, "timing_port="));
+            timingPort = timingService.getPort();
+        }
+        sendResponse(200, "OK", "Transport: RTP/AVP/UDP;unicast;mode=record;server_port=" + audioReceiver.getDataPort() +
+                ";control_port=" + controlPort + ";timing_port=" + timingPort + "\r\nSession: 1\r\n", null, null);
+    }
+    
+    // A port parameter such as "timing_port=" from a Transport header, or 0 if it's missing
+    static int getTransportPort(String transport, String name) {
+        int start = transport.indexOf(name);
+        if (start < 0) {
+            return 0;
+        }
+        start += name.length();
+        int port = 0;
+        for (int i = start; i < transport.length() && i < start + 5; i++) {
+            char c = transport.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            port = port * 10 + (c - '0');
+        }
+        return port;
+    }
+    
+    // Newer senders describe the audio stream in the SETUP plist instead of an ANNOUNCE
+    private boolean setupAudioStream(PlistValue stream) {
+        if (audioReceiver == null) {
+            return false;
+        }
+        if (stream.get("shk") != null) {
+            // The stream key is only usable after FairPlay setup, which we don't do
+            Log.w(TAG, "Encrypted audio streams are not supported");
+            return false;
+        }
+        
+        PlistValue compressionType = stream.get("ct");
+        PlistValue sampleRate = stream.get("sr");
+        PlistValue framesPerPacket = stream.get("spf");
+        AudioStreamFormat format = AudioStreamFormat.fromCompressionType(
+                compressionType != null ? (int) compressionType.getInteger() : 0,
+                sampleRate != null ? (int) sampleRate.getInteger() : 0,
+                framesPerPacket != null ? (int) framesPerPacket.getInteger() : 0);
+        if (format == null) {
+            Log.w(TAG, "Unsupported audio stream: ct=" + (compressionType != null ? compressionType.getInteger() : -1));
+            return false;
+        }
+        
+        session.setAudioFormat(format);
+        return startAudio(format);
+    }
+    
+    private boolean startAudio(AudioStreamFormat format) {
+        try {
+            audioReceiver.start(session, format);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start audio receiver", e);
+            statusEvents.publish(StatusEventBus.EVENT_ERROR, StatusEventBus.ERROR_AUDIO, 0, 0, e.getMessage());
+            return false;
+        }
+    }
+    
+    private void handleRecord() throws IOException {
+        statusEvents.publish(StatusEventBus.EVENT_LIFECYCLE, StatusEventBus.LIFECYCLE_STREAMING_STARTED);
+        session.advanceTo(AirPlaySession.STATE_RECORDING);
+        sendResponse(200, "OK");
+    }
+    
+    private void handleFlush() throws IOException {
+        // Sent on pause and seek, and audio from before it must not be played
+        if (audioReceiver != null) {
+            audioReceiver.flush(session);
+        }
+        sendResponse(200, "OK");
     }
     
-    private void handleScrub() throws IOException {
-        statusCallback.onStatusUpdate("🍎 AirPlay scrub request");
+    private void handleTeardown() throws IOException {
+        statusEvents.publish(StatusEventBus.EVENT_LIFECYCLE, StatusEventBus.LIFECYCLE_SESSION_ENDED);
+        session.advanceTo(AirPlaySession.STATE_TORN_DOWN);
+        if (audioReceiver != null) {
+            audioReceiver.stop(session);
+        }
+        sendResponse(200, "OK");
+    }
+    
+    // Legacy pair-setup is just the sender's Ed25519 key. A longer body is HomeKit pairing,
+    // which needs a PIN exchange we don't offer.
+    private void handlePairSetup() throws IOException {
+        ByteBuffer body = request.getBody();
+        if (pairing == null || body.remaining() != LegacyPairing.SETUP_REQUEST_SIZE) {
+            handleUnsupported();
+            return;
+        }
         
-        String response = "HTTP/1.1 200 OK\r\n\r\n";
-        outputStream.write(response.getBytes());
-        outputStream.flush();
+        session.advanceTo(AirPlaySession.STATE_PAIRING);
+        byte[] publicKey = pairing.setup(body.array(), body.arrayOffset() + body.position());
+        sendResponse(200, "OK", null, CONTENT_TYPE_OCTET_STREAM, publicKey);
+    }
+    
+    // Two requests: the sender's keys, answered with ours and our signature, then the
+    // sender's signature. A returning sender starts here without a pair-setup.
+    private void handlePairVerify() throws IOException {
+        ByteBuffer body = request.getBody();
+        if (pairing == null || body.remaining() != LegacyPairing.VERIFY_REQUEST_SIZE) {
+            handleUnsupported();
+            return;
+        }
+        
+        session.advanceTo(AirPlaySession.STATE_PAIRING);
+        byte[] data = body.array();
+        int offset = body.arrayOffset() + body.position();
+        try {
+            if (data[offset] != 0) {
+                verifyStartNs = System.nanoTime();
+                byte[] response = pairing.startVerify(data, offset);
+                if (response == null) {
+                    sendResponse(470, "Connection Authorization Required");
+                    return;
+                }
+                sendResponse(200, "OK", null, CONTENT_TYPE_OCTET_STREAM, response);
+            }
+            else if (pairing.finishVerify(data, offset)) {
+                Log.i(TAG, (pairing.isResumed() ? "Returning" : "New") + " sender verified in " +
+                        (System.nanoTime() - verifyStartNs) / 1000000 + " ms");
+                sendResponse(200, "OK");
+            }
+            else {
+                Log.w(TAG, "Pair-verify signature rejected");
+                sendResponse(470, "Connection Authorization Required");
+            }
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Pair-verify failed", e);
+            sendResponse(500, "Internal Server Error");
+        }
+    }
+    
+    private void handleUnsupported() throws IOException {
+        session.advanceTo(AirPlaySession.STATE_PAIRING);
+        sendResponse(501, "Not Implemented");
     }
     
-    private void handleStop() throws IOException {
-        statusCallback.onStatusUpdate("🍎 AirPlay stream stopped");
+    private void handleServerInfo() throws IOException {
+        session.advanceTo(AirPlaySession.STATE_INFO_EXCHANGED);
         
-        String response = "HTTP/1.1 200 OK\r\n\r\n";
-        outputStream.write(response.getBytes());
-        outputStream.flush();
+        // Both encodings were built when the receiver started, so this is just a write
+        if (acceptsBinaryPlist()) {
+            sendResponse(200, "OK", null, AirPlayServerInfo.CONTENT_TYPE_BINARY_PLIST, serverInfo.getBinaryBody());
+        }
+        else {
+            sendResponse(200, "OK", null, AirPlayServerInfo.CONTENT_TYPE_XML_PLIST, serverInfo.getXmlBody());
+        }
     }
     
-    private void handlePhoto(Map<String, String> headers) throws IOException {
-        statusCallback.onStatusUpdate("🍎 AirPlay photo received");
+    // Per-stage frame latency for the stream being mirrored. It isn't part of AirPlay, so it's
+    // only answered on loopback, which is where adb forward delivers it from.
+    private void handleLatency() throws IOException {
+        if (!connection.getRemoteInetAddress().isLoopbackAddress()) {
+            sendResponse(403, "Forbidden");
+            return;
+        }
         
-        String response = "HTTP/1.1 200 OK\r\n\r\n";
-        outputStream.write(response.getBytes());
-        outputStream.flush();
+        FrameLatencyTracker latencyTracker = mirroringReceiver != null ? mirroringReceiver.getLatencyTracker() : null;
+        if (latencyTracker == null) {
+            sendResponse(404, "Not Found");
+            return;
+        }
+        sendResponse(200, "OK", null, CONTENT_TYPE_JSON, latencyTracker.toJson().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    // Newer senders ask for a binary plist. Anything else, including no Accept header, gets XML.
+    private boolean acceptsBinaryPlist() {
+        int acceptIndex = request.findHeader(AirPlayRequest.HEADER_ACCEPT);
+        return acceptIndex >= 0 && request.headerValueContainsIgnoreCase(acceptIndex, ACCEPT_BINARY_PLIST);
     }
     
-    private void handleNotFound() throws IOException {
-        statusCallback.onStatusUpdate("🍎 Unknown AirPlay request");
+    private void handlePlay(ByteBuffer body) throws IOException {
+        // The connection has already buffered the full Content-Length body for us
+        if (body.hasRemaining()) {
+            statusEvents.addBytesReceived(body.remaining());
+            
+            // The callback may hold on to the data after we return, so this is the one
+            // place the body gets copied out of the read buffer.
+            byte[] videoData = new byte[body.remaining()];
+            body.get(videoData);
+            statusCallback.onVideoData(videoData);
+        }
         
-        String response = "HTTP/1.1 404 Not Found\r\n\r\n";
-        outputStream.write(response.getBytes());
-        outputStream.flush();
+        // Send OK response
+        sendResponse(200, "OK");
     }
 }
\ No newline at end of file
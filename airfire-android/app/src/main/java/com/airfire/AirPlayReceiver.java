@@ -1,189 +1,178 @@
 package com.airfire;
 
 import android.content.Context;
-import android.net.nsd.NsdManager;
-import android.net.nsd.NsdServiceInfo;
-import android.net.wifi.WifiManager;
-import android.text.format.Formatter;
+import android.os.Process;
 import android.util.Log;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * AirPlay Receiver for Fire TV
  * Makes the Fire TV appear as an AirPlay receiver in iOS Control Center
  */
 public class AirPlayReceiver {
-    private static final String TAG = "AirFireAirPlay";
+    private static final String TAG = "AirPlayReceiver";
     private static final int AIRPLAY_PORT = 7000;
-    private static final String SERVICE_TYPE = "_airplay._tcp";
     private static final String SERVICE_NAME = "AirFire";
     
     private Context context;
     private StatusCallback statusCallback;
-    private NsdManager nsdManager;
-    private ServerSocket airplayServer;
+    private StatusEventBus statusEvents;
+    private AirPlayServicePublisher servicePublisher;
+    private AirPlayServer airplayServer;
+    private AirPlayServerInfo serverInfo;
+    private AirPlayIdentity identity;
+    private PairedSenderStore pairedSenders;
+    private MirroringStreamReceiver mirroringReceiver;
+    private RaopAudioReceiver audioReceiver;
+    private AirPlayTimingService timingService;
+    private final AvSyncClock avSyncClock = new AvSyncClock();
+    private final FrameLatencyTracker latencyTracker = new FrameLatencyTracker(avSyncClock);
+    private AirPlayDisplay display = AirPlayDisplay.DEFAULT;
+    private DecodeUnitSink decodeUnitSink;
+    private AudioFrameSink audioFrameSink;
     private boolean isRunning = false;
     
-    public interface StatusCallback {
-        void onStatusUpdate(String message);
-        void onAirPlayConnection(String clientAddress);
+    public interface StatusCallback extends StatusEventBus.Listener {
+        // Called on the selector thread for each /play body
         void onVideoData(byte[] data);
     }
     
+    // Status updates are delivered to the callback on the main thread, coalesced so it
+    // runs at most a few times per second however busy the receiver is.
     public AirPlayReceiver(Context context, StatusCallback callback) {
         this.context = context;
         this.statusCallback = callback;
-        this.nsdManager = (NsdManager) context.getSystemService(Context.NSD_SERVICE);
+        CoreLog.setSink(AndroidPlatform.LOG_SINK);
+        this.statusEvents = new StatusEventBus(callback);
+        this.statusEvents.setLatencyTracker(latencyTracker);
+    }
+    
+    // Screen-mirroring video is only received if a sink has been set before start()
+    public void setDecodeUnitSink(DecodeUnitSink sink) {
+        this.decodeUnitSink = sink;
+    }
+    
+    // Likewise audio, from music AirPlay and mirroring, is only received if a sink has been set.
+    // The sink is fed from a dedicated output thread, so it may block until the track has room.
+    public void setAudioFrameSink(AudioFrameSink sink) {
+        this.audioFrameSink = sink;
+    }
+    
+    // Senders are told to mirror at this size and frame rate. Like the sinks, it has to be set
+    // before start(), and 1080p60 is advertised if it isn't.
+    void setDisplay(AirPlayDisplay display) {
+        this.display = display;
+    }
+    
+    AirPlayDisplay getDisplay() {
+        return display;
+    }
+    
+    // Hand this to the audio sink and video renderer to keep mirrored video in sync with audio
+    public AvSyncClock getAvSyncClock() {
+        return avSyncClock;
+    }
+    
+    // Hand this to the video renderer too, so mirrored frames are timed all the way to the screen
+    public FrameLatencyTracker getLatencyTracker() {
+        return latencyTracker;
     }
     
     public void start() {
         if (isRunning) return;
         
         isRunning = true;
-        statusCallback.onStatusUpdate("🍎 Starting AirPlay receiver...");
+        statusEvents.publish(StatusEventBus.EVENT_LIFECYCLE, StatusEventBus.LIFECYCLE_RECEIVER_STARTING);
+        
+        // The device ID has to match between the TXT records and /info, so both come from
+        // here. It's read from storage rather than made up from the network, so it doesn't
+        // change with the IP address and senders that have paired before recognize us.
+        if (identity == null) {
+            FileStore files = AndroidPlatform.fileStore(context);
+            identity = AirPlayIdentity.load(files);
+            pairedSenders = PairedSenderStore.load(files);
+        }
+        serverInfo = new AirPlayServerInfo(identity, SERVICE_NAME, display);
+        
+        // Senders exchange timing packets with us for as long as they're connected
+        timingService = new AirPlayTimingService(
+            AndroidPlatform.threadFactory(Process.THREAD_PRIORITY_URGENT_AUDIO));
+        try {
+            timingService.start();
+            avSyncClock.setTimingService(timingService);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start timing responder", e);
+            timingService = null;
+        }
+        
+        // Audio streams are started and stopped by the sender's SETUP and TEARDOWN requests
+        if (audioFrameSink != null) {
+            audioReceiver = new RaopAudioReceiver(audioFrameSink, statusEvents);
+        }
+        
+        // Start the mirroring data stream receiver. The server keys it for each stream, so it comes first.
+        if (decodeUnitSink != null) {
+            mirroringReceiver = new MirroringStreamReceiver(MirroringStreamReceiver.MIRRORING_PORT,
+                decodeUnitSink, statusEvents, avSyncClock, latencyTracker);
+            mirroringReceiver.start();
+        }
         
         // Start AirPlay HTTP server
         startAirPlayServer();
         
         // Advertise AirPlay service via Bonjour
-        advertiseAirPlayService();
+        servicePublisher = new AirPlayServicePublisher(context, serverInfo, AIRPLAY_PORT, statusEvents);
+        servicePublisher.start();
     }
     
     public void stop() {
         isRunning = false;
         
         // Stop service advertisement
-        if (nsdManager != null) {
-            try {
-                nsdManager.unregisterService(registrationListener);
-            } catch (Exception e) {
-                Log.w(TAG, "Error unregistering service", e);
-            }
+        if (servicePublisher != null) {
+            servicePublisher.stop();
+            servicePublisher = null;
         }
         
         // Stop AirPlay server
         if (airplayServer != null) {
-            try {
-                airplayServer.close();
-            } catch (IOException e) {
-                Log.w(TAG, "Error closing AirPlay server", e);
-            }
+            airplayServer.stop();
+            airplayServer = null;
         }
         
-        statusCallback.onStatusUpdate("🍎 AirPlay receiver stopped");
-    }
-    
-    private void startAirPlayServer() {
-        new Thread(() -> {
-            try {
-                airplayServer = new ServerSocket(AIRPLAY_PORT);
-                statusCallback.onStatusUpdate("🍎 AirPlay server ready on port " + AIRPLAY_PORT);
-                
-                while (isRunning) {
-                    try {
-                        Socket clientSocket = airplayServer.accept();
-                        statusCallback.onStatusUpdate("🍎 AirPlay client connected: " + clientSocket.getRemoteSocketAddress());
-                        statusCallback.onAirPlayConnection(clientSocket.getRemoteSocketAddress().toString());
-                        
-                        // Handle AirPlay client in separate thread
-                        new Thread(() -> handleAirPlayClient(clientSocket)).start();
-                        
-                    } catch (IOException e) {
-                        if (isRunning) {
-                            Log.e(TAG, "AirPlay server error", e);
-                            statusCallback.onStatusUpdate("❌ AirPlay server error: " + e.getMessage());
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to start AirPlay server", e);
-                statusCallback.onStatusUpdate("❌ Failed to start AirPlay server: " + e.getMessage());
-            }
-        }).start();
-    }
-    
-    private void handleAirPlayClient(Socket clientSocket) {
-        try {
-            AirPlayHTTPHandler handler = new AirPlayHTTPHandler(clientSocket, statusCallback);
-            handler.handleConnection();
-        } catch (Exception e) {
-            Log.e(TAG, "Error handling AirPlay client", e);
-            statusCallback.onStatusUpdate("❌ AirPlay client error: " + e.getMessage());
-        } finally {
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                Log.w(TAG, "Error closing AirPlay client socket", e);
-            }
-        }
-    }
-    
-    private void advertiseAirPlayService() {
-        try {
-            NsdServiceInfo serviceInfo = new NsdServiceInfo();
-            serviceInfo.setServiceName(SERVICE_NAME);
-            serviceInfo.setServiceType(SERVICE_TYPE);
-            serviceInfo.setPort(AIRPLAY_PORT);
-            
-            // Add AirPlay TXT records
-            Map<String, String> attributes = new HashMap<>();
-            attributes.put("deviceid", getMacAddress());
-            attributes.put("features", "0x445F8A00,0x1C340"); // AirPlay features
-            attributes.put("model", "AirFire");
-            attributes.put("srcvers", "366.0"); // AirPlay source version
-            attributes.put("vv", "2"); // Version
-            
-            // Note: Android NSD doesn't directly support TXT records in older versions
-            // For production, consider using jmDNS library for better control
-            
-            nsdManager.registerService(serviceInfo, NsdManager.PROTOCOL_DNS_SD, registrationListener);
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to advertise AirPlay service", e);
-            statusCallback.onStatusUpdate("❌ Failed to advertise AirPlay service: " + e.getMessage());
-        }
-    }
-    
-    private final NsdManager.RegistrationListener registrationListener = new NsdManager.RegistrationListener() {
-        @Override
-        public void onRegistrationFailed(NsdServiceInfo serviceInfo, int errorCode) {
-            Log.e(TAG, "Service registration failed: " + errorCode);
-            statusCallback.onStatusUpdate("❌ AirPlay service registration failed: " + errorCode);
+        // Stop mirroring receiver
+        if (mirroringReceiver != null) {
+            mirroringReceiver.stop();
+            mirroringReceiver = null;
         }
         
-        @Override
-        public void onUnregistrationFailed(NsdServiceInfo serviceInfo, int errorCode) {
-            Log.w(TAG, "Service unregistration failed: " + errorCode);
+        // Stop any audio stream the server left running
+        if (audioReceiver != null) {
+            audioReceiver.stop();
+            audioReceiver = null;
         }
         
-        @Override
-        public void onServiceRegistered(NsdServiceInfo serviceInfo) {
-            Log.i(TAG, "AirPlay service registered: " + serviceInfo.getServiceName());
-            statusCallback.onStatusUpdate("🍎 AirPlay service advertised - visible in iOS Control Center");
+        if (timingService != null) {
+            avSyncClock.setTimingService(null);
+            timingService.stop();
+            timingService = null;
         }
         
-        @Override
-        public void onServiceUnregistered(NsdServiceInfo serviceInfo) {
-            Log.i(TAG, "AirPlay service unregistered");
-        }
-    };
+        statusEvents.publish(StatusEventBus.EVENT_LIFECYCLE, StatusEventBus.LIFECYCLE_RECEIVER_STOPPED);
+    }
     
-    private String getMacAddress() {
-        // Generate a pseudo MAC address for AirPlay device ID
-        // In production, you'd want to use a consistent device identifier
-        WifiManager wifiManager = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
-        String ip = Formatter.formatIpAddress(wifiManager.getConnectionInfo().getIpAddress());
-        
-        // Create pseudo MAC from IP for simplicity
-        String[] parts = ip.split("\\.");
-        return String.format("AA:BB:CC:%02X:%02X:%02X", 
-            Integer.parseInt(parts[1]) % 256,
-            Integer.parseInt(parts[2]) % 256, 
-            Integer.parseInt(parts[3]) % 256);
+    private void startAirPlayServer() {
+        airplayServer = new AirPlayServer(AIRPLAY_PORT, statusCallback, statusEvents, serverInfo, audioReceiver,
+            timingService, mirroringReceiver, pairedSenders);
+        airplayServer.start();
+    }
+    
+    public int getActiveConnectionCount() {
+        return airplayServer != null ? airplayServer.getActiveConnectionCount() : 0;
+    }
+    
+    public long getAverageAcceptLatencyUs() {
+        return airplayServer != null ? airplayServer.getAverageAcceptLatencyUs() : 0;
     }
 }
\ No newline at end of file
@@ -0,0 +1,281 @@
+package com.airfire;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Event-driven AirPlay control server
+ * Multiplexes every AirPlay client onto a single selector thread instead of a thread per socket
+ */
+public class AirPlayServer {
+    private static final String TAG = "AirPlayServer";
+    private static final int SELECT_TIMEOUT_MS = 1000;
+    private static final int IDLE_CHECK_INTERVAL_MS = 5000;
+    private static final int MAX_POOLED_DEFAULT_BUFFERS = 16;
+    private static final int MAX_POOLED_LARGE_BUFFERS = 1;
+
+    private final int port;
+    private final AirPlayReceiver.StatusCallback statusCallback;
+    private final StatusEventBus statusEvents;
+    private final AirPlayServerInfo serverInfo;
+    private final RaopAudioReceiver audioReceiver;
+    private final AirPlayTimingService timingService;
+    private final MirroringStreamReceiver mirroringReceiver;
+    private final PairedSenderStore pairedSenders;
+    private final ByteBufferPool defaultBufferPool =
+            new ByteBufferPool(AirPlayConnection.DEFAULT_BUFFER_SIZE, MAX_POOLED_DEFAULT_BUFFERS);
+    private final ByteBufferPool largeBufferPool =
+            new ByteBufferPool(AirPlayConnection.MAX_READ_BUFFER_SIZE, MAX_POOLED_LARGE_BUFFERS);
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private volatile boolean isRunning = false;
+    private long lastIdleCheckMs;
+
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicLong totalConnections = new AtomicLong();
+    private final AtomicLong totalAcceptLatencyNs = new AtomicLong();
+    private final AtomicLong maxAcceptLatencyNs = new AtomicLong();
+
+    AirPlayServer(int port, AirPlayReceiver.StatusCallback callback, StatusEventBus statusEvents,
+                  AirPlayServerInfo serverInfo, RaopAudioReceiver audioReceiver, AirPlayTimingService timingService,
+                  MirroringStreamReceiver mirroringReceiver, PairedSenderStore pairedSenders) {
+        this.port = port;
+        this.statusCallback = callback;
+        this.statusEvents = statusEvents;
+        this.serverInfo = serverInfo;
+        this.audioReceiver = audioReceiver;
+        this.timingService = timingService;
+        this.mirroringReceiver = mirroringReceiver;
+        this.pairedSenders = pairedSenders;
+    }
+
+    public void start() {
+        if (isRunning) return;
+
+        isRunning = true;
+        selectorThread = new Thread(this::runSelectorLoop, "AirPlay - Selector");
+        selectorThread.start();
+    }
+
+    public void stop() {
+        isRunning = false;
+
+        Selector currentSelector = selector;
+        if (currentSelector != null) {
+            currentSelector.wakeup();
+        }
+
+        if (selectorThread != null) {
+            try {
+                selectorThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+
+                // InterruptedException clears the thread's interrupt status. Since we can't
+                // handle that here, we will re-interrupt the thread to set the interrupt
+                // status back to true.
+                Thread.currentThread().interrupt();
+            }
+            selectorThread = null;
+        }
+    }
+
+    public int getActiveConnectionCount() {
+        return activeConnections.get();
+    }
+
+    public long getTotalConnectionCount() {
+        return totalConnections.get();
+    }
+
+    // Time from the selector reporting a pending connection to the client being registered
+    public long getAverageAcceptLatencyUs() {
+        long connections = totalConnections.get();
+        if (connections == 0) {
+            return 0;
+        }
+        return totalAcceptLatencyNs.get() / connections / 1000;
+    }
+
+    public long getMaxAcceptLatencyUs() {
+        return maxAcceptLatencyNs.get() / 1000;
+    }
+
+    private void runSelectorLoop() {
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            statusEvents.publish(StatusEventBus.EVENT_LIFECYCLE, StatusEventBus.LIFECYCLE_SERVER_READY, port, 0, null);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start AirPlay server", e);
+            statusEvents.publish(StatusEventBus.EVENT_ERROR, StatusEventBus.ERROR_SERVER, 0, 0, e.getMessage());
+            closeAll();
+            return;
+        }
+
+        while (isRunning) {
+            try {
+                selector.select(SELECT_TIMEOUT_MS);
+            } catch (IOException e) {
+                Log.e(TAG, "AirPlay server error", e);
+                statusEvents.publish(StatusEventBus.EVENT_ERROR, StatusEventBus.ERROR_SERVER, 0, 0, e.getMessage());
+                break;
+            }
+
+            long readyTimeNs = System.nanoTime();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                if (key.isAcceptable()) {
+                    acceptConnections(readyTimeNs);
+                }
+                else {
+                    handleConnectionEvent(key);
+                }
+            }
+
+            long nowMs = SystemClock.uptimeMillis();
+            if (nowMs - lastIdleCheckMs >= IDLE_CHECK_INTERVAL_MS) {
+                closeIdleConnections(nowMs);
+                lastIdleCheckMs = nowMs;
+            }
+        }
+
+        closeAll();
+    }
+
+    private void acceptConnections(long readyTimeNs) {
+        // Drain the whole accept backlog, since several senders tend to probe at once
+        while (true) {
+            SocketChannel clientChannel;
+            try {
+                clientChannel = serverChannel.accept();
+                if (clientChannel == null) {
+                    return;
+                }
+
+                clientChannel.configureBlocking(false);
+                clientChannel.socket().setTcpNoDelay(true);
+
+                SelectionKey clientKey = clientChannel.register(selector, SelectionKey.OP_READ);
+                AirPlayConnection connection = new AirPlayConnection(clientChannel, clientKey, statusCallback,
+                        statusEvents, serverInfo, audioReceiver, timingService, mirroringReceiver, pairedSenders,
+                        defaultBufferPool, largeBufferPool);
+                clientKey.attach(connection);
+
+                recordAccept(System.nanoTime() - readyTimeNs);
+
+                statusEvents.publish(StatusEventBus.EVENT_CONNECTION, StatusEventBus.CONNECTION_OPENED,
+                        activeConnections.get(), 0, connection.getRemoteAddress());
+            } catch (IOException e) {
+                if (isRunning) {
+                    Log.e(TAG, "AirPlay server error", e);
+                    statusEvents.publish(StatusEventBus.EVENT_ERROR, StatusEventBus.ERROR_SERVER, 0, 0, e.getMessage());
+                }
+                return;
+            }
+        }
+    }
+
+    private void recordAccept(long latencyNs) {
+        activeConnections.incrementAndGet();
+        totalConnections.incrementAndGet();
+        totalAcceptLatencyNs.addAndGet(latencyNs);
+
+        long currentMax;
+        do {
+            currentMax = maxAcceptLatencyNs.get();
+        } while (latencyNs > currentMax && !maxAcceptLatencyNs.compareAndSet(currentMax, latencyNs));
+    }
+
+    private void handleConnectionEvent(SelectionKey key) {
+        AirPlayConnection connection = (AirPlayConnection) key.attachment();
+        boolean keepOpen;
+
+        try {
+            keepOpen = true;
+            if (key.isReadable()) {
+                keepOpen = connection.onReadable();
+            }
+            if (keepOpen && key.isValid() && key.isWritable()) {
+                keepOpen = connection.onWritable();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Error handling AirPlay client", e);
+            statusEvents.publish(StatusEventBus.EVENT_ERROR, StatusEventBus.ERROR_CLIENT, 0, 0, e.getMessage());
+            keepOpen = false;
+        }
+
+        if (!keepOpen) {
+            closeConnection(connection);
+        }
+    }
+
+    private void closeConnection(AirPlayConnection connection) {
+        if (connection.close()) {
+            statusEvents.publish(StatusEventBus.EVENT_CONNECTION, StatusEventBus.CONNECTION_CLOSED,
+                    activeConnections.decrementAndGet(), 0, connection.getRemoteAddress());
+        }
+    }
+
+    private void closeIdleConnections(long nowMs) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof AirPlayConnection) {
+                AirPlayConnection connection = (AirPlayConnection) key.attachment();
+                if (connection.isIdle(nowMs)) {
+                    Log.i(TAG, "Closing idle AirPlay connection: " + connection.getRemoteAddress());
+                    closeConnection(connection);
+                }
+            }
+        }
+    }
+
+    private void closeAll() {
+        if (selector != null) {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof AirPlayConnection) {
+                    closeConnection((AirPlayConnection) key.attachment());
+                }
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing selector", e);
+            }
+            selector = null;
+        }
+
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing AirPlay server", e);
+            }
+            serverChannel = null;
+        }
+    }
+}
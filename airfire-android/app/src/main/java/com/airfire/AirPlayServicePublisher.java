@@ -0,0 +1,228 @@
+package com.airfire;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkRequest;
+import android.net.wifi.WifiManager;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.jmdns.JmmDNS;
+import javax.jmdns.NetworkTopologyDiscovery;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.impl.NetworkTopologyDiscoveryImpl;
+
+/**
+ * Advertises the receiver over mDNS with JmDNS
+ * Publishes _airplay._tcp and _raop._tcp with their full TXT records on every interface, and re-announces when the network changes
+ */
+class AirPlayServicePublisher {
+    private static final String TAG = "AirPlayPublisher";
+
+    static final String AIRPLAY_SERVICE_TYPE = "_airplay._tcp.local.";
+    static final String RAOP_SERVICE_TYPE = "_raop._tcp.local.";
+
+    // Network callbacks arrive in bursts while an interface comes up, so wait for them to settle
+    private static final int REANNOUNCE_DELAY_MS = 1000;
+
+    private final AirPlayServerInfo serverInfo;
+    private final int port;
+    private final StatusEventBus statusEvents;
+    private final WifiManager.MulticastLock multicastLock;
+    private final ConnectivityManager connectivityManager;
+
+    // Registration and re-announcement both block on the network, so they run here in order
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            runnable -> new Thread(runnable, "AirPlay - mDNS"));
+    private ScheduledFuture<?> pendingReannounce;
+
+    private JmmDNS jmmdns;
+    private ServiceInfo airplayService;
+    private ServiceInfo raopService;
+    private boolean networkCallbackRegistered;
+
+    // The addresses each network had at its last callback. Only touched on the
+    // ConnectivityManager callback thread.
+    private final Map<Network, Set<InetAddress>> networkAddresses = new HashMap<>();
+
+    // Like jmDNS's own topology discovery, except we skip the multicast check. Some devices
+    // report interfaces as not supporting multicast when they really do.
+    static class ReceiverNetworkTopologyDiscovery extends NetworkTopologyDiscoveryImpl {
+        @Override
+        public boolean useInetAddress(NetworkInterface networkInterface, InetAddress interfaceAddress) {
+            try {
+                return networkInterface.isUp() && !networkInterface.isLoopback();
+            } catch (Exception e) {
+                return false;
+            }
+        }
+    }
+
+    static {
+        NetworkTopologyDiscovery.Factory.setClassDelegate(ReceiverNetworkTopologyDiscovery::new);
+    }
+
+    AirPlayServicePublisher(Context context, AirPlayServerInfo serverInfo, int port, StatusEventBus statusEvents) {
+        this.serverInfo = serverInfo;
+        this.port = port;
+        this.statusEvents = statusEvents;
+
+        // Without the multicast lock the Wi-Fi driver filters out the queries we must answer
+        WifiManager wifiManager = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        this.multicastLock = wifiManager.createMulticastLock("AirFire mDNS");
+        this.multicastLock.setReferenceCounted(false);
+        this.connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    void start() {
+        multicastLock.acquire();
+        executor.execute(this::register);
+
+        if (connectivityManager != null) {
+            try {
+                connectivityManager.registerNetworkCallback(new NetworkRequest.Builder().build(), networkCallback);
+                networkCallbackRegistered = true;
+            } catch (RuntimeException e) {
+                // JmmDNS still notices new interfaces on its own, just more slowly
+                Log.w(TAG, "Unable to watch for network changes", e);
+            }
+        }
+    }
+
+    void stop() {
+        if (networkCallbackRegistered) {
+            connectivityManager.unregisterNetworkCallback(networkCallback);
+            networkCallbackRegistered = false;
+        }
+
+        // Unregistering sends goodbye packets, so senders drop us right away instead of
+        // waiting for the records to expire.
+        synchronized (this) {
+            if (pendingReannounce != null) {
+                pendingReannounce.cancel(false);
+            }
+            executor.execute(this::unregister);
+            executor.shutdown();
+        }
+        try {
+            executor.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+
+            // InterruptedException clears the thread's interrupt status. Since we can't
+            // handle that here, we will re-interrupt the thread to set the interrupt
+            // status back to true.
+            Thread.currentThread().interrupt();
+        }
+
+        multicastLock.release();
+    }
+
+    private void register() {
+        try {
+            jmmdns = JmmDNS.Factory.getInstance();
+
+            // JmDNS answers queries for these from now on, and registers them again on any
+            // interface that appears later.
+            airplayService = ServiceInfo.create(AIRPLAY_SERVICE_TYPE, serverInfo.getName(), port,
+                    0, 0, serverInfo.getAirPlayTxtRecord());
+            raopService = ServiceInfo.create(RAOP_SERVICE_TYPE, serverInfo.getRaopServiceName(), port,
+                    0, 0, serverInfo.getRaopTxtRecord());
+            jmmdns.registerService(airplayService);
+            jmmdns.registerService(raopService);
+
+            Log.i(TAG, "AirPlay services registered: " + serverInfo.getName());
+            statusEvents.publish(StatusEventBus.EVENT_LIFECYCLE, StatusEventBus.LIFECYCLE_SERVICE_ADVERTISED);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to advertise AirPlay service", e);
+            statusEvents.publish(StatusEventBus.EVENT_ERROR, StatusEventBus.ERROR_ADVERTISING, 0, 0, e.getMessage());
+        }
+    }
+
+    private void unregister() {
+        if (jmmdns == null) {
+            return;
+        }
+
+        if (airplayService != null) {
+            jmmdns.unregisterService(airplayService);
+        }
+        if (raopService != null) {
+            jmmdns.unregisterService(raopService);
+        }
+        airplayService = raopService = null;
+
+        try {
+            JmmDNS.Factory.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing mDNS", e);
+        }
+        jmmdns = null;
+    }
+
+    // A new address or a network switch leaves senders with stale records until they
+    // expire. Registering again sends a fresh announcement straight away, and retries
+    // a registration that failed because there was no network yet.
+    private void reannounce() {
+        Log.i(TAG, "Network changed, re-announcing AirPlay services");
+        if (jmmdns != null) {
+            if (airplayService != null) {
+                jmmdns.unregisterService(airplayService);
+            }
+            if (raopService != null) {
+                jmmdns.unregisterService(raopService);
+            }
+        }
+        register();
+    }
+
+    private synchronized void scheduleReannounce() {
+        if (executor.isShutdown()) {
+            return;
+        }
+        if (pendingReannounce != null) {
+            pendingReannounce.cancel(false);
+        }
+        pendingReannounce = executor.schedule(this::reannounce, REANNOUNCE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private final ConnectivityManager.NetworkCallback networkCallback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onAvailable(Network network) {
+            scheduleReannounce();
+        }
+
+        // Routes, DNS servers and the like change far more often than addresses, and don't
+        // change what we advertise
+        @Override
+        public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+            Set<InetAddress> addresses = new HashSet<>();
+            for (LinkAddress linkAddress : linkProperties.getLinkAddresses()) {
+                addresses.add(linkAddress.getAddress());
+            }
+            if (!addresses.equals(networkAddresses.put(network, addresses))) {
+                scheduleReannounce();
+            }
+        }
+
+        @Override
+        public void onLost(Network network) {
+            networkAddresses.remove(network);
+            scheduleReannounce();
+        }
+    };
+}
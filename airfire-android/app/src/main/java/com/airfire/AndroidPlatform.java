@@ -0,0 +1,56 @@
+package com.airfire;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Android implementations of the platform interfaces airfire-core is written against
+ * Logging goes to logcat, files to the app's private storage and core threads get the priority they ask for
+ */
+final class AndroidPlatform {
+    private AndroidPlatform() {
+    }
+
+    // CoreLog levels are android.util.Log's, so they pass straight through
+    static final CoreLog.Sink LOG_SINK = new CoreLog.Sink() {
+        @Override
+        public boolean isLoggable(String tag, int level) {
+            // Info and above always reach logcat, like android.util.Log.i does
+            return level >= Log.INFO || Log.isLoggable(tag, level);
+        }
+
+        @Override
+        public void log(int level, String tag, String message, Throwable error) {
+            Log.println(level, tag, error != null ? message + '\n' + Log.getStackTraceString(error) : message);
+        }
+    };
+
+    static FileStore fileStore(Context context) {
+        return new FileStore() {
+            @Override
+            public InputStream openInput(String name) throws FileNotFoundException {
+                return context.openFileInput(name);
+            }
+
+            @Override
+            public OutputStream openOutput(String name) throws IOException {
+                return context.openFileOutput(name, Context.MODE_PRIVATE);
+            }
+        };
+    }
+
+    // One of the Process.THREAD_PRIORITY_* values, applied as each thread starts
+    static ThreadFactory threadFactory(int priority) {
+        return runnable -> new Thread(() -> {
+            Process.setThreadPriority(priority);
+            runnable.run();
+        });
+    }
+}
@@ -0,0 +1,118 @@
+package com.airfire;
+
+import android.app.Activity;
+import android.graphics.Point;
+import android.os.Build;
+import android.util.Log;
+import android.view.Display;
+import android.view.WindowManager;
+
+/**
+ * Picks the display mode mirrored video is shown in, the way Moonlight's Game.prepareDisplayForRendering does
+ * The panel keeps its native resolution and only the refresh rate is matched to the sender's frame rate
+ */
+final class DisplayModeSelector {
+    private static final String TAG = "DisplayModeSelector";
+
+    // Wider panels are 8K, where a 4K stream decodes and the TV scales it by exactly two
+    private static final int MAX_STREAM_WIDTH = 3840;
+
+    private DisplayModeSelector() {
+    }
+
+    // Switches the window to the chosen mode and returns what to advertise to senders.
+    // Call before the receiver starts, since /info is built from the result.
+    static AirPlayDisplay prepareDisplay(Activity activity) {
+        Display display = activity.getWindowManager().getDefaultDisplay();
+        WindowManager.LayoutParams windowLayoutParams = activity.getWindow().getAttributes();
+        AirPlayDisplay selected;
+
+        // On M, we can explicitly set the display mode
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Display.Mode currentMode = display.getMode();
+            Display.Mode bestMode = currentMode;
+            Log.i(TAG, "Current display mode: " + describe(currentMode));
+
+            for (Display.Mode candidate : display.getSupportedModes()) {
+                // Changing resolution would only make the TV scale, which is what we're avoiding
+                if (candidate.getPhysicalWidth() != currentMode.getPhysicalWidth() ||
+                        candidate.getPhysicalHeight() != currentMode.getPhysicalHeight()) {
+                    continue;
+                }
+
+                if (isBetterRefreshRate(candidate.getRefreshRate(), bestMode.getRefreshRate())) {
+                    bestMode = candidate;
+                }
+            }
+
+            Log.i(TAG, "Best display mode: " + describe(bestMode));
+            if (bestMode.getModeId() != currentMode.getModeId()) {
+                windowLayoutParams.preferredDisplayModeId = bestMode.getModeId();
+                activity.getWindow().setAttributes(windowLayoutParams);
+            }
+
+            selected = createDisplay(bestMode.getPhysicalWidth(), bestMode.getPhysicalHeight(), bestMode.getRefreshRate());
+        }
+        // On L, we can at least tell the OS that we want a refresh rate
+        else {
+            float bestRefreshRate = display.getRefreshRate();
+            for (float candidate : display.getSupportedRefreshRates()) {
+                if (isBetterRefreshRate(candidate, bestRefreshRate)) {
+                    bestRefreshRate = candidate;
+                }
+            }
+
+            Log.i(TAG, "Selected refresh rate: " + bestRefreshRate);
+            windowLayoutParams.preferredRefreshRate = bestRefreshRate;
+            activity.getWindow().setAttributes(windowLayoutParams);
+
+            Point size = new Point();
+            display.getRealSize(size);
+            selected = createDisplay(Math.max(size.x, size.y), Math.min(size.x, size.y), bestRefreshRate);
+        }
+
+        Log.i(TAG, "Advertising " + selected + ", max " + selected.getMaxFps() + " FPS");
+        return selected;
+    }
+
+    // An exact match for the sender's frame rate comes first, then a multiple of it so each
+    // frame is shown for a whole number of refreshes. Otherwise the refresh rate isn't lowered.
+    private static boolean isBetterRefreshRate(float candidate, float best) {
+        boolean candidateEqual = isRefreshRateEqualMatch(candidate);
+        boolean bestEqual = isRefreshRateEqualMatch(best);
+        if (candidateEqual != bestEqual) {
+            return candidateEqual;
+        }
+
+        boolean candidateGood = isRefreshRateGoodMatch(candidate);
+        boolean bestGood = isRefreshRateGoodMatch(best);
+        if (candidateGood != bestGood) {
+            return candidateGood;
+        }
+
+        return candidate > best;
+    }
+
+    private static boolean isRefreshRateEqualMatch(float refreshRate) {
+        return refreshRate >= AirPlayDisplay.MAX_MIRRORING_FPS &&
+                refreshRate <= AirPlayDisplay.MAX_MIRRORING_FPS + 3;
+    }
+
+    private static boolean isRefreshRateGoodMatch(float refreshRate) {
+        return refreshRate >= AirPlayDisplay.MAX_MIRRORING_FPS &&
+                Math.round(refreshRate) % AirPlayDisplay.MAX_MIRRORING_FPS <= 3;
+    }
+
+    // Keeps the panel's shape when capping the width
+    private static AirPlayDisplay createDisplay(int width, int height, float refreshRate) {
+        if (width > MAX_STREAM_WIDTH) {
+            height = height * MAX_STREAM_WIDTH / width;
+            width = MAX_STREAM_WIDTH;
+        }
+        return new AirPlayDisplay(width, height, refreshRate);
+    }
+
+    private static String describe(Display.Mode mode) {
+        return mode.getPhysicalWidth() + "x" + mode.getPhysicalHeight() + "x" + mode.getRefreshRate();
+    }
+}
@@ -0,0 +1,226 @@
+package com.airfire;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Receiver for the AirFire stream on port 5000
+ * Reads length-prefixed frames with a large direct buffer and routes them to the video and audio sinks
+ */
+public class FramedStreamReceiver {
+    // Every frame starts with this header, big endian:
+    //   0  uint16  magic "AF"
+    //   2  uint8   frame type
+    //   3  uint8   flags, FLAG_END_OF_STREAM or 0
+    //   4  uint32  payload length
+    //   8  int64   audio presentation time in microseconds
+    // Video is shown as soon as it's decoded, and key frames are found from the NAL units,
+    // so video frames carry neither a flag nor a time of their own and send 0 in the field.
+    public static final int HEADER_SIZE = 16;
+    public static final int MAGIC = 0x4146;
+
+    // Video payloads are one complete Annex B access unit
+    public static final int TYPE_VIDEO_H264 = 1;
+    public static final int TYPE_VIDEO_H265 = 2;
+    // Audio payloads are 16-bit little endian PCM at the rate and channel count below
+    public static final int TYPE_AUDIO_PCM = 3;
+    public static final int TYPE_HEARTBEAT = 4;
+
+    public static final int FLAG_END_OF_STREAM = 0x80;
+
+    public static final int AUDIO_SAMPLE_RATE = 48000;
+    public static final int AUDIO_CHANNEL_COUNT = 2;
+
+    // Senders that predate the framed protocol write a bare Annex B stream, which we
+    // recognise because it can't start with the magic.
+    private static final int MODE_UNKNOWN = 0;
+    private static final int MODE_FRAMED = 1;
+    private static final int MODE_RAW = 2;
+
+    private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_PAYLOAD_SIZE = RECEIVE_BUFFER_SIZE - HEADER_SIZE;
+    private static final int SOCKET_RECEIVE_BUFFER_SIZE = 1024 * 1024;
+
+    private final DecodeUnitSink videoSink;
+    private final AudioFrameSink audioSink;
+
+    // Direct, so socket reads land in it without an intermediate copy
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+
+    private int mode = MODE_UNKNOWN;
+    private AnnexBSplitter splitter;
+    private int videoFormat;
+    private boolean audioStarted;
+
+    private long bytesReceived;
+    private long videoFramesReceived;
+    private long audioFramesReceived;
+
+    // Either sink may be null, in which case that media type is discarded
+    public FramedStreamReceiver(DecodeUnitSink videoSink, AudioFrameSink audioSink) {
+        this.videoSink = videoSink;
+        this.audioSink = audioSink;
+    }
+
+    // Receives until the sender closes the stream or sends FLAG_END_OF_STREAM
+    public void receive(SocketChannel channel) throws IOException {
+        channel.configureBlocking(true);
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setReceiveBufferSize(SOCKET_RECEIVE_BUFFER_SIZE);
+
+        receiveBuffer.clear();
+        try {
+            boolean endOfStream = false;
+            while (!endOfStream) {
+                int bytesRead = channel.read(receiveBuffer);
+                if (bytesRead < 0) {
+                    break;
+                }
+                bytesReceived += bytesRead;
+
+                long receiveTimeMs = SystemClock.uptimeMillis();
+                receiveBuffer.flip();
+
+                if (mode == MODE_UNKNOWN && receiveBuffer.remaining() >= 2) {
+                    mode = (receiveBuffer.getShort(receiveBuffer.position()) & 0xFFFF) == MAGIC ? MODE_FRAMED : MODE_RAW;
+                }
+
+                if (mode == MODE_RAW) {
+                    startVideo(DecodeUnitSink.VIDEO_FORMAT_H264);
+                    if (splitter != null) {
+                        splitter.feed(receiveBuffer, receiveTimeMs);
+                    }
+                    else {
+                        receiveBuffer.position(receiveBuffer.limit());
+                    }
+                }
+                else if (mode == MODE_FRAMED) {
+                    endOfStream = processFrames(receiveTimeMs);
+                }
+
+                receiveBuffer.compact();
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    public boolean isFramed() {
+        return mode == MODE_FRAMED;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getVideoFramesReceived() {
+        return videoFramesReceived;
+    }
+
+    public long getAudioFramesReceived() {
+        return audioFramesReceived;
+    }
+
+    public long getVideoFramesDropped() {
+        return splitter != null ? splitter.getFramesDropped() : 0;
+    }
+
+    // Handles every complete frame in the buffer. Returns true at the end of the stream.
+    private boolean processFrames(long receiveTimeMs) throws IOException {
+        ByteBuffer buffer = receiveBuffer;
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int headerStart = buffer.position();
+            if ((buffer.getShort(headerStart) & 0xFFFF) != MAGIC) {
+                throw new IOException("Lost frame sync");
+            }
+
+            int type = buffer.get(headerStart + 2) & 0xFF;
+            int flags = buffer.get(headerStart + 3) & 0xFF;
+            int payloadLength = buffer.getInt(headerStart + 4);
+            long audioTimeUs = buffer.getLong(headerStart + 8);
+
+            if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_SIZE) {
+                throw new IOException("Invalid frame length: " + payloadLength);
+            }
+            if (buffer.remaining() < HEADER_SIZE + payloadLength) {
+                // Wait for the rest of the payload
+                break;
+            }
+
+            // Hand the payload over as a window onto the receive buffer
+            int payloadEnd = headerStart + HEADER_SIZE + payloadLength;
+            int limit = buffer.limit();
+            buffer.position(headerStart + HEADER_SIZE);
+            buffer.limit(payloadEnd);
+            dispatchFrame(type, buffer, audioTimeUs, receiveTimeMs);
+            buffer.limit(limit);
+            buffer.position(payloadEnd);
+
+            if ((flags & FLAG_END_OF_STREAM) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void dispatchFrame(int type, ByteBuffer payload, long audioTimeUs, long receiveTimeMs) {
+        switch (type) {
+            case TYPE_VIDEO_H264:
+            case TYPE_VIDEO_H265:
+                videoFramesReceived++;
+                startVideo(type == TYPE_VIDEO_H265 ? DecodeUnitSink.VIDEO_FORMAT_H265 : DecodeUnitSink.VIDEO_FORMAT_H264);
+                if (splitter != null) {
+                    // The frame is complete, so submit it now rather than waiting for the next one
+                    splitter.feed(payload, receiveTimeMs);
+                    splitter.flush(SystemClock.uptimeMillis());
+                }
+                break;
+
+            case TYPE_AUDIO_PCM:
+                audioFramesReceived++;
+                if (audioSink != null) {
+                    if (!audioStarted) {
+                        audioStarted = true;
+                        audioSink.onAudioStarted(AUDIO_SAMPLE_RATE, AUDIO_CHANNEL_COUNT);
+                    }
+                    audioSink.submitAudio(payload, audioTimeUs);
+                }
+                break;
+
+            default:
+                // Heartbeats and unknown types are skipped
+                break;
+        }
+    }
+
+    private void startVideo(int format) {
+        if (videoSink == null || (splitter != null && videoFormat == format)) {
+            return;
+        }
+
+        if (splitter != null) {
+            // The sender switched codecs, which needs a new decoder
+            splitter.flush(SystemClock.uptimeMillis());
+            videoSink.onStreamStopped();
+        }
+
+        videoFormat = format;
+        splitter = new AnnexBSplitter(videoSink, format);
+        videoSink.onStreamStarted(format);
+    }
+
+    private void stop() {
+        if (splitter != null) {
+            splitter.flush(SystemClock.uptimeMillis());
+            videoSink.onStreamStopped();
+        }
+        if (audioStarted) {
+            audioStarted = false;
+            audioSink.onAudioStopped();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.airfire;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * AAC and AAC-ELD decoding through the platform MediaCodec decoder
+ * Used synchronously from the decode thread: each packet is queued and whatever PCM is ready is copied out straight away
+ */
+class MediaCodecAudioDecoder implements AudioPayloadDecoder {
+    private static final String TAG = "AirPlayAudio";
+
+    // Input buffers free up as soon as the previous packet is decoded, so this rarely waits
+    private static final long INPUT_TIMEOUT_US = 5000;
+    private static final long OUTPUT_TIMEOUT_US = 2000;
+
+    private final MediaCodec codec;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private long packetsDropped;
+
+    MediaCodecAudioDecoder(AudioStreamFormat format) throws IOException {
+        MediaFormat mediaFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC,
+                format.sampleRate, format.channelCount);
+        mediaFormat.setByteBuffer("csd-0", ByteBuffer.wrap(format.aacConfig));
+        mediaFormat.setInteger(MediaFormat.KEY_IS_ADTS, 0);
+        mediaFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, format.codec == AudioStreamFormat.CODEC_AAC_ELD ?
+                MediaCodecInfo.CodecProfileLevel.AACObjectELD : MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+
+        codec = MediaCodec.createDecoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+        try {
+            codec.configure(mediaFormat, null, null, 0);
+            codec.start();
+        } catch (RuntimeException e) {
+            codec.release();
+            throw new IOException("Unable to start " + format.getCodecName() + " decoder", e);
+        }
+    }
+
+    @Override
+    public int decode(byte[] payload, int offset, int length, byte[] pcm) {
+        int inputIndex = codec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+        if (inputIndex < 0) {
+            // The codec is wedged or far behind. A lost packet is better than stalling the receive side.
+            packetsDropped++;
+            return 0;
+        }
+
+        ByteBuffer inputBuffer = codec.getInputBuffer(inputIndex);
+        if (inputBuffer == null || inputBuffer.capacity() < length) {
+            codec.queueInputBuffer(inputIndex, 0, 0, 0, 0);
+            packetsDropped++;
+            return 0;
+        }
+        inputBuffer.clear();
+        inputBuffer.put(payload, offset, length);
+        codec.queueInputBuffer(inputIndex, 0, length, 0, 0);
+
+        // Decoders hold on to the first packet or two, so there may be nothing yet, or more
+        // than one packet's worth once they get going.
+        int written = 0;
+        long timeoutUs = OUTPUT_TIMEOUT_US;
+        while (true) {
+            int outputIndex = codec.dequeueOutputBuffer(bufferInfo, timeoutUs);
+            if (outputIndex >= 0) {
+                ByteBuffer outputBuffer = codec.getOutputBuffer(outputIndex);
+                int size = Math.min(bufferInfo.size, pcm.length - written);
+                if (outputBuffer != null && size > 0) {
+                    outputBuffer.position(bufferInfo.offset);
+                    outputBuffer.get(pcm, written, size);
+                    written += size;
+                }
+                codec.releaseOutputBuffer(outputIndex, false);
+                timeoutUs = 0;
+            }
+            else if (outputIndex != MediaCodec.INFO_OUTPUT_FORMAT_CHANGED &&
+                    outputIndex != MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                break;
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public void release() {
+        if (packetsDropped > 0) {
+            Log.w(TAG, "Audio decoder dropped " + packetsDropped + " packets");
+        }
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            // Already in the error state
+        }
+        codec.release();
+    }
+}
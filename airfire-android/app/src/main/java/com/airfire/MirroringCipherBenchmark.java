@@ -0,0 +1,54 @@
+package com.airfire;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Measures mirroring decryption throughput on the device it runs on
+ * Started from adb with the benchmark extra, since the figure that matters is the one on a Fire TV CPU
+ */
+class MirroringCipherBenchmark {
+    private static final String TAG = "AirPlayMirroring";
+
+    // A typical P-frame, a large one, and a 1080p IDR frame
+    private static final int[] PACKET_SIZES = {16 * 1024, 64 * 1024, 256 * 1024};
+
+    private static final int WARMUP_BYTES = 16 * 1024 * 1024;
+    private static final int MEASURED_BYTES = 64 * 1024 * 1024;
+
+    // Runs for a few seconds, so not on the main thread. Returns one line per packet size.
+    static String run() throws GeneralSecurityException {
+        MirroringStreamCipher cipher = new MirroringStreamCipher();
+        cipher.init(new byte[16], 0);
+
+        StringBuilder result = new StringBuilder("Mirroring decryption:");
+        for (int packetSize : PACKET_SIZES) {
+            byte[] packet = new byte[packetSize];
+
+            // Let the JIT compile the path before it's timed
+            decryptRepeatedly(cipher, packet, WARMUP_BYTES);
+
+            long startNs = SystemClock.elapsedRealtimeNanos();
+            long bytes = decryptRepeatedly(cipher, packet, MEASURED_BYTES);
+            long elapsedNs = SystemClock.elapsedRealtimeNanos() - startNs;
+
+            long megabytesPerSecond = bytes * 1000000 / Math.max(1, elapsedNs / 1000) / (1024 * 1024);
+            result.append('\n').append(packetSize / 1024).append(" KB packets: ")
+                    .append(megabytesPerSecond).append(" MB/s");
+        }
+
+        Log.i(TAG, result.toString());
+        return result.toString();
+    }
+
+    private static long decryptRepeatedly(MirroringStreamCipher cipher, byte[] packet, int totalBytes) {
+        long bytes = 0;
+        while (bytes < totalBytes) {
+            cipher.decrypt(packet, 0, packet.length);
+            bytes += packet.length;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,230 @@
+package com.airfire;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+
+/**
+ * Receives the AirPlay screen-mirroring data stream
+ * Reads each packet into a pooled buffer and hands it to the depacketizer on a dedicated thread
+ */
+public class MirroringStreamReceiver {
+    private static final String TAG = "AirPlayMirroring";
+
+    public static final int MIRRORING_PORT = 7100;
+
+    // A 1080p IDR frame is a few hundred KB at most, so the pooled buffer covers every
+    // packet in practice. Larger ones get a one-off buffer rather than being dropped.
+    private static final int PAYLOAD_BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+    private static final int SOCKET_RECEIVE_BUFFER_SIZE = 1024 * 1024;
+
+    private final int port;
+    private final DecodeUnitSink sink;
+    private final StatusEventBus statusEvents;
+    private final AvSyncClock syncClock;
+    private final FrameLatencyTracker latencyTracker;
+    private final ByteBufferPool payloadBufferPool = new ByteBufferPool(PAYLOAD_BUFFER_SIZE, 1);
+    private final byte[] header = new byte[MirroringDepacketizer.HEADER_SIZE];
+    private final ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+
+    // Keyed by the control connection's SETUP before the sender connects here. Only
+    // touched by the receive thread once a stream has started.
+    private final MirroringStreamCipher streamCipher = new MirroringStreamCipher();
+    private byte[] streamKey;
+    private long streamConnectionId;
+
+    private volatile ServerSocketChannel serverChannel;
+    private volatile SocketChannel clientChannel;
+    private Thread receiveThread;
+    private volatile boolean isRunning = false;
+
+    public MirroringStreamReceiver(int port, DecodeUnitSink sink, StatusEventBus statusEvents, AvSyncClock syncClock,
+                                   FrameLatencyTracker latencyTracker) {
+        this.port = port;
+        this.sink = sink;
+        this.statusEvents = statusEvents;
+        this.syncClock = syncClock;
+        this.latencyTracker = latencyTracker;
+    }
+
+    // Null if frames aren't being timed
+    FrameLatencyTracker getLatencyTracker() {
+        return latencyTracker;
+    }
+
+    // The next stream is decrypted with this key, or sent in the clear if it's null
+    synchronized void setStreamKey(byte[] streamKey, long streamConnectionId) {
+        this.streamKey = streamKey;
+        this.streamConnectionId = streamConnectionId;
+    }
+
+    public void start() {
+        if (isRunning) return;
+
+        isRunning = true;
+        receiveThread = new Thread(this::runAcceptLoop, "AirPlay - Mirroring");
+        receiveThread.setPriority(Thread.MAX_PRIORITY);
+        receiveThread.start();
+    }
+
+    public void stop() {
+        isRunning = false;
+
+        // Closing the channels unblocks the receive thread
+        closeQuietly(clientChannel);
+        closeQuietly(serverChannel);
+
+        if (receiveThread != null) {
+            try {
+                receiveThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+
+                // InterruptedException clears the thread's interrupt status. Since we can't
+                // handle that here, we will re-interrupt the thread to set the interrupt
+                // status back to true.
+                Thread.currentThread().interrupt();
+            }
+            receiveThread = null;
+        }
+    }
+
+    private void runAcceptLoop() {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().setReceiveBufferSize(SOCKET_RECEIVE_BUFFER_SIZE);
+            serverChannel.socket().bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start mirroring receiver", e);
+            statusEvents.publish(StatusEventBus.EVENT_ERROR, StatusEventBus.ERROR_MIRRORING, 0, 0, e.getMessage());
+            closeQuietly(serverChannel);
+            return;
+        }
+
+        // Only one sender can mirror at a time, so streams are handled one after another
+        while (isRunning) {
+            try {
+                clientChannel = serverChannel.accept();
+            } catch (IOException e) {
+                if (isRunning) {
+                    Log.e(TAG, "Mirroring accept failed", e);
+                    statusEvents.publish(StatusEventBus.EVENT_ERROR, StatusEventBus.ERROR_MIRRORING, 0, 0, e.getMessage());
+                }
+                break;
+            }
+
+            receiveStream(clientChannel);
+            closeQuietly(clientChannel);
+            clientChannel = null;
+        }
+
+        closeQuietly(serverChannel);
+    }
+
+    private void receiveStream(SocketChannel channel) {
+        MirroringDepacketizer depacketizer = new MirroringDepacketizer(sink, syncClock, latencyTracker);
+        if (latencyTracker != null) {
+            latencyTracker.reset();
+        }
+        ByteBuffer payloadBuffer = payloadBufferPool.acquire();
+
+        String remoteAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+        statusEvents.publish(StatusEventBus.EVENT_CONNECTION, StatusEventBus.CONNECTION_MIRRORING_STARTED,
+                0, 0, remoteAddress);
+
+        try {
+            channel.socket().setTcpNoDelay(true);
+            boolean encrypted = initStreamCipher();
+
+            while (isRunning) {
+                headerBuffer.clear();
+                readFully(channel, headerBuffer);
+                long receiveTimeMs = SystemClock.uptimeMillis();
+                long receiveTimeNs = System.nanoTime();
+
+                int payloadSize = MirroringDepacketizer.getPayloadSize(header);
+                if (payloadSize < 0 || payloadSize > MAX_PAYLOAD_SIZE) {
+                    throw new IOException("Invalid mirroring payload size: " + payloadSize);
+                }
+                if (payloadSize > payloadBuffer.capacity()) {
+                    Log.w(TAG, "Oversized mirroring packet: " + payloadSize + " bytes");
+                    payloadBufferPool.release(payloadBuffer);
+                    payloadBuffer = ByteBuffer.allocate(payloadSize);
+                }
+
+                payloadBuffer.clear();
+                payloadBuffer.limit(payloadSize);
+                readFully(channel, payloadBuffer);
+                statusEvents.addBytesReceived(MirroringDepacketizer.HEADER_SIZE + payloadSize);
+
+                // Only the picture data is encrypted, so only it moves the counter on
+                int payloadType = MirroringDepacketizer.getPayloadType(header);
+                if (encrypted && payloadType == MirroringDepacketizer.PAYLOAD_TYPE_VIDEO) {
+                    streamCipher.decrypt(payloadBuffer.array(), 0, payloadSize);
+                }
+
+                depacketizer.processPacket(payloadType, payloadBuffer.array(),
+                        payloadSize, MirroringDepacketizer.getNtpTimestamp(header), receiveTimeMs, SystemClock.uptimeMillis(),
+                        receiveTimeNs, System.nanoTime());
+            }
+        } catch (EOFException | ClosedChannelException e) {
+            // Sender stopped mirroring or we're shutting down
+        } catch (IOException | IllegalArgumentException | GeneralSecurityException e) {
+            if (isRunning) {
+                Log.e(TAG, "Mirroring stream error", e);
+                statusEvents.publish(StatusEventBus.EVENT_ERROR, StatusEventBus.ERROR_MIRRORING, 0, 0, e.getMessage());
+            }
+        } finally {
+            depacketizer.stop();
+            payloadBufferPool.release(payloadBuffer);
+        }
+
+        statusEvents.publish(StatusEventBus.EVENT_CONNECTION, StatusEventBus.CONNECTION_MIRRORING_STOPPED,
+                (int) depacketizer.getFramesSubmitted(), (int) depacketizer.getFramesDropped(), remoteAddress);
+    }
+
+    // Returns whether this stream is encrypted
+    private boolean initStreamCipher() throws GeneralSecurityException {
+        byte[] key;
+        long connectionId;
+        synchronized (this) {
+            key = streamKey;
+            connectionId = streamConnectionId;
+        }
+        if (key == null) {
+            return false;
+        }
+
+        streamCipher.init(key, connectionId);
+        return true;
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing mirroring socket", e);
+            }
+        }
+    }
+}
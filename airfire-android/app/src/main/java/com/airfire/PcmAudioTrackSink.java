@@ -0,0 +1,218 @@
+package com.airfire;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Plays PCM audio through a streaming AudioTrack
+ * Prefers the low latency output path, and by default never blocks the thread receiving the stream
+ */
+public class PcmAudioTrackSink implements AudioFrameSink {
+    private static final String TAG = "PcmAudioTrackSink";
+
+    // Roughly two 10 ms packets, which is what the low latency path wants
+    private static final int LOW_LATENCY_BUFFER_MS = 20;
+
+    // AudioTrack.getTimestamp is meant to be polled a few times a second, not on every write
+    private static final long SYNC_INTERVAL_NS = 100000000L;
+
+    // Must be a power of two. Covers far more audio than sits in the track's buffer.
+    private static final int CHUNK_SLOTS = 64;
+
+    private final boolean blockingWrites;
+    private AudioTrack track;
+    private long bytesDropped;
+
+    // Where each recent write starts in the track's frame count, and its presentation time,
+    // so the playback head can be turned back into a presentation time
+    private AvSyncClock syncClock;
+    private final AudioTimestamp audioTimestamp = new AudioTimestamp();
+    private final long[] chunkStartFrames = new long[CHUNK_SLOTS];
+    private final long[] chunkPresentationTimesUs = new long[CHUNK_SLOTS];
+    private int chunkCount;
+    private long framesWritten;
+    private int bytesPerFrame;
+    private int sampleRate;
+    private long lastSyncNs;
+
+    public PcmAudioTrackSink() {
+        this(false);
+    }
+
+    // Blocking writes suit a thread that does nothing but feed the track, since the track then
+    // paces it. Non-blocking writes drop what doesn't fit, for a thread that must never stall.
+    public PcmAudioTrackSink(boolean blockingWrites) {
+        this.blockingWrites = blockingWrites;
+    }
+
+    // Reports the playback head to the clock so video can be synced to it. Presentation times
+    // must then be on the same clock as the video timestamps.
+    public void setAvSyncClock(AvSyncClock syncClock) {
+        this.syncClock = syncClock;
+    }
+
+    private static AudioTrack createAudioTrack(int channelConfig, int sampleRate, int bufferSize, boolean lowLatency) {
+        AudioAttributes.Builder attributesBuilder = new AudioAttributes.Builder()
+                .setUsage(AudioAttributes.USAGE_MEDIA);
+        AudioFormat format = new AudioFormat.Builder()
+                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                .setSampleRate(sampleRate)
+                .setChannelMask(channelConfig)
+                .build();
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            // Use FLAG_LOW_LATENCY on L through N
+            if (lowLatency) {
+                attributesBuilder.setFlags(AudioAttributes.FLAG_LOW_LATENCY);
+            }
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            AudioTrack.Builder trackBuilder = new AudioTrack.Builder()
+                    .setAudioFormat(format)
+                    .setAudioAttributes(attributesBuilder.build())
+                    .setTransferMode(AudioTrack.MODE_STREAM)
+                    .setBufferSizeInBytes(bufferSize);
+
+            // Use PERFORMANCE_MODE_LOW_LATENCY on O and later
+            if (lowLatency) {
+                trackBuilder.setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY);
+            }
+
+            return trackBuilder.build();
+        }
+        else {
+            return new AudioTrack(attributesBuilder.build(),
+                    format,
+                    bufferSize,
+                    AudioTrack.MODE_STREAM,
+                    AudioManager.AUDIO_SESSION_ID_GENERATE);
+        }
+    }
+
+    @Override
+    public void onAudioStarted(int sampleRate, int channelCount) {
+        onAudioStopped();
+
+        int channelConfig = channelCount == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        this.sampleRate = sampleRate;
+        bytesPerFrame = channelCount * 2;
+        framesWritten = 0;
+        chunkCount = 0;
+        lastSyncNs = 0;
+
+        int bytesPerMs = sampleRate / 1000 * channelCount * 2;
+        int minBufferSize = AudioTrack.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+
+        // Try a small low latency buffer first, then fall back to the recommended size
+        // and finally the standard output path.
+        for (int i = 0; i < 3 && track == null; i++) {
+            boolean lowLatency = i < 2;
+            int bufferSize = bytesPerMs * LOW_LATENCY_BUFFER_MS;
+            if (i > 0) {
+                bufferSize = Math.max(minBufferSize, bufferSize);
+            }
+
+            // Low latency only works when we don't need the mixer to resample
+            if (lowLatency && AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC) != sampleRate) {
+                continue;
+            }
+
+            try {
+                track = createAudioTrack(channelConfig, sampleRate, bufferSize, lowLatency);
+                track.play();
+                Log.i(TAG, "Audio track configuration: " + bufferSize + " " + lowLatency);
+            } catch (Exception e) {
+                e.printStackTrace();
+                if (track != null) {
+                    track.release();
+                    track = null;
+                }
+            }
+        }
+
+        if (track == null) {
+            Log.e(TAG, "Unable to create an audio track for " + sampleRate + " Hz, " + channelCount + " channels");
+        }
+    }
+
+    @Override
+    public void submitAudio(ByteBuffer pcmData, long presentationTimeUs) {
+        if (track == null) {
+            pcmData.position(pcmData.limit());
+            return;
+        }
+
+        // Unless this sink has a thread to itself, blocking would stall video sharing the same
+        // connection. If the track is full we're already behind, so dropping the overflow
+        // keeps latency bounded.
+        int length = pcmData.remaining();
+        int written = track.write(pcmData, length,
+                blockingWrites ? AudioTrack.WRITE_BLOCKING : AudioTrack.WRITE_NON_BLOCKING);
+        if (written < length) {
+            bytesDropped += length - Math.max(written, 0);
+            pcmData.position(pcmData.limit());
+        }
+
+        if (written > 0) {
+            int index = chunkCount++ & (CHUNK_SLOTS - 1);
+            chunkStartFrames[index] = framesWritten;
+            chunkPresentationTimesUs[index] = presentationTimeUs;
+            framesWritten += written / bytesPerFrame;
+        }
+        if (syncClock != null) {
+            reportPlaybackHead();
+        }
+    }
+
+    private void reportPlaybackHead() {
+        long nowNs = System.nanoTime();
+        if (nowNs - lastSyncNs < SYNC_INTERVAL_NS) {
+            return;
+        }
+        lastSyncNs = nowNs;
+
+        // Not available until the first audio has actually played
+        if (!track.getTimestamp(audioTimestamp)) {
+            return;
+        }
+
+        // The newest write starting at or before the frame being heard contains it
+        long position = audioTimestamp.framePosition;
+        int count = Math.min(chunkCount, CHUNK_SLOTS);
+        for (int i = 1; i <= count; i++) {
+            int index = (chunkCount - i) & (CHUNK_SLOTS - 1);
+            if (chunkStartFrames[index] <= position) {
+                long presentationTimeUs = chunkPresentationTimesUs[index] +
+                        (position - chunkStartFrames[index]) * 1000000 / sampleRate;
+                syncClock.updateAudioClock(presentationTimeUs * 1000, audioTimestamp.nanoTime);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void onAudioStopped() {
+        if (syncClock != null) {
+            syncClock.clearAudioClock();
+        }
+        if (track != null) {
+            // Immediately drop all pending data
+            track.pause();
+            track.flush();
+            track.release();
+            track = null;
+        }
+    }
+
+    public long getBytesDropped() {
+        return bytesDropped;
+    }
+}
@@ -0,0 +1,458 @@
+package com.airfire;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Receives RAOP/AirPlay RTP audio and plays it through an AudioFrameSink
+ * Receive, decode and output each run on their own thread, passing packets through preallocated rings
+ */
+class RaopAudioReceiver {
+    private static final String TAG = "AirPlayAudio";
+
+    private static final int RTP_HEADER_SIZE = 12;
+    private static final int RTP_VERSION = 2;
+    private static final int PAYLOAD_TYPE_AUDIO = 96;
+    private static final int PAYLOAD_TYPE_SYNC = 0x54;
+    private static final int SYNC_PACKET_SIZE = 20;
+
+    // Datagrams never exceed the MTU. Half a second of 352-frame packets covers a burst
+    // while the decoder catches up.
+    private static final int MAX_PACKET_SIZE = 2048;
+    private static final int PACKET_SLOTS = 64;
+    private static final int PCM_SLOTS = 16;
+    private static final int PCM_SLOT_SIZE = AudioStreamFormat.MAX_FRAMES_PER_PACKET * 2 * 2;
+    private static final int SOCKET_RECEIVE_BUFFER_SIZE = 256 * 1024;
+
+    // Decoded packets queued ahead of the output. Everything else waits in the jitter buffer,
+    // where it can still be reordered.
+    private static final int PCM_LOOKAHEAD = 2;
+
+    // How long an idle thread parks before checking whether it should stop
+    private static final int IDLE_WAIT_MS = 100;
+
+    private final AudioFrameSink sink;
+    private final StatusEventBus statusEvents;
+
+    // Allocated once and reused by every stream
+    private final AudioPacketRing packetRing = new AudioPacketRing(PACKET_SLOTS, MAX_PACKET_SIZE);
+    private final AudioPacketRing pcmRing = new AudioPacketRing(PCM_SLOTS, PCM_SLOT_SIZE);
+    private final ByteBuffer[] packetBuffers = new ByteBuffer[PACKET_SLOTS];
+    private final ByteBuffer[] pcmBuffers = new ByteBuffer[PCM_SLOTS];
+
+    // Somewhere to receive into while the packet ring is full
+    private final ByteBuffer discardBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+    private final ByteBuffer controlBuffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+
+    // The last packet decoded, repeated at falling volume in place of a lost one
+    private final byte[] concealmentPcm = new byte[PCM_SLOT_SIZE];
+
+    private AirPlaySession owner;
+    private AudioStreamFormat format;
+    private DatagramChannel dataChannel;
+    private DatagramChannel controlChannel;
+    private Thread receiveThread;
+    private Thread controlThread;
+    private Thread decodeThread;
+    private Thread outputThread;
+    private volatile boolean isRunning = false;
+
+    // The RTP timestamp and sender NTP time, in nanoseconds, from the latest sync packet.
+    // Replaced as a pair so the output thread never sees half of one.
+    private volatile long[] syncPoint;
+
+    // Bumped by flush(). The decode and output threads each drop what they hold when they see it change.
+    private volatile int flushGeneration;
+
+    // Each written only by the thread that counts it
+    private volatile long packetsReceived;
+    private volatile long packetsDropped;
+    private volatile long packetsDecoded;
+
+    RaopAudioReceiver(AudioFrameSink sink, StatusEventBus statusEvents) {
+        this.sink = sink;
+        this.statusEvents = statusEvents;
+        for (int i = 0; i < PACKET_SLOTS; i++) {
+            packetBuffers[i] = ByteBuffer.wrap(packetRing.getData(i));
+        }
+        for (int i = 0; i < PCM_SLOTS; i++) {
+            pcmBuffers[i] = ByteBuffer.wrap(pcmRing.getData(i));
+        }
+    }
+
+    // Starts receiving a stream for the session, replacing any other session's stream.
+    // Only one sender can play audio at a time.
+    synchronized void start(AirPlaySession session, AudioStreamFormat streamFormat) throws IOException {
+        stop();
+
+        owner = session;
+        format = streamFormat;
+        packetsReceived = packetsDropped = packetsDecoded = 0;
+        syncPoint = null;
+        packetRing.clear();
+        pcmRing.clear();
+
+        try {
+            dataChannel = openChannel();
+            // Sync packets arrive on the control port, which senders won't stream without
+            controlChannel = openChannel();
+        } catch (IOException e) {
+            closeQuietly(dataChannel);
+            closeQuietly(controlChannel);
+            dataChannel = controlChannel = null;
+            owner = null;
+            throw e;
+        }
+
+        isRunning = true;
+        receiveThread = new Thread(this::runReceiveLoop, "AirPlay - Audio Receive");
+        controlThread = new Thread(this::runControlLoop, "AirPlay - Audio Control");
+        decodeThread = new Thread(this::runDecodeLoop, "AirPlay - Audio Decode");
+        outputThread = new Thread(this::runOutputLoop, "AirPlay - Audio Output");
+        receiveThread.start();
+        controlThread.start();
+        decodeThread.start();
+        outputThread.start();
+
+        Log.i(TAG, "Receiving " + format.getCodecName() + " audio on port " + getDataPort() +
+                ", control port " + getControlPort());
+        statusEvents.publish(StatusEventBus.EVENT_CONNECTION, StatusEventBus.CONNECTION_AUDIO_STARTED,
+                format.sampleRate, format.channelCount, format.getCodecName());
+    }
+
+    // Stops the stream if it belongs to this session
+    synchronized void stop(AirPlaySession session) {
+        if (owner == session) {
+            stop();
+        }
+    }
+
+    synchronized void stop() {
+        if (!isRunning) {
+            return;
+        }
+        isRunning = false;
+
+        // Closing the channels unblocks the receive and control threads. The others notice within IDLE_WAIT_MS.
+        closeQuietly(dataChannel);
+        closeQuietly(controlChannel);
+        join(receiveThread);
+        join(controlThread);
+        join(decodeThread);
+        join(outputThread);
+        receiveThread = controlThread = decodeThread = outputThread = null;
+        dataChannel = controlChannel = null;
+        owner = null;
+
+        statusEvents.clearAudioBuffer();
+        statusEvents.publish(StatusEventBus.EVENT_CONNECTION, StatusEventBus.CONNECTION_AUDIO_STOPPED,
+                (int) packetsDecoded, (int) packetsDropped, null);
+    }
+
+    // Discards everything received so far, which senders ask for when playback is paused or seeks
+    synchronized void flush(AirPlaySession session) {
+        if (owner == session) {
+            flushGeneration++;
+        }
+    }
+
+    synchronized int getDataPort() {
+        return dataChannel != null ? dataChannel.socket().getLocalPort() : 0;
+    }
+
+    synchronized int getControlPort() {
+        return controlChannel != null ? controlChannel.socket().getLocalPort() : 0;
+    }
+
+    long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    long getPacketsDropped() {
+        return packetsDropped;
+    }
+
+    private static DatagramChannel openChannel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.socket().setReceiveBufferSize(SOCKET_RECEIVE_BUFFER_SIZE);
+        channel.socket().bind(new InetSocketAddress(0));
+        return channel;
+    }
+
+    // Receive thread: reads each datagram straight into a free slot of the packet ring
+    private void runReceiveLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        DatagramChannel channel = dataChannel;
+
+        try {
+            while (isRunning) {
+                int index = packetRing.claim();
+                ByteBuffer buffer = index >= 0 ? packetBuffers[index] : discardBuffer;
+                buffer.clear();
+                channel.receive(buffer);
+                long receiveTimeNs = System.nanoTime();
+
+                int length = buffer.position();
+                byte[] packet = buffer.array();
+                statusEvents.addBytesReceived(length);
+
+                // Anything that isn't an RTP audio packet is left in the slot to be overwritten
+                if (length <= RTP_HEADER_SIZE || (packet[0] & 0xFF) >> 6 != RTP_VERSION ||
+                        (packet[1] & 0x7F) != PAYLOAD_TYPE_AUDIO) {
+                    continue;
+                }
+                packetsReceived++;
+
+                if (index < 0) {
+                    // The decoder has fallen half a second behind, so this packet is already late
+                    packetsDropped++;
+                    continue;
+                }
+                packetRing.publish(length, ((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF),
+                        readUnsignedInt(packet, 4), receiveTimeNs);
+            }
+        } catch (ClosedChannelException e) {
+            // Stopping
+        } catch (IOException e) {
+            if (isRunning) {
+                Log.e(TAG, "Audio receive failed", e);
+                statusEvents.publish(StatusEventBus.EVENT_ERROR, StatusEventBus.ERROR_AUDIO, 0, 0, e.getMessage());
+            }
+        }
+    }
+
+    // Control thread: keeps the latest sync packet, which ties RTP timestamps to the sender's
+    // clock. Retransmissions are never requested, so nothing else arrives here that we need.
+    private void runControlLoop() {
+        DatagramChannel channel = controlChannel;
+        byte[] packet = controlBuffer.array();
+
+        try {
+            while (isRunning) {
+                controlBuffer.clear();
+                channel.receive(controlBuffer);
+                if (controlBuffer.position() >= SYNC_PACKET_SIZE && (packet[1] & 0x7F) == PAYLOAD_TYPE_SYNC) {
+                    // Bytes 16-19 are the RTP timestamp at the NTP time in bytes 8-15. Once a
+                    // second, so allocating the pair is fine.
+                    syncPoint = new long[] {readUnsignedInt(packet, 16),
+                            AirPlayTimingService.ntpToNanos((readUnsignedInt(packet, 8) << 32) | readUnsignedInt(packet, 12))};
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // Stopping
+        } catch (IOException e) {
+            if (isRunning) {
+                Log.w(TAG, "Audio control receive failed", e);
+            }
+        }
+    }
+
+    // ALAC and PCM are decoded in Java, AAC by the platform
+    private static AudioPayloadDecoder createDecoder(AudioStreamFormat format) throws IOException {
+        switch (format.codec) {
+            case AudioStreamFormat.CODEC_ALAC:
+                return new AlacDecoder(format, AudioStreamFormat.MAX_FRAMES_PER_PACKET);
+            case AudioStreamFormat.CODEC_AAC:
+            case AudioStreamFormat.CODEC_AAC_ELD:
+                return new MediaCodecAudioDecoder(format);
+            default:
+                return new AudioPayloadDecoder.L16Decoder();
+        }
+    }
+
+    // Decode thread: sorts packets in the jitter buffer, then decodes them in sequence
+    // order into free output slots, just far enough ahead of the output to keep it busy
+    private void runDecodeLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+
+        AudioPayloadDecoder decoder;
+        try {
+            decoder = createDecoder(format);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Unable to create " + format.getCodecName() + " decoder", e);
+            statusEvents.publish(StatusEventBus.EVENT_ERROR, StatusEventBus.ERROR_AUDIO, 0, 0, e.getMessage());
+            return;
+        }
+
+        AudioJitterBuffer jitterBuffer = new AudioJitterBuffer(MAX_PACKET_SIZE, format.sampleRate,
+                format.framesPerPacket);
+        int generation = flushGeneration;
+        int concealmentLength = 0;
+        long nextTimestamp = 0;
+        try {
+            while (isRunning) {
+                // While audio is queued, wake often enough to top up the output before it runs dry
+                boolean active = jitterBuffer.getDepth() > 0 || pcmRing.size() > 0;
+                packetRing.await(active ? Math.max(1, jitterBuffer.getPacketDurationUs() / 2000) : IDLE_WAIT_MS);
+                if (generation != flushGeneration) {
+                    generation = flushGeneration;
+                    packetRing.clear();
+                    jitterBuffer.reset();
+                    concealmentLength = 0;
+                    continue;
+                }
+
+                int index;
+                while ((index = packetRing.peek()) >= 0) {
+                    byte[] packet = packetRing.getData(index);
+                    int length = packetRing.getLength(index);
+                    int headerSize = getRtpHeaderSize(packet, length);
+                    if (headerSize >= 0) {
+                        jitterBuffer.insert(packet, headerSize, length - headerSize, packetRing.getSequence(index),
+                                packetRing.getTimestamp(index), packetRing.getReceiveTime(index));
+                    }
+                    packetRing.release();
+                }
+
+                while (pcmRing.size() < PCM_LOOKAHEAD) {
+                    int slot = jitterBuffer.poll(pcmRing.size() == 0, System.nanoTime());
+                    if (slot == AudioJitterBuffer.WAIT) {
+                        break;
+                    }
+
+                    // Below the lookahead, so there is always a free slot
+                    int pcmIndex = pcmRing.claim();
+                    byte[] pcm = pcmRing.getData(pcmIndex);
+                    if (slot == AudioJitterBuffer.CONCEAL) {
+                        if (concealmentLength > 0) {
+                            attenuate(concealmentPcm, concealmentLength, pcm);
+                            pcmRing.publish(concealmentLength, 0, nextTimestamp);
+                        }
+                        nextTimestamp = (nextTimestamp + jitterBuffer.getFramesPerPacket()) & 0xFFFFFFFFL;
+                        continue;
+                    }
+
+                    long timestamp = jitterBuffer.getTimestamp(slot);
+                    int pcmLength = decoder.decode(jitterBuffer.getData(slot), 0, jitterBuffer.getLength(slot), pcm);
+                    jitterBuffer.advance();
+                    if (pcmLength > 0) {
+                        pcmRing.publish(pcmLength, 0, timestamp);
+                        System.arraycopy(pcm, 0, concealmentPcm, 0, pcmLength);
+                        concealmentLength = pcmLength;
+                        packetsDecoded++;
+                    }
+                    nextTimestamp = (timestamp + jitterBuffer.getFramesPerPacket()) & 0xFFFFFFFFL;
+                }
+
+                statusEvents.updateAudioBuffer(jitterBuffer.getDepthMs(), jitterBuffer.getTargetDepthMs(),
+                        jitterBuffer.getUnderruns(), jitterBuffer.getLatePackets(), jitterBuffer.getConcealedPackets());
+            }
+        } finally {
+            decoder.release();
+            Log.i(TAG, "Jitter buffer: target " + jitterBuffer.getTargetDepthMs() + " ms, jitter " +
+                    jitterBuffer.getJitterMs() + " ms, " + jitterBuffer.getUnderruns() + " underruns, " +
+                    jitterBuffer.getLatePackets() + " late, " + jitterBuffer.getConcealedPackets() + " concealed, " +
+                    jitterBuffer.getSkippedPackets() + " skipped");
+        }
+    }
+
+    // Output thread: writes decoded audio to the sink, which paces this thread to the hardware
+    private void runOutputLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        sink.onAudioStarted(format.sampleRate, format.channelCount);
+        int generation = flushGeneration;
+        boolean haveBaseTimestamp = false;
+        long baseTimestamp = 0;
+        try {
+            while (isRunning) {
+                if (!pcmRing.await(IDLE_WAIT_MS)) {
+                    continue;
+                }
+                if (generation != flushGeneration) {
+                    generation = flushGeneration;
+                    pcmRing.clear();
+                    haveBaseTimestamp = false;
+                    continue;
+                }
+
+                int index = pcmRing.peek();
+                long timestamp = pcmRing.getTimestamp(index);
+                if (!haveBaseTimestamp) {
+                    baseTimestamp = timestamp;
+                    haveBaseTimestamp = true;
+                }
+
+                // RTP timestamps count samples and wrap at 32 bits. Once the sender has said how
+                // they map onto its clock, audio is timed on the same clock as mirrored video.
+                long presentationTimeUs;
+                long[] sync = syncPoint;
+                if (sync != null) {
+                    presentationTimeUs = (sync[1] + (int) (timestamp - sync[0]) * 1000000000L / format.sampleRate) / 1000;
+                }
+                else {
+                    presentationTimeUs = ((timestamp - baseTimestamp) & 0xFFFFFFFFL) * 1000000 / format.sampleRate;
+                }
+
+                ByteBuffer buffer = pcmBuffers[index];
+                buffer.clear();
+                buffer.limit(pcmRing.getLength(index));
+                sink.submitAudio(buffer, presentationTimeUs);
+                pcmRing.release();
+            }
+        } finally {
+            sink.onAudioStopped();
+        }
+    }
+
+    // Halves the saved 16-bit PCM in place and copies it out, so each repeat of a concealed packet fades further
+    private static void attenuate(byte[] pcm, int length, byte[] output) {
+        for (int i = 0; i + 1 < length; i += 2) {
+            int sample = ((short) ((pcm[i] & 0xFF) | (pcm[i + 1] << 8))) >> 1;
+            pcm[i] = (byte) sample;
+            pcm[i + 1] = (byte) (sample >> 8);
+            output[i] = (byte) sample;
+            output[i + 1] = (byte) (sample >> 8);
+        }
+    }
+
+    // Size of the RTP header including any CSRCs and extension, or -1 if the packet is malformed
+    private static int getRtpHeaderSize(byte[] packet, int length) {
+        int size = RTP_HEADER_SIZE + (packet[0] & 0x0F) * 4;
+        if ((packet[0] & 0x10) != 0) {
+            if (size + 4 > length) {
+                return -1;
+            }
+            size += 4 + (((packet[size + 2] & 0xFF) << 8) | (packet[size + 3] & 0xFF)) * 4;
+        }
+        return size < length ? size : -1;
+    }
+
+    private static long readUnsignedInt(byte[] data, int offset) {
+        return ((long) (data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) |
+                ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    private static void join(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+
+            // InterruptedException clears the thread's interrupt status. Since we can't
+            // handle that here, we will re-interrupt the thread to set the interrupt
+            // status back to true.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing audio socket", e);
+            }
+        }
+    }
+}
@@ -9,9 +9,11 @@ import android.net.wifi.WifiManager;
 import android.content.Context;
 import android.text.format.Formatter;
 
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 
 /**
  * Enhanced AirFire Activity with dual protocol support
@@ -21,6 +23,9 @@ public class SimpleAirFireActivity extends Activity implements SurfaceHolder.Cal
     
     private static final int AIRFIRE_PORT = 5000;
     
+    // adb shell am start -n com.airfire.debug/com.airfire.SimpleAirFireActivity --ez benchmarkCipher true
+    private static final String EXTRA_BENCHMARK_CIPHER = "benchmarkCipher";
+    
     private SurfaceView surfaceView;
     private SurfaceHolder surfaceHolder;
     private TextView statusText;
@@ -28,7 +33,7 @@ public class SimpleAirFireActivity extends Activity implements SurfaceHolder.Cal
     private TextView protocolText;
     
     // TCP Server (original functionality)
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
     private boolean isRunning = false;
     
     // AirPlay Receiver (new functionality)
@@ -47,6 +52,10 @@ public class SimpleAirFireActivity extends Activity implements SurfaceHolder.Cal
         // Start both servers
         startTCPServer();
         startAirPlayReceiver();
+        
+        if (getIntent().getBooleanExtra(EXTRA_BENCHMARK_CIPHER, false)) {
+            runCipherBenchmark();
+        }
     }
     
     private void setupUI() {
@@ -82,17 +91,18 @@ public class SimpleAirFireActivity extends Activity implements SurfaceHolder.Cal
         
         new Thread(() -> {
             try {
-                serverSocket = new ServerSocket(AIRFIRE_PORT);
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.socket().bind(new InetSocketAddress(AIRFIRE_PORT));
                 updateStatus("📱 TCP server ready on port " + AIRFIRE_PORT);
                 
                 while (isRunning && !isFinishing()) {
                     try {
                         // Wait for custom protocol connection
-                        Socket clientSocket = serverSocket.accept();
+                        SocketChannel clientChannel = serverChannel.accept();
                         
                         runOnUiThread(() -> {
-                            updateStatus("📱 Custom client connected: " + clientSocket.getRemoteSocketAddress());
-                            handleTCPConnection(clientSocket);
+                            updateStatus("📱 Custom client connected: " + clientChannel.socket().getRemoteSocketAddress());
+                            handleTCPConnection(clientChannel);
                         });
                         
                     } catch (IOException e) {
@@ -109,48 +119,73 @@ public class SimpleAirFireActivity extends Activity implements SurfaceHolder.Cal
     
     private void startAirPlayReceiver() {
         airPlayReceiver = new AirPlayReceiver(this, this);
+        airPlayReceiver.setDisplay(DisplayModeSelector.prepareDisplay(this));
+        airPlayReceiver.setAudioFrameSink(new PcmAudioTrackSink(true));
         airPlayReceiver.start();
     }
     
-    private void handleTCPConnection(Socket clientSocket) {
+    private void runCipherBenchmark() {
+        new Thread(() -> {
+            try {
+                String result = MirroringCipherBenchmark.run();
+                runOnUiThread(() -> updateStatus("🔐 " + result));
+            } catch (GeneralSecurityException e) {
+                runOnUiThread(() -> updateStatus("❌ Cipher benchmark failed: " + e.getMessage()));
+            }
+        }, "AirFire - Benchmark").start();
+    }
+    
+    private void handleTCPConnection(SocketChannel clientChannel) {
         updateStatus("📱 Ready to receive custom TCP stream...");
         
         new Thread(() -> {
+            // This activity has no video decoder, so only the audio is played here
+            FramedStreamReceiver receiver = new FramedStreamReceiver(null, new PcmAudioTrackSink());
             try {
-                byte[] buffer = new byte[1024];
-                while (isRunning && !clientSocket.isClosed()) {
-                    int bytesRead = clientSocket.getInputStream().read(buffer);
-                    if (bytesRead > 0) {
-                        runOnUiThread(() -> 
-                            updateStatus("📱 TCP data: " + bytesRead + " bytes")
-                        );
-                    }
-                    
-                    Thread.sleep(100);
-                }
+                receiver.receive(clientChannel);
             } catch (Exception e) {
-                runOnUiThread(() -> updateStatus("📱 TCP client disconnected"));
+                runOnUiThread(() -> updateStatus("❌ TCP stream error: " + e.getMessage()));
+            } finally {
+                try {
+                    clientChannel.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
             }
-        }).start();
+            
+            // Report once per stream rather than per chunk, so the UI thread stays out of the data path
+            runOnUiThread(() -> updateStatus("📱 TCP client disconnected (" +
+                receiver.getVideoFramesReceived() + " video frames, " +
+                receiver.getAudioFramesReceived() + " audio frames, " +
+                receiver.getBytesReceived() / 1024 + " KB)"));
+        }, "AirFire - TCP Stream").start();
     }
     
     // AirPlayReceiver.StatusCallback implementation
     @Override
-    public void onStatusUpdate(String message) {
-        runOnUiThread(() -> updateStatus(message));
-    }
-    
-    @Override
-    public void onAirPlayConnection(String clientAddress) {
-        runOnUiThread(() -> updateStatus("🍎 iOS device connected via AirPlay: " + clientAddress));
+    public void onStatusUpdate(StatusSnapshot status) {
+        // Already on the UI thread
+        String message = status.getStatusLine();
+        if (message != null) {
+            // While audio plays, its jitter buffer stats stay under the latest event, and
+            // likewise frame latency while mirroring
+            String audioLine = status.getAudioBufferLine();
+            if (audioLine != null) {
+                message += "\n" + audioLine;
+            }
+            String latencyLine = status.getLatencyLine();
+            if (latencyLine != null) {
+                message += "\n" + latencyLine;
+            }
+            updateStatus(message);
+        }
     }
     
     @Override
     public void onVideoData(byte[] data) {
-        runOnUiThread(() -> updateStatus("🍎 AirPlay video data: " + data.length + " bytes"));
-        
-        // TODO: Process AirPlay video data (H.264 stream)
-        // This is where you'd decode and display the video
+        // The byte count is already part of the status updates.
+        // Screen-mirroring video doesn't come through here. It arrives on the mirroring
+        // data stream and goes to the DecodeUnitSink given to AirPlayReceiver.setDecodeUnitSink().
     }
     
     private void updateStatus(String message) {
@@ -182,9 +217,9 @@ public class SimpleAirFireActivity extends Activity implements SurfaceHolder.Cal
         isRunning = false;
         
         // Stop TCP server
-        if (serverSocket != null) {
+        if (serverChannel != null) {
             try {
-                serverSocket.close();
+                serverChannel.close();
             } catch (IOException e) {
                 // Ignore
             }
@@ -0,0 +1,200 @@
+package com.airfire;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Status events from the receiver threads to the UI
+ * Network and decoder threads publish into a lock-free ring, and the main thread folds them into one snapshot a few times per second
+ */
+public class StatusEventBus {
+    public static final int EVENT_LIFECYCLE = 1;
+    public static final int EVENT_CONNECTION = 2;
+    public static final int EVENT_REQUEST = 3;
+    public static final int EVENT_BYTES = 4;
+    public static final int EVENT_ERROR = 5;
+
+    // EVENT_LIFECYCLE codes
+    public static final int LIFECYCLE_RECEIVER_STARTING = 1;
+    public static final int LIFECYCLE_SERVER_READY = 2;
+    public static final int LIFECYCLE_SERVICE_ADVERTISED = 3;
+    public static final int LIFECYCLE_SESSION_SETUP = 4;
+    public static final int LIFECYCLE_STREAMING_STARTED = 5;
+    public static final int LIFECYCLE_SESSION_ENDED = 6;
+    public static final int LIFECYCLE_RECEIVER_STOPPED = 7;
+
+    // EVENT_CONNECTION codes
+    public static final int CONNECTION_OPENED = 1;
+    public static final int CONNECTION_CLOSED = 2;
+    public static final int CONNECTION_MIRRORING_STARTED = 3;
+    public static final int CONNECTION_MIRRORING_STOPPED = 4;
+    public static final int CONNECTION_AUDIO_STARTED = 5;
+    public static final int CONNECTION_AUDIO_STOPPED = 6;
+
+    // EVENT_ERROR codes
+    public static final int ERROR_SERVER = 1;
+    public static final int ERROR_CLIENT = 2;
+    public static final int ERROR_MIRRORING = 3;
+    public static final int ERROR_ADVERTISING = 4;
+    public static final int ERROR_AUDIO = 5;
+
+    // Three or four redraws a second is as fast as anyone can read a status line
+    static final int MIN_RENDER_INTERVAL_MS = 250;
+
+    // Must be a power of two. Bursts beyond this between renders are counted and dropped.
+    private static final int RING_SIZE = 256;
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    public interface Listener {
+        // Called on the main thread. The snapshot is reused, so read it before returning.
+        void onStatusUpdate(StatusSnapshot status);
+    }
+
+    private final Listener listener;
+    private final Handler handler;
+
+    // Bounded multi-producer ring. Each slot's sequence says whose turn it is: a producer
+    // may fill slot i when it equals the claimed position, and the consumer may read it once
+    // it equals position + 1. The plain arrays are published by the volatile sequence write.
+    private final AtomicLongArray sequences = new AtomicLongArray(RING_SIZE);
+    private final int[] types = new int[RING_SIZE];
+    private final int[] codes = new int[RING_SIZE];
+    private final int[] args0 = new int[RING_SIZE];
+    private final int[] args1 = new int[RING_SIZE];
+    private final String[] details = new String[RING_SIZE];
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    // Byte counts are coalesced at the source, since they arrive on every read
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong eventsDropped = new AtomicLong();
+
+    // Jitter buffer state, overwritten by the audio decode thread and sampled at each render.
+    // A depth of -1 means no audio is playing.
+    private volatile int audioDepthMs = -1;
+    private volatile int audioTargetMs;
+    private volatile long audioUnderruns;
+    private volatile long audioLatePackets;
+    private volatile long audioConcealedPackets;
+
+    // Sampled at each render while mirroring, or null if frames aren't timed
+    private volatile FrameLatencyTracker latencyTracker;
+
+    private final AtomicBoolean renderScheduled = new AtomicBoolean();
+    private volatile long lastRenderMs;
+    private final StatusSnapshot snapshot = new StatusSnapshot();
+
+    private final Runnable renderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            render();
+        }
+    };
+
+    public StatusEventBus(Listener listener) {
+        this.listener = listener;
+        this.handler = new Handler(Looper.getMainLooper());
+        for (int i = 0; i < RING_SIZE; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    // The detail must be a string the caller already has, such as a cached address or an
+    // exception message, so publishing never allocates. It never blocks either: when the
+    // UI has fallen a full ring behind the event is dropped and counted instead.
+    public void publish(int type, int code, int arg0, int arg1, String detail) {
+        long position;
+        int index;
+        while (true) {
+            position = tail.get();
+            index = (int) (position & RING_MASK);
+            long available = sequences.get(index) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            }
+            else if (available < 0) {
+                eventsDropped.incrementAndGet();
+                scheduleRender();
+                return;
+            }
+            // Otherwise another producer claimed this position first, so try the next one
+        }
+
+        types[index] = type;
+        codes[index] = code;
+        args0[index] = arg0;
+        args1[index] = arg1;
+        details[index] = detail;
+        sequences.set(index, position + 1);
+
+        scheduleRender();
+    }
+
+    public void publish(int type, int code) {
+        publish(type, code, 0, 0, null);
+    }
+
+    public void addBytesReceived(long bytes) {
+        bytesReceived.addAndGet(bytes);
+        scheduleRender();
+    }
+
+    // Doesn't schedule a render itself, since the audio packets behind it already do
+    public void updateAudioBuffer(int depthMs, int targetMs, long underruns, long latePackets, long concealedPackets) {
+        audioTargetMs = targetMs;
+        audioUnderruns = underruns;
+        audioLatePackets = latePackets;
+        audioConcealedPackets = concealedPackets;
+        audioDepthMs = depthMs;
+    }
+
+    public void clearAudioBuffer() {
+        audioDepthMs = -1;
+    }
+
+    void setLatencyTracker(FrameLatencyTracker latencyTracker) {
+        this.latencyTracker = latencyTracker;
+    }
+
+    // Starts a render unless one is already pending, spaced so the UI sees at most one
+    // update per MIN_RENDER_INTERVAL_MS however fast events arrive.
+    private void scheduleRender() {
+        if (renderScheduled.compareAndSet(false, true)) {
+            long delayMs = lastRenderMs + MIN_RENDER_INTERVAL_MS - SystemClock.uptimeMillis();
+            handler.postDelayed(renderRunnable, Math.max(0, delayMs));
+        }
+    }
+
+    // Runs on the main thread
+    private void render() {
+        // Clear the flag first, so events published while we drain schedule the next render
+        renderScheduled.set(false);
+
+        long nowMs = SystemClock.uptimeMillis();
+        snapshot.beginWindow(nowMs, bytesReceived.get(), eventsDropped.get());
+        snapshot.setAudioBuffer(audioDepthMs, audioTargetMs, audioUnderruns, audioLatePackets, audioConcealedPackets);
+        snapshot.setLatency(latencyTracker);
+
+        while (true) {
+            int index = (int) (head & RING_MASK);
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+
+            snapshot.apply(types[index], codes[index], args0[index], args1[index], details[index]);
+            details[index] = null;
+            sequences.set(index, head + RING_SIZE);
+            head++;
+        }
+
+        lastRenderMs = nowMs;
+        listener.onStatusUpdate(snapshot);
+    }
+}
@@ -0,0 +1,271 @@
+package com.airfire;
+
+import java.util.Locale;
+
+/**
+ * Coalesced receiver state handed to the UI by StatusEventBus
+ * Only touched on the main thread, and turned into text there rather than by the threads reporting it
+ */
+public class StatusSnapshot {
+    private long windowStartMs;
+    private long windowLengthMs;
+    private long bytesReceived;
+    private long windowBytes;
+    private long eventsDropped;
+
+    private int activeConnections;
+    private long totalConnections;
+    private long totalRequests;
+    private long errorCount;
+
+    private int audioDepthMs = -1;
+    private int audioTargetMs;
+    private long audioUnderruns;
+    private long audioLatePackets;
+    private long audioConcealedPackets;
+
+    // Copied out of the latency tracker at each update, so formatting doesn't hold it up
+    private final LatencyHistogram[] latency = new LatencyHistogram[FrameLatencyTracker.STAGE_COUNT];
+
+    // The most significant event since the previous update. Errors win over everything
+    // else, so a burst of requests can't hide one.
+    private int eventType;
+    private int eventCode;
+    private int eventArg0;
+    private int eventArg1;
+    private String eventDetail;
+
+    StatusSnapshot() {
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new LatencyHistogram();
+        }
+    }
+
+    void beginWindow(long nowMs, long totalBytes, long totalDropped) {
+        windowLengthMs = windowStartMs != 0 ? nowMs - windowStartMs : 0;
+        windowStartMs = nowMs;
+        windowBytes = totalBytes - bytesReceived;
+        bytesReceived = totalBytes;
+        eventsDropped = totalDropped;
+
+        eventType = windowBytes > 0 ? StatusEventBus.EVENT_BYTES : 0;
+        eventDetail = null;
+    }
+
+    void setAudioBuffer(int depthMs, int targetMs, long underruns, long latePackets, long concealedPackets) {
+        audioDepthMs = depthMs;
+        audioTargetMs = targetMs;
+        audioUnderruns = underruns;
+        audioLatePackets = latePackets;
+        audioConcealedPackets = concealedPackets;
+    }
+
+    void setLatency(FrameLatencyTracker tracker) {
+        for (int stage = 0; stage < latency.length; stage++) {
+            if (tracker != null) {
+                tracker.getHistogram(stage, latency[stage]);
+            }
+            else {
+                latency[stage].clear();
+            }
+        }
+    }
+
+    void apply(int type, int code, int arg0, int arg1, String detail) {
+        switch (type) {
+            case StatusEventBus.EVENT_CONNECTION:
+                if (code == StatusEventBus.CONNECTION_OPENED || code == StatusEventBus.CONNECTION_CLOSED) {
+                    activeConnections = arg0;
+                    if (code == StatusEventBus.CONNECTION_OPENED) {
+                        totalConnections++;
+                    }
+                }
+                break;
+            case StatusEventBus.EVENT_REQUEST:
+                totalRequests++;
+                break;
+            case StatusEventBus.EVENT_ERROR:
+                errorCount++;
+                break;
+        }
+
+        if (eventType != StatusEventBus.EVENT_ERROR || type == StatusEventBus.EVENT_ERROR) {
+            eventType = type;
+            eventCode = code;
+            eventArg0 = arg0;
+            eventArg1 = arg1;
+            eventDetail = detail;
+        }
+    }
+
+    public int getActiveConnections() {
+        return activeConnections;
+    }
+
+    public long getTotalConnections() {
+        return totalConnections;
+    }
+
+    public long getTotalRequests() {
+        return totalRequests;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getBytesPerSecond() {
+        return windowLengthMs > 0 ? windowBytes * 1000 / windowLengthMs : 0;
+    }
+
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    public long getEventsDropped() {
+        return eventsDropped;
+    }
+
+    // Audio jitter buffer depth, or -1 if no audio is playing
+    public int getAudioDepthMs() {
+        return audioDepthMs;
+    }
+
+    public int getAudioTargetMs() {
+        return audioTargetMs;
+    }
+
+    public long getAudioUnderruns() {
+        return audioUnderruns;
+    }
+
+    public long getAudioLatePackets() {
+        return audioLatePackets;
+    }
+
+    public long getAudioConcealedPackets() {
+        return audioConcealedPackets;
+    }
+
+    // One of the StatusEventBus.EVENT_* types, or 0 if nothing happened since the last update
+    public int getEventType() {
+        return eventType;
+    }
+
+    public int getEventCode() {
+        return eventCode;
+    }
+
+    public String getEventDetail() {
+        return eventDetail;
+    }
+
+    // Status line for the most significant event, or null if there is nothing new to show
+    public String getStatusLine() {
+        switch (eventType) {
+            case StatusEventBus.EVENT_LIFECYCLE:
+                return getLifecycleLine();
+            case StatusEventBus.EVENT_CONNECTION:
+                return getConnectionLine();
+            case StatusEventBus.EVENT_REQUEST:
+                String path = AirPlayHTTPHandler.getEndpointPath(eventArg0);
+                return "🍎 AirPlay: " + AirPlayRequest.getMethodName(eventCode) +
+                        (path != null ? " " + path : "") + " (" + totalRequests + " requests)";
+            case StatusEventBus.EVENT_BYTES:
+                return "🍎 AirPlay stream: " + getBytesPerSecond() / 1024 + " KB/s";
+            case StatusEventBus.EVENT_ERROR:
+                return getErrorLine();
+            default:
+                return null;
+        }
+    }
+
+    // Jitter buffer line for the performance overlay, or null if no audio is playing
+    public String getAudioBufferLine() {
+        if (audioDepthMs < 0) {
+            return null;
+        }
+        return "🍎 Audio buffer: " + audioDepthMs + " ms (target " + audioTargetMs + " ms), " +
+                audioUnderruns + " underruns, " + audioLatePackets + " late, " + audioConcealedPackets + " concealed";
+    }
+
+    // Per-stage frame latency for the performance overlay as p50/p95/p99, or null if no
+    // mirrored frame has been timed yet. Stages nothing has reached are left out.
+    public String getLatencyLine() {
+        if (latency[FrameLatencyTracker.STAGE_DECRYPT].getCount() == 0) {
+            return null;
+        }
+
+        StringBuilder line = new StringBuilder("🍎 Frame latency (p50/p95/p99 ms):");
+        for (int stage = 0; stage < latency.length; stage++) {
+            LatencyHistogram histogram = latency[stage];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            line.append(String.format(Locale.US, "\n   %s %.1f / %.1f / %.1f",
+                    FrameLatencyTracker.getStageName(stage),
+                    histogram.getPercentile(50) / 1000.0,
+                    histogram.getPercentile(95) / 1000.0,
+                    histogram.getPercentile(99) / 1000.0));
+        }
+        return line.toString();
+    }
+
+    private String getLifecycleLine() {
+        switch (eventCode) {
+            case StatusEventBus.LIFECYCLE_RECEIVER_STARTING:
+                return "🍎 Starting AirPlay receiver...";
+            case StatusEventBus.LIFECYCLE_SERVER_READY:
+                return "🍎 AirPlay server ready on port " + eventArg0;
+            case StatusEventBus.LIFECYCLE_SERVICE_ADVERTISED:
+                return "🍎 AirPlay service advertised - visible in iOS Control Center";
+            case StatusEventBus.LIFECYCLE_SESSION_SETUP:
+                return "🍎 AirPlay session setup";
+            case StatusEventBus.LIFECYCLE_STREAMING_STARTED:
+                return "🍎 AirPlay streaming started";
+            case StatusEventBus.LIFECYCLE_SESSION_ENDED:
+                return "🍎 AirPlay session ended";
+            case StatusEventBus.LIFECYCLE_RECEIVER_STOPPED:
+                return "🍎 AirPlay receiver stopped";
+            default:
+                return null;
+        }
+    }
+
+    private String getConnectionLine() {
+        switch (eventCode) {
+            case StatusEventBus.CONNECTION_OPENED:
+                return "🍎 iOS device connected via AirPlay: " + eventDetail + " (" + activeConnections + " active)";
+            case StatusEventBus.CONNECTION_CLOSED:
+                return "🍎 AirPlay client disconnected (" + activeConnections + " active)";
+            case StatusEventBus.CONNECTION_MIRRORING_STARTED:
+                return "🍎 AirPlay mirroring started: " + eventDetail;
+            case StatusEventBus.CONNECTION_MIRRORING_STOPPED:
+                return "🍎 AirPlay mirroring stopped (" + eventArg0 + " frames, " + eventArg1 + " dropped)";
+            case StatusEventBus.CONNECTION_AUDIO_STARTED:
+                return "🍎 AirPlay audio started: " + eventDetail + " " + eventArg0 + " Hz";
+            case StatusEventBus.CONNECTION_AUDIO_STOPPED:
+                return "🍎 AirPlay audio stopped (" + eventArg0 + " packets, " + eventArg1 + " dropped)";
+            default:
+                return null;
+        }
+    }
+
+    private String getErrorLine() {
+        switch (eventCode) {
+            case StatusEventBus.ERROR_SERVER:
+                return "❌ AirPlay server error: " + eventDetail;
+            case StatusEventBus.ERROR_CLIENT:
+                return "❌ AirPlay client error: " + eventDetail;
+            case StatusEventBus.ERROR_MIRRORING:
+                return "❌ AirPlay mirroring error: " + eventDetail;
+            case StatusEventBus.ERROR_AUDIO:
+                return "❌ AirPlay audio error: " + eventDetail;
+            case StatusEventBus.ERROR_ADVERTISING:
+                return eventDetail != null ? "❌ Failed to advertise AirPlay service: " + eventDetail :
+                        "❌ AirPlay service registration failed: " + eventArg0;
+            default:
+                return "❌ " + eventDetail;
+        }
+    }
+}
@@ -1121,6 +1121,24 @@ public class Game extends Activity implements SurfaceHolder.Callback,
                     }
 
                     message += "]";
+
+                    // The averages hide the slow frames, which are the ones that stutter
+                    if (decoderRenderer.getEndToEndLatencyPercentileMs(100) > 0) {
+                        message += "\n" + getResources().getString(R.string.perf_overlay_percentiles,
+                                getResources().getString(R.string.perf_overlay_label_endtoend),
+                                decoderRenderer.getEndToEndLatencyPercentileMs(50),
+                                decoderRenderer.getEndToEndLatencyPercentileMs(95),
+                                decoderRenderer.getEndToEndLatencyPercentileMs(99),
+                                decoderRenderer.getEndToEndLatencyPercentileMs(100));
+                    }
+                    if (decoderRenderer.getDecoderLatencyPercentileMs(100) > 0) {
+                        message += "\n" + getResources().getString(R.string.perf_overlay_percentiles,
+                                getResources().getString(R.string.perf_overlay_label_dectime),
+                                decoderRenderer.getDecoderLatencyPercentileMs(50),
+                                decoderRenderer.getDecoderLatencyPercentileMs(95),
+                                decoderRenderer.getDecoderLatencyPercentileMs(99),
+                                decoderRenderer.getDecoderLatencyPercentileMs(100));
+                    }
                 }
 
                 if (message != null) {
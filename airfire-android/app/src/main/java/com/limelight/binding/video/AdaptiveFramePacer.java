@@ -0,0 +1,130 @@
+package com.limelight.binding.video;
+
+// Per-vsync decisions for adaptive frame pacing: present the oldest decoded frame now, hold it
+// for one more vsync to keep the content's cadence, or drop it to get back under the latency
+// budget. Latency runs from the frame's timestamp (when it was queued to the decoder) to when
+// it actually reaches the display.
+//
+// Three estimates feed the decisions. Network jitter is the variation in the gap between
+// frames arriving, and decoder jitter the variation in decode time, both smoothed as in RFC
+// 3550. Present lag is how long after its requested release time a frame really reached the
+// display, learned from the decoder's render callbacks.
+//
+// Decoded frames, vsyncs and render callbacks each come from their own thread.
+class AdaptiveFramePacer {
+    static final int PRESENT = 0;
+    static final int HOLD = 1;
+    static final int DROP = 2;
+
+    private static final int RELEASE_SLOTS = 8;
+
+    private final long budgetNs;
+    private final long vsyncPeriodNs;
+
+    private long lastPtsUs = -1;
+    private long arrivalIntervalNs;
+    private long networkJitterNs;
+    private long decodeTimeNs = -1;
+    private long decoderJitterNs;
+
+    // Until the first render callback, assume frames show up on the vsync after their release
+    private long presentLagNs;
+    private long presentLatencyNs = -1;
+    private final long[] releasePtsUs = new long[RELEASE_SLOTS];
+    private final long[] releaseTimesNs = new long[RELEASE_SLOTS];
+    private int releaseIndex;
+
+    AdaptiveFramePacer(long budgetNs, long vsyncPeriodNs) {
+        this.budgetNs = budgetNs;
+        this.vsyncPeriodNs = vsyncPeriodNs;
+        this.arrivalIntervalNs = vsyncPeriodNs;
+        this.presentLagNs = vsyncPeriodNs;
+    }
+
+    long getBudgetNs() {
+        return budgetNs;
+    }
+
+    // Called as each frame comes out of the decoder
+    synchronized void onFrameDecoded(long ptsUs, long decodedTimeNs) {
+        if (lastPtsUs >= 0 && ptsUs > lastPtsUs) {
+            long intervalNs = (ptsUs - lastPtsUs) * 1000;
+
+            // A sender that stops sending on a still screen isn't jitter
+            if (intervalNs < 4 * arrivalIntervalNs) {
+                networkJitterNs += (Math.abs(intervalNs - arrivalIntervalNs) - networkJitterNs) / 16;
+                arrivalIntervalNs += (intervalNs - arrivalIntervalNs) / 16;
+            }
+        }
+        lastPtsUs = ptsUs;
+
+        long sampleNs = decodedTimeNs - ptsUs * 1000;
+        if (sampleNs >= 0) {
+            if (decodeTimeNs < 0) {
+                decodeTimeNs = sampleNs;
+            }
+            decoderJitterNs += (Math.abs(sampleNs - decodeTimeNs) - decoderJitterNs) / 16;
+            decodeTimeNs += (sampleNs - decodeTimeNs) / 16;
+        }
+    }
+
+    // Decides what to do with the oldest queued frame at this vsync
+    synchronized int decide(long ptsUs, long frameTimeNanos, long sinceLastPresentNs, boolean newerFrameQueued) {
+        long expectedLatencyNs = frameTimeNanos + presentLagNs - ptsUs * 1000;
+
+        // Already over budget, and there's a fresher frame to show instead
+        if (expectedLatencyNs > budgetNs && newerFrameQueued) {
+            return DROP;
+        }
+
+        // Showing it now would be more than half a vsync ahead of the content's cadence. Hold it
+        // if it would still arrive within budget with room left for the jitter we're seeing.
+        long frameIntervalNs = Math.max(arrivalIntervalNs, vsyncPeriodNs);
+        if (!newerFrameQueued && sinceLastPresentNs < frameIntervalNs - vsyncPeriodNs / 2 &&
+                expectedLatencyNs + vsyncPeriodNs + getJitterNs() <= budgetNs) {
+            return HOLD;
+        }
+
+        return PRESENT;
+    }
+
+    // Called when a frame is released for display at releaseTimeNs
+    synchronized void onFramePresented(long ptsUs, long releaseTimeNs) {
+        releasePtsUs[releaseIndex] = ptsUs;
+        releaseTimesNs[releaseIndex] = releaseTimeNs;
+        releaseIndex = (releaseIndex + 1) % RELEASE_SLOTS;
+    }
+
+    // Called from the decoder's render callback, on System.nanoTime
+    synchronized void onFrameRendered(long ptsUs, long renderTimeNs) {
+        for (int i = 0; i < RELEASE_SLOTS; i++) {
+            if (releasePtsUs[i] == ptsUs && releaseTimesNs[i] != 0) {
+                long lagNs = renderTimeNs - releaseTimesNs[i];
+                releaseTimesNs[i] = 0;
+
+                // Ignore frames held up by something other than the display, like a stall
+                if (lagNs >= 0 && lagNs < 4 * vsyncPeriodNs) {
+                    presentLagNs += (lagNs - presentLagNs) / 8;
+                }
+                break;
+            }
+        }
+
+        long latencyNs = renderTimeNs - ptsUs * 1000;
+        if (latencyNs >= 0) {
+            if (presentLatencyNs < 0) {
+                presentLatencyNs = latencyNs;
+            }
+            presentLatencyNs += (latencyNs - presentLatencyNs) / 16;
+        }
+    }
+
+    synchronized long getJitterNs() {
+        return networkJitterNs + decoderJitterNs;
+    }
+
+    // Smoothed latency of frames that reached the display, or -1 before any have been seen
+    synchronized long getPresentLatencyNs() {
+        return presentLatencyNs;
+    }
+}
@@ -0,0 +1,50 @@
+package com.limelight.binding.video;
+
+import java.nio.ByteBuffer;
+
+// Staging for one kind of CSD NALU (VPS, SPS or PPS) until it's submitted with the IDR frame.
+// The buffers are kept across IDR frames and only grow, so staging allocates nothing once
+// the stream's parameter sets have been seen.
+class CsdBufferList {
+    private static final int INITIAL_SLOTS = 2;
+    private static final int INITIAL_BUFFER_SIZE = 128;
+
+    private byte[][] buffers = new byte[INITIAL_SLOTS][];
+    private int[] lengths = new int[INITIAL_SLOTS];
+    private int count;
+
+    void clear() {
+        count = 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    void add(byte[] data, int offset, int length) {
+        if (count == buffers.length) {
+            byte[][] newBuffers = new byte[buffers.length * 2][];
+            System.arraycopy(buffers, 0, newBuffers, 0, count);
+            buffers = newBuffers;
+
+            int[] newLengths = new int[lengths.length * 2];
+            System.arraycopy(lengths, 0, newLengths, 0, count);
+            lengths = newLengths;
+        }
+
+        byte[] buffer = buffers[count];
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[Math.max(length, INITIAL_BUFFER_SIZE)];
+            buffers[count] = buffer;
+        }
+        System.arraycopy(data, offset, buffer, 0, length);
+        lengths[count] = length;
+        count++;
+    }
+
+    void writeTo(ByteBuffer dest) {
+        for (int i = 0; i < count; i++) {
+            dest.put(buffers[i], 0, lengths[i]);
+        }
+    }
+}
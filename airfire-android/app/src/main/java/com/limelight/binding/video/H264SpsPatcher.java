@@ -0,0 +1,184 @@
+package com.limelight.binding.video;
+
+import com.limelight.LimeLog;
+
+import java.nio.ByteBuffer;
+
+import org.jcodec.codecs.h264.H264Utils;
+import org.jcodec.codecs.h264.io.model.SeqParameterSet;
+import org.jcodec.codecs.h264.io.model.VUIParameters;
+
+// The H.264 SPS rewrite MediaCodecDecoderRenderer does for each new SPS, so that decoders
+// buffer as few frames as they can. What gets patched depends only on the decoder and the
+// stream it was configured for, which are fixed when this is created.
+//
+// Takes the API level rather than reading Build itself, so it also builds for the desktop
+// benchmarks.
+class H264SpsPatcher {
+    private static final int API_O = 26;
+
+    private final int width, height, refreshRate;
+    private final int sdkInt;
+    private final boolean refFrameInvalidationActive;
+    private final boolean otherCodecsAvailable;
+    private final boolean needsBitstreamRestrictions;
+    private final boolean constrainedHighProfile;
+
+    H264SpsPatcher(int width, int height, int refreshRate, int sdkInt, boolean refFrameInvalidationActive,
+                   boolean otherCodecsAvailable, boolean needsBitstreamRestrictions, boolean constrainedHighProfile) {
+        this.width = width;
+        this.height = height;
+        this.refreshRate = refreshRate;
+        this.sdkInt = sdkInt;
+        this.refFrameInvalidationActive = refFrameInvalidationActive;
+        this.otherCodecsAvailable = otherCodecsAvailable;
+        this.needsBitstreamRestrictions = needsBitstreamRestrictions;
+        this.constrainedHighProfile = constrainedHighProfile;
+    }
+
+    // Reads the Annex B SPS NALU and applies the level, reference frame and VUI patches.
+    // The constraint flags are left for patchConstraintFlags(), once the profile is final.
+    SeqParameterSet read(byte[] decodeUnitData) {
+        ByteBuffer spsBuf = ByteBuffer.wrap(decodeUnitData);
+
+        // Skip to the start of the NALU data
+        spsBuf.position(getStartSeqLen(decodeUnitData) + 1);
+
+        // The H264Utils.readSPS function safely handles
+        // Annex B NALUs (including NALUs with escape sequences)
+        SeqParameterSet sps = H264Utils.readSPS(spsBuf);
+
+        // Some decoders rely on H264 level to decide how many buffers are needed
+        // Since we only need one frame buffered, we'll set the level as low as we can
+        // for known resolution combinations. Reference frame invalidation may need
+        // these, so leave them be for those decoders.
+        if (!refFrameInvalidationActive) {
+            if (width <= 720 && height <= 480 && refreshRate <= 60) {
+                // Max 5 buffered frames at 720x480x60
+                LimeLog.info("Patching level_idc to 31");
+                sps.levelIdc = 31;
+            }
+            else if (width <= 1280 && height <= 720 && refreshRate <= 60) {
+                // Max 5 buffered frames at 1280x720x60
+                LimeLog.info("Patching level_idc to 32");
+                sps.levelIdc = 32;
+            }
+            else if (width <= 1920 && height <= 1080 && refreshRate <= 60) {
+                // Max 4 buffered frames at 1920x1080x64
+                LimeLog.info("Patching level_idc to 42");
+                sps.levelIdc = 42;
+            }
+            else {
+                // Leave the profile alone (currently 5.0)
+            }
+        }
+
+        // TI OMAP4 requires a reference frame count of 1 to decode successfully. Exynos 4
+        // also requires this fixup.
+        //
+        // I'm doing this fixup for all devices because I haven't seen any devices that
+        // this causes issues for. At worst, it seems to do nothing and at best it fixes
+        // issues with video lag, hangs, and crashes.
+        //
+        // It does break reference frame invalidation, so we will not do that for decoders
+        // where we've enabled reference frame invalidation.
+        if (!refFrameInvalidationActive) {
+            LimeLog.info("Patching num_ref_frames in SPS");
+            sps.numRefFrames = 1;
+        }
+
+        // GFE 2.5.11 changed the SPS to add additional extensions. Some devices don't like these
+        // so we remove them here on old devices unless these devices also support HEVC.
+        // See getPreferredColorSpace() for further information.
+        if (sdkInt < API_O && sps.vuiParams != null && !otherCodecsAvailable) {
+            sps.vuiParams.videoSignalTypePresentFlag = false;
+            sps.vuiParams.colourDescriptionPresentFlag = false;
+            sps.vuiParams.chromaLocInfoPresentFlag = false;
+        }
+
+        // Some older devices used to choke on a bitstream restrictions, so we won't provide them
+        // unless explicitly whitelisted. For newer devices, leave the bitstream restrictions present.
+        if (needsBitstreamRestrictions || sdkInt >= API_O) {
+            // The SPS that comes in the current H264 bytestream doesn't set bitstream_restriction_flag
+            // or max_dec_frame_buffering which increases decoding latency on Tegra.
+
+            // If the encoder didn't include VUI parameters in the SPS, add them now
+            if (sps.vuiParams == null) {
+                LimeLog.info("Adding VUI parameters");
+                sps.vuiParams = new VUIParameters();
+            }
+
+            // GFE 2.5.11 started sending bitstream restrictions
+            if (sps.vuiParams.bitstreamRestriction == null) {
+                LimeLog.info("Adding bitstream restrictions");
+                sps.vuiParams.bitstreamRestriction = new VUIParameters.BitstreamRestriction();
+                sps.vuiParams.bitstreamRestriction.motionVectorsOverPicBoundariesFlag = true;
+                sps.vuiParams.bitstreamRestriction.maxBytesPerPicDenom = 2;
+                sps.vuiParams.bitstreamRestriction.maxBitsPerMbDenom = 1;
+                sps.vuiParams.bitstreamRestriction.log2MaxMvLengthHorizontal = 16;
+                sps.vuiParams.bitstreamRestriction.log2MaxMvLengthVertical = 16;
+                sps.vuiParams.bitstreamRestriction.numReorderFrames = 0;
+            }
+            else {
+                LimeLog.info("Patching bitstream restrictions");
+            }
+
+            // Some devices throw errors if maxDecFrameBuffering < numRefFrames
+            sps.vuiParams.bitstreamRestriction.maxDecFrameBuffering = sps.numRefFrames;
+
+            // These values are the defaults for the fields, but they are more aggressive
+            // than what GFE sends in 2.5.11, but it doesn't seem to cause picture problems.
+            // We'll leave these alone for "modern" devices just in case they care.
+            if (sdkInt < API_O) {
+                sps.vuiParams.bitstreamRestriction.maxBytesPerPicDenom = 2;
+                sps.vuiParams.bitstreamRestriction.maxBitsPerMbDenom = 1;
+            }
+
+            // log2_max_mv_length_horizontal and log2_max_mv_length_vertical are set to more
+            // conservative values by GFE 2.5.11. We'll let those values stand.
+        }
+        else if (sps.vuiParams != null) {
+            // Devices that didn't/couldn't get bitstream restrictions before GFE 2.5.11
+            // will continue to not receive them now
+            sps.vuiParams.bitstreamRestriction = null;
+        }
+
+        return sps;
+    }
+
+    void patchConstraintFlags(SeqParameterSet sps) {
+        // Some devices benefit from setting constraint flags 4 & 5 to make this Constrained
+        // High Profile which allows the decoder to assume there will be no B-frames and
+        // reduce delay and buffering accordingly. Some devices (Marvell, Exynos 4) don't
+        // like it so we only set them on devices that are confirmed to benefit from it.
+        if (sps.profileIdc == 100 && constrainedHighProfile) {
+            LimeLog.info("Setting constraint set flags for constrained high profile");
+            sps.constraintSet4Flag = true;
+            sps.constraintSet5Flag = true;
+        }
+        else {
+            // Force the constraints unset otherwise (some may be set by default)
+            sps.constraintSet4Flag = false;
+            sps.constraintSet5Flag = false;
+        }
+    }
+
+    // Writes the patched SPS behind the original NALU's start code and header
+    static byte[] write(SeqParameterSet sps, byte[] decodeUnitData, int decodeUnitLength) {
+        int startSeqLen = getStartSeqLen(decodeUnitData);
+
+        // The H264Utils.writeSPS function safely handles
+        // Annex B NALUs (including NALUs with escape sequences)
+        ByteBuffer escapedNalu = H264Utils.writeSPS(sps, decodeUnitLength);
+
+        // Construct the patched SPS
+        byte[] naluBuffer = new byte[startSeqLen + 1 + escapedNalu.limit()];
+        System.arraycopy(decodeUnitData, 0, naluBuffer, 0, startSeqLen + 1);
+        escapedNalu.get(naluBuffer, startSeqLen + 1, escapedNalu.limit());
+        return naluBuffer;
+    }
+
+    private static int getStartSeqLen(byte[] decodeUnitData) {
+        return decodeUnitData[2] == 0x01 ? 3 : 4;
+    }
+}
@@ -0,0 +1,52 @@
+package com.limelight.binding.video;
+
+// Input buffer indices handed to us by MediaCodec's async callbacks, waiting for the input
+// thread to fill them. Unlike output buffers, none can be dropped: a lost index is a lost
+// input buffer until the codec is flushed.
+class InputBufferIndexQueue {
+    static final int EMPTY = -1;
+
+    private static final int INITIAL_SLOTS = 8;
+
+    private int[] slots = new int[INITIAL_SLOTS];
+    private int head;
+    private int count;
+
+    // Called on the codec callback thread
+    synchronized void offer(int index) {
+        if (count == slots.length) {
+            // Codecs don't say up front how many input buffers they have
+            int[] newSlots = new int[slots.length * 2];
+            for (int i = 0; i < count; i++) {
+                newSlots[i] = slots[(head + i) % slots.length];
+            }
+            slots = newSlots;
+            head = 0;
+        }
+
+        slots[(head + count) % slots.length] = index;
+        count++;
+        notify();
+    }
+
+    // Returns the oldest index, or EMPTY if none arrived within the timeout
+    synchronized int take(long timeoutMs) throws InterruptedException {
+        if (count == 0) {
+            wait(timeoutMs);
+            if (count == 0) {
+                return EMPTY;
+            }
+        }
+
+        int index = slots[head];
+        head = (head + 1) % slots.length;
+        count--;
+        return index;
+    }
+
+    // Only while the codec is quiesced, since flushing or stopping it invalidates every index
+    synchronized void clear() {
+        head = 0;
+        count = 0;
+    }
+}
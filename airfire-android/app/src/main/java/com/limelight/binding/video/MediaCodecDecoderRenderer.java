@@ -3,19 +3,22 @@ package com.limelight.binding.video;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jcodec.codecs.h264.H264Utils;
 import org.jcodec.codecs.h264.io.model.SeqParameterSet;
-import org.jcodec.codecs.h264.io.model.VUIParameters;
 
-import com.limelight.BuildConfig;
+import com.airfire.AvSyncClock;
+import com.airfire.BuildConfig;
+import com.airfire.FrameLatencyTracker;
+import com.airfire.LatencyHistogram;
+import com.airfire.LatencyRecorder;
+import com.airfire.R;
 import com.limelight.LimeLog;
-import com.limelight.R;
 import com.limelight.nvstream.av.video.VideoDecoderRenderer;
 import com.limelight.nvstream.jni.MoonBridge;
 import com.limelight.preferences.PreferenceConfiguration;
@@ -49,9 +52,11 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
     private MediaCodecInfo hevcDecoder;
     private MediaCodecInfo av1Decoder;
 
-    private final ArrayList<byte[]> vpsBuffers = new ArrayList<>();
-    private final ArrayList<byte[]> spsBuffers = new ArrayList<>();
-    private final ArrayList<byte[]> ppsBuffers = new ArrayList<>();
+    private final CsdBufferList vpsBuffers = new CsdBufferList();
+    private final CsdBufferList spsBuffers = new CsdBufferList();
+    private final CsdBufferList ppsBuffers = new CsdBufferList();
+    private final SpsPatchCache spsPatchCache = new SpsPatchCache();
+    private H264SpsPatcher spsPatcher;
     private boolean submittedCsd;
     private byte[] currentHdrMetadata;
 
@@ -110,18 +115,61 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
     private VideoStats activeWindowVideoStats;
     private VideoStats lastWindowVideoStats;
     private VideoStats globalVideoStats;
+    // Reused for the perf overlay, since the histograms make a VideoStats a few KB
+    private final VideoStats overlayVideoStats = new VideoStats();
+    // Frames are timed on the render, codec callback, Choreographer and input threads, so
+    // they're recorded here without a lock and only drained into the active window's
+    // histograms when the window flips or someone reads percentiles
+    private final LatencyRecorder decodeTimeRecorder = new LatencyRecorder();
+    private final LatencyRecorder endToEndTimeRecorder = new LatencyRecorder();
+    private final LatencyRecorder hostProcessingLatencyRecorder = new LatencyRecorder();
+    private final LatencyRecorder renderIntervalRecorder = new LatencyRecorder();
+    // Guards the histograms in the stats above, which the input thread flips while the
+    // overlay, session summary and crash report read them. A histogram caught mid-copy has
+    // counts that don't add up. Recording never takes it.
+    private final Object statsLock = new Object();
+    // Scratch space for session percentiles, also under statsLock
+    private final LatencyHistogram sessionHistogram = new LatencyHistogram();
+    private long lastReleaseTimeNs;
 
     private long lastTimestampUs;
     private int lastFrameNumber;
     private int refreshRate;
     private PreferenceConfiguration prefs;
 
-    private LinkedBlockingQueue<Integer> outputBufferQueue = new LinkedBlockingQueue<>();
     private static final int OUTPUT_BUFFER_QUEUE_LIMIT = 2;
+    private final OutputBufferRing outputBufferQueue = new OutputBufferRing(OUTPUT_BUFFER_QUEUE_LIMIT);
     private long lastRenderedFrameTimeNanos;
     private HandlerThread choreographerHandlerThread;
+
+    // Adaptive frame pacing needs each queued frame's timestamp, looked up by buffer index
+    private volatile AdaptiveFramePacer adaptivePacer;
+    private final long[] outputBufferPtsUs = new long[64];
+    private int heldOutputBuffer = OutputBufferRing.EMPTY;
     private Handler choreographerHandler;
 
+    // In async mode, MediaCodec pushes buffer availability to the callback thread, which takes
+    // the place of the renderer thread (including its codec recovery flag)
+    private boolean asyncDecoder;
+    private HandlerThread asyncCallbackThread;
+    private Handler asyncCallbackHandler;
+    private final InputBufferIndexQueue inputBufferIndices = new InputBufferIndexQueue();
+    private final AtomicBoolean asyncQuiescePosted = new AtomicBoolean();
+    private MediaCodec.Callback asyncCallback;
+
+    // Only the timestamp comes back out of the decoder, so the frame number and receive delay
+    // of each queued frame are kept alongside it for the A/V sync clock, latency tracker and
+    // end-to-end stats to look up
+    private volatile AvSyncClock avSyncClock;
+    private volatile FrameLatencyTracker latencyTracker;
+    // Only a Moonlight connection has an RTT estimate, and asking for it loads moonlight-core
+    private boolean hostRttAvailable = true;
+    private static final int SYNC_FRAME_SLOTS = 32;
+    private final long[] syncTimestampsUs = new long[SYNC_FRAME_SLOTS];
+    private final int[] syncFrameNumbers = new int[SYNC_FRAME_SLOTS];
+    private final long[] syncReceiveDelaysUs = new long[SYNC_FRAME_SLOTS];
+    private int syncFrameIndex;
+
     private int numSpsIn;
     private int numPpsIn;
     private int numVpsIn;
@@ -294,6 +342,22 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         this.renderTarget = renderTarget;
     }
 
+    // Frames are scheduled against the audio playback head while the clock has one
+    public void setAvSyncClock(AvSyncClock avSyncClock) {
+        this.avSyncClock = avSyncClock;
+    }
+
+    // Frames are timed through the decoder and onto the screen. Must be set before setup(),
+    // since that's when the render listener is installed.
+    public void setLatencyTracker(FrameLatencyTracker latencyTracker) {
+        this.latencyTracker = latencyTracker;
+    }
+
+    // Streams that don't come from a Moonlight host leave the network latency out of the overlay
+    public void setHostRttAvailable(boolean hostRttAvailable) {
+        this.hostRttAvailable = hostRttAvailable;
+    }
+
     public MediaCodecDecoderRenderer(Activity activity, PreferenceConfiguration prefs,
                                      CrashListener crashListener, int consecutiveCrashCount,
                                      boolean meteredData, boolean requestedHdr,
@@ -537,6 +601,12 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
 
         LimeLog.info("Configuring with format: "+format);
 
+        if (asyncDecoder) {
+            // Must come before configure(), including on a codec that has been reset or replaced
+            videoDecoder.setCallback(asyncCallback, asyncCallbackHandler);
+            inputBufferIndices.clear();
+        }
+
         videoDecoder.configure(format, renderTarget.getSurface(), null, 0);
 
         configuredFormat = format;
@@ -547,6 +617,9 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         spsBuffers.clear();
         ppsBuffers.clear();
 
+        // The SPS patches depend on the decoder's configuration
+        spsPatchCache.clear();
+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             // This will contain the actual accepted input format attributes
             inputFormat = videoDecoder.getInputFormat();
@@ -631,6 +704,9 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             }
 
             refFrameInvalidationActive = refFrameInvalidationAvc;
+            spsPatcher = new H264SpsPatcher(initialWidth, initialHeight, refreshRate, Build.VERSION.SDK_INT,
+                    refFrameInvalidationActive, hevcDecoder != null || av1Decoder != null,
+                    needsSpsBitstreamFixup || isExynos4, constrainedHighProfile);
         }
         else if ((videoFormat & MoonBridge.VIDEO_FORMAT_MASK_H265) != 0) {
             mimeType = "video/hevc";
@@ -683,10 +759,25 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             }
         }
 
-        if (USE_FRAME_RENDER_TIME && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+        if ((USE_FRAME_RENDER_TIME || latencyTracker != null || adaptivePacer != null) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             videoDecoder.setOnFrameRenderedListener(new MediaCodec.OnFrameRenderedListener() {
                 @Override
                 public void onFrameRendered(MediaCodec mediaCodec, long presentationTimeUs, long renderTimeNanos) {
+                    // The render time is on System.nanoTime, when the frame actually reached the display
+                    FrameLatencyTracker tracker = latencyTracker;
+                    if (tracker != null) {
+                        int frameNumber = findSyncFrameNumber(presentationTimeUs);
+                        if (frameNumber >= 0) {
+                            tracker.onFrameRendered(frameNumber, renderTimeNanos);
+                        }
+                    }
+
+                    // Adaptive pacing learns how long frames really take to reach the display
+                    AdaptiveFramePacer pacer = adaptivePacer;
+                    if (pacer != null) {
+                        pacer.onFrameRendered(presentationTimeUs, renderTimeNanos);
+                    }
+
                     long delta = (renderTimeNanos / 1000000L) - (presentationTimeUs / 1000);
                     if (delta >= 0 && delta < 1000) {
                         if (USE_FRAME_RENDER_TIME) {
@@ -707,6 +798,22 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         this.videoFormat = format;
         this.refreshRate = redrawRate;
 
+        // The callbacks start as soon as the decoder does, so their thread has to exist first
+        if (prefs.asyncDecoder && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            asyncDecoder = true;
+            startAsyncCallbackThread();
+        }
+        LimeLog.info("Using " + (asyncDecoder ? "async" : "sync") + " MediaCodec engine");
+
+        // Created before the decoder so its render listener gets installed. Without timed
+        // releases (before Lollipop), this mode falls back to balanced pacing.
+        if (prefs.framePacing == PreferenceConfiguration.FRAME_PACING_ADAPTIVE && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            float displayRefreshRate = activity.getWindowManager().getDefaultDisplay().getRefreshRate();
+            adaptivePacer = new AdaptiveFramePacer(prefs.pacingBudgetMs * 1000000L,
+                    (long) (1000000000 / displayRefreshRate));
+            LimeLog.info("Adaptive frame pacing with a " + prefs.pacingBudgetMs + " ms budget at " + displayRefreshRate + " Hz");
+        }
+
         return initializeDecoder(false);
     }
 
@@ -734,12 +841,18 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                 nextInputBuffer = null;
                 nextInputBufferIndex = -1;
                 outputBufferQueue.clear();
+                heldOutputBuffer = OutputBufferRing.EMPTY;
+                inputBufferIndices.clear();
 
                 // If we just need a flush, do so now with all threads quiesced.
                 if (codecRecoveryType.get() == CR_RECOVERY_TYPE_FLUSH) {
                     LimeLog.warning("Flushing decoder");
                     try {
                         videoDecoder.flush();
+                        if (asyncDecoder) {
+                            // In async mode, a flushed codec stays paused until it's started again
+                            videoDecoder.start();
+                        }
                         codecRecoveryType.set(CR_RECOVERY_TYPE_NONE);
                     } catch (IllegalStateException e) {
                         e.printStackTrace();
@@ -833,6 +946,19 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                 codecRecoveryMonitor.notifyAll();
             }
             else {
+                // A dead codec delivers no more callbacks, so the callback thread may never get
+                // here on its own. Wake it up to quiesce too.
+                if (asyncCallbackHandler != null && (codecRecoveryThreadQuiescedFlags & CR_FLAG_RENDER_THREAD) == 0 &&
+                        asyncQuiescePosted.compareAndSet(false, true)) {
+                    asyncCallbackHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            asyncQuiescePosted.set(false);
+                            doCodecRecoveryIfRequired(CR_FLAG_RENDER_THREAD);
+                        }
+                    });
+                }
+
                 // If we haven't quiesced all threads yet, wait to be signalled after recovery.
                 // The final thread to be quiesced will handle the codec recovery.
                 while (codecRecoveryType.get() != CR_RECOVERY_TYPE_NONE) {
@@ -981,6 +1107,22 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             frameTimeNanos -= activity.getWindowManager().getDefaultDisplay().getAppVsyncOffsetNanos();
         }
 
+        if (adaptivePacer != null) {
+            renderAdaptiveFrame(frameTimeNanos);
+        }
+        else {
+            renderBalancedFrame(frameTimeNanos);
+        }
+
+        // Attempt codec recovery even if we have nothing to render right now. Recovery can still
+        // be required even if the codec died before giving any output.
+        doCodecRecoveryIfRequired(CR_FLAG_CHOREOGRAPHER);
+
+        // Request another callback for next frame
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    private void renderBalancedFrame(long frameTimeNanos) {
         // Don't render unless a new frame is due. This prevents microstutter when streaming
         // at a frame rate that doesn't match the display (such as 60 FPS on 120 Hz).
         long actualFrameTimeDeltaNs = frameTimeNanos - lastRenderedFrameTimeNanos;
@@ -991,8 +1133,12 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             // NB: Since the queue limit is 2, we won't starve the decoder of output buffers
             // by holding onto them for too long. This also ensures we will have that 1 extra
             // frame of buffer to smooth over network/rendering jitter.
-            Integer nextOutputBuffer = outputBufferQueue.poll();
-            if (nextOutputBuffer != null) {
+            int queuedFrames = outputBufferQueue.size();
+            activeWindowVideoStats.pacingQueueDepthTotal += queuedFrames;
+            activeWindowVideoStats.pacingVsyncs++;
+
+            int nextOutputBuffer = outputBufferQueue.poll();
+            if (nextOutputBuffer != OutputBufferRing.EMPTY) {
                 try {
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
                         videoDecoder.releaseOutputBuffer(nextOutputBuffer, frameTimeNanos);
@@ -1002,7 +1148,7 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                     }
 
                     lastRenderedFrameTimeNanos = frameTimeNanos;
-                    activeWindowVideoStats.totalFramesRendered++;
+                    onFrameReleased(frameTimeNanos);
                 } catch (IllegalStateException ignored) {
                     try {
                         // Try to avoid leaking the output buffer by releasing it without rendering
@@ -1015,17 +1161,90 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                 }
             }
         }
+    }
 
-        // Attempt codec recovery even if we have nothing to render right now. Recovery can still
-        // be required even if the codec died before giving any output.
-        doCodecRecoveryIfRequired(CR_FLAG_CHOREOGRAPHER);
+    private void renderAdaptiveFrame(long frameTimeNanos) {
+        int queuedFrames = outputBufferQueue.size();
+        activeWindowVideoStats.pacingQueueDepthTotal += queuedFrames;
+        activeWindowVideoStats.pacingVsyncs++;
+
+        // Work through the queue oldest first until a frame is presented or held. A held frame
+        // stays at the head of the queue until the next vsync, so it still counts against the
+        // queue limit, and it's the frame dropped if a newer one arrives in the meantime.
+        while (true) {
+            int outputBuffer = outputBufferQueue.peek();
+            if (outputBuffer == OutputBufferRing.EMPTY) {
+                break;
+            }
 
-        // Request another callback for next frame
-        Choreographer.getInstance().postFrameCallback(this);
+            int decision = AdaptiveFramePacer.PRESENT;
+            long ptsUs = 0;
+            if (outputBuffer < outputBufferPtsUs.length) {
+                ptsUs = outputBufferPtsUs[outputBuffer];
+                decision = adaptivePacer.decide(ptsUs, frameTimeNanos,
+                        frameTimeNanos - lastRenderedFrameTimeNanos, outputBufferQueue.size() > 1);
+            }
+
+            if (decision == AdaptiveFramePacer.HOLD) {
+                if (outputBuffer != heldOutputBuffer) {
+                    heldOutputBuffer = outputBuffer;
+                    activeWindowVideoStats.framesHeldByPacing++;
+                }
+                break;
+            }
+
+            heldOutputBuffer = OutputBufferRing.EMPTY;
+            if (!outputBufferQueue.removePeeked()) {
+                // The renderer thread dropped it for a newer frame while we decided
+                continue;
+            }
+            try {
+                if (decision == AdaptiveFramePacer.DROP) {
+                    videoDecoder.releaseOutputBuffer(outputBuffer, false);
+                    activeWindowVideoStats.framesDroppedByPacing++;
+                    continue;
+                }
+
+                // Adaptive pacing is only offered where timed releases exist (Lollipop and later)
+                videoDecoder.releaseOutputBuffer(outputBuffer, frameTimeNanos);
+                adaptivePacer.onFramePresented(ptsUs, frameTimeNanos);
+
+                lastRenderedFrameTimeNanos = frameTimeNanos;
+                onFrameReleased(frameTimeNanos);
+            } catch (IllegalStateException ignored) {
+                try {
+                    // Try to avoid leaking the output buffer by releasing it without rendering
+                    videoDecoder.releaseOutputBuffer(outputBuffer, false);
+                } catch (IllegalStateException e) {
+                    // This will leak outputBuffer, but there's really nothing else we can do
+                    e.printStackTrace();
+                    handleDecoderException(e);
+                }
+            }
+            break;
+        }
+    }
+
+    // Counts a frame released for display at releaseTimeNs, with the interval since the last one.
+    // Pauses longer than a second are the sender idling on a still screen, not stutter.
+    private void onFrameReleased(long releaseTimeNs) {
+        activeWindowVideoStats.totalFramesRendered++;
+
+        long intervalNs = releaseTimeNs - lastReleaseTimeNs;
+        if (lastReleaseTimeNs != 0 && intervalNs >= 0 && intervalNs < 1000000000) {
+            renderIntervalRecorder.record(intervalNs / 1000);
+        }
+        lastReleaseTimeNs = releaseTimeNs;
+    }
+
+    // Frames are handed to the Choreographer thread in these modes rather than rendered on arrival
+    private boolean isChoreographerPacing() {
+        return prefs.framePacing == PreferenceConfiguration.FRAME_PACING_BALANCED ||
+                prefs.framePacing == PreferenceConfiguration.FRAME_PACING_ADAPTIVE;
     }
 
     private void startChoreographerThread() {
-        if (prefs.framePacing != PreferenceConfiguration.FRAME_PACING_BALANCED) {
+        if (!isChoreographerPacing()) {
             // Not using Choreographer in this pacing mode
             return;
         }
@@ -1044,6 +1263,156 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         });
     }
 
+    // Shared by both engines, on whichever thread the decoder's output arrives
+    private void renderOutputBuffer(int outIndex, BufferInfo info, boolean drainQueued) {
+        long presentationTimeUs = info.presentationTimeUs;
+        int lastIndex = outIndex;
+
+        numFramesOut++;
+        onSyncFrameDecoded(presentationTimeUs);
+
+        // While there's audio to sync to, each frame is released for the moment its
+        // audio is heard, or dropped if it's already too late, whatever the pacing mode
+        long syncRenderTimeNs = getSyncRenderTimeNs(presentationTimeUs);
+        if (syncRenderTimeNs != AvSyncClock.RENDER_UNSYNCHRONIZED) {
+            if (syncRenderTimeNs == AvSyncClock.DROP) {
+                videoDecoder.releaseOutputBuffer(lastIndex, false);
+            }
+            else {
+                videoDecoder.releaseOutputBuffer(lastIndex, syncRenderTimeNs);
+                onFrameReleased(syncRenderTimeNs);
+            }
+        }
+        // Render the latest frame now unless the Choreographer is pacing frames
+        else if (!isChoreographerPacing()) {
+            // Get the last output buffer in the queue. Async callbacks arrive one buffer at a
+            // time, so there's nothing more to drain.
+            if (drainQueued) {
+                while ((outIndex = videoDecoder.dequeueOutputBuffer(info, 0)) >= 0) {
+                    videoDecoder.releaseOutputBuffer(lastIndex, false);
+
+                    numFramesOut++;
+                    onSyncFrameDecoded(info.presentationTimeUs);
+
+                    lastIndex = outIndex;
+                    presentationTimeUs = info.presentationTimeUs;
+                }
+            }
+
+            if (prefs.framePacing == PreferenceConfiguration.FRAME_PACING_MAX_SMOOTHNESS ||
+                    prefs.framePacing == PreferenceConfiguration.FRAME_PACING_CAP_FPS) {
+                // In max smoothness or cap FPS mode, we want to never drop frames
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    // Use a PTS that will cause this frame to never be dropped
+                    videoDecoder.releaseOutputBuffer(lastIndex, 0);
+                }
+                else {
+                    videoDecoder.releaseOutputBuffer(lastIndex, true);
+                }
+            }
+            else {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    // Use a PTS that will cause this frame to be dropped if another comes in within
+                    // the same V-sync period
+                    videoDecoder.releaseOutputBuffer(lastIndex, System.nanoTime());
+                }
+                else {
+                    videoDecoder.releaseOutputBuffer(lastIndex, true);
+                }
+            }
+
+            onFrameReleased(System.nanoTime());
+        }
+        else {
+            // For balanced and adaptive frame pacing, the Choreographer callback will handle rendering.
+            // We just put all frames into the output buffer queue and let it handle things.
+            AdaptiveFramePacer pacer = adaptivePacer;
+            if (pacer != null) {
+                pacer.onFrameDecoded(presentationTimeUs, System.nanoTime());
+            }
+            if (lastIndex < outputBufferPtsUs.length) {
+                // Published to the Choreographer thread along with the index itself
+                outputBufferPtsUs[lastIndex] = presentationTimeUs;
+            }
+
+            // Add this buffer, discarding the oldest one if we've exceeded our limit.
+            //
+            // NB: We have to do this on the producer side because the consumer may not
+            // run for a while (if there is a huge mismatch between stream FPS and display
+            // refresh rate).
+            int droppedIndex = outputBufferQueue.offer(lastIndex);
+            if (droppedIndex != OutputBufferRing.EMPTY) {
+                videoDecoder.releaseOutputBuffer(droppedIndex, false);
+                activeWindowVideoStats.framesDroppedByPacing++;
+            }
+        }
+
+        // Add delta time to the totals (excluding probable outliers)
+        long delta = SystemClock.uptimeMillis() - (presentationTimeUs / 1000);
+        if (delta >= 0 && delta < 1000) {
+            activeWindowVideoStats.decoderTimeMs += delta;
+            if (!USE_FRAME_RENDER_TIME) {
+                activeWindowVideoStats.totalTimeMs += delta;
+            }
+        }
+
+        // The same for the histograms, in microseconds. System.nanoTime() is on the same
+        // monotonic clock as uptimeMillis().
+        long deltaUs = System.nanoTime() / 1000 - presentationTimeUs;
+        if (deltaUs >= 0 && deltaUs < 1000000) {
+            long receiveDelayUs = findSyncReceiveDelayUs(presentationTimeUs);
+            decodeTimeRecorder.record(deltaUs);
+            if (receiveDelayUs >= 0) {
+                endToEndTimeRecorder.record(receiveDelayUs + deltaUs);
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private void startAsyncCallbackThread() {
+        asyncCallbackThread = new HandlerThread("Video - Codec callbacks", Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_MORE_FAVORABLE);
+        asyncCallbackThread.start();
+        asyncCallbackHandler = new Handler(asyncCallbackThread.getLooper());
+
+        asyncCallback = new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                // Callbacks already queued from a decoder we've since recreated are stale
+                if (codec == videoDecoder) {
+                    inputBufferIndices.offer(index);
+                }
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, BufferInfo info) {
+                if (stopping || codec != videoDecoder) {
+                    return;
+                }
+
+                try {
+                    renderOutputBuffer(index, info, false);
+                } catch (IllegalStateException e) {
+                    handleDecoderException(e);
+                } finally {
+                    doCodecRecoveryIfRequired(CR_FLAG_RENDER_THREAD);
+                }
+            }
+
+            @Override
+            public void onError(MediaCodec codec, CodecException e) {
+                handleDecoderException(e);
+                doCodecRecoveryIfRequired(CR_FLAG_RENDER_THREAD);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                LimeLog.info("Output format changed");
+                outputFormat = format;
+                LimeLog.info("New output format: " + outputFormat);
+            }
+        };
+    }
+
     private void startRendererThread()
     {
         rendererThread = new Thread() {
@@ -1055,78 +1424,7 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                         // Try to output a frame
                         int outIndex = videoDecoder.dequeueOutputBuffer(info, 50000);
                         if (outIndex >= 0) {
-                            long presentationTimeUs = info.presentationTimeUs;
-                            int lastIndex = outIndex;
-
-                            numFramesOut++;
-
-                            // Render the latest frame now if frame pacing isn't in balanced mode
-                            if (prefs.framePacing != PreferenceConfiguration.FRAME_PACING_BALANCED) {
-                                // Get the last output buffer in the queue
-                                while ((outIndex = videoDecoder.dequeueOutputBuffer(info, 0)) >= 0) {
-                                    videoDecoder.releaseOutputBuffer(lastIndex, false);
-
-                                    numFramesOut++;
-
-                                    lastIndex = outIndex;
-                                    presentationTimeUs = info.presentationTimeUs;
-                                }
-
-                                if (prefs.framePacing == PreferenceConfiguration.FRAME_PACING_MAX_SMOOTHNESS ||
-                                        prefs.framePacing == PreferenceConfiguration.FRAME_PACING_CAP_FPS) {
-                                    // In max smoothness or cap FPS mode, we want to never drop frames
-                                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                                        // Use a PTS that will cause this frame to never be dropped
-                                        videoDecoder.releaseOutputBuffer(lastIndex, 0);
-                                    }
-                                    else {
-                                        videoDecoder.releaseOutputBuffer(lastIndex, true);
-                                    }
-                                }
-                                else {
-                                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                                        // Use a PTS that will cause this frame to be dropped if another comes in within
-                                        // the same V-sync period
-                                        videoDecoder.releaseOutputBuffer(lastIndex, System.nanoTime());
-                                    }
-                                    else {
-                                        videoDecoder.releaseOutputBuffer(lastIndex, true);
-                                    }
-                                }
-
-                                activeWindowVideoStats.totalFramesRendered++;
-                            }
-                            else {
-                                // For balanced frame pacing case, the Choreographer callback will handle rendering.
-                                // We just put all frames into the output buffer queue and let it handle things.
-
-                                // Discard the oldest buffer if we've exceeded our limit.
-                                //
-                                // NB: We have to do this on the producer side because the consumer may not
-                                // run for a while (if there is a huge mismatch between stream FPS and display
-                                // refresh rate).
-                                if (outputBufferQueue.size() == OUTPUT_BUFFER_QUEUE_LIMIT) {
-                                    try {
-                                        videoDecoder.releaseOutputBuffer(outputBufferQueue.take(), false);
-                                    } catch (InterruptedException e) {
-                                        // We're shutting down, so we can just drop this buffer on the floor
-                                        // and it will be reclaimed when the codec is released.
-                                        return;
-                                    }
-                                }
-
-                                // Add this buffer
-                                outputBufferQueue.add(lastIndex);
-                            }
-
-                            // Add delta time to the totals (excluding probable outliers)
-                            long delta = SystemClock.uptimeMillis() - (presentationTimeUs / 1000);
-                            if (delta >= 0 && delta < 1000) {
-                                activeWindowVideoStats.decoderTimeMs += delta;
-                                if (!USE_FRAME_RENDER_TIME) {
-                                    activeWindowVideoStats.totalTimeMs += delta;
-                                }
-                            }
+                            renderOutputBuffer(outIndex, info, true);
                         } else {
                             switch (outIndex) {
                                 case MediaCodec.INFO_TRY_AGAIN_LATER:
@@ -1167,7 +1465,17 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         try {
             // If we don't have an input buffer index yet, fetch one now
             while (nextInputBufferIndex < 0 && !stopping) {
-                nextInputBufferIndex = videoDecoder.dequeueInputBuffer(10000);
+                if (asyncDecoder) {
+                    nextInputBufferIndex = inputBufferIndices.take(10);
+
+                    // A codec waiting on recovery won't hand out any more buffers
+                    if (nextInputBufferIndex < 0 && codecRecoveryType.get() != CR_RECOVERY_TYPE_NONE) {
+                        break;
+                    }
+                }
+                else {
+                    nextInputBufferIndex = videoDecoder.dequeueInputBuffer(10000);
+                }
             }
 
             // Get the backing ByteBuffer for the input buffer index
@@ -1193,6 +1501,14 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         } catch (IllegalStateException e) {
             handleDecoderException(e);
             return false;
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+
+            // InterruptedException clears the thread's interrupt status. Since we can't
+            // handle that here, we will re-interrupt the thread to set the interrupt
+            // status back to true.
+            Thread.currentThread().interrupt();
+            return false;
         } finally {
             codecRecovered = doCodecRecoveryIfRequired(CR_FLAG_INPUT_THREAD);
         }
@@ -1229,7 +1545,10 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
 
     @Override
     public void start() {
-        startRendererThread();
+        // The async engine's callback thread was already started by setup()
+        if (!asyncDecoder) {
+            startRendererThread();
+        }
         startChoreographerThread();
     }
 
@@ -1284,15 +1603,51 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         }
 
         // Wait for the renderer thread to shut down
-        try {
-            rendererThread.join();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        if (rendererThread != null) {
+            try {
+                rendererThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
 
-            // InterruptedException clears the thread's interrupt status. Since we can't
-            // handle that here, we will re-interrupt the thread to set the interrupt
-            // status back to true.
-            Thread.currentThread().interrupt();
+                // InterruptedException clears the thread's interrupt status. Since we can't
+                // handle that here, we will re-interrupt the thread to set the interrupt
+                // status back to true.
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Or for the codec callback thread, once it's finished any callback in progress
+        if (asyncCallbackThread != null) {
+            asyncCallbackThread.quit();
+            try {
+                asyncCallbackThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+
+                // InterruptedException clears the thread's interrupt status. Since we can't
+                // handle that here, we will re-interrupt the thread to set the interrupt
+                // status back to true.
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // The last window hasn't been merged into the session totals yet
+        VideoStats sessionStats = new VideoStats();
+        synchronized (statsLock) {
+            drainLatencyRecorders();
+            sessionStats.add(globalVideoStats);
+            sessionStats.add(activeWindowVideoStats);
+        }
+        if (sessionStats.decodeTimeHistogram.getCount() > 0) {
+            LimeLog.info("Video session p50/p95/p99/max: decode " + formatPercentiles(sessionStats.decodeTimeHistogram) +
+                    ", end-to-end " + formatPercentiles(sessionStats.endToEndTimeHistogram) +
+                    ", host " + formatPercentiles(sessionStats.hostProcessingLatencyHistogram) +
+                    ", frame interval " + formatPercentiles(sessionStats.renderIntervalHistogram));
+        }
+
+        if (adaptivePacer != null) {
+            LimeLog.info("Adaptive frame pacing held " + sessionStats.framesHeldByPacing +
+                    " and dropped " + sessionStats.framesDroppedByPacing + " frames");
         }
     }
 
@@ -1375,23 +1730,6 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         return fetchNextInputBuffer();
     }
 
-    private void doProfileSpecificSpsPatching(SeqParameterSet sps) {
-        // Some devices benefit from setting constraint flags 4 & 5 to make this Constrained
-        // High Profile which allows the decoder to assume there will be no B-frames and
-        // reduce delay and buffering accordingly. Some devices (Marvell, Exynos 4) don't
-        // like it so we only set them on devices that are confirmed to benefit from it.
-        if (sps.profileIdc == 100 && constrainedHighProfile) {
-            LimeLog.info("Setting constraint set flags for constrained high profile");
-            sps.constraintSet4Flag = true;
-            sps.constraintSet5Flag = true;
-        }
-        else {
-            // Force the constraints unset otherwise (some may be set by default)
-            sps.constraintSet4Flag = false;
-            sps.constraintSet5Flag = false;
-        }
-    }
-
     @SuppressWarnings("deprecation")
     @Override
     public int submitDecodeUnit(byte[] decodeUnitData, int decodeUnitLength, int decodeUnitType,
@@ -1424,9 +1762,13 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         // Flip stats windows roughly every second
         if (SystemClock.uptimeMillis() >= activeWindowVideoStats.measurementStartTimestamp + 1000) {
             if (prefs.enablePerfOverlay) {
-                VideoStats lastTwo = new VideoStats();
-                lastTwo.add(lastWindowVideoStats);
-                lastTwo.add(activeWindowVideoStats);
+                VideoStats lastTwo = overlayVideoStats;
+                lastTwo.clear();
+                synchronized (statsLock) {
+                    drainLatencyRecorders();
+                    lastTwo.add(lastWindowVideoStats);
+                    lastTwo.add(activeWindowVideoStats);
+                }
                 VideoStatsFps fps = lastTwo.getFps();
                 String decoder;
 
@@ -1441,7 +1783,6 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                 }
 
                 float decodeTimeMs = (float)lastTwo.decoderTimeMs / lastTwo.totalFramesReceived;
-                long rttInfo = MoonBridge.getEstimatedRttInfo();
                 StringBuilder sb = new StringBuilder();
                 sb.append(context.getString(R.string.perf_overlay_streamdetails, initialWidth + "x" + initialHeight, fps.totalFps)).append('\n');
                 sb.append(context.getString(R.string.perf_overlay_decoder, decoder)).append('\n');
@@ -1449,8 +1790,11 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                 sb.append(context.getString(R.string.perf_overlay_renderingfps, fps.renderedFps)).append('\n');
                 sb.append(context.getString(R.string.perf_overlay_netdrops,
                         (float)lastTwo.framesLost / lastTwo.totalFrames * 100)).append('\n');
-                sb.append(context.getString(R.string.perf_overlay_netlatency,
-                        (int)(rttInfo >> 32), (int)rttInfo)).append('\n');
+                if (hostRttAvailable) {
+                    long rttInfo = MoonBridge.getEstimatedRttInfo();
+                    sb.append(context.getString(R.string.perf_overlay_netlatency,
+                            (int)(rttInfo >> 32), (int)rttInfo)).append('\n');
+                }
                 if (lastTwo.framesWithHostProcessingLatency > 0) {
                     sb.append(context.getString(R.string.perf_overlay_hostprocessinglatency,
                             (float)lastTwo.minHostProcessingLatency / 10,
@@ -1458,13 +1802,33 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                             (float)lastTwo.totalHostProcessingLatency / 10 / lastTwo.framesWithHostProcessingLatency)).append('\n');
                 }
                 sb.append(context.getString(R.string.perf_overlay_dectime, decodeTimeMs));
+                if (lastTwo.pacingVsyncs > 0) {
+                    sb.append('\n').append(context.getString(R.string.perf_overlay_pacing,
+                            (float)lastTwo.pacingQueueDepthTotal / lastTwo.pacingVsyncs,
+                            lastTwo.framesDroppedByPacing));
+                }
+                appendPercentiles(sb, R.string.perf_overlay_label_dectime, lastTwo.decodeTimeHistogram);
+                appendPercentiles(sb, R.string.perf_overlay_label_endtoend, lastTwo.endToEndTimeHistogram);
+                appendPercentiles(sb, R.string.perf_overlay_label_hostprocessinglatency, lastTwo.hostProcessingLatencyHistogram);
+                appendPercentiles(sb, R.string.perf_overlay_label_renderinterval, lastTwo.renderIntervalHistogram);
+                AdaptiveFramePacer pacer = adaptivePacer;
+                if (pacer != null && pacer.getPresentLatencyNs() >= 0) {
+                    sb.append('\n').append(context.getString(R.string.perf_overlay_adaptive_pacing,
+                            pacer.getPresentLatencyNs() / 1000000f,
+                            prefs.pacingBudgetMs,
+                            pacer.getJitterNs() / 1000000f,
+                            lastTwo.framesHeldByPacing));
+                }
                 perfListener.onPerfUpdate(sb.toString());
             }
 
-            globalVideoStats.add(activeWindowVideoStats);
-            lastWindowVideoStats.copy(activeWindowVideoStats);
-            activeWindowVideoStats.clear();
-            activeWindowVideoStats.measurementStartTimestamp = SystemClock.uptimeMillis();
+            synchronized (statsLock) {
+                drainLatencyRecorders();
+                globalVideoStats.add(activeWindowVideoStats);
+                lastWindowVideoStats.copy(activeWindowVideoStats);
+                activeWindowVideoStats.clear();
+                activeWindowVideoStats.measurementStartTimestamp = SystemClock.uptimeMillis();
+            }
         }
 
         boolean csdSubmittedForThisFrame = false;
@@ -1475,113 +1839,17 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             if (decodeUnitType == MoonBridge.BUFFER_TYPE_SPS && (videoFormat & MoonBridge.VIDEO_FORMAT_MASK_H264) != 0) {
                 numSpsIn++;
 
-                ByteBuffer spsBuf = ByteBuffer.wrap(decodeUnitData);
-                int startSeqLen = decodeUnitData[2] == 0x01 ? 3 : 4;
-
-                // Skip to the start of the NALU data
-                spsBuf.position(startSeqLen + 1);
-
-                // The H264Utils.readSPS function safely handles
-                // Annex B NALUs (including NALUs with escape sequences)
-                SeqParameterSet sps = H264Utils.readSPS(spsBuf);
-
-                // Some decoders rely on H264 level to decide how many buffers are needed
-                // Since we only need one frame buffered, we'll set the level as low as we can
-                // for known resolution combinations. Reference frame invalidation may need
-                // these, so leave them be for those decoders.
-                if (!refFrameInvalidationActive) {
-                    if (initialWidth <= 720 && initialHeight <= 480 && refreshRate <= 60) {
-                        // Max 5 buffered frames at 720x480x60
-                        LimeLog.info("Patching level_idc to 31");
-                        sps.levelIdc = 31;
-                    }
-                    else if (initialWidth <= 1280 && initialHeight <= 720 && refreshRate <= 60) {
-                        // Max 5 buffered frames at 1280x720x60
-                        LimeLog.info("Patching level_idc to 32");
-                        sps.levelIdc = 32;
-                    }
-                    else if (initialWidth <= 1920 && initialHeight <= 1080 && refreshRate <= 60) {
-                        // Max 4 buffered frames at 1920x1080x64
-                        LimeLog.info("Patching level_idc to 42");
-                        sps.levelIdc = 42;
-                    }
-                    else {
-                        // Leave the profile alone (currently 5.0)
+                // The host sends the same SPS with every IDR frame, so reuse the last patch of it.
+                // The baseline hack needs the parsed SPS kept for replaySps(), so it always patches.
+                if (!needsBaselineSpsHack) {
+                    int cachedSps = spsPatchCache.find(decodeUnitData, decodeUnitLength);
+                    if (cachedSps >= 0) {
+                        spsBuffers.add(spsPatchCache.getPatched(cachedSps), 0, spsPatchCache.getPatchedLength(cachedSps));
+                        return MoonBridge.DR_OK;
                     }
                 }
 
-                // TI OMAP4 requires a reference frame count of 1 to decode successfully. Exynos 4
-                // also requires this fixup.
-                //
-                // I'm doing this fixup for all devices because I haven't seen any devices that
-                // this causes issues for. At worst, it seems to do nothing and at best it fixes
-                // issues with video lag, hangs, and crashes.
-                //
-                // It does break reference frame invalidation, so we will not do that for decoders
-                // where we've enabled reference frame invalidation.
-                if (!refFrameInvalidationActive) {
-                    LimeLog.info("Patching num_ref_frames in SPS");
-                    sps.numRefFrames = 1;
-                }
-
-                // GFE 2.5.11 changed the SPS to add additional extensions. Some devices don't like these
-                // so we remove them here on old devices unless these devices also support HEVC.
-                // See getPreferredColorSpace() for further information.
-                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O &&
-                        sps.vuiParams != null &&
-                        hevcDecoder == null &&
-                        av1Decoder == null) {
-                    sps.vuiParams.videoSignalTypePresentFlag = false;
-                    sps.vuiParams.colourDescriptionPresentFlag = false;
-                    sps.vuiParams.chromaLocInfoPresentFlag = false;
-                }
-
-                // Some older devices used to choke on a bitstream restrictions, so we won't provide them
-                // unless explicitly whitelisted. For newer devices, leave the bitstream restrictions present.
-                if (needsSpsBitstreamFixup || isExynos4 || Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                    // The SPS that comes in the current H264 bytestream doesn't set bitstream_restriction_flag
-                    // or max_dec_frame_buffering which increases decoding latency on Tegra.
-
-                    // If the encoder didn't include VUI parameters in the SPS, add them now
-                    if (sps.vuiParams == null) {
-                        LimeLog.info("Adding VUI parameters");
-                        sps.vuiParams = new VUIParameters();
-                    }
-
-                    // GFE 2.5.11 started sending bitstream restrictions
-                    if (sps.vuiParams.bitstreamRestriction == null) {
-                        LimeLog.info("Adding bitstream restrictions");
-                        sps.vuiParams.bitstreamRestriction = new VUIParameters.BitstreamRestriction();
-                        sps.vuiParams.bitstreamRestriction.motionVectorsOverPicBoundariesFlag = true;
-                        sps.vuiParams.bitstreamRestriction.maxBytesPerPicDenom = 2;
-                        sps.vuiParams.bitstreamRestriction.maxBitsPerMbDenom = 1;
-                        sps.vuiParams.bitstreamRestriction.log2MaxMvLengthHorizontal = 16;
-                        sps.vuiParams.bitstreamRestriction.log2MaxMvLengthVertical = 16;
-                        sps.vuiParams.bitstreamRestriction.numReorderFrames = 0;
-                    }
-                    else {
-                        LimeLog.info("Patching bitstream restrictions");
-                    }
-
-                    // Some devices throw errors if maxDecFrameBuffering < numRefFrames
-                    sps.vuiParams.bitstreamRestriction.maxDecFrameBuffering = sps.numRefFrames;
-
-                    // These values are the defaults for the fields, but they are more aggressive
-                    // than what GFE sends in 2.5.11, but it doesn't seem to cause picture problems.
-                    // We'll leave these alone for "modern" devices just in case they care.
-                    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
-                        sps.vuiParams.bitstreamRestriction.maxBytesPerPicDenom = 2;
-                        sps.vuiParams.bitstreamRestriction.maxBitsPerMbDenom = 1;
-                    }
-
-                    // log2_max_mv_length_horizontal and log2_max_mv_length_vertical are set to more
-                    // conservative values by GFE 2.5.11. We'll let those values stand.
-                }
-                else if (sps.vuiParams != null) {
-                    // Devices that didn't/couldn't get bitstream restrictions before GFE 2.5.11
-                    // will continue to not receive them now
-                    sps.vuiParams.bitstreamRestriction = null;
-                }
+                SeqParameterSet sps = spsPatcher.read(decodeUnitData);
 
                 // If we need to hack this SPS to say we're baseline, do so now
                 if (needsBaselineSpsHack) {
@@ -1591,28 +1859,23 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                 }
 
                 // Patch the SPS constraint flags
-                doProfileSpecificSpsPatching(sps);
+                spsPatcher.patchConstraintFlags(sps);
 
-                // The H264Utils.writeSPS function safely handles
-                // Annex B NALUs (including NALUs with escape sequences)
-                ByteBuffer escapedNalu = H264Utils.writeSPS(sps, decodeUnitLength);
+                byte[] naluBuffer = H264SpsPatcher.write(sps, decodeUnitData, decodeUnitLength);
 
-                // Construct the patched SPS
-                byte[] naluBuffer = new byte[startSeqLen + 1 + escapedNalu.limit()];
-                System.arraycopy(decodeUnitData, 0, naluBuffer, 0, startSeqLen + 1);
-                escapedNalu.get(naluBuffer, startSeqLen + 1, escapedNalu.limit());
+                if (!needsBaselineSpsHack) {
+                    spsPatchCache.put(decodeUnitData, decodeUnitLength, naluBuffer, naluBuffer.length);
+                }
 
                 // Batch this to submit together with other CSD per AOSP docs
-                spsBuffers.add(naluBuffer);
+                spsBuffers.add(naluBuffer, 0, naluBuffer.length);
                 return MoonBridge.DR_OK;
             }
             else if (decodeUnitType == MoonBridge.BUFFER_TYPE_VPS) {
                 numVpsIn++;
 
                 // Batch this to submit together with other CSD per AOSP docs
-                byte[] naluBuffer = new byte[decodeUnitLength];
-                System.arraycopy(decodeUnitData, 0, naluBuffer, 0, decodeUnitLength);
-                vpsBuffers.add(naluBuffer);
+                vpsBuffers.add(decodeUnitData, 0, decodeUnitLength);
                 return MoonBridge.DR_OK;
             }
             // Only the HEVC SPS hits this path (H.264 is handled above)
@@ -1620,18 +1883,14 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                 numSpsIn++;
 
                 // Batch this to submit together with other CSD per AOSP docs
-                byte[] naluBuffer = new byte[decodeUnitLength];
-                System.arraycopy(decodeUnitData, 0, naluBuffer, 0, decodeUnitLength);
-                spsBuffers.add(naluBuffer);
+                spsBuffers.add(decodeUnitData, 0, decodeUnitLength);
                 return MoonBridge.DR_OK;
             }
             else if (decodeUnitType == MoonBridge.BUFFER_TYPE_PPS) {
                 numPpsIn++;
 
                 // Batch this to submit together with other CSD per AOSP docs
-                byte[] naluBuffer = new byte[decodeUnitLength];
-                System.arraycopy(decodeUnitData, 0, naluBuffer, 0, decodeUnitLength);
-                ppsBuffers.add(naluBuffer);
+                ppsBuffers.add(decodeUnitData, 0, decodeUnitLength);
                 return MoonBridge.DR_OK;
             }
             else if ((videoFormat & (MoonBridge.VIDEO_FORMAT_MASK_H264 | MoonBridge.VIDEO_FORMAT_MASK_H265)) != 0) {
@@ -1643,15 +1902,9 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
                     }
 
                     // Submit all CSD when we receive the first non-CSD blob in an IDR frame
-                    for (byte[] vpsBuffer : vpsBuffers) {
-                        nextInputBuffer.put(vpsBuffer);
-                    }
-                    for (byte[] spsBuffer : spsBuffers) {
-                        nextInputBuffer.put(spsBuffer);
-                    }
-                    for (byte[] ppsBuffer : ppsBuffers) {
-                        nextInputBuffer.put(ppsBuffer);
-                    }
+                    vpsBuffers.writeTo(nextInputBuffer);
+                    spsBuffers.writeTo(nextInputBuffer);
+                    ppsBuffers.writeTo(nextInputBuffer);
 
                     if (!queueNextInputBuffer(0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG)) {
                         return MoonBridge.DR_NEED_IDR;
@@ -1687,6 +1940,10 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         }
         activeWindowVideoStats.maxHostProcessingLatency = (char) Math.max(activeWindowVideoStats.maxHostProcessingLatency, frameHostProcessingLatency);
         activeWindowVideoStats.totalHostProcessingLatency += frameHostProcessingLatency;
+        if (frameHostProcessingLatency != 0) {
+            // Reported in tenths of a millisecond
+            hostProcessingLatencyRecorder.record(frameHostProcessingLatency * 100L);
+        }
 
         activeWindowVideoStats.totalFramesReceived++;
         activeWindowVideoStats.totalFrames++;
@@ -1709,15 +1966,9 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
 
             // If we are using fused IDR frames, submit the CSD with each IDR frame
             if (fusedIdrFrame && !csdSubmittedForThisFrame) {
-                for (byte[] vpsBuffer : vpsBuffers) {
-                    nextInputBuffer.put(vpsBuffer);
-                }
-                for (byte[] spsBuffer : spsBuffers) {
-                    nextInputBuffer.put(spsBuffer);
-                }
-                for (byte[] ppsBuffer : ppsBuffers) {
-                    nextInputBuffer.put(ppsBuffer);
-                }
+                vpsBuffers.writeTo(nextInputBuffer);
+                spsBuffers.writeTo(nextInputBuffer);
+                ppsBuffers.writeTo(nextInputBuffer);
             }
         }
 
@@ -1729,6 +1980,8 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         }
         lastTimestampUs = timestampUs;
 
+        recordSyncFrame(timestampUs, frameNumber, (enqueueTimeMs - receiveTimeMs) * 1000);
+
         numFramesIn++;
 
         if (decodeUnitLength > nextInputBuffer.limit() - nextInputBuffer.position()) {
@@ -1748,9 +2001,93 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             return MoonBridge.DR_NEED_IDR;
         }
 
+        FrameLatencyTracker tracker = latencyTracker;
+        if (tracker != null && decodeUnitType == MoonBridge.BUFFER_TYPE_PICDATA) {
+            tracker.onFrameQueued(frameNumber, System.nanoTime());
+        }
+
         return MoonBridge.DR_OK;
     }
 
+    private void appendPercentiles(StringBuilder sb, int labelId, LatencyHistogram histogram) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+        sb.append('\n').append(context.getString(R.string.perf_overlay_percentiles,
+                context.getString(labelId),
+                histogram.getPercentile(50) / 1000f,
+                histogram.getPercentile(95) / 1000f,
+                histogram.getPercentile(99) / 1000f,
+                histogram.getMax() / 1000f));
+    }
+
+    // p50/p95/p99/max in milliseconds, for logs and crash reports
+    private static String formatPercentiles(LatencyHistogram histogram) {
+        return String.format(Locale.ROOT, "%.1f/%.1f/%.1f/%.1f ms",
+                histogram.getPercentile(50) / 1000f,
+                histogram.getPercentile(95) / 1000f,
+                histogram.getPercentile(99) / 1000f,
+                histogram.getMax() / 1000f);
+    }
+
+    private void recordSyncFrame(long timestampUs, int frameNumber, long receiveDelayUs) {
+        synchronized (syncFrameNumbers) {
+            int index = syncFrameIndex++ & (SYNC_FRAME_SLOTS - 1);
+            syncTimestampsUs[index] = timestampUs;
+            syncFrameNumbers[index] = frameNumber;
+            syncReceiveDelaysUs[index] = receiveDelayUs;
+        }
+    }
+
+    // When to release the decoded frame with this timestamp, from the A/V sync clock
+    private long getSyncRenderTimeNs(long presentationTimeUs) {
+        AvSyncClock clock = avSyncClock;
+        if (clock == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return AvSyncClock.RENDER_UNSYNCHRONIZED;
+        }
+
+        int frameNumber = findSyncFrameNumber(presentationTimeUs);
+        if (frameNumber < 0) {
+            return AvSyncClock.RENDER_UNSYNCHRONIZED;
+        }
+        return clock.getRenderTimeNs(frameNumber, System.nanoTime());
+    }
+
+    private void onSyncFrameDecoded(long presentationTimeUs) {
+        FrameLatencyTracker tracker = latencyTracker;
+        if (tracker != null) {
+            int frameNumber = findSyncFrameNumber(presentationTimeUs);
+            if (frameNumber >= 0) {
+                tracker.onFrameDecoded(frameNumber, System.nanoTime());
+            }
+        }
+    }
+
+    // Time from receiving the decoded frame with this timestamp to queueing it, or -1 if
+    // it's no longer known
+    private long findSyncReceiveDelayUs(long presentationTimeUs) {
+        synchronized (syncFrameNumbers) {
+            for (int i = 0; i < SYNC_FRAME_SLOTS; i++) {
+                if (syncTimestampsUs[i] == presentationTimeUs) {
+                    return syncReceiveDelaysUs[i];
+                }
+            }
+        }
+        return -1;
+    }
+
+    // Frame number of the decoded frame with this timestamp, or -1 if it's no longer known
+    private int findSyncFrameNumber(long presentationTimeUs) {
+        synchronized (syncFrameNumbers) {
+            for (int i = 0; i < SYNC_FRAME_SLOTS; i++) {
+                if (syncTimestampsUs[i] == presentationTimeUs) {
+                    return syncFrameNumbers[i];
+                }
+            }
+        }
+        return -1;
+    }
+
     private boolean replaySps() {
         if (!fetchNextInputBuffer()) {
             return false;
@@ -1763,7 +2100,7 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         savedSps.profileIdc = 100;
 
         // Patch the SPS constraint flags
-        doProfileSpecificSpsPatching(savedSps);
+        spsPatcher.patchConstraintFlags(savedSps);
 
         // The H264Utils.writeSPS function safely handles
         // Annex B NALUs (including NALUs with escape sequences)
@@ -1817,6 +2154,37 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
         return (int)(globalVideoStats.decoderTimeMs / globalVideoStats.totalFramesReceived);
     }
 
+    // Called under statsLock
+    private void drainLatencyRecorders() {
+        decodeTimeRecorder.drainTo(activeWindowVideoStats.decodeTimeHistogram);
+        endToEndTimeRecorder.drainTo(activeWindowVideoStats.endToEndTimeHistogram);
+        hostProcessingLatencyRecorder.drainTo(activeWindowVideoStats.hostProcessingLatencyHistogram);
+        renderIntervalRecorder.drainTo(activeWindowVideoStats.renderIntervalHistogram);
+    }
+
+    // Session-wide percentiles in milliseconds, with 100 giving the max. Zero if no frame was timed.
+    public float getEndToEndLatencyPercentileMs(double percentile) {
+        synchronized (statsLock) {
+            return getSessionPercentileMs(globalVideoStats.endToEndTimeHistogram,
+                    activeWindowVideoStats.endToEndTimeHistogram, percentile);
+        }
+    }
+
+    public float getDecoderLatencyPercentileMs(double percentile) {
+        synchronized (statsLock) {
+            return getSessionPercentileMs(globalVideoStats.decodeTimeHistogram,
+                    activeWindowVideoStats.decodeTimeHistogram, percentile);
+        }
+    }
+
+    // The active window hasn't been merged into the global stats yet. Called under statsLock.
+    private float getSessionPercentileMs(LatencyHistogram global, LatencyHistogram activeWindow, double percentile) {
+        drainLatencyRecorders();
+        sessionHistogram.copy(global);
+        sessionHistogram.add(activeWindow);
+        return sessionHistogram.getPercentile(percentile) / 1000f;
+    }
+
     static class DecoderHungException extends RuntimeException {
         private int hangTimeMs;
 
@@ -1948,7 +2316,13 @@ public class MediaCodecDecoderRenderer extends VideoDecoderRenderer implements C
             str += "Frame losses: "+renderer.globalVideoStats.framesLost+" in "+renderer.globalVideoStats.frameLossEvents+" loss events"+DELIMITER;
             str += "Average end-to-end client latency: "+renderer.getAverageEndToEndLatency()+"ms"+DELIMITER;
             str += "Average hardware decoder latency: "+renderer.getAverageDecoderLatency()+"ms"+DELIMITER;
+            synchronized (renderer.statsLock) {
+                str += "End-to-end client latency p50/p95/p99/max: "+formatPercentiles(renderer.globalVideoStats.endToEndTimeHistogram)+DELIMITER;
+                str += "Hardware decoder latency p50/p95/p99/max: "+formatPercentiles(renderer.globalVideoStats.decodeTimeHistogram)+DELIMITER;
+                str += "Frame interval p50/p95/p99/max: "+formatPercentiles(renderer.globalVideoStats.renderIntervalHistogram)+DELIMITER;
+            }
             str += "Frame pacing mode: "+renderer.prefs.framePacing+DELIMITER;
+            str += "Frames held-dropped by pacing: "+renderer.globalVideoStats.framesHeldByPacing+", "+renderer.globalVideoStats.framesDroppedByPacing+DELIMITER;
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
                 if (originalException instanceof CodecException) {
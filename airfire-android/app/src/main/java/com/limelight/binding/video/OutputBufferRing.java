@@ -0,0 +1,107 @@
+package com.limelight.binding.video;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Lock-free handoff of decoder output buffer indices from the renderer thread to the
+// Choreographer thread, with room for a fixed number of frames.
+//
+// There's one producer and one consumer, but when the ring is full the producer drops the
+// oldest frame itself. That's why head is claimed with a CAS: the consumer may be taking
+// that same frame at the same moment, and exactly one of them must get it.
+class OutputBufferRing {
+    static final int EMPTY = -1;
+
+    private final int limit;
+    private final int[] slots;
+    private final int mask;
+
+    // Positions only ever grow. Writing tail publishes the slot behind it.
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // Consumer only: where the frame last returned by peek() was
+    private long peekedPosition = -1;
+
+    OutputBufferRing(int limit) {
+        this.limit = limit;
+
+        int slotCount = Integer.highestOneBit(limit);
+        if (slotCount < limit) {
+            slotCount <<= 1;
+        }
+        this.slots = new int[slotCount];
+        this.mask = slotCount - 1;
+    }
+
+    // Producer only: adds a buffer index, first taking the oldest one out if the ring is full.
+    // Returns that dropped index, which the caller must release, or EMPTY if nothing was dropped.
+    int offer(int value) {
+        int dropped = EMPTY;
+        long position = tail.get();
+        while (position - head.get() >= limit) {
+            // If the consumer beats us to it, the ring has room anyway
+            int oldest = poll();
+            if (oldest != EMPTY) {
+                dropped = oldest;
+            }
+        }
+
+        slots[(int) position & mask] = value;
+        tail.set(position + 1);
+        return dropped;
+    }
+
+    // Returns the oldest buffer index, or EMPTY if there are none
+    int poll() {
+        while (true) {
+            long position = head.get();
+            if (position == tail.get()) {
+                return EMPTY;
+            }
+
+            // The producer never reuses this slot until head has moved past it, so it's safe
+            // to read before claiming
+            int value = slots[(int) position & mask];
+            if (head.compareAndSet(position, position + 1)) {
+                return value;
+            }
+        }
+    }
+
+    // Consumer only: returns the oldest buffer index without taking it, or EMPTY if there are
+    // none. It stays in the ring, so it still counts against the limit and is the first frame
+    // the producer drops for a newer one.
+    int peek() {
+        while (true) {
+            long position = head.get();
+            if (position == tail.get()) {
+                return EMPTY;
+            }
+
+            // The producer only writes the head slot once it has dropped that frame, which
+            // moves head, so the value is good if head hasn't moved
+            int value = slots[(int) position & mask];
+            if (head.get() == position) {
+                peekedPosition = position;
+                return value;
+            }
+        }
+    }
+
+    // Consumer only: takes the frame the last peek() returned. Returns false if the producer
+    // dropped it first, in which case the producer has released it.
+    boolean removePeeked() {
+        return head.compareAndSet(peekedPosition, peekedPosition + 1);
+    }
+
+    // A snapshot, which the other thread may change straight after
+    int size() {
+        long position = head.get();
+        return (int) Math.min(tail.get() - position, limit);
+    }
+
+    // Only while both threads are quiesced, as for codec recovery
+    void clear() {
+        head.set(tail.get());
+    }
+}
@@ -0,0 +1,87 @@
+package com.limelight.binding.video;
+
+// Patched H.264 SPS NALUs keyed by the raw SPS they came from. Hosts resend the same SPS with
+// every IDR frame, so after the first one the read, patch and write are skipped entirely.
+//
+// The patch depends on the decoder's configuration, so the cache must be cleared whenever the
+// decoder is configured again.
+class SpsPatchCache {
+    // A resolution change (like an AirPlay sender rotating) flips between a couple of SPSs
+    private static final int ENTRIES = 4;
+    private static final int INITIAL_BUFFER_SIZE = 128;
+
+    private final int[] hashes = new int[ENTRIES];
+    private final byte[][] rawBuffers = new byte[ENTRIES][];
+    private final int[] rawLengths = new int[ENTRIES];
+    private final byte[][] patchedBuffers = new byte[ENTRIES][];
+    private final int[] patchedLengths = new int[ENTRIES];
+    private int count;
+    private int nextEntry;
+
+    void clear() {
+        count = 0;
+        nextEntry = 0;
+    }
+
+    // Returns the entry for this raw SPS, or -1 if it hasn't been patched yet
+    int find(byte[] raw, int length) {
+        int hash = hash(raw, length);
+        for (int i = 0; i < count; i++) {
+            // The hash only narrows it down; the bytes have to match too
+            if (hashes[i] == hash && rawLengths[i] == length && regionEquals(rawBuffers[i], raw, length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    byte[] getPatched(int entry) {
+        return patchedBuffers[entry];
+    }
+
+    int getPatchedLength(int entry) {
+        return patchedLengths[entry];
+    }
+
+    // Replaces the oldest entry once the cache is full
+    void put(byte[] raw, int rawLength, byte[] patched, int patchedLength) {
+        int entry = nextEntry;
+        nextEntry = (nextEntry + 1) % ENTRIES;
+        if (count < ENTRIES) {
+            count++;
+        }
+
+        hashes[entry] = hash(raw, rawLength);
+        rawBuffers[entry] = copyInto(rawBuffers[entry], raw, rawLength);
+        rawLengths[entry] = rawLength;
+        patchedBuffers[entry] = copyInto(patchedBuffers[entry], patched, patchedLength);
+        patchedLengths[entry] = patchedLength;
+    }
+
+    private static byte[] copyInto(byte[] buffer, byte[] data, int length) {
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[Math.max(length, INITIAL_BUFFER_SIZE)];
+        }
+        System.arraycopy(data, 0, buffer, 0, length);
+        return buffer;
+    }
+
+    // FNV-1a
+    private static int hash(byte[] data, int length) {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            hash ^= data[i] & 0xFF;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    private static boolean regionEquals(byte[] a, byte[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
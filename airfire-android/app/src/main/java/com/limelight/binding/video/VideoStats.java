@@ -2,6 +2,8 @@ package com.limelight.binding.video;
 
 import android.os.SystemClock;
 
+import com.airfire.LatencyHistogram;
+
 class VideoStats {
 
     long decoderTimeMs;
@@ -15,6 +17,19 @@ class VideoStats {
     char maxHostProcessingLatency;
     int totalHostProcessingLatency;
     int framesWithHostProcessingLatency;
+    // Balanced and adaptive frame pacing: frames waiting at each due vsync, frames replaced or
+    // dropped before being shown, and (adaptive only) frames held back a vsync
+    long pacingQueueDepthTotal;
+    int pacingVsyncs;
+    int framesDroppedByPacing;
+    int framesHeldByPacing;
+    // Per-frame distributions in microseconds, so percentiles show the stutter that the
+    // averages above smooth over. The renderer records frames into lock-free LatencyRecorders
+    // and drains them in here under its statsLock, which it also flips windows under.
+    final LatencyHistogram decodeTimeHistogram = new LatencyHistogram();
+    final LatencyHistogram endToEndTimeHistogram = new LatencyHistogram();
+    final LatencyHistogram hostProcessingLatencyHistogram = new LatencyHistogram();
+    final LatencyHistogram renderIntervalHistogram = new LatencyHistogram();
     long measurementStartTimestamp;
 
     void add(VideoStats other) {
@@ -34,6 +49,14 @@ class VideoStats {
         this.maxHostProcessingLatency = (char) Math.max(this.maxHostProcessingLatency, other.maxHostProcessingLatency);
         this.totalHostProcessingLatency += other.totalHostProcessingLatency;
         this.framesWithHostProcessingLatency += other.framesWithHostProcessingLatency;
+        this.pacingQueueDepthTotal += other.pacingQueueDepthTotal;
+        this.pacingVsyncs += other.pacingVsyncs;
+        this.framesDroppedByPacing += other.framesDroppedByPacing;
+        this.framesHeldByPacing += other.framesHeldByPacing;
+        this.decodeTimeHistogram.add(other.decodeTimeHistogram);
+        this.endToEndTimeHistogram.add(other.endToEndTimeHistogram);
+        this.hostProcessingLatencyHistogram.add(other.hostProcessingLatencyHistogram);
+        this.renderIntervalHistogram.add(other.renderIntervalHistogram);
 
         if (this.measurementStartTimestamp == 0) {
             this.measurementStartTimestamp = other.measurementStartTimestamp;
@@ -54,6 +77,14 @@ class VideoStats {
         this.maxHostProcessingLatency = other.maxHostProcessingLatency;
         this.totalHostProcessingLatency = other.totalHostProcessingLatency;
         this.framesWithHostProcessingLatency = other.framesWithHostProcessingLatency;
+        this.pacingQueueDepthTotal = other.pacingQueueDepthTotal;
+        this.pacingVsyncs = other.pacingVsyncs;
+        this.framesDroppedByPacing = other.framesDroppedByPacing;
+        this.framesHeldByPacing = other.framesHeldByPacing;
+        this.decodeTimeHistogram.copy(other.decodeTimeHistogram);
+        this.endToEndTimeHistogram.copy(other.endToEndTimeHistogram);
+        this.hostProcessingLatencyHistogram.copy(other.hostProcessingLatencyHistogram);
+        this.renderIntervalHistogram.copy(other.renderIntervalHistogram);
         this.measurementStartTimestamp = other.measurementStartTimestamp;
     }
 
@@ -69,6 +100,14 @@ class VideoStats {
         this.maxHostProcessingLatency = 0;
         this.totalHostProcessingLatency = 0;
         this.framesWithHostProcessingLatency = 0;
+        this.pacingQueueDepthTotal = 0;
+        this.pacingVsyncs = 0;
+        this.framesDroppedByPacing = 0;
+        this.framesHeldByPacing = 0;
+        this.decodeTimeHistogram.clear();
+        this.endToEndTimeHistogram.clear();
+        this.hostProcessingLatencyHistogram.clear();
+        this.renderIntervalHistogram.clear();
         this.measurementStartTimestamp = 0;
     }
 
@@ -0,0 +1,121 @@
+package com.airfire;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Start code scanning and access unit splitting over one second of a high bitrate H.264 stream
+ * The stream is fed in socket-sized reads, and once the splitter's buffers have grown it must not allocate
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnnexBScanBenchmark {
+    private static final int FRAME_RATE = 60;
+    private static final int GOP_FRAMES = 60;
+    private static final int READ_SIZE = 64 * 1024;
+
+    @Param({"20000"})
+    public int bitrateKbps;
+
+    private byte[] stream;
+    private AnnexBSplitter splitter;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        stream = generateStream(bitrateKbps, new Random(1));
+        splitter = new AnnexBSplitter(new DecodeUnitSink() {
+            @Override
+            public void onStreamStarted(int videoFormat) {
+            }
+
+            @Override
+            public int submitDecodeUnit(byte[] decodeUnitData, int decodeUnitLength, int decodeUnitType,
+                                        int frameNumber, int frameType, long receiveTimeMs, long enqueueTimeMs) {
+                blackhole.consume(decodeUnitLength);
+                return DR_OK;
+            }
+
+            @Override
+            public void onStreamStopped() {
+            }
+        }, DecodeUnitSink.VIDEO_FORMAT_H264);
+    }
+
+    @Benchmark
+    public long splitStream() {
+        for (int offset = 0; offset < stream.length; offset += READ_SIZE) {
+            splitter.feed(stream, offset, Math.min(READ_SIZE, stream.length - offset), 0);
+        }
+        splitter.flush(0);
+        return splitter.getFramesSubmitted();
+    }
+
+    // One GOP of SPS, PPS and IDR followed by P slices, with payloads that have the
+    // byte statistics of entropy coded data and emulation prevention applied
+    static byte[] generateStream(int bitrateKbps, Random random) {
+        int frameBytes = bitrateKbps * 1000 / 8 / FRAME_RATE;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(frameBytes * FRAME_RATE * 11 / 10);
+        byte[] payload = new byte[frameBytes];
+        for (int frame = 0; frame < FRAME_RATE; frame++) {
+            boolean idr = frame % GOP_FRAMES == 0;
+            if (idr) {
+                writeNal(out, new byte[] {0x67, 0x64, 0x00, 0x28, (byte) 0xAC, (byte) 0xD9, 0x40, 0x78, 0x02, 0x27});
+                writeNal(out, new byte[] {0x68, (byte) 0xEB, (byte) 0xE3, (byte) 0xCB, 0x22, (byte) 0xC0});
+            }
+
+            // IDR frames are larger than the P frames around them
+            int length = idr ? payload.length : payload.length * 3 / 4;
+            random.nextBytes(payload);
+            payload[0] = (byte) (idr ? 0x65 : 0x41);
+            // first_mb_in_slice = 0, so each slice starts a new picture
+            payload[1] |= (byte) 0x80;
+            writeNal(out, escape(payload, length));
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeNal(ByteArrayOutputStream out, byte[] nal) {
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(1);
+        out.write(nal, 0, nal.length);
+    }
+
+    private static byte[] escape(byte[] data, int length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + length / 64);
+        int zeros = 0;
+        for (int i = 0; i < length; i++) {
+            int b = data[i] & 0xFF;
+            if (zeros == 2 && b <= 3) {
+                out.write(3);
+                zeros = 0;
+            }
+            out.write(b);
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        // A NALU can't end in a zero byte
+        if (zeros > 0) {
+            out.write(0x80);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,78 @@
+package com.airfire;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The decoder's per-frame stats: recording one latency into a LatencyRecorder, and the once-a-second drain and window flip
+ * Latencies cycle through a spread from 100 µs to 100 ms, so every record lands in a different bucket range
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LatencyHistogramBenchmark {
+    private final long[] latenciesUs = new long[1024];
+    private final LatencyRecorder recorder = new LatencyRecorder();
+    private final LatencyHistogram active = new LatencyHistogram();
+    private final LatencyHistogram last = new LatencyHistogram();
+    private final LatencyHistogram global = new LatencyHistogram();
+    private int nextLatency;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < latenciesUs.length; i++) {
+            latenciesUs[i] = 100 + (long) (100000 * Math.pow((double) i / latenciesUs.length, 3));
+        }
+        for (long latencyUs : latenciesUs) {
+            recorder.record(latencyUs);
+        }
+        recorder.drainTo(active);
+    }
+
+    @Benchmark
+    public long record() {
+        long latencyUs = latenciesUs[nextLatency++ & (latenciesUs.length - 1)];
+        recorder.record(latencyUs);
+        return latencyUs;
+    }
+
+    // Frame intervals are recorded from both the render and Choreographer threads
+    @State(Scope.Benchmark)
+    public static class SharedRecorder {
+        final LatencyRecorder recorder = new LatencyRecorder();
+    }
+
+    @Benchmark
+    @Threads(2)
+    public long recordShared(SharedRecorder shared) {
+        long latencyUs = latenciesUs[nextLatency++ & (latenciesUs.length - 1)];
+        shared.recorder.record(latencyUs);
+        return latencyUs;
+    }
+
+    // What the decoder does with each histogram when it flips stats windows. The recorder is
+    // empty after the first op, but draining it touches every bucket all the same. The
+    // session total is cleared first so its counts don't overflow over millions of ops.
+    @Benchmark
+    public long flipWindow() {
+        recorder.drainTo(active);
+        global.clear();
+        global.add(active);
+        last.copy(active);
+        return last.getPercentile(99);
+    }
+}
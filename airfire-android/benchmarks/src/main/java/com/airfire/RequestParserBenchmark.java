@@ -0,0 +1,82 @@
+package com.airfire;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AirPlay request line and header parsing, as AirPlayConnection does it for every request
+ * The parser and request are reused like they are on a connection, so these must not allocate
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParserBenchmark {
+    // Captured from an iPhone starting a mirroring session and keeping it alive
+    private static final String SETUP = "SETUP rtsp://192.168.1.20/3790312340 RTSP/1.0\r\n" +
+            "Content-Length: 438\r\n" +
+            "Content-Type: application/x-apple-binary-plist\r\n" +
+            "CSeq: 3\r\n" +
+            "DACP-ID: 14413BE4996FEA4D\r\n" +
+            "Active-Remote: 2543110914\r\n" +
+            "User-Agent: AirPlay/550.10\r\n" +
+            "X-Apple-Device-ID: 0xa4d1d2800b68\r\n" +
+            "X-Apple-Session-ID: 1bd6ceeb-fffd-456c-a09c-996053a7a08c\r\n" +
+            "\r\n";
+    private static final String FEEDBACK = "POST /feedback RTSP/1.0\r\n" +
+            "CSeq: 14\r\n" +
+            "DACP-ID: 14413BE4996FEA4D\r\n" +
+            "Active-Remote: 2543110914\r\n" +
+            "User-Agent: AirPlay/550.10\r\n" +
+            "\r\n";
+
+    private static final byte[] PATH_FEEDBACK = AirPlayRequest.ascii("/feedback");
+
+    private final AirPlayRequestParser parser = new AirPlayRequestParser();
+    private final AirPlayRequest request = new AirPlayRequest();
+
+    private final byte[] setup = SETUP.getBytes(StandardCharsets.US_ASCII);
+    private final byte[] feedback = FEEDBACK.getBytes(StandardCharsets.US_ASCII);
+
+    @Benchmark
+    public int parseSetup() {
+        parser.reset();
+        return parser.parse(setup, 0, setup.length, request);
+    }
+
+    @Benchmark
+    public int parseFeedback() {
+        parser.reset();
+        return parser.parse(feedback, 0, feedback.length, request);
+    }
+
+    // The head arriving in two reads, so the second parse resumes where the first stopped
+    @Benchmark
+    public int parseSplitRead() {
+        parser.reset();
+        parser.parse(setup, 0, setup.length / 2, request);
+        return parser.parse(setup, 0, setup.length, request);
+    }
+
+    // Parsing plus the lookups the handler makes before dispatching
+    @Benchmark
+    public int parseAndLookUpHeaders() {
+        parser.reset();
+        parser.parse(feedback, 0, feedback.length, request);
+        int cseq = request.findHeader(AirPlayRequest.HEADER_CSEQ);
+        int sessionId = request.findHeader(AirPlayRequest.HEADER_X_APPLE_SESSION_ID);
+        return cseq + sessionId + (request.pathEquals(PATH_FEEDBACK) ? 1 : 0) + request.getContentLength();
+    }
+}
@@ -0,0 +1,61 @@
+package com.airfire;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plist encoding of the /server-info and /info capability document
+ * The binary writer reuses its tables and the output buffer, so it must not allocate; the XML encoder builds a String
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerInfoBenchmark {
+    private final BinaryPlistWriter writer = new BinaryPlistWriter();
+    private PlistValue properties;
+    private ByteBuffer out;
+
+    @Setup
+    public void setUp() throws IOException {
+        File directory = Files.createTempDirectory("airfire-bench").toFile();
+        directory.deleteOnExit();
+        AirPlayServerInfo info = new AirPlayServerInfo(AirPlayIdentity.load(new DirectoryFileStore(directory)), "AirFire",
+                AirPlayDisplay.DEFAULT);
+        properties = info.getProperties();
+        out = ByteBuffer.allocate(info.getBinaryBody().length);
+    }
+
+    @Benchmark
+    public int measureBinaryPlist() {
+        return writer.measure(properties);
+    }
+
+    @Benchmark
+    public ByteBuffer writeBinaryPlist() {
+        out.clear();
+        writer.write(properties, out);
+        return out;
+    }
+
+    @Benchmark
+    public byte[] encodeXmlPlist() {
+        return AirPlayServerInfo.encodeXml(properties);
+    }
+}
@@ -0,0 +1,58 @@
+package com.limelight.binding.video;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per-frame handoff of a decoder output buffer from the renderer thread to the Choreographer thread in balanced pacing
+ * Each op queues one frame, dropping the oldest when two are already waiting, and takes one out, on a single thread
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputBufferHandoffBenchmark {
+    private static final int OUTPUT_BUFFER_QUEUE_LIMIT = 2;
+
+    private final OutputBufferRing ring = new OutputBufferRing(OUTPUT_BUFFER_QUEUE_LIMIT);
+    private final LinkedBlockingQueue<Integer> queue = new LinkedBlockingQueue<>();
+    private int nextIndex;
+
+    @Benchmark
+    public int ring() {
+        int index = nextIndex++ & 15;
+        int dropped = ring.offer(index);
+        if ((index & 1) == 0) {
+            return ring.poll() + dropped;
+        }
+        return dropped;
+    }
+
+    // What the renderer did before OutputBufferRing, for comparison
+    @Benchmark
+    public int linkedBlockingQueue() throws InterruptedException {
+        int index = nextIndex++ & 15;
+        int dropped = -1;
+        if (queue.size() == OUTPUT_BUFFER_QUEUE_LIMIT) {
+            dropped = queue.take();
+        }
+        queue.add(index);
+        if ((index & 1) == 0) {
+            Integer polled = queue.poll();
+            return (polled != null ? polled : -1) + dropped;
+        }
+        return dropped;
+    }
+}
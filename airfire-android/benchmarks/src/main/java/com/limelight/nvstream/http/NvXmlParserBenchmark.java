@@ -0,0 +1,88 @@
+package com.limelight.nvstream.http;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Parsing of the host's serverinfo and applist responses, as NvHTTP does on every poll
+ * NvHTTP reads the serverinfo response once per field, so the state lookups are measured together
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NvXmlParserBenchmark {
+    private static final String SERVER_INFO = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+            "<root status_code=\"200\">\n" +
+            "<hostname>DESKTOP-GAMING</hostname>\n" +
+            "<appversion>7.1.431.0</appversion>\n" +
+            "<GfeVersion>3.23.0.74</GfeVersion>\n" +
+            "<uniqueid>0123456789ABCDEF</uniqueid>\n" +
+            "<HttpsPort>47984</HttpsPort>\n" +
+            "<ExternalPort>47989</ExternalPort>\n" +
+            "<MaxLumaPixelsHEVC>1869449984</MaxLumaPixelsHEVC>\n" +
+            "<mac>00:11:22:33:44:55</mac>\n" +
+            "<LocalIP>192.168.1.10</LocalIP>\n" +
+            "<ServerCodecModeSupport>259</ServerCodecModeSupport>\n" +
+            "<SupportedDisplayMode>\n" +
+            "<DisplayMode><Width>3840</Width><Height>2160</Height><RefreshRate>60</RefreshRate></DisplayMode>\n" +
+            "<DisplayMode><Width>1920</Width><Height>1080</Height><RefreshRate>120</RefreshRate></DisplayMode>\n" +
+            "</SupportedDisplayMode>\n" +
+            "<PairStatus>1</PairStatus>\n" +
+            "<currentgame>0</currentgame>\n" +
+            "<state>SUNSHINE_SERVER_FREE</state>\n" +
+            "</root>\n";
+
+    // The fields getComputerDetails() reads from one serverinfo response
+    private static final String[] DETAILS_TAGS = {
+            "hostname", "uniqueid", "mac", "LocalIP", "ExternalPort", "HttpsPort", "state", "PairStatus"
+    };
+
+    private static final String APP_LIST;
+
+    static {
+        // No whitespace between the elements, like the host sends it: getAppListByReader()
+        // expects every text node to be inside an App
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<root status_code=\"200\">");
+        for (int i = 0; i < 25; i++) {
+            xml.append("<App><IsHdrSupported>").append(i % 2).append("</IsHdrSupported>")
+                    .append("<AppTitle>Game ").append(i).append("</AppTitle>")
+                    .append("<ID>").append(100000 + i).append("</ID></App>");
+        }
+        APP_LIST = xml.append("</root>").toString();
+    }
+
+    @Benchmark
+    public String getXmlString() throws XmlPullParserException, IOException {
+        return NvXmlParser.getXmlString(new StringReader(SERVER_INFO), "state", true);
+    }
+
+    @Benchmark
+    public int getComputerDetailsFields() throws XmlPullParserException, IOException {
+        int length = 0;
+        for (String tag : DETAILS_TAGS) {
+            length += NvXmlParser.getXmlString(new StringReader(SERVER_INFO), tag, false).length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    public LinkedList<NvApp> getAppListByReader() throws XmlPullParserException, IOException {
+        return NvXmlParser.getAppListByReader(new StringReader(APP_LIST));
+    }
+}
@@ -0,0 +1,195 @@
+package com.airfire.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Video frames in the form the mirroring stream carries them: NALUs with 4-byte length prefixes, plus an avcC record
+ * Either replays an Annex B elementary stream access unit by access unit, or makes up frames of the requested bitrate
+ */
+class H264Source {
+    private static final int NAL_TYPE_SLICE = 1;
+    private static final int NAL_TYPE_IDR = 5;
+    private static final int NAL_TYPE_SPS = 7;
+    private static final int NAL_TYPE_PPS = 8;
+    private static final int NAL_TYPE_AUD = 9;
+
+    // 1080p High profile level 4.0, as an iPhone sends for mirroring
+    private static final byte[] SYNTHETIC_SPS = {
+        0x67, 0x64, 0x00, 0x28, (byte) 0xAC, (byte) 0xD9, 0x40, 0x78, 0x02, 0x27, (byte) 0xE5, (byte) 0xC0,
+        0x44, 0x00, 0x00, 0x03, 0x00, 0x04, 0x00, 0x00, 0x03, 0x00, (byte) 0xF0, 0x3C, 0x60, (byte) 0xC6, 0x58,
+    };
+    private static final byte[] SYNTHETIC_PPS = {0x68, (byte) 0xEB, (byte) 0xE3, (byte) 0xCB, 0x22, (byte) 0xC0};
+
+    // An IDR frame is this many times the size of a P-frame
+    private static final int IDR_SIZE_FACTOR = 4;
+    private static final int SYNTHETIC_P_FRAME_VARIANTS = 8;
+
+    private final byte[] codecData;
+    private final List<byte[]> frames;
+    private final List<Boolean> keyFrames;
+
+    private H264Source(byte[] sps, byte[] pps, List<byte[]> frames, List<Boolean> keyFrames) {
+        this.codecData = buildAvcC(sps, pps);
+        this.frames = frames;
+        this.keyFrames = keyFrames;
+    }
+
+    // Splits the stream into access units. Parameter sets go into the avcC record and
+    // access unit delimiters are dropped, like the iOS encoder's output.
+    static H264Source fromAnnexBFile(String path) throws IOException {
+        byte[] stream = Files.readAllBytes(Paths.get(path));
+        byte[] sps = null;
+        byte[] pps = null;
+        List<byte[]> frames = new ArrayList<>();
+        List<Boolean> keyFrames = new ArrayList<>();
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        boolean frameHasSlice = false;
+        boolean frameIsKey = false;
+
+        int nalStart = findNalStart(stream, 0);
+        while (nalStart >= 0 && nalStart < stream.length) {
+            int nextStart = findNalStart(stream, nalStart);
+            // findNalStart returns the byte after the start code, so back up over it. A NALU
+            // never ends in a zero byte, so zeros before it are the 4-byte form of start code
+            // or trailing padding.
+            int nalEnd = nextStart < 0 ? stream.length : nextStart - 3;
+            while (nalEnd > nalStart && stream[nalEnd - 1] == 0) {
+                nalEnd--;
+            }
+
+            int nalType = stream[nalStart] & 0x1F;
+            boolean isSlice = nalType == NAL_TYPE_SLICE || nalType == NAL_TYPE_IDR;
+            // first_mb_in_slice is 0, coded as a single 1 bit, on a picture's first slice
+            boolean startsPicture = isSlice && nalEnd - nalStart > 1 && (stream[nalStart + 1] & 0x80) != 0;
+            if (frameHasSlice && (startsPicture || !isSlice)) {
+                frames.add(frame.toByteArray());
+                keyFrames.add(frameIsKey);
+                frame.reset();
+                frameHasSlice = false;
+                frameIsKey = false;
+            }
+
+            if (nalType == NAL_TYPE_SPS) {
+                sps = copy(stream, nalStart, nalEnd);
+            }
+            else if (nalType == NAL_TYPE_PPS) {
+                pps = copy(stream, nalStart, nalEnd);
+            }
+            else if (nalType != NAL_TYPE_AUD && nalEnd > nalStart) {
+                writeLengthPrefixed(frame, stream, nalStart, nalEnd - nalStart);
+                frameHasSlice |= isSlice;
+                frameIsKey |= nalType == NAL_TYPE_IDR;
+            }
+            nalStart = nextStart;
+        }
+        if (frameHasSlice) {
+            frames.add(frame.toByteArray());
+            keyFrames.add(frameIsKey);
+        }
+
+        if (sps == null || pps == null || frames.isEmpty()) {
+            throw new IOException(path + " has no SPS, PPS or pictures");
+        }
+        return new H264Source(sps, pps, frames, keyFrames);
+    }
+
+    // Random slice data at the average size for the bitrate. It exercises the transport
+    // and the receiver, but a real decoder will reject it.
+    static H264Source synthetic(int bitrateKbps, int frameRate, int gopFrames) {
+        long bytesPerGop = (long) bitrateKbps * 1000 / 8 * gopFrames / frameRate;
+        int pFrameSize = (int) Math.max(64, bytesPerGop / (gopFrames - 1 + IDR_SIZE_FACTOR));
+        Random random = new Random(gopFrames);
+
+        List<byte[]> frames = new ArrayList<>();
+        List<Boolean> keyFrames = new ArrayList<>();
+        byte[] idr = syntheticFrame(random, NAL_TYPE_IDR, pFrameSize * IDR_SIZE_FACTOR);
+        byte[][] pFrames = new byte[SYNTHETIC_P_FRAME_VARIANTS][];
+        for (int i = 0; i < pFrames.length; i++) {
+            pFrames[i] = syntheticFrame(random, NAL_TYPE_SLICE, pFrameSize);
+        }
+        for (int i = 0; i < gopFrames; i++) {
+            frames.add(i == 0 ? idr : pFrames[i % pFrames.length]);
+            keyFrames.add(i == 0);
+        }
+        return new H264Source(SYNTHETIC_SPS, SYNTHETIC_PPS, frames, keyFrames);
+    }
+
+    byte[] getCodecData() {
+        return codecData;
+    }
+
+    int getFrameCount() {
+        return frames.size();
+    }
+
+    // Frames repeat from the start once they run out. The array must not be modified.
+    byte[] getFrame(long index) {
+        return frames.get((int) (index % frames.size()));
+    }
+
+    boolean isKeyFrame(long index) {
+        return keyFrames.get((int) (index % frames.size()));
+    }
+
+    private static byte[] syntheticFrame(Random random, int nalType, int size) {
+        byte[] nal = new byte[size];
+        random.nextBytes(nal);
+        nal[0] = (byte) (0x60 | nalType);
+        // first_mb_in_slice = 0
+        nal[1] |= (byte) 0x80;
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(size + 4);
+        writeLengthPrefixed(frame, nal, 0, nal.length);
+        return frame.toByteArray();
+    }
+
+    // AVCDecoderConfigurationRecord with one SPS and one PPS and 4-byte lengths
+    private static byte[] buildAvcC(byte[] sps, byte[] pps) {
+        ByteArrayOutputStream avcC = new ByteArrayOutputStream(16 + sps.length + pps.length);
+        avcC.write(1);
+        avcC.write(sps[1]);
+        avcC.write(sps[2]);
+        avcC.write(sps[3]);
+        avcC.write(0xFF);
+        avcC.write(0xE1);
+        avcC.write(sps.length >> 8);
+        avcC.write(sps.length);
+        avcC.write(sps, 0, sps.length);
+        avcC.write(1);
+        avcC.write(pps.length >> 8);
+        avcC.write(pps.length);
+        avcC.write(pps, 0, pps.length);
+        return avcC.toByteArray();
+    }
+
+    // Returns the index just past the next 00 00 01 at or after from, or -1
+    private static int findNalStart(byte[] data, int from) {
+        for (int i = from; i + 2 < data.length; i++) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    private static void writeLengthPrefixed(ByteArrayOutputStream out, byte[] data, int offset, int length) {
+        out.write(length >>> 24);
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(data, offset, length);
+    }
+
+    private static byte[] copy(byte[] data, int start, int end) {
+        byte[] copy = new byte[end - start];
+        System.arraycopy(data, start, copy, 0, copy.length);
+        return copy;
+    }
+}
@@ -0,0 +1,111 @@
+package com.airfire.simulator;
+
+import org.bouncycastle.math.ec.rfc7748.X25519;
+import org.bouncycastle.math.ec.rfc8032.Ed25519;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The sender's side of legacy pair-setup and pair-verify
+ * Each simulated sender has its own long-term key, so the receiver sees them as different devices
+ */
+class LegacyPairingClient {
+    private static final String CONTENT_TYPE = "application/octet-stream";
+    private static final int AES_KEY_SIZE = 16;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final byte[] secretKey = new byte[Ed25519.SECRET_KEY_SIZE];
+    private final byte[] publicKey = new byte[Ed25519.PUBLIC_KEY_SIZE];
+    private byte[] receiverPublicKey;
+
+    LegacyPairingClient() {
+        Ed25519.generatePrivateKey(random, secretKey);
+        Ed25519.generatePublicKey(secretKey, 0, publicKey, 0);
+    }
+
+    boolean isPaired() {
+        return receiverPublicKey != null;
+    }
+
+    void setup(RtspClient client, LoadStats stats) throws IOException {
+        long startNs = System.nanoTime();
+        RtspClient.Response response = client.request("POST", "/pair-setup", null, CONTENT_TYPE, publicKey);
+        stats.recordLatency(LoadStats.OP_PAIR_SETUP, System.nanoTime() - startNs);
+        if (response.status != 200 || response.body.length != Ed25519.PUBLIC_KEY_SIZE) {
+            throw new IOException("pair-setup failed with " + response.status);
+        }
+        receiverPublicKey = response.body;
+    }
+
+    // Both requests, timed together since that's what the sender waits for. Returns the shared secret.
+    byte[] verify(RtspClient client, LoadStats stats) throws IOException, GeneralSecurityException {
+        long startNs = System.nanoTime();
+
+        byte[] ephemeralSecret = new byte[X25519.SCALAR_SIZE];
+        byte[] ephemeralPublic = new byte[X25519.POINT_SIZE];
+        X25519.generatePrivateKey(random, ephemeralSecret);
+        X25519.generatePublicKey(ephemeralSecret, 0, ephemeralPublic, 0);
+
+        byte[] start = new byte[4 + X25519.POINT_SIZE + Ed25519.PUBLIC_KEY_SIZE];
+        start[0] = 1;
+        System.arraycopy(ephemeralPublic, 0, start, 4, X25519.POINT_SIZE);
+        System.arraycopy(publicKey, 0, start, 4 + X25519.POINT_SIZE, Ed25519.PUBLIC_KEY_SIZE);
+        RtspClient.Response response = client.request("POST", "/pair-verify", null, CONTENT_TYPE, start);
+        if (response.status != 200 || response.body.length != X25519.POINT_SIZE + Ed25519.SIGNATURE_SIZE) {
+            throw new IOException("pair-verify failed with " + response.status);
+        }
+
+        byte[] receiverEphemeral = new byte[X25519.POINT_SIZE];
+        System.arraycopy(response.body, 0, receiverEphemeral, 0, X25519.POINT_SIZE);
+        byte[] secret = new byte[X25519.POINT_SIZE];
+        if (!X25519.calculateAgreement(ephemeralSecret, 0, receiverEphemeral, 0, secret, 0)) {
+            throw new IOException("Receiver sent a low-order key");
+        }
+
+        MessageDigest sha512 = MessageDigest.getInstance("SHA-512");
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE,
+                new SecretKeySpec(deriveKey(sha512, "Pair-Verify-AES-Key", secret), 0, AES_KEY_SIZE, "AES"),
+                new IvParameterSpec(deriveKey(sha512, "Pair-Verify-AES-IV", secret), 0, AES_KEY_SIZE));
+
+        // The receiver signed its key then ours
+        byte[] keys = new byte[X25519.POINT_SIZE * 2];
+        System.arraycopy(receiverEphemeral, 0, keys, 0, X25519.POINT_SIZE);
+        System.arraycopy(ephemeralPublic, 0, keys, X25519.POINT_SIZE, X25519.POINT_SIZE);
+        byte[] signature = cipher.update(response.body, X25519.POINT_SIZE, Ed25519.SIGNATURE_SIZE);
+        if (receiverPublicKey != null &&
+                !Ed25519.verify(signature, 0, receiverPublicKey, 0, keys, 0, keys.length)) {
+            throw new IOException("Receiver's pair-verify signature doesn't match its key");
+        }
+
+        // We sign ours then the receiver's
+        System.arraycopy(ephemeralPublic, 0, keys, 0, X25519.POINT_SIZE);
+        System.arraycopy(receiverEphemeral, 0, keys, X25519.POINT_SIZE, X25519.POINT_SIZE);
+        byte[] finish = new byte[4 + Ed25519.SIGNATURE_SIZE];
+        Ed25519.sign(secretKey, 0, publicKey, 0, keys, 0, keys.length, signature, 0);
+        cipher.update(signature, 0, Ed25519.SIGNATURE_SIZE, finish, 4);
+        response = client.request("POST", "/pair-verify", null, CONTENT_TYPE, finish);
+        if (response.status != 200) {
+            throw new IOException("pair-verify rejected with " + response.status);
+        }
+
+        stats.recordLatency(LoadStats.OP_PAIR_VERIFY, System.nanoTime() - startNs);
+        return secret;
+    }
+
+    private static byte[] deriveKey(MessageDigest sha512, String salt, byte[] secret) {
+        sha512.reset();
+        sha512.update(salt.getBytes(StandardCharsets.US_ASCII));
+        sha512.update(secret);
+        return sha512.digest();
+    }
+}
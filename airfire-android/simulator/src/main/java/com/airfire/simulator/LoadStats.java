@@ -0,0 +1,95 @@
+package com.airfire.simulator;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latencies and throughput gathered from every simulated sender
+ * Latencies are kept as raw samples so the report can give exact percentiles, which is fine for a run of minutes
+ */
+class LoadStats {
+    static final int OP_CONNECT = 0;
+    static final int OP_INFO = 1;
+    static final int OP_PAIR_SETUP = 2;
+    static final int OP_PAIR_VERIFY = 3;
+    static final int OP_SETUP = 4;
+    static final int OP_RECORD = 5;
+    static final int OP_FEEDBACK = 6;
+    static final int OP_TEARDOWN = 7;
+    static final int OP_SESSION_SETUP = 8;
+
+    private static final String[] OP_NAMES = {
+        "TCP connect",
+        "GET /info",
+        "pair-setup",
+        "pair-verify",
+        "SETUP",
+        "RECORD",
+        "POST /feedback",
+        "TEARDOWN",
+        "Session setup",
+    };
+
+    // A minute of 60 fps from dozens of senders still fits, and beyond it samples are dropped
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    private final long[][] samples = new long[OP_NAMES.length][];
+    private final int[] sampleCounts = new int[OP_NAMES.length];
+
+    final AtomicLong videoBytes = new AtomicLong();
+    final AtomicLong videoFrames = new AtomicLong();
+    final AtomicLong audioBytes = new AtomicLong();
+    final AtomicLong audioPackets = new AtomicLong();
+    final AtomicLong sessions = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+
+    LoadStats() {
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = new long[256];
+        }
+    }
+
+    synchronized void recordLatency(int op, long nanos) {
+        int count = sampleCounts[op];
+        if (count == MAX_SAMPLES) {
+            return;
+        }
+        if (count == samples[op].length) {
+            samples[op] = Arrays.copyOf(samples[op], count * 2);
+        }
+        samples[op][count] = nanos;
+        sampleCounts[op] = count + 1;
+    }
+
+    synchronized String formatReport(double elapsedSeconds, int senders) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "%d senders, %.1f s, %d sessions, %d failures%n",
+                senders, elapsedSeconds, sessions.get(), failures.get()));
+        report.append(String.format(Locale.ROOT, "Video: %d frames, %.1f fps, %.2f Mbit/s%n",
+                videoFrames.get(), videoFrames.get() / elapsedSeconds,
+                videoBytes.get() * 8 / elapsedSeconds / 1000000));
+        report.append(String.format(Locale.ROOT, "Audio: %d packets, %.2f Mbit/s%n",
+                audioPackets.get(), audioBytes.get() * 8 / elapsedSeconds / 1000000));
+
+        report.append(String.format(Locale.ROOT, "%-16s %8s %9s %9s %9s %9s%n",
+                "Latency (ms)", "count", "p50", "p95", "p99", "max"));
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            int count = sampleCounts[op];
+            if (count == 0) {
+                continue;
+            }
+            long[] sorted = Arrays.copyOf(samples[op], count);
+            Arrays.sort(sorted);
+            report.append(String.format(Locale.ROOT, "%-16s %8d %9.2f %9.2f %9.2f %9.2f%n", OP_NAMES[op], count,
+                    percentileMs(sorted, 50), percentileMs(sorted, 95), percentileMs(sorted, 99),
+                    sorted[count - 1] / 1e6));
+        }
+        return report.toString();
+    }
+
+    private static double percentileMs(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(sorted.length * percentile / 100.0) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,135 @@
+package com.airfire.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * The sender's end of the AirPlay control connection
+ * Sends one RTSP request at a time on a persistent connection and reads back the whole response, as iOS does
+ */
+class RtspClient implements Closeable {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 10000;
+    private static final String USER_AGENT = "AirPlay/550.10";
+
+    static final class Response {
+        final int status;
+        final String head;
+        final byte[] body;
+
+        Response(int status, String head, byte[] body) {
+            this.status = status;
+            this.head = head;
+            this.body = body;
+        }
+
+        // The value of a response header, or null
+        String getHeader(String name) {
+            String prefix = "\r\n" + name.toLowerCase(Locale.ROOT) + ":";
+            int start = head.toLowerCase(Locale.ROOT).indexOf(prefix);
+            if (start < 0) {
+                return null;
+            }
+            start += prefix.length();
+            int end = head.indexOf("\r\n", start);
+            return head.substring(start, end < 0 ? head.length() : end).trim();
+        }
+    }
+
+    private final Socket socket;
+    private final InputStream input;
+    private final OutputStream output;
+    private final String uri;
+    private final String deviceId;
+    private int cseq;
+
+    RtspClient(String host, int port, String deviceId) throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        socket.setSoTimeout(READ_TIMEOUT_MS);
+        input = new BufferedInputStream(socket.getInputStream());
+        output = socket.getOutputStream();
+        uri = "rtsp://" + socket.getLocalAddress().getHostAddress() + "/" + Integer.toUnsignedString(deviceId.hashCode());
+        this.deviceId = deviceId;
+    }
+
+    String getUri() {
+        return uri;
+    }
+
+    Socket getSocket() {
+        return socket;
+    }
+
+    Response request(String method, String path, String extraHeaders, String contentType, byte[] body)
+            throws IOException {
+        StringBuilder head = new StringBuilder(256);
+        head.append(method).append(' ').append(path != null ? path : uri).append(" RTSP/1.0\r\n");
+        head.append("CSeq: ").append(++cseq).append("\r\n");
+        head.append("User-Agent: ").append(USER_AGENT).append("\r\n");
+        head.append("X-Apple-Device-ID: ").append(deviceId).append("\r\n");
+        if (extraHeaders != null) {
+            head.append(extraHeaders);
+        }
+        if (contentType != null) {
+            head.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        head.append("Content-Length: ").append(body != null ? body.length : 0).append("\r\n\r\n");
+
+        output.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+        if (body != null) {
+            output.write(body);
+        }
+        output.flush();
+        return readResponse();
+    }
+
+    private Response readResponse() throws IOException {
+        ByteArrayOutputStream headBytes = new ByteArrayOutputStream(256);
+        int matched = 0;
+        while (matched < 4) {
+            int b = input.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed by receiver");
+            }
+            headBytes.write(b);
+            // Looking for the blank line, \r\n\r\n
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+
+        String head = headBytes.toString(StandardCharsets.US_ASCII.name());
+        int firstSpace = head.indexOf(' ');
+        if (firstSpace < 0 || head.length() < firstSpace + 4) {
+            throw new IOException("Malformed response: " + head);
+        }
+        int status = Integer.parseInt(head.substring(firstSpace + 1, firstSpace + 4));
+
+        Response response = new Response(status, head, null);
+        String length = response.getHeader("Content-Length");
+        byte[] body = new byte[length != null ? Integer.parseInt(length) : 0];
+        int read = 0;
+        while (read < body.length) {
+            int count = input.read(body, read, body.length - read);
+            if (count < 0) {
+                throw new EOFException("Connection closed by receiver");
+            }
+            read += count;
+        }
+        return new Response(status, head, body);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
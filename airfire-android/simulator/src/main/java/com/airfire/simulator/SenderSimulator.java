@@ -0,0 +1,101 @@
+package com.airfire.simulator;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Headless AirPlay sender simulator and load harness
+ * Runs any number of simulated senders against a receiver, printing progress every second and a latency report at the end
+ */
+public class SenderSimulator {
+    public static void main(String[] args) throws InterruptedException {
+        SimulatorOptions options;
+        try {
+            options = SimulatorOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(SimulatorOptions.USAGE);
+            System.exit(2);
+            return;
+        }
+        if (options.help) {
+            System.out.print(SimulatorOptions.USAGE);
+            return;
+        }
+
+        H264Source video;
+        try {
+            video = options.h264File != null ? H264Source.fromAnnexBFile(options.h264File) :
+                    H264Source.synthetic(options.bitrateKbps, options.frameRate, options.gopFrames);
+        } catch (IOException e) {
+            System.err.println("Unable to read " + options.h264File + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        System.out.println(String.format(Locale.ROOT, "%d senders to %s:%d for %d s, %s", options.senders,
+                options.host, options.controlPort, options.durationSeconds, describe(options, video)));
+
+        LoadStats stats = new LoadStats();
+        long startNs = System.nanoTime();
+        long deadlineNs = startNs + options.durationSeconds * 1000000000L;
+        SimulatedSender[] senders = new SimulatedSender[options.senders];
+        Thread[] threads = new Thread[options.senders];
+        for (int i = 0; i < senders.length; i++) {
+            senders[i] = new SimulatedSender(options, video, stats, i + 1, deadlineNs);
+            threads[i] = new Thread(senders[i], "Sender " + (i + 1));
+            threads[i].start();
+        }
+
+        // Progress once a second, as deltas so a stall is obvious
+        long lastFrames = 0;
+        long lastVideoBytes = 0;
+        for (int second = 1; System.nanoTime() - deadlineNs < 0; second++) {
+            long nextNs = startNs + second * 1000000000L;
+            long sleepMs = (Math.min(nextNs, deadlineNs) - System.nanoTime()) / 1000000;
+            if (sleepMs > 0) {
+                Thread.sleep(sleepMs);
+            }
+            long frames = stats.videoFrames.get();
+            long videoBytes = stats.videoBytes.get();
+            System.out.println(String.format(Locale.ROOT, "%3d s  %4d sessions  %5d fps  %7.2f Mbit/s  %d failures",
+                    second, stats.sessions.get(), frames - lastFrames,
+                    (videoBytes - lastVideoBytes) * 8 / 1e6, stats.failures.get()));
+            lastFrames = frames;
+            lastVideoBytes = videoBytes;
+        }
+
+        // Senders finish their own sessions at the deadline. Anything still blocked after
+        // a grace period is stuck on a receiver that stopped reading.
+        for (Thread thread : threads) {
+            thread.join(2000);
+        }
+        for (SimulatedSender sender : senders) {
+            sender.stop();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        System.out.println();
+        System.out.print(stats.formatReport((System.nanoTime() - startNs) / 1e9, options.senders));
+    }
+
+    private static String describe(SimulatorOptions options, H264Source video) {
+        StringBuilder description = new StringBuilder();
+        if (options.mirroring) {
+            description.append(options.h264File != null ? options.h264File :
+                    "synthetic " + options.bitrateKbps + " kbit/s").append(" video at ").append(options.frameRate)
+                    .append(" fps (").append(video.getFrameCount()).append(" frames)");
+        }
+        else {
+            description.append("no video");
+        }
+        description.append(options.audio ? ", L16 audio" : ", no audio");
+        description.append(options.pairing ? ", pairing" : ", no pairing");
+        if (options.sessionSeconds > 0) {
+            description.append(", reconnecting every ").append(options.sessionSeconds).append(" s");
+        }
+        return description.toString();
+    }
+}
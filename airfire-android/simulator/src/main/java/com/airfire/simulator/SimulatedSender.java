@@ -0,0 +1,425 @@
+package com.airfire.simulator;
+
+import com.airfire.BinaryPlistWriter;
+import com.airfire.PlistValue;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * One simulated iOS sender
+ * Goes through the handshake an iPhone does, then streams mirroring video and audio until its session ends, then starts over
+ */
+class SimulatedSender implements Runnable {
+    private static final int STREAM_TYPE_AUDIO = 96;
+    private static final int STREAM_TYPE_MIRRORING = 110;
+    private static final String CONTENT_TYPE_BINARY_PLIST = "application/x-apple-binary-plist";
+
+    private static final int MIRRORING_HEADER_SIZE = 128;
+    private static final int PAYLOAD_TYPE_VIDEO = 0;
+    private static final int PAYLOAD_TYPE_CODEC = 1;
+    private static final int PAYLOAD_TYPE_HEARTBEAT = 2;
+    private static final long HEARTBEAT_INTERVAL_NS = 1000000000L;
+
+    // 352 stereo 16-bit frames per packet at 44.1 kHz, as AirTunes sends
+    private static final String AUDIO_SDP =
+            "v=0\r\n" +
+            "o=iTunes 1 0 IN IP4 127.0.0.1\r\n" +
+            "s=iTunes\r\n" +
+            "m=audio 0 RTP/AVP 96\r\n" +
+            "a=rtpmap:96 L16/44100/2\r\n";
+    private static final int AUDIO_SAMPLE_RATE = 44100;
+    private static final int AUDIO_FRAMES_PER_PACKET = 352;
+    private static final int AUDIO_PACKET_SIZE = 12 + AUDIO_FRAMES_PER_PACKET * 4;
+    private static final int SYNC_PACKET_SIZE = 20;
+    // The sync packet's first timestamp is the one playing now, this far behind the one being sent
+    private static final int AUDIO_LATENCY_FRAMES = 11025;
+    private static final long SYNC_INTERVAL_NS = 1000000000L;
+    private static final long FEEDBACK_INTERVAL_NS = 2000000000L;
+
+    // Connection failures back off this long so a dead receiver doesn't turn into a busy loop
+    private static final long RETRY_DELAY_MS = 500;
+
+    private final SimulatorOptions options;
+    private final H264Source video;
+    private final LoadStats stats;
+    private final String deviceId;
+    private final long deadlineNs;
+    private final LegacyPairingClient pairing;
+    private final Random random;
+    private final BinaryPlistWriter plistWriter = new BinaryPlistWriter();
+    private final PlistValue setupPlist = new PlistValue();
+
+    // The sockets of the current session, closed by stop() to unblock any write
+    private final List<Closeable> openSockets = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean isRunning = true;
+
+    SimulatedSender(SimulatorOptions options, H264Source video, LoadStats stats, int index, long deadlineNs) {
+        this.options = options;
+        this.video = video;
+        this.stats = stats;
+        this.deviceId = String.format("02:00:00:00:%02X:%02X", (index >> 8) & 0xFF, index & 0xFF);
+        this.deadlineNs = deadlineNs;
+        this.pairing = options.pairing ? new LegacyPairingClient() : null;
+        this.random = new Random(index);
+    }
+
+    @Override
+    public void run() {
+        while (isRunning && System.nanoTime() - deadlineNs < 0) {
+            try {
+                runSession();
+            } catch (IOException | GeneralSecurityException e) {
+                if (!isRunning || System.nanoTime() - deadlineNs >= 0) {
+                    // Cut off by the end of the run
+                    break;
+                }
+                stats.failures.incrementAndGet();
+                System.err.println(deviceId + ": " + e);
+                sleepQuietly(RETRY_DELAY_MS);
+            } finally {
+                closeSockets();
+            }
+        }
+    }
+
+    void stop() {
+        isRunning = false;
+        closeSockets();
+    }
+
+    private void runSession() throws IOException, GeneralSecurityException {
+        long sessionStartNs = System.nanoTime();
+        long sessionEndNs = deadlineNs;
+        if (options.sessionSeconds > 0) {
+            long endNs = sessionStartNs + options.sessionSeconds * 1000000000L;
+            if (endNs - deadlineNs < 0) {
+                sessionEndNs = endNs;
+            }
+        }
+
+        RtspClient client = new RtspClient(options.host, options.controlPort, deviceId);
+        openSockets.add(client.getSocket());
+        stats.recordLatency(LoadStats.OP_CONNECT, System.nanoTime() - sessionStartNs);
+
+        long startNs = System.nanoTime();
+        expectOk(client.request("GET", "/info", null, null, null), "GET /info");
+        stats.recordLatency(LoadStats.OP_INFO, System.nanoTime() - startNs);
+
+        if (pairing != null) {
+            if (!pairing.isPaired()) {
+                pairing.setup(client, stats);
+            }
+            pairing.verify(client, stats);
+        }
+
+        try (TimingResponder timing = new TimingResponder(deviceId + " timing")) {
+            if (options.mirroring) {
+                setupPlist.clear(PlistValue.TYPE_DICT);
+                setupPlist.put("timingPort").setInteger(timing.getPort());
+                PlistValue stream = setupPlist.put("streams").clear(PlistValue.TYPE_ARRAY).add().clear(PlistValue.TYPE_DICT);
+                stream.put("type").setInteger(STREAM_TYPE_MIRRORING);
+                stream.put("streamConnectionID").setInteger(random.nextLong());
+
+                startNs = System.nanoTime();
+                expectOk(client.request("SETUP", null, null, CONTENT_TYPE_BINARY_PLIST, encodePlist(setupPlist)),
+                        "SETUP");
+                stats.recordLatency(LoadStats.OP_SETUP, System.nanoTime() - startNs);
+            }
+
+            InetSocketAddress audioData = null;
+            InetSocketAddress audioControl = null;
+            DatagramSocket audioSocket = null;
+            if (options.audio) {
+                audioSocket = new DatagramSocket();
+                openSockets.add(audioSocket);
+                expectOk(client.request("ANNOUNCE", null, null, "application/sdp",
+                        AUDIO_SDP.getBytes(StandardCharsets.US_ASCII)), "ANNOUNCE");
+
+                startNs = System.nanoTime();
+                RtspClient.Response response = client.request("SETUP", null,
+                        "Transport: RTP/AVP/UDP;unicast;interleaved=0-1;mode=record;control_port=" +
+                        audioSocket.getLocalPort() + ";timing_port=" + timing.getPort() + "\r\n", null, null);
+                expectOk(response, "audio SETUP");
+                stats.recordLatency(LoadStats.OP_SETUP, System.nanoTime() - startNs);
+
+                String transport = response.getHeader("Transport");
+                InetAddress receiver = client.getSocket().getInetAddress();
+                audioData = new InetSocketAddress(receiver, getTransportPort(transport, "server_port="));
+                audioControl = new InetSocketAddress(receiver, getTransportPort(transport, "control_port="));
+            }
+
+            startNs = System.nanoTime();
+            expectOk(client.request("RECORD", null, "RTP-Info: seq=0;rtptime=0\r\n", null, null), "RECORD");
+            long nowNs = System.nanoTime();
+            stats.recordLatency(LoadStats.OP_RECORD, nowNs - startNs);
+            stats.recordLatency(LoadStats.OP_SESSION_SETUP, nowNs - sessionStartNs);
+            stats.sessions.incrementAndGet();
+
+            Thread videoThread = null;
+            if (options.mirroring) {
+                Socket mirroring = new Socket();
+                openSockets.add(mirroring);
+                mirroring.setTcpNoDelay(true);
+                mirroring.connect(new InetSocketAddress(options.host, options.mirroringPort), 5000);
+                long endNs = sessionEndNs;
+                videoThread = startThread(deviceId + " video", () -> streamVideo(mirroring, endNs));
+            }
+            Thread audioThread = null;
+            if (audioSocket != null) {
+                DatagramSocket socket = audioSocket;
+                InetSocketAddress data = audioData;
+                InetSocketAddress control = audioControl;
+                long endNs = sessionEndNs;
+                audioThread = startThread(deviceId + " audio", () -> streamAudio(socket, data, control, endNs));
+            }
+
+            // The control connection idles apart from the keep-alive, as it does on iOS
+            long nextFeedbackNs = System.nanoTime() + FEEDBACK_INTERVAL_NS;
+            while (isRunning && System.nanoTime() - sessionEndNs < 0) {
+                sleepQuietly(Math.max(1, (Math.min(nextFeedbackNs, sessionEndNs) - System.nanoTime()) / 1000000));
+                if (System.nanoTime() - nextFeedbackNs >= 0 && System.nanoTime() - sessionEndNs < 0) {
+                    startNs = System.nanoTime();
+                    expectOk(client.request("POST", "/feedback", null, null, null), "POST /feedback");
+                    stats.recordLatency(LoadStats.OP_FEEDBACK, System.nanoTime() - startNs);
+                    nextFeedbackNs += FEEDBACK_INTERVAL_NS;
+                }
+            }
+
+            joinQuietly(videoThread);
+            joinQuietly(audioThread);
+
+            if (isRunning) {
+                startNs = System.nanoTime();
+                expectOk(client.request("TEARDOWN", null, null, null, null), "TEARDOWN");
+                stats.recordLatency(LoadStats.OP_TEARDOWN, System.nanoTime() - startNs);
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    // Codec data first, then one packet per frame at the frame rate. A receiver that
+    // falls behind pushes back through TCP and shows up as a lower frame rate.
+    private void streamVideo(Socket socket, long endNs) {
+        byte[] header = new byte[MIRRORING_HEADER_SIZE];
+        try {
+            OutputStream output = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            byte[] codecData = video.getCodecData();
+            writeMirroringPacket(output, header, PAYLOAD_TYPE_CODEC, TimingResponder.nowNtp(), codecData);
+            output.flush();
+
+            long frameIntervalNs = 1000000000L / options.frameRate;
+            long startNs = System.nanoTime();
+            long nextHeartbeatNs = startNs + HEARTBEAT_INTERVAL_NS;
+            for (long frame = 0; isRunning; frame++) {
+                long frameNs = startNs + frame * frameIntervalNs;
+                if (frameNs - endNs >= 0) {
+                    break;
+                }
+                sleepUntil(frameNs);
+
+                byte[] data = video.getFrame(frame);
+                writeMirroringPacket(output, header, PAYLOAD_TYPE_VIDEO, TimingResponder.nowNtp(), data);
+                if (System.nanoTime() - nextHeartbeatNs >= 0) {
+                    writeMirroringPacket(output, header, PAYLOAD_TYPE_HEARTBEAT, 0, null);
+                    nextHeartbeatNs += HEARTBEAT_INTERVAL_NS;
+                }
+                output.flush();
+                stats.videoFrames.incrementAndGet();
+                stats.videoBytes.addAndGet(MIRRORING_HEADER_SIZE + data.length);
+            }
+        } catch (IOException e) {
+            if (isRunning && System.nanoTime() - endNs < 0) {
+                stats.failures.incrementAndGet();
+                System.err.println(deviceId + ": mirroring stream: " + e);
+            }
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to send
+            }
+        }
+    }
+
+    private static void writeMirroringPacket(OutputStream output, byte[] header, int payloadType, long ntpTimestamp,
+                                             byte[] payload) throws IOException {
+        int payloadSize = payload != null ? payload.length : 0;
+        Arrays.fill(header, (byte) 0);
+        writeIntLE(header, 0, payloadSize);
+        header[4] = (byte) payloadType;
+        writeIntLE(header, 8, (int) ntpTimestamp);
+        writeIntLE(header, 12, (int) (ntpTimestamp >>> 32));
+        output.write(header);
+        if (payload != null) {
+            output.write(payload);
+        }
+    }
+
+    // A quiet tone in L16, paced by the sample clock, with a sync packet every second
+    // tying RTP time to the NTP clock the timing responder serves.
+    private void streamAudio(DatagramSocket socket, InetSocketAddress data, InetSocketAddress control, long endNs) {
+        byte[] packet = new byte[AUDIO_PACKET_SIZE];
+        byte[] sync = new byte[SYNC_PACKET_SIZE];
+        DatagramPacket dataPacket = new DatagramPacket(packet, packet.length, data);
+        DatagramPacket syncPacket = new DatagramPacket(sync, sync.length, control);
+        int ssrc = random.nextInt();
+        int sequence = random.nextInt() & 0xFFFF;
+        int rtpTime = random.nextInt();
+        for (int i = 0; i < AUDIO_FRAMES_PER_PACKET; i++) {
+            short sample = (short) (1000 * Math.sin(2 * Math.PI * 440 * i / AUDIO_SAMPLE_RATE));
+            int offset = 12 + i * 4;
+            packet[offset] = packet[offset + 2] = (byte) (sample >> 8);
+            packet[offset + 1] = packet[offset + 3] = (byte) sample;
+        }
+
+        long startNs = System.nanoTime();
+        long nextSyncNs = startNs;
+        try {
+            for (long index = 0; isRunning; index++) {
+                long packetNs = startNs + index * AUDIO_FRAMES_PER_PACKET * 1000000000L / AUDIO_SAMPLE_RATE;
+                if (packetNs - endNs >= 0) {
+                    break;
+                }
+                sleepUntil(packetNs);
+
+                if (System.nanoTime() - nextSyncNs >= 0) {
+                    sync[0] = (byte) (index == 0 ? 0x90 : 0x80);
+                    sync[1] = (byte) 0xD4;
+                    sync[2] = 0;
+                    sync[3] = 7;
+                    writeIntBE(sync, 4, rtpTime - AUDIO_LATENCY_FRAMES);
+                    TimingResponder.writeLong(sync, 8, TimingResponder.nowNtp());
+                    writeIntBE(sync, 16, rtpTime);
+                    socket.send(syncPacket);
+                    nextSyncNs += SYNC_INTERVAL_NS;
+                }
+
+                packet[0] = (byte) 0x80;
+                packet[1] = (byte) (index == 0 ? 0xE0 : 0x60);
+                packet[2] = (byte) (sequence >> 8);
+                packet[3] = (byte) sequence;
+                writeIntBE(packet, 4, rtpTime);
+                writeIntBE(packet, 8, ssrc);
+                socket.send(dataPacket);
+                stats.audioPackets.incrementAndGet();
+                stats.audioBytes.addAndGet(packet.length);
+
+                sequence = (sequence + 1) & 0xFFFF;
+                rtpTime += AUDIO_FRAMES_PER_PACKET;
+            }
+        } catch (IOException e) {
+            if (isRunning && System.nanoTime() - endNs < 0) {
+                stats.failures.incrementAndGet();
+                System.err.println(deviceId + ": audio stream: " + e);
+            }
+        }
+    }
+
+    private byte[] encodePlist(PlistValue root) {
+        ByteBuffer buffer = ByteBuffer.allocate(plistWriter.measure(root));
+        plistWriter.write(root, buffer);
+        return buffer.array();
+    }
+
+    private static int getTransportPort(String transport, String name) throws IOException {
+        int start = transport != null ? transport.indexOf(name) : -1;
+        if (start < 0) {
+            throw new IOException("Transport has no " + name + ": " + transport);
+        }
+        start += name.length();
+        int end = start;
+        while (end < transport.length() && Character.isDigit(transport.charAt(end))) {
+            end++;
+        }
+        return Integer.parseInt(transport.substring(start, end));
+    }
+
+    private static void expectOk(RtspClient.Response response, String what) throws IOException {
+        if (response.status != 200) {
+            throw new IOException(what + " failed with " + response.status);
+        }
+    }
+
+    private Thread startThread(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void closeSockets() {
+        synchronized (openSockets) {
+            for (Closeable socket : openSockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Already gone
+                }
+            }
+            openSockets.clear();
+        }
+    }
+
+    // Sleeps most of the way then spins, since sleep alone overshoots by a millisecond or more
+    private static void sleepUntil(long targetNs) {
+        long remainingNs;
+        while ((remainingNs = targetNs - System.nanoTime()) > 0) {
+            if (remainingNs > 2000000) {
+                sleepQuietly((remainingNs - 1000000) / 1000000);
+            }
+            else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void joinQuietly(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void writeIntLE(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >> 8);
+        data[offset + 2] = (byte) (value >> 16);
+        data[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static void writeIntBE(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
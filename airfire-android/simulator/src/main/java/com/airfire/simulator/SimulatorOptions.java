@@ -0,0 +1,121 @@
+package com.airfire.simulator;
+
+/**
+ * Command line options for the sender simulator
+ * Every option has a default that plays one mirroring sender with audio against a receiver on this machine
+ */
+class SimulatorOptions {
+    String host = "127.0.0.1";
+    int controlPort = 7000;
+    int mirroringPort = 7100;
+
+    int senders = 1;
+    int durationSeconds = 30;
+
+    // 0 keeps each sender's session up for the whole run. Anything else has the sender tear
+    // down and set up again that often, to load the handshake rather than the stream.
+    int sessionSeconds;
+
+    boolean mirroring = true;
+    boolean audio = true;
+    boolean pairing = true;
+    boolean help;
+
+    // An Annex B elementary stream to replay, or null for synthetic frames
+    String h264File;
+    int frameRate = 60;
+    int bitrateKbps = 8000;
+    int gopFrames = 120;
+
+    static final String USAGE =
+            "Usage: simulator [options]\n" +
+            "  --host HOST            receiver address (127.0.0.1)\n" +
+            "  --port PORT            receiver control port (7000)\n" +
+            "  --mirroring-port PORT  receiver mirroring port (7100)\n" +
+            "  --senders N            concurrent senders (1)\n" +
+            "  --duration SECONDS     length of the run (30)\n" +
+            "  --session SECONDS      reconnect each sender this often, 0 for never (0)\n" +
+            "  --h264 FILE            replay an Annex B H.264 stream instead of synthetic frames\n" +
+            "  --fps N                video frame rate (60)\n" +
+            "  --bitrate KBPS         synthetic video bitrate (8000)\n" +
+            "  --gop N                frames between synthetic IDR frames (120)\n" +
+            "  --no-mirroring         don't send video\n" +
+            "  --no-audio             don't send audio\n" +
+            "  --no-pairing           skip pair-setup and pair-verify\n" +
+            "  --help                 print this\n";
+
+    // Throws IllegalArgumentException with a message for the user on anything it doesn't understand
+    static SimulatorOptions parse(String[] args) {
+        SimulatorOptions options = new SimulatorOptions();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--no-mirroring":
+                    options.mirroring = false;
+                    continue;
+                case "--no-audio":
+                    options.audio = false;
+                    continue;
+                case "--no-pairing":
+                    options.pairing = false;
+                    continue;
+                case "--help":
+                    options.help = true;
+                    continue;
+            }
+
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--host":
+                    options.host = value;
+                    break;
+                case "--port":
+                    options.controlPort = parsePositive(arg, value);
+                    break;
+                case "--mirroring-port":
+                    options.mirroringPort = parsePositive(arg, value);
+                    break;
+                case "--senders":
+                    options.senders = parsePositive(arg, value);
+                    break;
+                case "--duration":
+                    options.durationSeconds = parsePositive(arg, value);
+                    break;
+                case "--session":
+                    options.sessionSeconds = Integer.parseInt(value);
+                    break;
+                case "--h264":
+                    options.h264File = value;
+                    break;
+                case "--fps":
+                    options.frameRate = parsePositive(arg, value);
+                    break;
+                case "--bitrate":
+                    options.bitrateKbps = parsePositive(arg, value);
+                    break;
+                case "--gop":
+                    options.gopFrames = parsePositive(arg, value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        return options;
+    }
+
+    private static int parsePositive(String name, String value) {
+        int result;
+        try {
+            result = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " needs a number, not " + value);
+        }
+        if (result <= 0) {
+            throw new IllegalArgumentException(name + " must be positive");
+        }
+        return result;
+    }
+}
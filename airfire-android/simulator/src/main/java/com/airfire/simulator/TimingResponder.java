@@ -0,0 +1,87 @@
+package com.airfire.simulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+
+/**
+ * The sender's timing port
+ * Answers the receiver's NTP-style timing requests with this JVM's clock, so its sync clock has something to lock on to
+ */
+class TimingResponder implements Closeable {
+    private static final int PACKET_SIZE = 32;
+    private static final int PAYLOAD_TYPE_REQUEST = 0x52;
+    private static final int PAYLOAD_TYPE_RESPONSE = 0x53;
+    private static final int OFFSET_ORIGIN = 8;
+    private static final int OFFSET_RECEIVE = 16;
+    private static final int OFFSET_TRANSMIT = 24;
+
+    private final DatagramSocket socket;
+    private final Thread thread;
+    private volatile int requestsAnswered;
+
+    TimingResponder(String name) throws SocketException {
+        socket = new DatagramSocket();
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return socket.getLocalPort();
+    }
+
+    int getRequestsAnswered() {
+        return requestsAnswered;
+    }
+
+    // The same epoch the video and sync packets are stamped with
+    static long nowNtp() {
+        long nanos = System.nanoTime() & Long.MAX_VALUE;
+        return ((nanos / 1000000000L) << 32) | (((nanos % 1000000000L) << 32) / 1000000000L);
+    }
+
+    private void run() {
+        byte[] receiveData = new byte[PACKET_SIZE];
+        byte[] sendData = new byte[PACKET_SIZE];
+        DatagramPacket receivePacket = new DatagramPacket(receiveData, PACKET_SIZE);
+        DatagramPacket sendPacket = new DatagramPacket(sendData, PACKET_SIZE);
+        while (!socket.isClosed()) {
+            try {
+                receivePacket.setLength(PACKET_SIZE);
+                socket.receive(receivePacket);
+                long receivedNtp = nowNtp();
+                if (receivePacket.getLength() < PACKET_SIZE || (receiveData[1] & 0x7F) != PAYLOAD_TYPE_REQUEST) {
+                    continue;
+                }
+
+                sendData[0] = (byte) 0x80;
+                sendData[1] = (byte) (0x80 | PAYLOAD_TYPE_RESPONSE);
+                sendData[2] = receiveData[2];
+                sendData[3] = receiveData[3];
+                System.arraycopy(receiveData, OFFSET_TRANSMIT, sendData, OFFSET_ORIGIN, 8);
+                writeLong(sendData, OFFSET_RECEIVE, receivedNtp);
+                writeLong(sendData, OFFSET_TRANSMIT, nowNtp());
+                sendPacket.setSocketAddress(receivePacket.getSocketAddress());
+                socket.send(sendPacket);
+                requestsAnswered++;
+            } catch (IOException e) {
+                // Closed at the end of the session
+            }
+        }
+    }
+
+    static void writeLong(byte[] data, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            data[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}